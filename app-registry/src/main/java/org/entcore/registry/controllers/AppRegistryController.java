@@ -32,6 +32,7 @@ import fr.wseduc.webutils.Server;
 import fr.wseduc.webutils.http.BaseController;
 
 import fr.wseduc.webutils.http.Renders;
+import org.entcore.common.appregistry.ApplicationUtils;
 import org.entcore.common.http.filter.AdminFilter;
 import org.entcore.common.http.filter.ResourceFilter;
 import org.entcore.common.user.UserUtils;
@@ -51,7 +52,6 @@ import io.vertx.core.json.JsonObject;
 
 import static fr.wseduc.webutils.Utils.handlerToAsyncHandler;
 import static fr.wseduc.webutils.request.RequestUtils.bodyToJson;
-import static org.entcore.common.appregistry.AppRegistryEvents.APP_REGISTRY_PUBLISH_ADDRESS;
 import static org.entcore.common.appregistry.AppRegistryEvents.PROFILE_GROUP_ACTIONS_UPDATED;
 import static org.entcore.common.bus.BusResponseHandler.busArrayHandler;
 import static org.entcore.common.bus.BusResponseHandler.busResponseHandler;
@@ -161,7 +161,8 @@ public class AppRegistryController extends BaseController {
 					if (roleName != null && !roleName.trim().isEmpty()) {
 						role.put("name", roleName);
 					}
-					appRegistryService.updateRole(roleId, role, actions, notEmptyResponseHandler(request));
+					appRegistryService.updateRole(roleId, role, actions,
+							updatedProfileGroupActions(null, notEmptyResponseHandler(request)));
 				} else {
 					badRequest(request, "invalid.id");
 				}
@@ -175,7 +176,7 @@ public class AppRegistryController extends BaseController {
 	public void deleteRole(final HttpServerRequest request) {
 		String roleId = request.params().get("id");
 		if (roleId != null && !roleId.trim().isEmpty()) {
-			appRegistryService.deleteRole(roleId, defaultResponseHandler(request, 204));
+			appRegistryService.deleteRole(roleId, updatedProfileGroupActions(null, defaultResponseHandler(request, 204)));
 		} else {
 			badRequest(request, "invalid.id");
 		}
@@ -233,7 +234,8 @@ public class AppRegistryController extends BaseController {
 	public void addGroupLink(final HttpServerRequest request) {
 		final String groupId = request.params().get("groupId");
 		final String roleId = request.params().get("roleId");
-		appRegistryService.addGroupLink(groupId, roleId, defaultResponseHandler(request));
+		appRegistryService.addGroupLink(groupId, roleId,
+				updatedProfileGroupActions(groupId, defaultResponseHandler(request)));
 	}
 
 	@Delete("/authorize/group/:groupId/role/:roleId")
@@ -242,7 +244,8 @@ public class AppRegistryController extends BaseController {
 	public void removeGroupLink(final HttpServerRequest request) {
 		final String groupId = request.params().get("groupId");
 		final String roleId = request.params().get("roleId");
-		appRegistryService.deleteGroupLink(groupId, roleId, defaultResponseHandler(request, 204));
+		appRegistryService.deleteGroupLink(groupId, roleId,
+				updatedProfileGroupActions(groupId, defaultResponseHandler(request, 204)));
 	}
 
 	@Get("/roles")
@@ -610,12 +613,25 @@ public class AppRegistryController extends BaseController {
 		}
 	}
 
+	private <T> Handler<Either<String, T>> updatedProfileGroupActions(final String groupId,
+			final Handler<Either<String, T>> handler) {
+		return new Handler<Either<String, T>>() {
+			@Override
+			public void handle(Either<String, T> event) {
+				if (event.isRight()) {
+					updatedProfileGroupActions(groupId);
+				}
+				handler.handle(event);
+			}
+		};
+	}
+
 	private void updatedProfileGroupActions(String groupId) {
 		JsonObject message = new JsonObject().put("type", PROFILE_GROUP_ACTIONS_UPDATED);
 		if (groupId != null && !groupId.trim().isEmpty()) {
 			message.put("groups", new fr.wseduc.webutils.collections.JsonArray().add(groupId));
 		}
-		eb.publish(APP_REGISTRY_PUBLISH_ADDRESS, message);
+		ApplicationUtils.publishEvent(eb, message);
 	}
 
 }
@@ -24,6 +24,13 @@ public final class AppRegistryEvents {
 
 	public static final String APP_REGISTRY_PUBLISH_ADDRESS = "app.registry.events";
 
+	/**
+	 * Events are also published on this address, which only has cluster-wide consumers : caches of the
+	 * events data get the events of all the nodes, while messages sent to APP_REGISTRY_PUBLISH_ADDRESS
+	 * still go to its node local consumers.
+	 */
+	public static final String APP_REGISTRY_CLUSTER_PUBLISH_ADDRESS = "app.registry.events.cluster";
+
 	public static final String PROFILE_GROUP_ACTIONS_UPDATED = "PROFILE_GROUP_ACTIONS_UPDATED";
 
 	public static final String USER_GROUP_UPDATED = "USER_GROUP_UPDATED";
@@ -31,8 +31,21 @@ public final class AppRegistryEventsHandler implements Handler<Message<JsonObjec
 	private final AppRegistryEventsService appRegistryEventsService;
 
 	public AppRegistryEventsHandler(Vertx vertx, AppRegistryEventsService service) {
+		this(vertx, service, false);
+	}
+
+	/**
+	 * @param clustered registers a cluster-wide consumer of the published events, to receive the events of the
+	 *                  other nodes, as caches of the events data must. The messages sent point-to-point to the
+	 *                  node local consumers are not received.
+	 */
+	public AppRegistryEventsHandler(Vertx vertx, AppRegistryEventsService service, boolean clustered) {
 		appRegistryEventsService = service;
-		vertx.eventBus().localConsumer(APP_REGISTRY_PUBLISH_ADDRESS, this);
+		if (clustered) {
+			vertx.eventBus().consumer(APP_REGISTRY_CLUSTER_PUBLISH_ADDRESS, this);
+		} else {
+			vertx.eventBus().localConsumer(APP_REGISTRY_PUBLISH_ADDRESS, this);
+		}
 	}
 
 	@Override
@@ -26,6 +26,7 @@ import io.vertx.core.eventbus.Message;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 
+import static org.entcore.common.appregistry.AppRegistryEvents.APP_REGISTRY_CLUSTER_PUBLISH_ADDRESS;
 import static org.entcore.common.appregistry.AppRegistryEvents.APP_REGISTRY_PUBLISH_ADDRESS;
 import static org.entcore.common.appregistry.AppRegistryEvents.IMPORT_SUCCEEDED;
 import static org.entcore.common.appregistry.AppRegistryEvents.USER_GROUP_UPDATED;
@@ -77,18 +78,22 @@ public final class ApplicationUtils {
 	}
 
 
+	public static void publishEvent(EventBus eb, JsonObject event) {
+		eb.publish(APP_REGISTRY_PUBLISH_ADDRESS, event);
+		eb.publish(APP_REGISTRY_CLUSTER_PUBLISH_ADDRESS, event);
+	}
+
 	public static void publishModifiedUserGroup(EventBus eb, JsonArray a) {
-		eb.publish(APP_REGISTRY_PUBLISH_ADDRESS,
-				new JsonObject().put("type", USER_GROUP_UPDATED)
-						.put("users", a)
+		publishEvent(eb, new JsonObject().put("type", USER_GROUP_UPDATED)
+				.put("users", a)
 		);
 	}
 
 	public static void sendModifiedUserGroup(EventBus eb, JsonArray a, Handler<AsyncResult<Message<JsonObject>>> res) {
-		eb.send(APP_REGISTRY_PUBLISH_ADDRESS,
-				new JsonObject().put("type", USER_GROUP_UPDATED)
-						.put("users", a), res
-		);
+		final JsonObject event = new JsonObject().put("type", USER_GROUP_UPDATED)
+				.put("users", a);
+		eb.publish(APP_REGISTRY_CLUSTER_PUBLISH_ADDRESS, event);
+		eb.send(APP_REGISTRY_PUBLISH_ADDRESS, event, res);
 	}
 
 	public static void setDefaultClassRoles(EventBus eb, String classId, Handler<AsyncResult<Message<JsonObject>>> handler) {
@@ -98,9 +103,7 @@ public final class ApplicationUtils {
 	}
 
 	public static void afterImport(EventBus eb) {
-		eb.publish(APP_REGISTRY_PUBLISH_ADDRESS,
-				new JsonObject().put("type", IMPORT_SUCCEEDED)
-		);
+		publishEvent(eb, new JsonObject().put("type", IMPORT_SUCCEEDED));
 	}
 
 }
@@ -20,6 +20,7 @@
 package org.entcore.common.events;
 
 import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
 import org.entcore.common.events.impl.MongoDbEventStoreFactory;
 
 import java.util.ServiceLoader;
@@ -27,6 +28,7 @@ import java.util.ServiceLoader;
 public abstract class EventStoreFactory {
 
 	protected Vertx vertx;
+	protected JsonObject batchConfig;
 
 	private static class EventStoreFactoryHolder {
 
@@ -52,4 +54,8 @@ public abstract class EventStoreFactory {
 		this.vertx = vertx;
 	}
 
+	public void setBatchConfig(JsonObject batchConfig) {
+		this.batchConfig = batchConfig;
+	}
+
 }
@@ -22,7 +22,9 @@ package org.entcore.common.events.impl;
 
 import fr.wseduc.webutils.Either;
 import io.vertx.core.Handler;
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
+import org.entcore.common.elasticsearch.BulkRequest;
 import org.entcore.common.elasticsearch.ElasticSearch;
 
 public class ElasticSearchEventStore extends GenericEventStore {
@@ -40,4 +42,21 @@ public class ElasticSearchEventStore extends GenericEventStore {
 		});
 	}
 
+	@Override
+	protected void storeEvents(JsonArray events, Handler<Either<String, Void>> handler) {
+		final BulkRequest bulk = elasticSearch.bulk("events", ar -> {
+			if (ar.failed()) {
+				handler.handle(new Either.Left<>(ar.cause().getMessage()));
+			} else if (ar.result().getBoolean("errors", false)) {
+				handler.handle(new Either.Left<>("Bulk errors : " + ar.result().getJsonArray("items")));
+			} else {
+				handler.handle(new Either.Right<>(null));
+			}
+		});
+		for (Object event : events) {
+			bulk.index((JsonObject) event, null);
+		}
+		bulk.end();
+	}
+
 }
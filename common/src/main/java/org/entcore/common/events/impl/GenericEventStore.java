@@ -27,6 +27,7 @@ import org.entcore.common.neo4j.Neo4j;
 import org.entcore.common.user.UserInfos;
 import org.entcore.common.user.UserUtils;
 import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
 import io.vertx.core.eventbus.EventBus;
 import io.vertx.core.eventbus.Message;
 import io.vertx.core.http.HttpServerRequest;
@@ -35,6 +36,12 @@ import io.vertx.core.json.JsonObject;
 import io.vertx.core.logging.Logger;
 import io.vertx.core.logging.LoggerFactory;
 
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
 import static fr.wseduc.webutils.Utils.getOrElse;
 
 
@@ -44,6 +51,16 @@ public abstract class GenericEventStore implements EventStore {
 	protected EventBus eventBus;
 	protected JsonArray userBlacklist;
 	protected static final Logger logger = LoggerFactory.getLogger(GenericEventStore.class);
+	private final Deque<JsonObject> queue = new ArrayDeque<>();
+	private final AtomicLong queued = new AtomicLong();
+	private final AtomicLong flushed = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private int batchSize = 1;
+	private int maxQueueSize;
+	private int maxInFlight;
+	private int inFlight = 0;
+	private boolean dropOldest;
 
 	@Override
 	public void createAndStoreEvent(String eventType, UserInfos user) {
@@ -100,7 +117,12 @@ public abstract class GenericEventStore implements EventStore {
 	private void execute(UserInfos user, String eventType, HttpServerRequest request,
 			JsonObject customAttributes) {
 		if (user == null || !userBlacklist.contains(user.getUserId())) {
-			storeEvent(generateEvent(eventType, user, request, customAttributes), new Handler<Either<String, Void>>() {
+			final JsonObject event = generateEvent(eventType, user, request, customAttributes);
+			if (batchSize > 1) {
+				enqueue(event);
+				return;
+			}
+			storeEvent(event, new Handler<Either<String, Void>>() {
 				@Override
 				public void handle(Either<String, Void> event) {
 					if (event.isLeft()) {
@@ -111,6 +133,101 @@ public abstract class GenericEventStore implements EventStore {
 		}
 	}
 
+	private void enqueue(JsonObject event) {
+		synchronized (queue) {
+			if (queue.size() >= maxQueueSize) {
+				dropped.incrementAndGet();
+				if (!dropOldest) {
+					return;
+				}
+				queue.poll();
+			}
+			queue.add(event);
+			queued.incrementAndGet();
+		}
+		if (queueSize() >= batchSize) {
+			flush();
+		}
+	}
+
+	private int queueSize() {
+		synchronized (queue) {
+			return queue.size();
+		}
+	}
+
+	/**
+	 * Sends queued events to the sink by batches, while the number of batches in progress is under the limit.
+	 * When the sink is slow, events stay in the bounded queue and the drop policy applies once it is full.
+	 */
+	public void flush() {
+		while (true) {
+			final JsonArray batch = new fr.wseduc.webutils.collections.JsonArray();
+			synchronized (queue) {
+				if (queue.isEmpty() || inFlight >= maxInFlight) {
+					return;
+				}
+				while (batch.size() < batchSize && !queue.isEmpty()) {
+					batch.add(queue.poll());
+				}
+				inFlight++;
+			}
+			storeEvents(batch, new Handler<Either<String, Void>>() {
+				@Override
+				public void handle(Either<String, Void> res) {
+					synchronized (queue) {
+						inFlight--;
+					}
+					if (res.isLeft()) {
+						failed.addAndGet(batch.size());
+						logger.error("Error adding " + batch.size() + " events : " + res.left().getValue());
+					} else {
+						flushed.addAndGet(batch.size());
+					}
+					if (queueSize() >= batchSize) {
+						flush();
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Stores a batch of events. Sinks with a bulk api override this method,
+	 * the default implementation stores events one by one.
+	 */
+	protected void storeEvents(final JsonArray events, final Handler<Either<String, Void>> handler) {
+		final AtomicInteger count = new AtomicInteger(events.size());
+		final AtomicReference<String> error = new AtomicReference<>();
+		for (Object o : events) {
+			storeEvent((JsonObject) o, new Handler<Either<String, Void>>() {
+				@Override
+				public void handle(Either<String, Void> res) {
+					if (res.isLeft()) {
+						error.set(res.left().getValue());
+					}
+					if (count.decrementAndGet() == 0) {
+						if (error.get() != null) {
+							handler.handle(new Either.Left<String, Void>(error.get()));
+						} else {
+							handler.handle(new Either.Right<String, Void>(null));
+						}
+					}
+				}
+			});
+		}
+	}
+
+	public JsonObject getStats() {
+		return new JsonObject()
+				.put("module", module)
+				.put("queue", queueSize())
+				.put("queued", queued.get())
+				.put("flushed", flushed.get())
+				.put("failed", failed.get())
+				.put("dropped", dropped.get());
+	}
+
 	private JsonObject generateEvent(String eventType, UserInfos user, HttpServerRequest request,
 			JsonObject customAttributes) {
 		JsonObject event = new JsonObject();
@@ -166,4 +283,39 @@ public abstract class GenericEventStore implements EventStore {
 		this.module = module;
 	}
 
+	/**
+	 * Enables events batching : events are queued and stored by batches of batch-size,
+	 * at least every flush-delay. The queue is bounded by max-queue-size, and when it is full
+	 * the newest event is dropped (drop-policy "newest") or the oldest one ("oldest").
+	 * max-in-flight limits the number of batches sent to the sink concurrently.
+	 */
+	public void setBatching(Vertx vertx, JsonObject config) {
+		if (config == null) {
+			config = new JsonObject();
+		}
+		final int size = config.getInteger("batch-size", 1);
+		if (size <= 1 || vertx == null) {
+			return;
+		}
+		this.maxQueueSize = config.getInteger("max-queue-size", 10000);
+		this.maxInFlight = config.getInteger("max-in-flight", 2);
+		this.dropOldest = "oldest".equals(config.getString("drop-policy", "newest"));
+		this.batchSize = size;
+		vertx.setPeriodic(config.getLong("flush-delay", 1000L), new Handler<Long>() {
+			@Override
+			public void handle(Long timerId) {
+				flush();
+			}
+		});
+		final long statsDelay = config.getLong("stats-delay", 0L);
+		if (statsDelay > 0) {
+			vertx.setPeriodic(statsDelay, new Handler<Long>() {
+				@Override
+				public void handle(Long timerId) {
+					logger.info("Event store stats : " + getStats().encode());
+				}
+			});
+		}
+	}
+
 }
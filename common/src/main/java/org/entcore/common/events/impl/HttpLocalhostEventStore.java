@@ -25,6 +25,7 @@ import io.vertx.core.buffer.Buffer;
 import io.vertx.core.http.HttpClient;
 import io.vertx.core.http.HttpClientRequest;
 import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 
 public class HttpLocalhostEventStore extends GenericEventStore {
@@ -66,4 +67,20 @@ public class HttpLocalhostEventStore extends GenericEventStore {
 		req.end(event.encode());
 	}
 
+	@Override
+	protected void storeEvents(final JsonArray events, final Handler<Either<String, Void>> handler) {
+		HttpClientRequest req = httpClient.post("/infra/event/localhost/store", new Handler<HttpClientResponse>() {
+			@Override
+			public void handle(final HttpClientResponse response) {
+				if (response.statusCode() == 200) {
+					handler.handle(new Either.Right<String, Void>(null));
+				} else {
+					handler.handle(new Either.Left<String, Void>("Error : " + response.statusMessage()));
+				}
+			}
+		});
+		req.exceptionHandler(e -> handler.handle(new Either.Left<String, Void>("Error : " + e.getMessage())));
+		req.end(events.encode());
+	}
+
 }
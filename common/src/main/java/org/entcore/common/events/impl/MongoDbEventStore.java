@@ -24,6 +24,7 @@ import fr.wseduc.webutils.Either;
 import io.vertx.core.Handler;
 import io.vertx.core.eventbus.Message;
 import io.vertx.core.http.HttpClient;
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 
 public class MongoDbEventStore extends GenericEventStore {
@@ -46,4 +47,18 @@ public class MongoDbEventStore extends GenericEventStore {
 		});
 	}
 
+	@Override
+	protected void storeEvents(final JsonArray events, final Handler<Either<String, Void>> handler) {
+		mongoDb.insert(COLLECTION, events, new Handler<Message<JsonObject>>() {
+			@Override
+			public void handle(Message<JsonObject> res) {
+				if ("ok".equals(res.body().getString("status"))) {
+					handler.handle(new Either.Right<String, Void>(null));
+				} else {
+					handler.handle(new Either.Left<String, Void>("Error : " + res.body().getString("message")));
+				}
+			}
+		});
+	}
+
 }
@@ -67,7 +67,7 @@ public class FolderExporter {
 		}
 	}
 
-	private void buildMapping(List<JsonObject> rows, FolderExporterContext context) {
+	protected void buildMapping(List<JsonObject> rows, FolderExporterContext context) {
 		for (JsonObject row : rows) {
 			context.namesByIds.put(row.getString("_id"), cleanName(row));
 		}
@@ -125,33 +125,39 @@ public class FolderExporter {
 		return name.replaceAll("/", "_").replaceAll("\\\\", "_").trim();
 	}
 
+	/**
+	 * Names of the files of a folder, indexed by file id, suffixed when several files have the same name.
+	 */
+	protected JsonObject uniqueNames(FolderExporterContext context, String folderPath) {
+		List<JsonObject> docs = context.docByFolders.get(folderPath);
+		JsonObject nameByFileId = new JsonObject();
+		Map<String, Integer> nameCount = new HashMap<>();
+		for (JsonObject doc : docs) {
+			String fileId = DocumentHelper.getFileId(doc);
+			String name = cleanName(doc);
+			Integer count = nameCount.merge(name, 1, Integer::sum) - 1;
+			// if name already exists ... add suffix
+			if (count > 0) {
+				if (name.contains(".")) {
+					name = name.substring(0, name.indexOf(".")) + "_" + count + name.substring(name.indexOf("."));
+				} else {
+					name = name + "_" + count;
+				}
+			}
+			name = StringUtils.replaceForbiddenCharacters(name);
+			nameByFileId.put(fileId, name);
+			context.namesByIds.put(fileId,name);
+		}
+		return nameByFileId;
+	}
+
 	private CompositeFuture copyFiles(FolderExporterContext context) {
 		@SuppressWarnings("rawtypes")
 		List<Future> futures = new ArrayList<>();
 		for (String folderPath : context.docByFolders.keySet()) {
 			Future<JsonObject> future = Future.future();
 			futures.add(future);
-			List<JsonObject> docs = context.docByFolders.get(folderPath);
-			//
-			JsonObject nameByFileId = new JsonObject();
-			Map<String, Integer> nameCount = new HashMap<>();
-			for (JsonObject doc : docs) {
-				String fileId = DocumentHelper.getFileId(doc);
-				String name = cleanName(doc);
-				Integer count = nameCount.merge(name, 1, Integer::sum) - 1;
-				// if name already exists ... add suffix
-				if (count > 0) {
-					if (name.contains(".")) {
-						name = name.substring(0, name.indexOf(".")) + "_" + count + name.substring(name.indexOf("."));
-					} else {
-						name = name + "_" + count;
-					}
-				}
-				name = StringUtils.replaceForbiddenCharacters(name);
-				nameByFileId.put(fileId, name);
-				context.namesByIds.put(fileId,name);
-			}
-			//
+			JsonObject nameByFileId = uniqueNames(context, folderPath);
 			String[] ids = nameByFileId.fieldNames().stream().toArray(String[]::new);
 			storage.writeToFileSystem(ids, folderPath, nameByFileId, res -> {
 				if ("ok".equals(res.getString("status"))) {
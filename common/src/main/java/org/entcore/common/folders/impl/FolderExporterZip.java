@@ -1,47 +1,28 @@
 package org.entcore.common.folders.impl;
 
-import java.nio.file.Paths;
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
-import java.util.UUID;
-import java.util.zip.Deflater;
+import java.util.TreeSet;
 
 import org.entcore.common.folders.FolderExporter;
+import org.entcore.common.storage.BlockReadStream;
 import org.entcore.common.storage.Storage;
-import org.entcore.common.utils.Zip;
+import org.entcore.common.utils.ZipStream;
 
 import io.vertx.core.Future;
 import io.vertx.core.file.FileSystem;
 import io.vertx.core.http.HttpServerRequest;
 import io.vertx.core.http.HttpServerResponse;
 import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
 
 class FolderExporterZip extends FolderExporter {
-	static class ZipContext extends FolderExporterContext {
-		final String zipFullPath;
-		final String zipName;
-		final String baseName;
-
-		public ZipContext(String basePath, String baseName) {
-			super(basePath);
-			this.baseName = baseName;
-			this.zipName = this.baseName + ".zip";
-			// basePath is the root folder => so up and set filename
-			this.zipFullPath = Paths.get(this.basePath).resolve("..").resolve(this.zipName).normalize().toString();
-		}
-	}
-
-	private Future<JsonObject> createZip(ZipContext context) {
-		Future<JsonObject> future = Future.future();
-		Zip.getInstance().zipFolder(context.basePath, context.zipFullPath, true, Deflater.NO_COMPRESSION, res -> {
-			if ("ok".equals(res.body().getString("status"))) {
-				future.complete(res.body());
-			} else {
-				future.fail(res.body().getString("message"));
-			}
-		});
-		return future;
-	}
+	private static final Logger log = LoggerFactory.getLogger(FolderExporterZip.class);
 
 	public FolderExporterZip(Storage storage, FileSystem fs) {
 		super(storage, fs);
@@ -51,37 +32,89 @@ class FolderExporterZip extends FolderExporter {
 		super(storage, fs, throwErrors);
 	}
 
-	public Future<ZipContext> exportToZip(Optional<JsonObject> root, List<JsonObject> rows) {
-		UUID uuid = UUID.randomUUID();
-		String baseName = root.isPresent() ? root.get().getString("name", "archive") : "archive";
-		String basePath = Paths.get(System.getProperty("java.io.tmpdir"), uuid.toString(), baseName).normalize()
-				.toString();
-		ZipContext context = new ZipContext(basePath, baseName);
-		return this.export(context, rows).compose(res -> {
-			return this.createZip(context);
-		}).map(res -> context);
-	}
-
-	public Future<Void> sendZip(HttpServerRequest req, ZipContext context) {
-		Future<Void> future = Future.future();
+	/**
+	 * Streams the zip in the response while the files are read from the storage, without temporary files.
+	 * Files which can't be read are skipped. Once the response has started, a failure closes the connection.
+	 */
+	public Future<Void> streamZip(Optional<JsonObject> root, List<JsonObject> rows, HttpServerRequest req) {
+		final Future<Void> future = Future.future();
+		final String baseName = root.isPresent() ? root.get().getString("name", "archive") : "archive";
+		final FolderExporterContext context = new FolderExporterContext(File.separator);
+		this.buildMapping(rows, context);
+		final Map<String, String> entries = new LinkedHashMap<>();
+		final TreeSet<String> directories = new TreeSet<>();
+		for (String folderPath : new TreeSet<>(context.docByFolders.keySet())) {
+			final String prefix = File.separator.equals(folderPath) ? "" :
+					folderPath.substring(1).replace(File.separatorChar, '/') + "/";
+			// each folder of the path gets its own entry, so folders without files are kept
+			for (int i = prefix.indexOf('/'); i >= 0; i = prefix.indexOf('/', i + 1)) {
+				directories.add(prefix.substring(0, i + 1));
+			}
+			final JsonObject names = this.uniqueNames(context, folderPath);
+			for (String fileId : names.fieldNames()) {
+				entries.put(fileId, prefix + names.getString(fileId));
+			}
+		}
 		final HttpServerResponse resp = req.response();
-		resp.putHeader("Content-Disposition", "attachment; filename=\"" + context.zipName + "\"");
+		resp.putHeader("Content-Disposition", "attachment; filename=\"" + baseName + ".zip\"");
 		resp.putHeader("Content-Type", "application/octet-stream");
 		resp.putHeader("Content-Description", "File Transfer");
 		resp.putHeader("Content-Transfer-Encoding", "binary");
-		resp.sendFile(context.zipFullPath, future.completer());
+		resp.setChunked(true);
+		final BlockReadStream[] current = new BlockReadStream[1];
+		resp.closeHandler(v -> {
+			if (current[0] != null) {
+				current[0].close();
+			}
+			if (!future.isComplete()) {
+				future.fail("Connection closed.");
+			}
+		});
+		final ZipStream zip = new ZipStream(resp);
+		for (String directory : directories) {
+			zip.addDirectory(directory);
+		}
+		this.writeEntries(entries.entrySet().iterator(), zip, resp, current, future);
 		return future;
 	}
 
-	public Future<Void> exportAndSendZip(JsonObject root, List<JsonObject> rows, HttpServerRequest req) {
-		return this.exportToZip(Optional.ofNullable(root), rows).compose(res -> {
-			return this.sendZip(req, res);
+	private void writeEntries(Iterator<Map.Entry<String, String>> it, ZipStream zip, HttpServerResponse resp,
+			BlockReadStream[] current, Future<Void> future) {
+		if (future.isComplete()) {
+			return;
+		}
+		if (!it.hasNext()) {
+			current[0] = null;
+			zip.finish();
+			resp.end();
+			future.complete();
+			return;
+		}
+		final Map.Entry<String, String> entry = it.next();
+		storage.readStreamFile(entry.getKey(), stream -> {
+			if (stream == null) {
+				log.error("Failed to read file " + entry.getKey() + " of zip entry " + entry.getValue());
+				this.writeEntries(it, zip, resp, current, future);
+				return;
+			}
+			current[0] = stream;
+			zip.addEntry(entry.getValue(), stream, ar -> {
+				if (ar.succeeded()) {
+					this.writeEntries(it, zip, resp, current, future);
+				} else if (!future.isComplete()) {
+					log.error("Failed to stream file " + entry.getKey() + " in zip", ar.cause());
+					future.fail(ar.cause());
+					resp.close();
+				}
+			});
 		});
 	}
 
+	public Future<Void> exportAndSendZip(JsonObject root, List<JsonObject> rows, HttpServerRequest req) {
+		return this.streamZip(Optional.ofNullable(root), rows, req);
+	}
+
 	public Future<Void> exportAndSendZip(List<JsonObject> rows, HttpServerRequest req) {
-		return this.exportToZip(Optional.empty(), rows).compose(res -> {
-			return this.sendZip(req, res);
-		});
+		return this.streamZip(Optional.empty(), rows, req);
 	}
 }
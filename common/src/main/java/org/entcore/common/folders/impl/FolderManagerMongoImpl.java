@@ -418,7 +418,7 @@ public class FolderManagerMongoImpl implements FolderManager {
 							List<JsonObject> rows = result.result();
 							FolderExporterZip zipBuilder = new FolderExporterZip(storage, fileSystem);
 							zipBuilder.exportAndSendZip(bodyRoot, rows, request).setHandler(zipEvent -> {
-								if (zipEvent.failed()) {
+								if (zipEvent.failed() && !request.response().headWritten()) {
 									request.response().setStatusCode(500).end();
 								}
 							});
@@ -458,7 +458,7 @@ public class FolderManagerMongoImpl implements FolderManager {
 				// download multiple files
 				FolderExporterZip zipBuilder = new FolderExporterZip(storage, fileSystem);
 				zipBuilder.exportAndSendZip(all, request).setHandler(zipEvent -> {
-					if (zipEvent.failed()) {
+					if (zipEvent.failed() && !request.response().headWritten()) {
 						request.response().setStatusCode(500).end();
 					}
 				});
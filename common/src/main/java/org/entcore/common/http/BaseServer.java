@@ -48,6 +48,7 @@ import org.entcore.common.sql.DB;
 import org.entcore.common.sql.Sql;
 import org.entcore.common.user.RepositoryEvents;
 import org.entcore.common.user.RepositoryHandler;
+import org.entcore.common.user.SessionCache;
 import org.entcore.common.user.UserUtils;
 import org.entcore.common.utils.Config;
 import org.entcore.common.utils.Zip;
@@ -80,6 +81,7 @@ public abstract class BaseServer extends Server {
 
 		EventStoreFactory eventStoreFactory = EventStoreFactory.getFactory();
 		eventStoreFactory.setVertx(vertx);
+		eventStoreFactory.setBatchConfig(config.getJsonObject("event-store-batch"));
 
 		initFilters();
 
@@ -92,6 +94,8 @@ public abstract class BaseServer extends Server {
 
 		Config.getInstance().setConfig(config);
 
+		SessionCache.getInstance().init(vertx, config.getJsonObject("session-cache"));
+
 		if (node != null) {
 			initModulesHelpers(node);
 		}
@@ -24,6 +24,7 @@ import fr.wseduc.webutils.http.Renders;
 import fr.wseduc.webutils.request.filter.Filter;
 import fr.wseduc.webutils.security.ActionType;
 import fr.wseduc.webutils.security.SecureHttpServerRequest;
+import org.entcore.common.user.SessionCache;
 import org.entcore.common.user.UserInfos;
 import org.entcore.common.user.UserUtils;
 import io.vertx.core.Handler;
@@ -36,7 +37,6 @@ import java.net.URLEncoder;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
-import java.util.regex.Matcher;
 
 import static fr.wseduc.webutils.Utils.getOrElse;
 import static org.entcore.common.utils.StringUtils.isEmpty;
@@ -48,10 +48,12 @@ public abstract class AbstractActionFilter implements Filter {
 	protected static final List<String> authorizationTypes = Arrays.asList("Basic", "Bearer");
 	protected final Set<Binding> bindings;
 	protected final ResourcesProvider provider;
+	private final BindingRouter router;
 
 	public AbstractActionFilter(Set<Binding> bindings, ResourcesProvider provider) {
 		this.bindings = bindings;
 		this.provider = provider;
+		this.router = new BindingRouter(bindings);
 	}
 
 	protected void userIsAuthorized(HttpServerRequest request, JsonObject session,
@@ -97,14 +99,22 @@ public abstract class AbstractActionFilter implements Filter {
 
 	private void authorizeWorkflowAction(JsonObject session, Binding binding,
 										 Handler<Boolean> handler) {
-		JsonArray actions = session.getJsonArray("authorizedActions");
-		if (binding != null && binding.getServiceMethod() != null
-				&& actions != null && actions.size() > 0) {
-			for (Object a: actions) {
-				JsonObject action = (JsonObject) a;
-				if (binding.getServiceMethod().equals(action.getString("name"))) {
-					handler.handle(true);
-					return;
+		final Set<String> names = SessionCache.getInstance().getAuthorizedActions(session);
+		if (names != null) {
+			if (binding != null && binding.getServiceMethod() != null && names.contains(binding.getServiceMethod())) {
+				handler.handle(true);
+				return;
+			}
+		} else {
+			JsonArray actions = session.getJsonArray("authorizedActions");
+			if (binding != null && binding.getServiceMethod() != null
+					&& actions != null && actions.size() > 0) {
+				for (Object a: actions) {
+					JsonObject action = (JsonObject) a;
+					if (binding.getServiceMethod().equals(action.getString("name"))) {
+						handler.handle(true);
+						return;
+					}
 				}
 			}
 		}
@@ -116,16 +126,7 @@ public abstract class AbstractActionFilter implements Filter {
 	}
 
 	private Binding requestBinding(HttpServerRequest request) {
-		for (Binding binding: bindings) {
-			if (!request.method().name().equals(binding.getMethod().name())) {
-				continue;
-			}
-			Matcher m = binding.getUriPattern().matcher(request.path());
-			if (m.matches()) {
-				return binding;
-			}
-		}
-		return null;
+		return router.route(request.method().name(), request.path());
 	}
 
 	protected void clientIsAuthorizedByScope(SecureHttpServerRequest request, Handler<Boolean> handler) {
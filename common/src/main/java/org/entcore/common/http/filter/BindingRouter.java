@@ -0,0 +1,147 @@
+/* Copyright © "Open Digital Education", 2014
+ *
+ * This program is published by "Open Digital Education".
+ * You must indicate the name of the software and the company in any production /contribution
+ * using the software and indicate on the home page of the software industry in question,
+ * "powered by Open Digital Education" with a reference to the website: https://opendigitaleducation.com/.
+ *
+ * This program is free software, licensed under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * You can redistribute this application and/or modify it since you respect the terms of the GNU Affero General Public License.
+ * If you modify the source code and then use this modified source code in your creation, you must make available the source code of your modifications.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with the software.
+ * If not, please see : <http://www.gnu.org/licenses/>. Full compliance requires reading the terms of this license and following its directives.
+
+ *
+ */
+
+package org.entcore.common.http.filter;
+
+import fr.wseduc.webutils.http.Binding;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds the binding of a request without matching every binding pattern.
+ * Bindings are indexed by http method, then by the literal path segments which prefix their uri pattern.
+ * Only the bindings found along the request path are matched, the most specific prefix first.
+ * The index is rebuilt when bindings are added to the underlying set (controllers are added after filters).
+ */
+public final class BindingRouter {
+
+	private static final String REGEX_CHARS = "\\()[]{}.*+?^$|";
+	private final Set<Binding> bindings;
+	private volatile Index index;
+
+	private static final class Node {
+		private final Map<String, Node> children = new HashMap<>();
+		private final List<Binding> bindings = new ArrayList<>();
+	}
+
+	private static final class Index {
+		private final int size;
+		private final Map<String, Node> roots = new HashMap<>();
+
+		private Index(int size) {
+			this.size = size;
+		}
+	}
+
+	public BindingRouter(Set<Binding> bindings) {
+		this.bindings = bindings;
+	}
+
+	public Binding route(String method, String path) {
+		Index i = index;
+		if (i == null || i.size != bindings.size()) {
+			i = build();
+		}
+		final Node root = i.roots.get(method);
+		if (root == null || path == null) {
+			return null;
+		}
+		final List<Node> nodes = new ArrayList<>();
+		nodes.add(root);
+		Node current = root;
+		int start = (path.startsWith("/")) ? 1 : 0;
+		while (start < path.length()) {
+			int end = path.indexOf('/', start);
+			if (end < 0) {
+				end = path.length();
+			}
+			current = current.children.get(path.substring(start, end));
+			if (current == null) {
+				break;
+			}
+			nodes.add(current);
+			start = end + 1;
+		}
+		for (int n = nodes.size() - 1; n >= 0; n--) {
+			for (Binding binding : nodes.get(n).bindings) {
+				if (binding.getUriPattern().matcher(path).matches()) {
+					return binding;
+				}
+			}
+		}
+		return null;
+	}
+
+	private synchronized Index build() {
+		if (index != null && index.size == bindings.size()) {
+			return index;
+		}
+		final List<Binding> snapshot = new ArrayList<>(bindings);
+		final Index i = new Index(snapshot.size());
+		for (Binding binding : snapshot) {
+			if (binding == null || binding.getMethod() == null || binding.getUriPattern() == null) {
+				continue;
+			}
+			Node node = i.roots.get(binding.getMethod().name());
+			if (node == null) {
+				node = new Node();
+				i.roots.put(binding.getMethod().name(), node);
+			}
+			for (String segment : literalSegments(binding.getUriPattern().pattern())) {
+				Node child = node.children.get(segment);
+				if (child == null) {
+					child = new Node();
+					node.children.put(segment, child);
+				}
+				node = child;
+			}
+			node.bindings.add(binding);
+		}
+		index = i;
+		return i;
+	}
+
+	/**
+	 * Complete path segments of the pattern before its first regex metacharacter.
+	 */
+	static List<String> literalSegments(String pattern) {
+		int end = 0;
+		while (end < pattern.length() && REGEX_CHARS.indexOf(pattern.charAt(end)) < 0) {
+			end++;
+		}
+		final List<String> segments = new ArrayList<>();
+		final String literal = pattern.substring(0, end);
+		final int last = (end == pattern.length()) ? literal.length() : literal.lastIndexOf('/');
+		int start = (literal.startsWith("/")) ? 1 : 0;
+		while (start < last) {
+			int e = literal.indexOf('/', start);
+			if (e < 0 || e > last) {
+				e = last;
+			}
+			segments.add(literal.substring(start, e));
+			start = e + 1;
+		}
+		return segments;
+	}
+
+}
@@ -22,6 +22,7 @@ package org.entcore.common.neo4j;
 import io.vertx.core.Handler;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
+import io.vertx.core.streams.ReadStream;
 
 public interface GraphDatabase {
 
@@ -29,13 +30,30 @@ public interface GraphDatabase {
 
 	void executeBatch(JsonArray queries, Handler<JsonObject> handler);
 
+	/**
+	 * @param readOnly allows sending the batch to a slave if none of its queries writes.
+	 */
+	void executeBatch(JsonArray queries, boolean readOnly, Handler<JsonObject> handler);
+
 	void executeTransaction(JsonArray statements, Integer transactionId,
 							boolean commit, Handler<JsonObject> handler);
 
+	/**
+	 * @param readOnly allows sending a single-request transaction (no transactionId, commit)
+	 *                 to a slave if none of its statements writes.
+	 */
+	void executeTransaction(JsonArray statements, Integer transactionId,
+							boolean commit, boolean readOnly, Handler<JsonObject> handler);
+
 	void resetTransactionTimeout(int transactionId, Handler<JsonObject> handler);
 
 	void rollbackTransaction(int transactionId, Handler<JsonObject> handler);
 
+	/**
+	 * Executes a single statement and streams its rows without buffering the whole result.
+	 */
+	ReadStream<JsonObject> stream(String query, JsonObject params, boolean readOnly);
+
 	void unmanagedExtension(String method, String uri, String body, Handler<JsonObject> handler);
 
 	void close();
@@ -30,6 +30,7 @@ import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.core.logging.Logger;
 import io.vertx.core.logging.LoggerFactory;
+import io.vertx.core.streams.ReadStream;
 
 import java.net.URI;
 import java.util.Map;
@@ -117,6 +118,10 @@ public class Neo4j {
 		database.executeBatch(queries, resultHandler(handler));
 	}
 
+	public void executeBatch(JsonArray queries, boolean readOnly, final Handler<Message<JsonObject>> handler) {
+		database.executeBatch(queries, readOnly, resultHandler(handler));
+	}
+
 	public void executeBatch(JsonArray queries, final HttpServerResponse response) {
 		executeBatch(queries, new Handler<Message<JsonObject>>() {
 			@Override
@@ -132,6 +137,23 @@ public class Neo4j {
 		database.executeTransaction(statements, transactionId, commit, resultHandler(handler));
 	}
 
+	public void executeTransaction(JsonArray statements, Integer transactionId, boolean commit, boolean readOnly,
+			Handler<Message<JsonObject>> handler) {
+		database.executeTransaction(statements, transactionId, commit, readOnly, resultHandler(handler));
+	}
+
+	/**
+	 * Streams the rows of a query, each row being a json object keyed by the returned columns.
+	 * Use pause/resume on the stream to apply back-pressure to the Neo4j response.
+	 */
+	public ReadStream<JsonObject> stream(String query, JsonObject params) {
+		return stream(query, params, false);
+	}
+
+	public ReadStream<JsonObject> stream(String query, JsonObject params, boolean readOnly) {
+		return database.stream(query, params, readOnly);
+	}
+
 	public void resetTransactionTimeout(int transactionId, Handler<Message<JsonObject>> handler) {
 		database.resetTransactionTimeout(transactionId, resultHandler(handler));
 	}
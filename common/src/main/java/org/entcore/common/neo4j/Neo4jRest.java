@@ -22,7 +22,6 @@ package org.entcore.common.neo4j;
 import io.vertx.core.Handler;
 import io.vertx.core.Vertx;
 import io.vertx.core.buffer.Buffer;
-import io.vertx.core.http.HttpClient;
 import io.vertx.core.http.HttpClientRequest;
 import io.vertx.core.http.HttpClientResponse;
 import io.vertx.core.http.HttpMethod;
@@ -31,9 +30,12 @@ import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.core.logging.Logger;
 import io.vertx.core.logging.LoggerFactory;
+import io.vertx.core.streams.ReadStream;
 
 import java.net.URI;
-import java.util.regex.Matcher;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Pattern;
 
 public class Neo4jRest implements GraphDatabase {
@@ -44,6 +46,8 @@ public class Neo4jRest implements GraphDatabase {
 	private final String basePath;
 	private Pattern writingClausesPattern = Pattern.compile(
 			"(\\s+set\\s+|create\\s+|merge\\s+|delete\\s+|remove\\s+|foreach)", Pattern.CASE_INSENSITIVE);
+	private static final int MAX_CLASSIFIED_QUERIES = 10000;
+	private final ConcurrentMap<String, Boolean> writingQueries = new ConcurrentHashMap<>();
 
 	public Neo4jRest(URI[] uris, boolean ro, Vertx vertx, long checkDelay, int poolSize,
 					 boolean keepAlive, JsonObject neo4jConfig) {
@@ -105,28 +109,21 @@ public class Neo4jRest implements GraphDatabase {
 				.put("params", params);
 		logger.debug(body.encode());
 		try {
-			sendRequest("/cypher", body, true, new Handler<HttpClientResponse>() {
-
+			sendRequest("/cypher", body, !isWriting(query), new ResponseHandler() {
 				@Override
-				public void handle(final HttpClientResponse resp) {
-					resp.bodyHandler(new Handler<Buffer>() {
-
-						@Override
-						public void handle(Buffer b) {
-							logger.debug(b.toString());
-							if (resp.statusCode() != 404 && resp.statusCode() != 500) {
-								JsonObject json = new JsonObject(b.toString("UTF-8"));
-								if (resp.statusCode() == 200) {
-									handler.handle(new JsonObject().put("result", transformJson(json)));
-								} else {
-									handler.handle(json);
-								}
-							} else {
-								handler.handle(new JsonObject().put("message",
-										resp.statusMessage() + " : " + b.toString()));
-							}
+				public void handle(final HttpClientResponse resp, Buffer b) {
+					logger.debug(b.toString());
+					if (resp.statusCode() != 404 && resp.statusCode() != 500) {
+						JsonObject json = new JsonObject(b.toString("UTF-8"));
+						if (resp.statusCode() == 200) {
+							handler.handle(new JsonObject().put("result", transformJson(json)));
+						} else {
+							handler.handle(json);
 						}
-					});
+					} else {
+						handler.handle(new JsonObject().put("message",
+								resp.statusMessage() + " : " + b.toString()));
+					}
 				}
 			});
 		} catch (Neo4jConnectionException e) {
@@ -136,6 +133,11 @@ public class Neo4jRest implements GraphDatabase {
 
 	@Override
 	public void executeBatch(JsonArray queries, final Handler<JsonObject> handler) {
+		executeBatch(queries, false, handler);
+	}
+
+	@Override
+	public void executeBatch(JsonArray queries, boolean readOnly, final Handler<JsonObject> handler) {
 		JsonArray body = new fr.wseduc.webutils.collections.JsonArray();
 		int i = 0;
 		for (Object q : queries) {
@@ -148,30 +150,24 @@ public class Neo4jRest implements GraphDatabase {
 		}
 		logger.debug(body.encode());
 		try {
-			sendRequest("/batch", body, new Handler<HttpClientResponse>() {
+			sendRequest("/batch", body, readOnly && isReadOnly(queries, "query"), new ResponseHandler() {
 				@Override
-				public void handle(final HttpClientResponse resp) {
-					resp.bodyHandler(new Handler<Buffer>() {
-
-						@Override
-						public void handle(Buffer b) {
-							logger.debug(b.toString());
-							if (resp.statusCode() != 404 && resp.statusCode() != 500) {
-								JsonArray json = new fr.wseduc.webutils.collections.JsonArray(b.toString("UTF-8"));
-								JsonArray out = new fr.wseduc.webutils.collections.JsonArray();
-								for (Object j : json) {
-									JsonObject qr = (JsonObject) j;
-									out.add(new JsonObject().put("result",
-											transformJson(qr.getJsonObject("body", new JsonObject())))
-											.put("idx", qr.getLong("id")));
-								}
-								handler.handle(new JsonObject().put("results", out));
-							} else {
-								handler.handle(new JsonObject().put("message",
-										resp.statusMessage() + " : " + b.toString()));
-							}
+				public void handle(final HttpClientResponse resp, Buffer b) {
+					logger.debug(b.toString());
+					if (resp.statusCode() != 404 && resp.statusCode() != 500) {
+						JsonArray json = new fr.wseduc.webutils.collections.JsonArray(b.toString("UTF-8"));
+						JsonArray out = new fr.wseduc.webutils.collections.JsonArray();
+						for (Object j : json) {
+							JsonObject qr = (JsonObject) j;
+							out.add(new JsonObject().put("result",
+									transformJson(qr.getJsonObject("body", new JsonObject())))
+									.put("idx", qr.getLong("id")));
 						}
-					});
+						handler.handle(new JsonObject().put("results", out));
+					} else {
+						handler.handle(new JsonObject().put("message",
+								resp.statusMessage() + " : " + b.toString()));
+					}
 				}
 			});
 		} catch (Neo4jConnectionException e) {
@@ -182,11 +178,17 @@ public class Neo4jRest implements GraphDatabase {
 	@Override
 	public void executeTransaction(JsonArray statements, Integer transactionId,
 								   boolean commit, final Handler<JsonObject> handler) {
-		executeTransaction(statements, transactionId, commit, true, handler);
+		executeTransaction(statements, transactionId, commit, false, true, handler);
+	}
+
+	@Override
+	public void executeTransaction(JsonArray statements, Integer transactionId,
+								   boolean commit, boolean readOnly, final Handler<JsonObject> handler) {
+		executeTransaction(statements, transactionId, commit, readOnly, true, handler);
 	}
 
 	public void executeTransaction(final JsonArray statements, final Integer transactionId,
-			final boolean commit, final boolean allowRetry, final Handler<JsonObject> handler) {
+			final boolean commit, final boolean readOnly, final boolean allowRetry, final Handler<JsonObject> handler) {
 		String uri = "/transaction";
 		if (transactionId != null) {
 			uri += "/" +transactionId;
@@ -195,61 +197,56 @@ public class Neo4jRest implements GraphDatabase {
 			uri += "/commit";
 		}
 		try {
-			sendRequest(uri, new JsonObject().put("statements", statements), new Handler<HttpClientResponse>() {
+			final boolean slave = readOnly && transactionId == null && commit && isReadOnly(statements, "statement");
+			sendRequest(uri, new JsonObject().put("statements", statements), slave, new ResponseHandler() {
 				@Override
-				public void handle(final HttpClientResponse resp) {
-					resp.bodyHandler(new Handler<Buffer>() {
-
-						@Override
-						public void handle(Buffer b) {
-							logger.debug(b.toString());
-							if (resp.statusCode() != 404 && resp.statusCode() != 500) {
-								JsonObject json = new JsonObject(b.toString("UTF-8"));
-								JsonArray results = json.getJsonArray("results");
-								if (json.getJsonArray("errors", new fr.wseduc.webutils.collections.JsonArray()).size() == 0 &&
-										results != null) {
-									JsonArray out = new fr.wseduc.webutils.collections.JsonArray();
-									for (Object o : results) {
-										if (!(o instanceof JsonObject)) continue;
-										out.add(transformJson((JsonObject) o));
-									}
-									json.put("results", out);
-									String commit = json.getString("commit");
-									if (commit != null) {
-										String[] c = commit.split("/");
-										if (c.length > 2) {
-											json.put("transactionId", Integer.parseInt(c[c.length - 2]));
-										}
-									}
-									json.remove("errors");
-									handler.handle(json);
-								} else {
-									if (transactionId == null && commit && allowRetry && json.getJsonArray("errors") != null && json.getJsonArray("errors").size() > 0) {
-										JsonArray errors = json.getJsonArray("errors");
-										for (Object o : errors) {
-											if (!(o instanceof JsonObject)) continue;
-											switch (((JsonObject) o).getString("code", "")) {
-												case "Neo.TransientError.Transaction.ConstraintsChanged":
-												case "Neo.TransientError.Transaction.DeadlockDetected":
-												case "Neo.TransientError.Transaction.InstanceStateChanged":
-												case "Neo.TransientError.Schema.SchemaModifiedConcurrently":
-													executeTransaction(statements, transactionId, commit, false, handler);
-													if (logger.isDebugEnabled()) {
-														logger.debug("Retry transaction : " + statements.encode());
-													}
-													return;
+				public void handle(final HttpClientResponse resp, Buffer b) {
+					logger.debug(b.toString());
+					if (resp.statusCode() != 404 && resp.statusCode() != 500) {
+						JsonObject json = new JsonObject(b.toString("UTF-8"));
+						JsonArray results = json.getJsonArray("results");
+						if (json.getJsonArray("errors", new fr.wseduc.webutils.collections.JsonArray()).size() == 0 &&
+								results != null) {
+							JsonArray out = new fr.wseduc.webutils.collections.JsonArray();
+							for (Object o : results) {
+								if (!(o instanceof JsonObject)) continue;
+								out.add(transformJson((JsonObject) o));
+							}
+							json.put("results", out);
+							String commit = json.getString("commit");
+							if (commit != null) {
+								String[] c = commit.split("/");
+								if (c.length > 2) {
+									json.put("transactionId", Integer.parseInt(c[c.length - 2]));
+								}
+							}
+							json.remove("errors");
+							handler.handle(json);
+						} else {
+							if (transactionId == null && commit && allowRetry && json.getJsonArray("errors") != null && json.getJsonArray("errors").size() > 0) {
+								JsonArray errors = json.getJsonArray("errors");
+								for (Object o : errors) {
+									if (!(o instanceof JsonObject)) continue;
+									switch (((JsonObject) o).getString("code", "")) {
+										case "Neo.TransientError.Transaction.ConstraintsChanged":
+										case "Neo.TransientError.Transaction.DeadlockDetected":
+										case "Neo.TransientError.Transaction.InstanceStateChanged":
+										case "Neo.TransientError.Schema.SchemaModifiedConcurrently":
+											executeTransaction(statements, transactionId, commit, readOnly, false, handler);
+											if (logger.isDebugEnabled()) {
+												logger.debug("Retry transaction : " + statements.encode());
 											}
-										}
+											return;
 									}
-									handler.handle(new JsonObject().put("message",
-											json.getJsonArray("errors", new fr.wseduc.webutils.collections.JsonArray()).encode()));
 								}
-							} else {
-								handler.handle(new JsonObject().put("message",
-										resp.statusMessage() + " : " + b.toString()));
 							}
+							handler.handle(new JsonObject().put("message",
+									json.getJsonArray("errors", new fr.wseduc.webutils.collections.JsonArray()).encode()));
 						}
-					});
+					} else {
+						handler.handle(new JsonObject().put("message",
+								resp.statusMessage() + " : " + b.toString()));
+					}
 				}
 			});
 		} catch (Neo4jConnectionException e) {
@@ -257,6 +254,43 @@ public class Neo4jRest implements GraphDatabase {
 		}
 	}
 
+	@Override
+	public ReadStream<JsonObject> stream(String query, JsonObject params, boolean readOnly) {
+		final Neo4jRowStream stream = new Neo4jRowStream();
+		final JsonObject statement = new JsonObject()
+				.put("statement", query)
+				.put("parameters", (params != null) ? params : new JsonObject())
+				.put("resultDataContents", new fr.wseduc.webutils.collections.JsonArray().add("row"));
+		final JsonObject body = new JsonObject()
+				.put("statements", new fr.wseduc.webutils.collections.JsonArray().add(statement));
+		try {
+			final int idx = (readOnly && ro && !isWriting(query)) ?
+					nodeManager.getLeastLoadedSlaveIndex() : nodeManager.getMasterIndex();
+			nodeManager.requestStarted(idx);
+			final AtomicBoolean ended = new AtomicBoolean(false);
+			final HttpClientRequest req = nodeManager.getClient(idx).post(basePath + "/transaction/commit",
+					new Handler<HttpClientResponse>() {
+				@Override
+				public void handle(HttpClientResponse resp) {
+					stream.response(resp, v -> requestEnded(idx, ended));
+				}
+			});
+			req.headers()
+					.add("Content-Type", "application/json")
+					.add("Accept", "application/json; charset=UTF-8")
+					.add("X-Stream", "true");
+			req.exceptionHandler(e -> {
+				requestEnded(idx, ended);
+				logger.error("Neo4j error in stream request : " + query, e);
+				stream.fail(e);
+			});
+			req.end(body.encode());
+		} catch (Neo4jConnectionException e) {
+			stream.fail(e);
+		}
+		return stream;
+	}
+
 	@Override
 	public void resetTransactionTimeout(int transactionId, Handler<JsonObject> handler) {
 		executeTransaction(new fr.wseduc.webutils.collections.JsonArray(), transactionId, false, handler);
@@ -374,36 +408,84 @@ public class Neo4jRest implements GraphDatabase {
 		return out;
 	}
 
-	private void sendRequest(String path, Object body, final Handler<HttpClientResponse> handler)
-			throws Neo4jConnectionException {
-		sendRequest(path, body, false, handler);
+	private boolean isWriting(String query) {
+		if (query == null) {
+			return true;
+		}
+		Boolean writing = writingQueries.get(query);
+		if (writing == null) {
+			writing = writingClausesPattern.matcher(query).find();
+			if (writingQueries.size() >= MAX_CLASSIFIED_QUERIES) {
+				writingQueries.clear();
+			}
+			writingQueries.put(query, writing);
+		}
+		return writing;
 	}
 
-	private void sendRequest(String path, Object body, boolean checkReadOnly,
-			final Handler<HttpClientResponse> handler) throws Neo4jConnectionException {
-		HttpClient client = null;
-		if (checkReadOnly && ro) {
-			String query = ((JsonObject) body).getString("query");
-			if (query != null) {
-				Matcher m = writingClausesPattern.matcher(query);
-				if (!m.find()) {
-					client = nodeManager.getSlaveClient();
-				}
-			}
+	private boolean isReadOnly(JsonArray statements, String queryAttribute) {
+		if (!ro || statements == null || statements.isEmpty()) {
+			return false;
 		}
-		if (client == null) {
-			client = nodeManager.getClient();
+		for (Object o : statements) {
+			if (!(o instanceof JsonObject) || isWriting(((JsonObject) o).getString(queryAttribute))) {
+				return false;
+			}
 		}
-		HttpClientRequest req = client.post(basePath + path, handler);
+		return true;
+	}
+
+	/**
+	 * Handles a response once its body has been fully received.
+	 */
+	private interface ResponseHandler {
+		void handle(HttpClientResponse resp, Buffer body);
+	}
+
+	private void sendRequest(String path, Object body, boolean readOnly,
+			final ResponseHandler handler) throws Neo4jConnectionException {
+		final int idx = (readOnly && ro) ? nodeManager.getLeastLoadedSlaveIndex() : nodeManager.getMasterIndex();
+		nodeManager.requestStarted(idx);
+		final AtomicBoolean ended = new AtomicBoolean(false);
+		HttpClientRequest req = nodeManager.getClient(idx).post(basePath + path, new Handler<HttpClientResponse>() {
+			@Override
+			public void handle(final HttpClientResponse resp) {
+				// the node is busy until the body has been read
+				resp.exceptionHandler(e -> {
+					requestEnded(idx, ended);
+					logger.error("Neo4j error in response of " + path, e);
+				});
+				resp.bodyHandler(new Handler<Buffer>() {
+					@Override
+					public void handle(Buffer b) {
+						requestEnded(idx, ended);
+						handler.handle(resp, b);
+					}
+				});
+			}
+		});
 		req.headers()
 				.add("Content-Type", "application/json")
 				.add("Accept", "application/json; charset=UTF-8");
 
 		final String b = Json.encode(body);
 
-		req.exceptionHandler(event -> logger.error("Neo4j error in request : " + b, event));
+		req.exceptionHandler(event -> {
+			requestEnded(idx, ended);
+			logger.error("Neo4j error in request : " + b, event);
+		});
 
 		req.end(b);
 	}
 
+	/**
+	 * A request may fail after its response has started (connection reset while reading the body),
+	 * the in-flight counter of the node must only be decremented once per request.
+	 */
+	private void requestEnded(int idx, AtomicBoolean ended) {
+		if (ended.compareAndSet(false, true)) {
+			nodeManager.requestEnded(idx);
+		}
+	}
+
 }
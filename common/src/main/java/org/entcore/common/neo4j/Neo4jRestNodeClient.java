@@ -40,6 +40,7 @@ public class Neo4jRestNodeClient {
 	private final HttpClient[] clients;
 	private final AtomicInteger master = new AtomicInteger(0);
 	private final CopyOnWriteArrayList<Integer> slaves;
+	private final AtomicInteger[] inFlight;
 	private final long checkTimerId;
 	private final Random rnd;
 	private static final Logger logger = LoggerFactory.getLogger(Neo4jRestNodeClient.class);
@@ -47,6 +48,7 @@ public class Neo4jRestNodeClient {
 	public Neo4jRestNodeClient(URI[] uris, Vertx vertx, long delay, int poolSize, boolean keepAlive) {
 		this.vertx = vertx;
 		clients = new HttpClient[uris.length];
+		inFlight = new AtomicInteger[uris.length];
 		for (int i = 0; i < uris.length; i++) {
 			final HttpClientOptions options = new HttpClientOptions()
 					.setDefaultHost(uris[i].getHost())
@@ -54,6 +56,7 @@ public class Neo4jRestNodeClient {
 					.setMaxPoolSize(poolSize)
 					.setKeepAlive(keepAlive);
 			clients[i] = vertx.createHttpClient(options);
+			inFlight[i] = new AtomicInteger(0);
 		}
 
 		if (uris.length > 1) {
@@ -144,6 +147,52 @@ public class Neo4jRestNodeClient {
 		}
 	}
 
+	public int getMasterIndex() throws Neo4jConnectionException {
+		final int idx = master.get();
+		if (idx < 0 || idx >= clients.length) {
+			throw new Neo4jConnectionException("Can't get master connection.");
+		}
+		return idx;
+	}
+
+	/**
+	 * Index of the available slave with the fewest in-flight requests, or of the master if there is no slave.
+	 */
+	public int getLeastLoadedSlaveIndex() throws Neo4jConnectionException {
+		if (slaves == null || slaves.isEmpty()) {
+			return getMasterIndex();
+		}
+		int idx = -1;
+		int min = Integer.MAX_VALUE;
+		final int offset = rnd.nextInt(slaves.size());
+		for (int i = 0; i < slaves.size(); i++) {
+			final Integer slave;
+			try {
+				slave = slaves.get((i + offset) % slaves.size());
+			} catch (IndexOutOfBoundsException e) {
+				continue;
+			}
+			final int count = inFlight[slave].get();
+			if (count < min) {
+				min = count;
+				idx = slave;
+			}
+		}
+		return (idx >= 0) ? idx : getMasterIndex();
+	}
+
+	public HttpClient getClient(int idx) {
+		return clients[idx];
+	}
+
+	public void requestStarted(int idx) {
+		inFlight[idx].incrementAndGet();
+	}
+
+	public void requestEnded(int idx) {
+		inFlight[idx].decrementAndGet();
+	}
+
 	public void close() {
 		if (checkTimerId > 0) {
 			vertx.cancelTimer(checkTimerId);
@@ -0,0 +1,346 @@
+/* Copyright © "Open Digital Education", 2014
+ *
+ * This program is published by "Open Digital Education".
+ * You must indicate the name of the software and the company in any production /contribution
+ * using the software and indicate on the home page of the software industry in question,
+ * "powered by Open Digital Education" with a reference to the website: https://opendigitaleducation.com/.
+ *
+ * This program is free software, licensed under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * You can redistribute this application and/or modify it since you respect the terms of the GNU Affero General Public License.
+ * If you modify the source code and then use this modified source code in your creation, you must make available the source code of your modifications.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with the software.
+ * If not, please see : <http://www.gnu.org/licenses/>. Full compliance requires reading the terms of this license and following its directives.
+
+ *
+ */
+
+package org.entcore.common.neo4j;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.async.ByteArrayFeeder;
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.streams.ReadStream;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Rows of a transactional endpoint response, parsed incrementally as the http body arrives.
+ * Each row is emitted as a json object keyed by column names, and only the rows of the chunk
+ * being parsed are held in memory. Pausing the stream pauses the http response.
+ */
+public class Neo4jRowStream implements ReadStream<JsonObject> {
+
+	private static final JsonFactory jsonFactory = new JsonFactory();
+	private static final String COLUMNS_PATH = "results/[]/columns";
+	private static final String ROW_PATH = "results/[]/data/[]";
+	private static final String ERRORS_PATH = "errors";
+
+	private final JsonParser parser;
+	private final ByteArrayFeeder feeder;
+	private final List<Frame> frames = new ArrayList<>();
+	private final Deque<Object> values = new ArrayDeque<>();
+	private final List<String> fieldNames = new ArrayList<>();
+	private final Deque<JsonObject> pending = new ArrayDeque<>();
+	private String capturePath;
+	private String fieldName;
+	private JsonArray columns;
+	private JsonArray errors;
+	private HttpClientResponse response;
+	private Handler<JsonObject> handler;
+	private Handler<Throwable> exceptionHandler;
+	private Handler<Void> endHandler;
+	private Throwable failure;
+	private boolean paused = false;
+	private boolean ended = false;
+	private boolean closed = false;
+
+	private static final class Frame {
+		private final boolean array;
+		private String field;
+
+		private Frame(boolean array) {
+			this.array = array;
+		}
+	}
+
+	Neo4jRowStream() {
+		try {
+			this.parser = jsonFactory.createNonBlockingByteArrayParser();
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		this.feeder = (ByteArrayFeeder) parser.getNonBlockingInputFeeder();
+	}
+
+	/**
+	 * Reads the rows of the response. responseEnded is called once the body has been fully received or has failed.
+	 */
+	void response(final HttpClientResponse response, final Handler<Void> responseEnded) {
+		this.response = response;
+		if (response.statusCode() != 200 && response.statusCode() != 201) {
+			response.exceptionHandler(new Handler<Throwable>() {
+				@Override
+				public void handle(Throwable t) {
+					responseEnded.handle(null);
+					fail(t);
+				}
+			});
+			response.bodyHandler(new Handler<Buffer>() {
+				@Override
+				public void handle(Buffer b) {
+					responseEnded.handle(null);
+					fail(new Neo4jConnectionException(response.statusMessage() + " : " + b.toString()));
+				}
+			});
+			return;
+		}
+		if (paused) {
+			response.pause();
+		}
+		response.handler(new Handler<Buffer>() {
+			@Override
+			public void handle(Buffer buffer) {
+				feed(buffer.getBytes());
+			}
+		});
+		response.exceptionHandler(new Handler<Throwable>() {
+			@Override
+			public void handle(Throwable t) {
+				responseEnded.handle(null);
+				fail(t);
+			}
+		});
+		response.endHandler(new Handler<Void>() {
+			@Override
+			public void handle(Void v) {
+				responseEnded.handle(null);
+				end();
+			}
+		});
+	}
+
+	void feed(byte[] bytes) {
+		try {
+			feeder.feedInput(bytes, 0, bytes.length);
+			parse();
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	void end() {
+		feeder.endOfInput();
+		try {
+			parse();
+		} catch (IOException e) {
+			fail(e);
+			return;
+		}
+		if (errors != null && errors.size() > 0) {
+			fail(new Neo4jConnectionException(errors.encode()));
+			return;
+		}
+		ended = true;
+		drain();
+	}
+
+	void fail(Throwable t) {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		failure = t;
+		pending.clear();
+		if (exceptionHandler != null) {
+			exceptionHandler.handle(t);
+		}
+	}
+
+	private void parse() throws IOException {
+		JsonToken token;
+		while (!closed && (token = parser.nextToken()) != null && token != JsonToken.NOT_AVAILABLE) {
+			if (capturePath != null) {
+				capture(token);
+				continue;
+			}
+			switch (token) {
+				case FIELD_NAME:
+					frames.get(frames.size() - 1).field = parser.getCurrentName();
+					break;
+				case START_OBJECT:
+				case START_ARRAY:
+					final String path = path();
+					if (COLUMNS_PATH.equals(path) || ROW_PATH.equals(path) || ERRORS_PATH.equals(path)) {
+						capturePath = path;
+						capture(token);
+					} else {
+						frames.add(new Frame(token == JsonToken.START_ARRAY));
+					}
+					break;
+				case END_OBJECT:
+				case END_ARRAY:
+					frames.remove(frames.size() - 1);
+					break;
+				default:
+					break;
+			}
+		}
+		drain();
+	}
+
+	private String path() {
+		final StringBuilder sb = new StringBuilder();
+		for (Frame f : frames) {
+			if (f.array) {
+				sb.append("[]/");
+			} else if (f.field != null) {
+				sb.append(f.field).append('/');
+			}
+		}
+		return (sb.length() > 0) ? sb.substring(0, sb.length() - 1) : "";
+	}
+
+	private void capture(JsonToken token) throws IOException {
+		switch (token) {
+			case START_OBJECT:
+				// the field of the container in its parent, restored when the container ends
+				fieldNames.add(fieldName);
+				values.push(new JsonObject());
+				return;
+			case START_ARRAY:
+				fieldNames.add(fieldName);
+				values.push(new fr.wseduc.webutils.collections.JsonArray());
+				return;
+			case FIELD_NAME:
+				fieldName = parser.getCurrentName();
+				return;
+			case END_OBJECT:
+			case END_ARRAY:
+				final Object value = values.pop();
+				fieldName = fieldNames.remove(fieldNames.size() - 1);
+				if (values.isEmpty()) {
+					captured(value);
+				} else {
+					add(value);
+				}
+				return;
+			case VALUE_STRING:
+				add(parser.getText());
+				return;
+			case VALUE_NUMBER_INT:
+				add(parser.getNumberValue());
+				return;
+			case VALUE_NUMBER_FLOAT:
+				add(parser.getDoubleValue());
+				return;
+			case VALUE_TRUE:
+				add(Boolean.TRUE);
+				return;
+			case VALUE_FALSE:
+				add(Boolean.FALSE);
+				return;
+			case VALUE_NULL:
+				add(null);
+				return;
+			default:
+		}
+	}
+
+	private void add(Object value) {
+		final Object parent = values.peek();
+		if (parent instanceof JsonObject) {
+			((JsonObject) parent).put(fieldName, value);
+		} else {
+			((JsonArray) parent).add(value);
+		}
+	}
+
+	private void captured(Object value) {
+		final String path = capturePath;
+		capturePath = null;
+		if (COLUMNS_PATH.equals(path)) {
+			columns = (JsonArray) value;
+		} else if (ERRORS_PATH.equals(path)) {
+			errors = (JsonArray) value;
+		} else if (value instanceof JsonObject && columns != null) {
+			final JsonArray row = ((JsonObject) value).getJsonArray("row");
+			if (row == null) {
+				return;
+			}
+			final JsonObject outRow = new fr.wseduc.webutils.collections.JsonObject();
+			for (int j = 0; j < row.size() && j < columns.size(); j++) {
+				outRow.put(columns.getString(j), row.getValue(j));
+			}
+			pending.add(outRow);
+		}
+	}
+
+	private void drain() {
+		while (!paused && !closed && !pending.isEmpty()) {
+			final JsonObject row = pending.poll();
+			if (handler != null) {
+				handler.handle(row);
+			}
+		}
+		if (ended && !closed && pending.isEmpty()) {
+			closed = true;
+			if (endHandler != null) {
+				endHandler.handle(null);
+			}
+		}
+	}
+
+	@Override
+	public ReadStream<JsonObject> exceptionHandler(Handler<Throwable> handler) {
+		this.exceptionHandler = handler;
+		if (failure != null && handler != null) {
+			handler.handle(failure);
+		}
+		return this;
+	}
+
+	@Override
+	public ReadStream<JsonObject> handler(Handler<JsonObject> handler) {
+		this.handler = handler;
+		return this;
+	}
+
+	@Override
+	public ReadStream<JsonObject> pause() {
+		paused = true;
+		if (response != null) {
+			response.pause();
+		}
+		return this;
+	}
+
+	@Override
+	public ReadStream<JsonObject> resume() {
+		paused = false;
+		drain();
+		if (response != null && !paused && !closed) {
+			response.resume();
+		}
+		return this;
+	}
+
+	@Override
+	public ReadStream<JsonObject> endHandler(Handler<Void> endHandler) {
+		this.endHandler = endHandler;
+		return this;
+	}
+
+}
@@ -60,6 +60,22 @@ public class Neo4jUtils {
 		return " ";
 	}
 
+	/**
+	 * Appends to the query the marking of the visibility index of the groups bound to g as dirty.
+	 * The query may end with a write clause. With predecessors, the groups communicating with g are also marked,
+	 * for changes of the nodes depending on g. Groups without index are ignored.
+	 */
+	public static String markVisiblesDirty(String query, boolean predecessors) {
+		final StringBuilder sb = new StringBuilder(query).append("WITH DISTINCT g ");
+		if (predecessors) {
+			sb.append("OPTIONAL MATCH g<-[:COMMUNIQUE]-(pg:Group) ")
+					.append("WITH COLLECT(DISTINCT g) + COLLECT(DISTINCT pg) as groups ")
+					.append("UNWIND groups as g ")
+					.append("WITH DISTINCT g ");
+		}
+		return sb.append("WHERE HAS(g.visibles) ").append("SET g.visiblesDirty = timestamp() ").toString();
+	}
+
 	public static void loadScripts(final String appName, final Vertx vertx, final String path) {
 		String query = "MATCH (n:System) WHERE n.name = {appName} RETURN n.scripts as scripts";
 		Neo4j.getInstance().execute(query, new JsonObject().put("appName", appName), new Handler<Message<JsonObject>>() {
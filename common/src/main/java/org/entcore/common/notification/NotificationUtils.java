@@ -96,6 +96,22 @@ public class NotificationUtils {
 
     }
 
+    /**
+     * Removes tokens rejected by FCM.
+     *
+     * @param userTokens : objects with userId and token
+     */
+    public static void deleteFcmTokens(JsonArray userTokens, Handler<Either<String, JsonObject>> handler){
+        final JsonObject params = new JsonObject().put("userTokens", userTokens);
+
+        String query = "UNWIND {userTokens} as ut " +
+                "MATCH (u:User {id: ut.userId})-[:PREFERS]->(uac:UserAppConf) " +
+                "SET uac.fcmTokens = FILTER(token IN coalesce(uac.fcmTokens, []) WHERE token <> ut.token) " +
+                "RETURN count(uac) as count";
+
+        Neo4j.getInstance().execute(query, params, validUniqueResultHandler(handler));
+    }
+
     public static void getFcmTokensByUsers(JsonArray userIds,final Handler<Either<String, JsonArray>> handler){
         final JsonObject params = new JsonObject().put("userIds", userIds);
 
@@ -42,6 +42,7 @@ public class TimelineNotificationsLoader {
 	private static final Logger log = LoggerFactory.getLogger(TimelineNotificationsLoader.class);
 	private AsyncMap<String, String> sharedMap;
 	private final static String sharedMapName = "notificationsMap";
+	public static final String REGISTERED_ADDRESS = "timeline.notifications.registered";
 	private static TimelineNotificationsLoader instance = null;
 
 	public static enum Frequencies {
@@ -101,6 +102,8 @@ public class TimelineNotificationsLoader {
 		sharedMap.put(fullName, notification.encode(), ar -> {
 			if (ar.failed()) {
 				log.error("Error registering notification : " + fullName, ar.cause());
+			} else {
+				vertx.eventBus().publish(REGISTERED_ADDRESS, fullName);
 			}
 		});
 	}
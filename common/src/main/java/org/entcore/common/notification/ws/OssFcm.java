@@ -18,21 +18,41 @@
 
 package org.entcore.common.notification.ws;
 
+import fr.wseduc.webutils.Either;
 import fr.wseduc.webutils.http.oauth.OAuth2Client;
 import fr.wseduc.webutils.security.JWT;
 import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
 import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.core.logging.Logger;
 import io.vertx.core.logging.LoggerFactory;
 
-import java.io.UnsupportedEncodingException;
 import java.security.PrivateKey;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * FCM http v1 client. Messages are queued and sent with a bounded number of concurrent requests,
+ * retried with an exponential backoff on 429 and 5xx responses. Concurrent access token refreshes
+ * share a single request.
+ */
 public class OssFcm {
 
+    public static final String INVALID_TOKEN = "invalid.token";
+    private static final int DEFAULT_MAX_CONCURRENT_SENDS = 16;
+    private static final int MAX_QUEUED_SENDS = 50000;
+    private static final int MAX_RETRIES = 3;
+    private static final long RETRY_DELAY = 1000L;
+    private static final long SEND_TIMEOUT = 30000L;
+
     private OAuth2Client client;
     private String accessToken;
     private long tokenExpiresDate;
@@ -40,11 +60,33 @@ public class OssFcm {
     private Logger log = LoggerFactory.getLogger(OssFcm.class);
     private JsonObject payload = new JsonObject();
     private PrivateKey key;
+    private final Vertx vertx;
+    private final int maxConcurrentSends;
+    private final Deque<PendingSend> queue = new ArrayDeque<>();
+    private int inFlight = 0;
+    private List<Handler<String>> tokenWaiters;
 
+    private static final class PendingSend {
+        private final JsonObject message;
+        private final Handler<Either<String, JsonObject>> handler;
+        private int attempts = 0;
+
+        private PendingSend(JsonObject message, Handler<Either<String, JsonObject>> handler) {
+            this.message = message;
+            this.handler = handler;
+        }
+    }
 
     public OssFcm(OAuth2Client client, String iss, String scope, String aud, String url, String key) throws Exception{
+        this(null, client, iss, scope, aud, url, key, DEFAULT_MAX_CONCURRENT_SENDS);
+    }
+
+    public OssFcm(Vertx vertx, OAuth2Client client, String iss, String scope, String aud, String url, String key,
+            int maxConcurrentSends) throws Exception{
+        this.vertx = vertx;
         this.client = client;
         this.url = url;
+        this.maxConcurrentSends = Math.max(1, maxConcurrentSends);
         payload.put("iss", iss)
                 .put("scope", scope)
                 .put("aud", aud);
@@ -54,56 +96,229 @@ public class OssFcm {
     }
 
     public void sendNotifications(final JsonObject message) throws Exception{
+        sendNotifications(message, null);
+    }
+
+    /**
+     * Queues a message. The handler receives the FCM response, or {@link #INVALID_TOKEN} when the
+     * registration token of the message is unregistered or invalid and should be removed.
+     */
+    public void sendNotifications(final JsonObject message, final Handler<Either<String, JsonObject>> handler) {
+        if (queue.size() >= MAX_QUEUED_SENDS) {
+            log.error("[OssFcm] Send queue full, message dropped.");
+            if (handler != null) {
+                handler.handle(new Either.Left<String, JsonObject>("queue.full"));
+            }
+            return;
+        }
+        queue.add(new PendingSend(message, handler));
+        dispatch();
+    }
+
+    private void dispatch() {
+        while (inFlight < maxConcurrentSends && !queue.isEmpty()) {
+            inFlight++;
+            send(queue.poll());
+        }
+    }
+
+    private void done(PendingSend pending, Either<String, JsonObject> result) {
+        inFlight--;
+        if (pending.handler != null) {
+            pending.handler.handle(result);
+        }
+        dispatch();
+    }
+
+    /**
+     * Sends one attempt of the message. The attempt ends once, on its response, an exception or
+     * the send timeout, so that its concurrent send slot is always released.
+     */
+    private void send(final PendingSend pending) {
+        pending.attempts++;
+        final AtomicBoolean ended = new AtomicBoolean(false);
+        final Long timer = (vertx == null) ? null : vertx.setTimer(SEND_TIMEOUT, new Handler<Long>() {
+            @Override
+            public void handle(Long timerId) {
+                if (ended.compareAndSet(false, true)) {
+                    log.error("[OssFcm.sendNotifications] request timeout");
+                    done(pending, new Either.Left<String, JsonObject>("send.timeout"));
+                }
+            }
+        });
+        final Handler<Throwable> failure = new Handler<Throwable>() {
+            @Override
+            public void handle(Throwable cause) {
+                if (end(ended, timer)) {
+                    log.error("[OssFcm.sendNotifications] request error", cause);
+                    done(pending, new Either.Left<String, JsonObject>("send.error"));
+                }
+            }
+        };
         getAccessToken(new Handler<String>() {
             @Override
             public void handle(String token) {
                 if(token == null){
-                    log.error("[OssFcm] Error get token");
+                    if (end(ended, timer)) {
+                        log.error("[OssFcm] Error get token");
+                        done(pending, new Either.Left<String, JsonObject>("token.error"));
+                    }
+                    return;
+                }
+                if (ended.get()) {
                     return;
                 }
                 Map<String, String> headers = new HashMap<>();
                 headers.put("Content-type", "application/json");
-                headers.put("Accept-Language", message.getString("language", "fr"));
-                client.postProtectedResource(url, token, headers, message.encode(),
-                        new Handler<HttpClientResponse>() {
-                            @Override
-                            public void handle(HttpClientResponse response) {
-                                if(response.statusCode() != 200){
-                                    log.error("[OssFcm.sendNotifications] request failed : " + response.statusMessage());
+                headers.put("Accept-Language", pending.message.getString("language", "fr"));
+                try {
+                    client.postProtectedResource(url, token, headers, pending.message.encode(),
+                            new Handler<HttpClientResponse>() {
+                                @Override
+                                public void handle(final HttpClientResponse response) {
+                                    response.exceptionHandler(failure);
+                                    response.bodyHandler(new Handler<Buffer>() {
+                                        @Override
+                                        public void handle(Buffer body) {
+                                            if (end(ended, timer)) {
+                                                handleResponse(pending, response, body);
+                                            }
+                                        }
+                                    });
                                 }
-                            }
-                        });
-
+                            });
+                } catch (RuntimeException e) {
+                    failure.handle(e);
+                }
             }
         });
     }
 
-    private void getAccessToken(final Handler<String> handler) throws Exception{
+    private boolean end(AtomicBoolean ended, Long timer) {
+        if (!ended.compareAndSet(false, true)) {
+            return false;
+        }
+        if (timer != null) {
+            vertx.cancelTimer(timer);
+        }
+        return true;
+    }
+
+    private void handleResponse(final PendingSend pending, HttpClientResponse response, Buffer body) {
+        final int status = response.statusCode();
+        if (status == 200) {
+            done(pending, new Either.Right<String, JsonObject>(parse(body)));
+            return;
+        }
+        if (status == 401 && pending.attempts <= MAX_RETRIES) {
+            accessToken = null;
+            send(pending);
+            return;
+        }
+        if ((status == 429 || status >= 500) && pending.attempts <= MAX_RETRIES && vertx != null) {
+            long delay = RETRY_DELAY << (pending.attempts - 1);
+            final String retryAfter = response.getHeader("Retry-After");
+            if (retryAfter != null) {
+                try {
+                    delay = Math.max(delay, Long.parseLong(retryAfter.trim()) * 1000L);
+                } catch (NumberFormatException e) {
+                    log.debug("[OssFcm] Invalid Retry-After header : " + retryAfter);
+                }
+            }
+            vertx.setTimer(delay, new Handler<Long>() {
+                @Override
+                public void handle(Long timerId) {
+                    send(pending);
+                }
+            });
+            return;
+        }
+        final JsonObject error = parse(body).getJsonObject("error", new JsonObject());
+        if (isInvalidToken(status, error)) {
+            done(pending, new Either.Left<String, JsonObject>(INVALID_TOKEN));
+            return;
+        }
+        log.error("[OssFcm.sendNotifications] request failed : " + status + " " + response.statusMessage() +
+                " " + error.getString("message", ""));
+        done(pending, new Either.Left<String, JsonObject>(response.statusMessage()));
+    }
+
+    /**
+     * Unregistered tokens, tokens of another sender and malformed tokens (INVALID_ARGUMENT on the token field).
+     * Other errors, like a wrong project or a denied permission, don't invalidate the token.
+     */
+    private boolean isInvalidToken(int status, JsonObject error) {
+        final JsonArray details = error.getJsonArray("details");
+        if (details == null) {
+            return false;
+        }
+        final boolean invalidArgument = status == 400 && "INVALID_ARGUMENT".equals(error.getString("status"));
+        for (Object o : details) {
+            if (!(o instanceof JsonObject)) continue;
+            final JsonObject detail = (JsonObject) o;
+            final String errorCode = detail.getString("errorCode");
+            if ("UNREGISTERED".equals(errorCode) || "SENDER_ID_MISMATCH".equals(errorCode)) {
+                return true;
+            }
+            final JsonArray violations = detail.getJsonArray("fieldViolations");
+            if (invalidArgument && violations != null) {
+                for (Object v : violations) {
+                    if (v instanceof JsonObject && "message.token".equals(((JsonObject) v).getString("field"))) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private JsonObject parse(Buffer body) {
+        try {
+            return (body != null && body.length() > 0) ? new JsonObject(body.toString()) : new JsonObject();
+        } catch (RuntimeException e) {
+            return new JsonObject();
+        }
+    }
+
+    private void getAccessToken(final Handler<String> handler) {
         if(accessToken != null && tokenExpiresDate > (System.currentTimeMillis() + 1000)/1000){
             handler.handle(accessToken);
-        }else{
-            try {
-                final Long date = System.currentTimeMillis()/1000;
-                payload.put("iat", Long.toString(date));
-                payload.put("exp", Long.toString(date + 3600));
-                client.client2LO(payload, this.key, new Handler<JsonObject>() {
-                    @Override
-                    public void handle(JsonObject json) {
-
-                        JsonObject token = json.getJsonObject("token");
-                        if ("ok".equals(json.getString("status")) && token != null) {
-                            accessToken = token.getString("access_token");
-                            tokenExpiresDate = date + token.getInteger("expires_in");
-                            handler.handle(accessToken);
-                        } else {
-                            handler.handle(null);
-                        }
+            return;
+        }
+        if (tokenWaiters != null) {
+            tokenWaiters.add(handler);
+            return;
+        }
+        tokenWaiters = new ArrayList<>();
+        tokenWaiters.add(handler);
+        try {
+            final Long date = System.currentTimeMillis()/1000;
+            payload.put("iat", Long.toString(date));
+            payload.put("exp", Long.toString(date + 3600));
+            client.client2LO(payload, this.key, new Handler<JsonObject>() {
+                @Override
+                public void handle(JsonObject json) {
+                    JsonObject token = json.getJsonObject("token");
+                    if ("ok".equals(json.getString("status")) && token != null) {
+                        accessToken = token.getString("access_token");
+                        tokenExpiresDate = date + token.getInteger("expires_in");
+                        tokenRefreshed(accessToken);
+                    } else {
+                        tokenRefreshed(null);
                     }
-                });
-            } catch (UnsupportedEncodingException e) {
-                log.error(e.getMessage(), e);
-                handler.handle(null);
-            }
+                }
+            });
+        } catch (Exception e) {
+            log.error(e.getMessage(), e);
+            tokenRefreshed(null);
+        }
+    }
+
+    private void tokenRefreshed(String token) {
+        final List<Handler<String>> waiters = tokenWaiters;
+        tokenWaiters = null;
+        for (Handler<String> h : waiters) {
+            h.handle(token);
         }
     }
 }
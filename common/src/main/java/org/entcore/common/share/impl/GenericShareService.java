@@ -21,11 +21,12 @@ package org.entcore.common.share.impl;
 
 import static fr.wseduc.webutils.Utils.getOrElse;
 import static org.entcore.common.neo4j.Neo4jResult.validResultHandler;
-import static org.entcore.common.user.UserUtils.findVisibleProfilsGroups;
+import static org.entcore.common.user.UserUtils.canCommunicate;
 import static org.entcore.common.user.UserUtils.findVisibleUsers;
 import static org.entcore.common.validation.StringValidation.cleanId;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -300,23 +301,15 @@ public abstract class GenericShareService implements ShareService {
 		}
 	}
 
-	// TODO improve query
 	protected void profilGroupIsVisible(String userId, final String groupId, final Handler<Boolean> handler) {
 		if (userId == null || groupId == null) {
 			handler.handle(false);
 			return;
 		}
-		findVisibleProfilsGroups(eb, userId, new Handler<JsonArray>() {
+		canCommunicate(eb, userId, Collections.singletonList(groupId), new Handler<JsonArray>() {
 			@Override
-			public void handle(JsonArray visibleGroups) {
-				final List<String> visibleGroupsIds = new ArrayList<>();
-				for (int i = 0; i < visibleGroups.size(); i++) {
-					JsonObject j = visibleGroups.getJsonObject(i);
-					if (j != null && j.getString("id") != null) {
-						visibleGroupsIds.add(j.getString("id"));
-					}
-				}
-				handler.handle(visibleGroupsIds.contains(groupId));
+			public void handle(JsonArray visibleIds) {
+				handler.handle(visibleIds.contains(groupId));
 			}
 		});
 	}
@@ -326,17 +319,10 @@ public abstract class GenericShareService implements ShareService {
 			handler.handle(false);
 			return;
 		}
-		findVisibleUsers(eb, userId, false, new Handler<JsonArray>() {
+		canCommunicate(eb, userId, Collections.singletonList(userShareId), new Handler<JsonArray>() {
 			@Override
-			public void handle(JsonArray visibleUsers) {
-				final List<String> visibleUsersIds = new ArrayList<>();
-				for (int i = 0; i < visibleUsers.size(); i++) {
-					JsonObject j = visibleUsers.getJsonObject(i);
-					if (j != null && j.getString("id") != null) {
-						visibleUsersIds.add(j.getString("id"));
-					}
-				}
-				handler.handle(visibleUsersIds.contains(userShareId));
+			public void handle(JsonArray visibleIds) {
+				handler.handle(visibleIds.contains(userShareId));
 			}
 		});
 	}
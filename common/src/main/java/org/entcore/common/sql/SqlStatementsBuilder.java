@@ -88,6 +88,35 @@ public class SqlStatementsBuilder {
 		return this;
 	}
 
+	/**
+	 * Inserts one row per element with a single statement, whatever the number of elements.
+	 * Elements are sent as one json array parameter and fill the text column, constants fill the other
+	 * columns of every row and are typed from the table definition.
+	 *
+	 * @param table : Table name, with its schema
+	 * @param column : Column receiving the elements
+	 * @param elements : Values of the column, one row each
+	 * @param constants : Values of the other columns, identical for all rows
+	 */
+	public SqlStatementsBuilder insertEach(String table, String column, JsonArray elements, JsonObject constants) {
+		if (table == null || table.trim().isEmpty() || elements == null || elements.isEmpty()) {
+			return this;
+		}
+		final StringBuilder fields = new StringBuilder("\"").append(column).append("\"");
+		final StringBuilder select = new StringBuilder("e.v");
+		if (constants != null) {
+			for (String attr : constants.fieldNames()) {
+				fields.append(", \"").append(attr).append("\"");
+				select.append(", c.\"").append(attr).append("\"");
+			}
+		}
+		final String query = "INSERT INTO " + table + " (" + fields + ") SELECT " + select +
+				" FROM json_array_elements_text(?::json) AS e(v), json_populate_record(NULL::" + table + ", ?::json) AS c";
+		return prepared(query, new fr.wseduc.webutils.collections.JsonArray()
+				.add(elements.encode())
+				.add((constants != null ? constants : new JsonObject()).encode()));
+	}
+
 	public SqlStatementsBuilder select(String table, JsonArray fields) {
 		if (table != null && !table.trim().isEmpty()) {
 			JsonObject statement = new JsonObject()
@@ -0,0 +1,150 @@
+/* Copyright © "Open Digital Education", 2014
+ *
+ * This program is published by "Open Digital Education".
+ * You must indicate the name of the software and the company in any production /contribution
+ * using the software and indicate on the home page of the software industry in question,
+ * "powered by Open Digital Education" with a reference to the website: https://opendigitaleducation.com/.
+ *
+ * This program is free software, licensed under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * You can redistribute this application and/or modify it since you respect the terms of the GNU Affero General Public License.
+ * If you modify the source code and then use this modified source code in your creation, you must make available the source code of your modifications.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with the software.
+ * If not, please see : <http://www.gnu.org/licenses/>. Full compliance requires reading the terms of this license and following its directives.
+
+ *
+ */
+
+package org.entcore.common.storage;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.streams.ReadStream;
+
+/**
+ * Sequential stream of a stored file, read block by block with a {@link BlockReader}.
+ * The next block is only read when the previous one has been handled and the stream is not paused.
+ * The close handler is called once, when the stream ends, fails or is closed.
+ */
+public class BlockReadStream implements ReadStream<Buffer> {
+
+	public static final long DEFAULT_BLOCK_SIZE = 64 * 1024L;
+
+	private final long size;
+	private final long blockSize;
+	private final BlockReader reader;
+	private final Handler<Void> closeHandler;
+	private Handler<Buffer> handler;
+	private Handler<Throwable> exceptionHandler;
+	private Handler<Void> endHandler;
+	private long position = 0;
+	private boolean paused = false;
+	private boolean reading = false;
+	private boolean looping = false;
+	private boolean closed = false;
+
+	public BlockReadStream(long size, long blockSize, BlockReader reader, Handler<Void> closeHandler) {
+		this.size = size;
+		this.blockSize = blockSize;
+		this.reader = reader;
+		this.closeHandler = closeHandler;
+	}
+
+	public long size() {
+		return size;
+	}
+
+	private void readNext() {
+		if (looping) {
+			return;
+		}
+		looping = true;
+		try {
+			while (!reading && !paused && !closed && handler != null) {
+				if (position >= size) {
+					close();
+					if (endHandler != null) {
+						endHandler.handle(null);
+					}
+					return;
+				}
+				reading = true;
+				reader.read(position, Math.min(blockSize, size - position), new Handler<AsyncResult<Buffer>>() {
+					@Override
+					public void handle(AsyncResult<Buffer> ar) {
+						blockRead(ar);
+					}
+				});
+			}
+		} finally {
+			looping = false;
+		}
+	}
+
+	private void blockRead(AsyncResult<Buffer> ar) {
+		reading = false;
+		if (closed) {
+			return;
+		}
+		if (ar.failed() || ar.result() == null || ar.result().length() == 0) {
+			close();
+			if (exceptionHandler != null) {
+				exceptionHandler.handle(ar.failed() ? ar.cause() : new StorageException("Unexpected end of file."));
+			}
+			return;
+		}
+		position += ar.result().length();
+		if (handler != null) {
+			handler.handle(ar.result());
+		}
+		readNext();
+	}
+
+	/**
+	 * Stops reading, the end handler is not called.
+	 */
+	public void close() {
+		if (!closed) {
+			closed = true;
+			if (closeHandler != null) {
+				closeHandler.handle(null);
+			}
+		}
+	}
+
+	@Override
+	public ReadStream<Buffer> exceptionHandler(Handler<Throwable> handler) {
+		this.exceptionHandler = handler;
+		return this;
+	}
+
+	@Override
+	public ReadStream<Buffer> handler(Handler<Buffer> handler) {
+		this.handler = handler;
+		readNext();
+		return this;
+	}
+
+	@Override
+	public ReadStream<Buffer> pause() {
+		paused = true;
+		return this;
+	}
+
+	@Override
+	public ReadStream<Buffer> resume() {
+		paused = false;
+		readNext();
+		return this;
+	}
+
+	@Override
+	public ReadStream<Buffer> endHandler(Handler<Void> endHandler) {
+		this.endHandler = endHandler;
+		return this;
+	}
+
+}
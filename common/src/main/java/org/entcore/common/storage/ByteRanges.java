@@ -0,0 +1,219 @@
+/* Copyright © "Open Digital Education", 2014
+ *
+ * This program is published by "Open Digital Education".
+ * You must indicate the name of the software and the company in any production /contribution
+ * using the software and indicate on the home page of the software industry in question,
+ * "powered by Open Digital Education" with a reference to the website: https://opendigitaleducation.com/.
+ *
+ * This program is free software, licensed under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * You can redistribute this application and/or modify it since you respect the terms of the GNU Affero General Public License.
+ * If you modify the source code and then use this modified source code in your creation, you must make available the source code of your modifications.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with the software.
+ * If not, please see : <http://www.gnu.org/licenses/>. Full compliance requires reading the terms of this license and following its directives.
+
+ *
+ */
+
+package org.entcore.common.storage;
+
+import fr.wseduc.webutils.DefaultAsyncResult;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.http.HttpServerResponse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Byte ranges requests (RFC 7233) helpers shared by the storages sendFile implementations.
+ */
+public final class ByteRanges {
+
+	public static final String ACCEPT_RANGES = "Accept-Ranges";
+	private static final int MAX_RANGES = 16;
+
+	public static final class Range {
+		public final long start;
+		public final long end;
+
+		private Range(long start, long end) {
+			this.start = start;
+			this.end = end;
+		}
+
+		public long length() {
+			return end - start + 1;
+		}
+
+		private String contentRange(long size) {
+			return "bytes " + start + "-" + end + "/" + size;
+		}
+	}
+
+	private ByteRanges() {}
+
+	public static boolean hasRange(HttpServerRequest request) {
+		return request.headers().get("Range") != null;
+	}
+
+	/**
+	 * Returns the ranges to send, or null when the whole file must be sent (no range, invalid range,
+	 * If-Range not matching the etag, too many ranges). An empty list means the ranges are not satisfiable.
+	 */
+	public static List<Range> parse(HttpServerRequest request, long size, String etag) {
+		final String header = request.headers().get("Range");
+		if (header == null || !header.startsWith("bytes=")) {
+			return null;
+		}
+		final String ifRange = request.headers().get("If-Range");
+		if (ifRange != null && (etag == null || !ifRange.equals(etag))) {
+			return null;
+		}
+		final String[] specs = header.substring(6).split(",");
+		if (specs.length > MAX_RANGES) {
+			return null;
+		}
+		final List<Range> ranges = new ArrayList<>();
+		try {
+			for (String spec : specs) {
+				spec = spec.trim();
+				final int dash = spec.indexOf('-');
+				if (dash < 0) {
+					return null;
+				}
+				final String first = spec.substring(0, dash).trim();
+				final String last = spec.substring(dash + 1).trim();
+				long start;
+				long end;
+				if (first.isEmpty()) {
+					final long suffix = Long.parseLong(last);
+					if (suffix <= 0) {
+						continue;
+					}
+					start = Math.max(0, size - suffix);
+					end = size - 1;
+				} else {
+					start = Long.parseLong(first);
+					if (last.isEmpty()) {
+						end = size - 1;
+					} else {
+						end = Long.parseLong(last);
+						if (end < start) {
+							return null;
+						}
+						end = Math.min(end, size - 1);
+					}
+				}
+				if (start >= size || end < start) {
+					continue;
+				}
+				ranges.add(new Range(start, end));
+			}
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		return ranges;
+	}
+
+	public static void notSatisfiable(HttpServerResponse response, long size) {
+		response.setStatusCode(416).setStatusMessage("Requested Range Not Satisfiable")
+				.putHeader("Content-Range", "bytes */" + size).end();
+	}
+
+	/**
+	 * Sets the status and headers of a single range response, the body must then be written by the caller.
+	 */
+	public static void partialContent(HttpServerResponse response, Range range, long size) {
+		response.setStatusCode(206).setStatusMessage("Partial Content")
+				.putHeader(ACCEPT_RANGES, "bytes")
+				.putHeader("Content-Range", range.contentRange(size))
+				.putHeader("Content-Length", String.valueOf(range.length()));
+	}
+
+	/**
+	 * Sends the ranges read with the reader, as a single part or as multipart/byteranges.
+	 */
+	public static void send(final HttpServerResponse response, final List<Range> ranges, final long size,
+			String contentType, final BlockReader reader, final Handler<AsyncResult<Void>> handler) {
+		final List<Buffer> delimiters = new ArrayList<>();
+		if (ranges.size() == 1) {
+			partialContent(response, ranges.get(0), size);
+		} else {
+			final String boundary = UUID.randomUUID().toString().replace("-", "");
+			final String partType = (contentType != null) ? contentType : "application/octet-stream";
+			long length = 0;
+			for (Range r : ranges) {
+				final Buffer d = Buffer.buffer("\r\n--" + boundary + "\r\nContent-Type: " + partType +
+						"\r\nContent-Range: " + r.contentRange(size) + "\r\n\r\n");
+				delimiters.add(d);
+				length += d.length() + r.length();
+			}
+			final Buffer close = Buffer.buffer("\r\n--" + boundary + "--\r\n");
+			delimiters.add(close);
+			length += close.length();
+			response.setStatusCode(206).setStatusMessage("Partial Content")
+					.putHeader(ACCEPT_RANGES, "bytes")
+					.putHeader("Content-Type", "multipart/byteranges; boundary=" + boundary)
+					.putHeader("Content-Length", String.valueOf(length));
+		}
+		sendRange(response, ranges, delimiters, 0, -1, reader, handler);
+	}
+
+	private static void sendRange(final HttpServerResponse response, final List<Range> ranges,
+			final List<Buffer> delimiters, final int index, final long position, final BlockReader reader,
+			final Handler<AsyncResult<Void>> handler) {
+		if (index >= ranges.size()) {
+			if (!delimiters.isEmpty()) {
+				response.write(delimiters.get(index));
+			}
+			response.end();
+			handler.handle(new DefaultAsyncResult<>((Void) null));
+			return;
+		}
+		final Range range = ranges.get(index);
+		final long pos;
+		if (position < 0) {
+			if (!delimiters.isEmpty()) {
+				response.write(delimiters.get(index));
+			}
+			pos = range.start;
+		} else {
+			pos = position;
+		}
+		if (pos > range.end) {
+			sendRange(response, ranges, delimiters, index + 1, -1, reader, handler);
+			return;
+		}
+		reader.read(pos, range.end - pos + 1, new Handler<AsyncResult<Buffer>>() {
+			@Override
+			public void handle(AsyncResult<Buffer> ar) {
+				if (ar.failed() || ar.result() == null || ar.result().length() == 0) {
+					response.close();
+					handler.handle(new DefaultAsyncResult<>(ar.failed() ? ar.cause() :
+							new IllegalStateException("Unexpected end of file.")));
+					return;
+				}
+				response.write(ar.result());
+				final long next = pos + ar.result().length();
+				if (response.writeQueueFull()) {
+					response.drainHandler(new Handler<Void>() {
+						@Override
+						public void handle(Void v) {
+							response.drainHandler(null);
+							sendRange(response, ranges, delimiters, index, next, reader, handler);
+						}
+					});
+				} else {
+					sendRange(response, ranges, delimiters, index, next, reader, handler);
+				}
+			}
+		});
+	}
+
+}
@@ -43,6 +43,15 @@ public interface Storage {
 
 	void readFile(String id, Handler<Buffer> handler);
 
+	/**
+	 * Streams the file content block by block. The handler receives null if the file can't be read.
+	 */
+	void readStreamFile(String id, Handler<BlockReadStream> handler);
+
+	/**
+	 * Sends the file in the request response. Implementations answer Range requests
+	 * with the requested byte ranges (see {@link ByteRanges}).
+	 */
 	void sendFile(String id, String downloadName, HttpServerRequest request, boolean inline, JsonObject metadata);
 
 	void sendFile(String id, String downloadName, HttpServerRequest request, boolean inline, JsonObject metadata,
@@ -104,6 +104,9 @@ public class StorageFactory {
 				fileValidator.setNext(new ExtensionValidator(blockedExtensions));
 			}
 			((FileStorage) storage).setValidator(fileValidator);
+			if (fs.getBoolean("deduplicate", false)) {
+				((FileStorage) storage).setDeduplicate();
+			}
 		} else {
 			storage = new GridfsStorage(vertx, Server.getEventBus(vertx), gridfsAddress);
 		}
@@ -0,0 +1,255 @@
+/*
+ * Copyright © "Open Digital Education", 2016
+ *
+ * This program is published by "Open Digital Education".
+ * You must indicate the name of the software and the company in any production /contribution
+ * using the software and indicate on the home page of the software industry in question,
+ * "powered by Open Digital Education" with a reference to the website: https://opendigitaleducation.com/.
+ *
+ * This program is free software, licensed under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * You can redistribute this application and/or modify it since you respect the terms of the GNU Affero General Public License.
+ * If you modify the source code and then use this modified source code in your creation, you must make available the source code of your modifications.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with the software.
+ * If not, please see : <http://www.gnu.org/licenses/>. Full compliance requires reading the terms of this license and following its directives.
+
+ */
+
+package org.entcore.common.storage.impl;
+
+import fr.wseduc.webutils.DefaultAsyncResult;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.file.AsyncFile;
+import io.vertx.core.file.CopyOptions;
+import io.vertx.core.file.FileSystem;
+import io.vertx.core.file.OpenOptions;
+import io.vertx.core.http.HttpServerFileUpload;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Content addressed layer of a file system bucket.
+ * Each distinct content is kept once in the blobs directory, named by its SHA-256, and the files of the bucket
+ * are hard links to their blob. The link count of the inode is the reference count : a copy adds a link
+ * instead of copying bytes, and the bytes are only freed when the last file and the blob are removed.
+ * Removing the last file of a content also removes its blob, the blobs left referenced only by themselves
+ * (e.g. by a removal on a failure) are removed by the migration tool (migration/3.3.0/deduplicateFileStorage.py).
+ * Uploads are linked to their blob as soon as they are written : a file of a deduplicated bucket must never
+ * be rewritten in place, post-processing writes a new file (see DefaultWorkspaceService.compressImage).
+ */
+public class ContentAddressedFiles {
+
+	private static final Logger log = LoggerFactory.getLogger(ContentAddressedFiles.class);
+	public static final String BLOBS_DIRECTORY = ".blobs";
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	private final Vertx vertx;
+	private final FileSystem fs;
+	private final String blobsPath;
+
+	public ContentAddressedFiles(Vertx vertx, String basePath) {
+		this.vertx = vertx;
+		this.fs = vertx.fileSystem();
+		this.blobsPath = basePath + BLOBS_DIRECTORY + File.separator;
+	}
+
+	/**
+	 * Writes the upload in path and returns the SHA-256 of its content, computed while streaming.
+	 * On an upload or write error, the file is closed and deleted and the error is returned.
+	 */
+	public void streamToFileSystem(final HttpServerFileUpload upload, final String path,
+			final Handler<AsyncResult<String>> handler) {
+		final MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			handler.handle(new DefaultAsyncResult<String>(e));
+			return;
+		}
+		upload.pause();
+		fs.open(path, new OpenOptions().setWrite(true).setCreate(true).setTruncateExisting(true), ar -> {
+			if (ar.failed()) {
+				handler.handle(new DefaultAsyncResult<String>(ar.cause()));
+				return;
+			}
+			final AsyncFile file = ar.result();
+			final AtomicBoolean done = new AtomicBoolean(false);
+			final Handler<Throwable> failure = new Handler<Throwable>() {
+				@Override
+				public void handle(Throwable cause) {
+					if (!done.compareAndSet(false, true)) {
+						return;
+					}
+					file.close(c -> fs.delete(path, d -> {
+						if (d.failed()) {
+							log.error("Error deleting aborted upload " + path, d.cause());
+						}
+						handler.handle(new DefaultAsyncResult<String>(cause));
+					}));
+				}
+			};
+			file.exceptionHandler(failure);
+			upload.exceptionHandler(failure);
+			upload.handler(new Handler<Buffer>() {
+				@Override
+				public void handle(Buffer data) {
+					if (done.get()) {
+						return;
+					}
+					digest.update(data.getBytes());
+					file.write(data);
+					if (file.writeQueueFull()) {
+						upload.pause();
+						file.drainHandler(v -> upload.resume());
+					}
+				}
+			});
+			upload.endHandler(v -> {
+				if (done.get()) {
+					return;
+				}
+				file.close(c -> {
+					if (c.failed()) {
+						failure.handle(c.cause());
+					} else if (done.compareAndSet(false, true)) {
+						handler.handle(new DefaultAsyncResult<>(hex(digest.digest())));
+					}
+				});
+			});
+			upload.resume();
+		});
+	}
+
+	/**
+	 * Replaces the file by a link to the existing blob of the same content, or makes the file the blob.
+	 */
+	public void link(final String path, final String sha256, final Handler<AsyncResult<Void>> handler) {
+		final String blob = blobPath(sha256);
+		fs.mkdirs(blob.substring(0, blob.lastIndexOf(File.separatorChar)), mkdirs -> fs.exists(blob, exists -> {
+			if (exists.failed()) {
+				handler.handle(new DefaultAsyncResult<Void>(exists.cause()));
+			} else if (Boolean.TRUE.equals(exists.result())) {
+				final String tmp = path + ".dedup";
+				fs.link(tmp, blob, linked -> {
+					if (linked.failed()) {
+						// blob removed meanwhile, the file is kept as is
+						handler.handle(new DefaultAsyncResult<Void>(linked.cause()));
+						return;
+					}
+					fs.move(tmp, path, new CopyOptions().setReplaceExisting(true), moved -> {
+						if (moved.failed()) {
+							fs.delete(tmp, d -> handler.handle(moved));
+						} else {
+							handler.handle(moved);
+						}
+					});
+				});
+			} else {
+				// an other node may create the blob meanwhile, the migration tool links the file later
+				fs.link(blob, path, handler);
+			}
+		}));
+	}
+
+	/**
+	 * Copies a file by adding a link to its inode. Falls back to a copy of the bytes if the link is refused.
+	 */
+	public void copy(final String from, final String to, final Handler<AsyncResult<Void>> handler) {
+		fs.link(to, from, linked -> {
+			if (linked.succeeded()) {
+				handler.handle(linked);
+			} else {
+				fs.copy(from, to, handler);
+			}
+		});
+	}
+
+	/**
+	 * Writes the buffer in a new inode, a linked file must not be modified in place.
+	 */
+	public void writeFile(final String path, final Buffer buff, final Handler<AsyncResult<Void>> handler) {
+		final String tmp = path + ".tmp";
+		fs.writeFile(tmp, buff, written -> {
+			if (written.failed()) {
+				handler.handle(written);
+				return;
+			}
+			fs.move(tmp, path, new CopyOptions().setReplaceExisting(true), handler);
+		});
+	}
+
+	/**
+	 * Removes the file, and the blob of its content if the file was its last link.
+	 * The content is only hashed when the file and a single other name share the inode.
+	 */
+	public void delete(final String path, final Handler<AsyncResult<Void>> handler) {
+		vertx.executeBlocking(future -> {
+			try {
+				final Path file = Paths.get(path);
+				final String blob = linkCount(file) == 2 ? blobPath(sha256(file)) : null;
+				Files.delete(file);
+				if (blob != null) {
+					deleteOrphanBlob(Paths.get(blob));
+				}
+				future.complete();
+			} catch (IOException | NoSuchAlgorithmException e) {
+				future.fail(e);
+			}
+		}, false, handler);
+	}
+
+	private static void deleteOrphanBlob(Path blob) {
+		try {
+			// an upload linked meanwhile keeps the inode through its own name
+			if (Files.exists(blob) && linkCount(blob) == 1) {
+				Files.delete(blob);
+			}
+		} catch (IOException e) {
+			log.error("Error removing orphan blob " + blob, e);
+		}
+	}
+
+	private static int linkCount(Path path) throws IOException {
+		return (Integer) Files.getAttribute(path, "unix:nlink");
+	}
+
+	private static String sha256(Path path) throws IOException, NoSuchAlgorithmException {
+		final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		final byte[] buffer = new byte[64 * 1024];
+		try (InputStream in = Files.newInputStream(path)) {
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				digest.update(buffer, 0, read);
+			}
+		}
+		return hex(digest.digest());
+	}
+
+	private String blobPath(String sha256) {
+		return blobsPath + sha256.substring(0, 2) + File.separator + sha256.substring(2, 4) + File.separator + sha256;
+	}
+
+	private static String hex(byte[] bytes) {
+		final char[] chars = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+			chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+		}
+		return new String(chars);
+	}
+
+}
@@ -24,7 +24,10 @@ import fr.wseduc.webutils.DefaultAsyncResult;
 import fr.wseduc.webutils.http.ETag;
 import fr.wseduc.webutils.http.Renders;
 import org.entcore.common.storage.AntivirusClient;
+import org.entcore.common.storage.BlockReadStream;
+import org.entcore.common.storage.BlockReader;
 import org.entcore.common.storage.BucketStats;
+import org.entcore.common.storage.ByteRanges;
 import org.entcore.common.storage.FileStats;
 import org.entcore.common.storage.Storage;
 import org.entcore.common.utils.StringUtils;
@@ -33,9 +36,11 @@ import io.vertx.core.AsyncResult;
 import io.vertx.core.Handler;
 import io.vertx.core.Vertx;
 import io.vertx.core.buffer.Buffer;
+import io.vertx.core.file.AsyncFile;
 import io.vertx.core.file.FileProps;
 import io.vertx.core.file.FileSystem;
 import io.vertx.core.file.FileSystemProps;
+import io.vertx.core.file.OpenOptions;
 import io.vertx.core.http.HttpServerFileUpload;
 import io.vertx.core.http.HttpServerRequest;
 import io.vertx.core.http.HttpServerResponse;
@@ -47,6 +52,7 @@ import org.entcore.common.validation.FileValidator;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -55,15 +61,19 @@ import static fr.wseduc.webutils.Utils.isNotEmpty;
 public class FileStorage implements Storage {
 
 	private static final Logger log = LoggerFactory.getLogger(FileStorage.class);
+	private static final int RANGE_BLOCK_SIZE = 64 * 1024;
 	private final String basePath;
+	private final Vertx vertx;
 	private final FileSystem fs;
 	private final boolean flat;
 	private AntivirusClient antivirus;
 	private FileValidator validator;
+	private ContentAddressedFiles contentAddressedFiles;
 
 	public FileStorage(Vertx vertx, String basePath, boolean flat) {
 		this.basePath = (basePath != null && !basePath.endsWith("/")) ? basePath + "/" : basePath;
 		this.flat = flat;
+		this.vertx = vertx;
 		this.fs = vertx.fileSystem();
 	}
 
@@ -109,7 +119,8 @@ public class FileStorage implements Storage {
 			}
 
 			private void doUpload(final HttpServerFileUpload upload, final JsonObject metadata) {
-				upload.endHandler(new Handler<Void>() {
+				final String[] sha256 = new String[1];
+				final Handler<Void> endHandler = new Handler<Void>() {
 					@Override
 					public void handle(Void event) {
 						if (metadata.getLong("size") == 0l) {
@@ -136,8 +147,18 @@ public class FileStorage implements Storage {
 								.put("status", "ok")
 								.put("metadata", metadata));
 						scanFile(path);
+						if (sha256[0] != null) {
+							contentAddressedFiles.link(path, sha256[0], new Handler<AsyncResult<Void>>() {
+								@Override
+								public void handle(AsyncResult<Void> event) {
+									if (event.failed()) {
+										log.error("Error linking " + id + " to its blob.", event.cause());
+									}
+								}
+							});
+						}
 					}
-				});
+				};
 				upload.exceptionHandler(new Handler<Throwable>() {
 					@Override
 					public void handle(Throwable event) {
@@ -145,7 +166,23 @@ public class FileStorage implements Storage {
 						log.error(event.getMessage(), event);
 					}
 				});
-				upload.streamToFileSystem(path);
+				if (contentAddressedFiles != null) {
+					contentAddressedFiles.streamToFileSystem(upload, path, new Handler<AsyncResult<String>>() {
+						@Override
+						public void handle(AsyncResult<String> event) {
+							if (event.succeeded()) {
+								sha256[0] = event.result();
+								endHandler.handle(null);
+							} else {
+								handler.handle(res.put("status", "error"));
+								log.error(event.cause().getMessage(), event.cause());
+							}
+						}
+					});
+				} else {
+					upload.endHandler(endHandler);
+					upload.streamToFileSystem(path);
+				}
 			}
 		});
 		mkdirsIfNotExists(id, path, new Handler<AsyncResult<Void>>() {
@@ -213,7 +250,7 @@ public class FileStorage implements Storage {
 		mkdirsIfNotExists(id, path, new Handler<AsyncResult<Void>>() {
 			@Override
 			public void handle(AsyncResult<Void> event) {
-				fs.writeFile(path, buff, new Handler<AsyncResult<Void>>() {
+				final Handler<AsyncResult<Void>> writeHandler = new Handler<AsyncResult<Void>>() {
 					@Override
 					public void handle(AsyncResult<Void> event) {
 						if (event.succeeded()) {
@@ -226,7 +263,12 @@ public class FileStorage implements Storage {
 						}
 						handler.handle(res);
 					}
-				});
+				};
+				if (contentAddressedFiles != null) {
+					contentAddressedFiles.writeFile(path, buff, writeHandler);
+				} else {
+					fs.writeFile(path, buff, writeHandler);
+				}
 			}
 		});
 	}
@@ -312,6 +354,42 @@ public class FileStorage implements Storage {
 		}
 	}
 
+	@Override
+	public void readStreamFile(String id, final Handler<BlockReadStream> handler) {
+		final String path;
+		try {
+			path = getPath(id);
+		} catch (FileNotFoundException e) {
+			handler.handle(null);
+			log.warn(e.getMessage(), e);
+			return;
+		}
+		fs.props(path, props -> {
+			if (props.failed()) {
+				handler.handle(null);
+				log.error(props.cause().getMessage(), props.cause());
+				return;
+			}
+			fs.open(path, new OpenOptions().setRead(true).setWrite(false).setCreate(false), ar -> {
+				if (ar.failed()) {
+					handler.handle(null);
+					log.error(ar.cause().getMessage(), ar.cause());
+					return;
+				}
+				final AsyncFile file = ar.result();
+				handler.handle(new BlockReadStream(props.result().size(), RANGE_BLOCK_SIZE, fileReader(file),
+						v -> file.close()));
+			});
+		});
+	}
+
+	private static BlockReader fileReader(final AsyncFile file) {
+		return (position, maxLength, h) -> {
+			final int length = (int) Math.min(maxLength, RANGE_BLOCK_SIZE);
+			file.read(Buffer.buffer(length), 0, position, length, h);
+		};
+	}
+
 	@Override
 	public void sendFile(String id, String downloadName, HttpServerRequest request, boolean inline, JsonObject metadata) {
 		sendFile(id, downloadName, request, inline, metadata, null);
@@ -331,15 +409,37 @@ public class FileStorage implements Storage {
 			if (metadata != null && metadata.getString("content-type") != null) {
 				resp.putHeader("Content-Type", metadata.getString("content-type"));
 			}
-			if (resultHandler != null) {
-				resp.sendFile(path, resultHandler);
-			} else {
-				resp.sendFile(path, ar -> {
-					if (ar.failed() && !request.response().ended()) {
-						Renders.notFound(request);
-					}
-				});
+			final Handler<AsyncResult<Void>> sendHandler = (resultHandler != null) ? resultHandler : ar -> {
+				if (ar.failed() && !request.response().ended()) {
+					Renders.notFound(request);
+				}
+			};
+			if (!ByteRanges.hasRange(request)) {
+				resp.putHeader(ByteRanges.ACCEPT_RANGES, "bytes");
+				resp.sendFile(path, sendHandler);
+				return;
 			}
+			fs.props(path, props -> {
+				if (props.failed()) {
+					resp.sendFile(path, sendHandler);
+					return;
+				}
+				final long size = props.result().size();
+				final List<ByteRanges.Range> ranges = ByteRanges.parse(request, size, resp.headers().get("ETag"));
+				if (ranges == null) {
+					resp.putHeader(ByteRanges.ACCEPT_RANGES, "bytes");
+					resp.sendFile(path, sendHandler);
+				} else if (ranges.isEmpty()) {
+					ByteRanges.notSatisfiable(resp, size);
+					sendHandler.handle(new DefaultAsyncResult<>((Void) null));
+				} else if (ranges.size() == 1) {
+					final ByteRanges.Range range = ranges.get(0);
+					ByteRanges.partialContent(resp, range, size);
+					resp.sendFile(path, range.start, range.length(), sendHandler);
+				} else {
+					sendRanges(path, resp, ranges, size, metadata, sendHandler);
+				}
+			});
 		} catch (FileNotFoundException e) {
 			resp.setStatusCode(404).setStatusMessage("Not Found").end();
 			if (resultHandler != null) {
@@ -349,12 +449,28 @@ public class FileStorage implements Storage {
 		}
 	}
 
+	private void sendRanges(String path, final HttpServerResponse resp, final List<ByteRanges.Range> ranges,
+			final long size, JsonObject metadata, final Handler<AsyncResult<Void>> handler) {
+		final String contentType = (metadata != null) ? metadata.getString("content-type") : null;
+		fs.open(path, new OpenOptions().setRead(true).setWrite(false).setCreate(false), ar -> {
+			if (ar.failed()) {
+				handler.handle(new DefaultAsyncResult<>(ar.cause()));
+				return;
+			}
+			final AsyncFile file = ar.result();
+			ByteRanges.send(resp, ranges, size, contentType, fileReader(file), res -> {
+				file.close();
+				handler.handle(res);
+			});
+		});
+	}
+
 	@Override
 	public void removeFile(String id, final Handler<JsonObject> handler) {
 		final JsonObject res = new JsonObject();
 		try {
 			final String path = getPath(id);
-			fs.delete(path, new Handler<AsyncResult<Void>>() {
+			deleteFile(path, new Handler<AsyncResult<Void>>() {
 				@Override
 				public void handle(AsyncResult<Void> event) {
 					if (event.succeeded()) {
@@ -383,7 +499,7 @@ public class FileStorage implements Storage {
 			}
 			try {
 				final String path = getPath(o.toString());
-				fs.delete(path, new Handler<AsyncResult<Void>>() {
+				deleteFile(path, new Handler<AsyncResult<Void>>() {
 					@Override
 					public void handle(AsyncResult<Void> event) {
 						if (event.failed()) {
@@ -402,6 +518,14 @@ public class FileStorage implements Storage {
 		}
 	}
 
+	private void deleteFile(String path, Handler<AsyncResult<Void>> handler) {
+		if (contentAddressedFiles != null) {
+			contentAddressedFiles.delete(path, handler);
+		} else {
+			fs.delete(path, handler);
+		}
+	}
+
 	private void decrementRemove(AtomicInteger count, JsonArray errors, Handler<JsonObject> handler, JsonObject res) {
 		if (count.decrementAndGet() <= 0) {
 
@@ -422,7 +546,20 @@ public class FileStorage implements Storage {
 			mkdirsIfNotExists(newId, path, new Handler<AsyncResult<Void>>() {
 				@Override
 				public void handle(AsyncResult<Void> event) {
-					if (event.succeeded()) {
+					if (event.succeeded() && contentAddressedFiles != null) {
+						contentAddressedFiles.copy(sourcePath, path, new Handler<AsyncResult<Void>>() {
+							@Override
+							public void handle(AsyncResult<Void> event) {
+								if (event.succeeded()) {
+									handler.handle(new JsonObject().put("status", "ok").put("_id", newId));
+								} else {
+									handler.handle(new JsonObject().put("status", "error")
+											.put("message", event.cause().getMessage()));
+									log.error(event.cause().getMessage(), event.cause());
+								}
+							}
+						});
+					} else if (event.succeeded()) {
 						copyFile(sourcePath, path, newId, handler);
 					} else {
 						handler.handle(new JsonObject().put("status", "error")
@@ -550,6 +687,18 @@ public class FileStorage implements Storage {
 		this.antivirus = antivirus;
 	}
 
+	/**
+	 * Stores each content once : copies become hard links and uploads are linked to the blob of their content.
+	 * The files of the bucket must not be rewritten in place.
+	 */
+	public void setDeduplicate() {
+		this.contentAddressedFiles = new ContentAddressedFiles(vertx, basePath);
+	}
+
+	public boolean isDeduplicated() {
+		return contentAddressedFiles != null;
+	}
+
 	public void setValidator(FileValidator validator) {
 		this.validator = validator;
 	}
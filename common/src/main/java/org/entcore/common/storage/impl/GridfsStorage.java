@@ -26,7 +26,10 @@ import fr.wseduc.webutils.DefaultAsyncResult;
 import fr.wseduc.webutils.http.ETag;
 import io.vertx.core.file.OpenOptions;
 import io.vertx.core.http.HttpServerFileUpload;
+import org.entcore.common.storage.BlockReadStream;
+import org.entcore.common.storage.BlockReader;
 import org.entcore.common.storage.BucketStats;
+import org.entcore.common.storage.ByteRanges;
 import org.entcore.common.storage.FileStats;
 import org.entcore.common.storage.Storage;
 import org.entcore.common.storage.StorageException;
@@ -51,6 +54,10 @@ import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.UUID;
 
 import static fr.wseduc.webutils.Utils.handlerToAsyncHandler;
 
@@ -112,23 +119,182 @@ public class GridfsStorage implements Storage {
 		request.setExpectMultipart(true);
 		request.uploadHandler(new Handler<HttpServerFileUpload>() {
 			@Override
-			public void handle(final HttpServerFileUpload event) {
-				final Buffer buff = Buffer.buffer();
-				event.handler(new Handler<Buffer>() {
-					@Override
-					public void handle(Buffer event) {
-						buff.appendBuffer(event);
+			public void handle(final HttpServerFileUpload upload) {
+				new ChunkedUpload(upload, maxSize, handler).start();
+			}
+		});
+	}
+
+	/**
+	 * Streams an upload into the chunks collection, chunk by chunk, while the upload is received.
+	 * The upload is paused while too many chunks are being saved. The files document is written
+	 * once all chunks are saved, with the computed length and md5.
+	 * If the max size is exceeded or a chunk can't be saved, already saved chunks are deleted.
+	 */
+	private class ChunkedUpload {
+
+		private static final int MAX_PENDING_CHUNKS = 2;
+		private final HttpServerFileUpload upload;
+		private final Long maxSize;
+		private final Handler<JsonObject> handler;
+		private final String id = UUID.randomUUID().toString();
+		private final MessageDigest md5;
+		private Buffer current = Buffer.buffer((int) BUFFER_SIZE);
+		private long length = 0;
+		private int n = 0;
+		private int pending = 0;
+		private boolean ended = false;
+		private boolean done = false;
+		private boolean aborted = false;
+
+		private ChunkedUpload(HttpServerFileUpload upload, Long maxSize, Handler<JsonObject> handler) {
+			this.upload = upload;
+			this.maxSize = maxSize;
+			this.handler = handler;
+			MessageDigest digest;
+			try {
+				digest = MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				log.error("MD5 algorithm unavailable.", e);
+				digest = null;
+			}
+			this.md5 = digest;
+		}
+
+		private void start() {
+			upload.handler(new Handler<Buffer>() {
+				@Override
+				public void handle(Buffer data) {
+					if (done) {
+						return;
 					}
-				});
-				event.endHandler(new Handler<Void>() {
-					@Override
-					public void handle(Void end) {
-						writeBuffer(null, buff, maxSize,
-								event.contentType(), event.filename(), metadata(event), handler);
+					length += data.length();
+					if (maxSize != null && length > maxSize) {
+						abort(new JsonObject().put("status", "error").put("message", "file.too.large"));
+						return;
 					}
-				});
+					if (md5 != null) {
+						md5.update(data.getBytes());
+					}
+					current.appendBuffer(data);
+					while (current.length() >= BUFFER_SIZE) {
+						final Buffer chunk = current.getBuffer(0, (int) BUFFER_SIZE);
+						current = current.getBuffer((int) BUFFER_SIZE, current.length());
+						save(chunk);
+					}
+				}
+			});
+			upload.exceptionHandler(new Handler<Throwable>() {
+				@Override
+				public void handle(Throwable t) {
+					abort(new JsonObject().put("status", "error").put("message", t.getMessage()));
+				}
+			});
+			upload.endHandler(new Handler<Void>() {
+				@Override
+				public void handle(Void v) {
+					ended = true;
+					if (done) {
+						return;
+					}
+					if (current.length() > 0) {
+						final Buffer chunk = current;
+						current = Buffer.buffer();
+						save(chunk);
+					} else {
+						complete();
+					}
+				}
+			});
+		}
+
+		private void save(Buffer chunk) {
+			pending++;
+			if (pending >= MAX_PENDING_CHUNKS && !ended) {
+				upload.pause();
 			}
-		});
+			saveChunk(id, chunk, n++, upload.contentType(), upload.filename(), 0, new Handler<JsonObject>() {
+				@Override
+				public void handle(JsonObject res) {
+					pending--;
+					if (done) {
+						if (aborted && pending == 0) {
+							// chunks inserted after the abort cleanup
+							deleteChunks();
+						}
+						return;
+					}
+					if (!"ok".equals(res.getString("status"))) {
+						abort(res);
+						return;
+					}
+					if (ended) {
+						complete();
+					} else if (pending < MAX_PENDING_CHUNKS) {
+						upload.resume();
+					}
+				}
+			});
+		}
+
+		private void complete() {
+			if (pending > 0 || done) {
+				return;
+			}
+			done = true;
+			final JsonObject metadata = metadata(upload).put("size", length);
+			final JsonObject file = new JsonObject()
+					.put("_id", id)
+					.put("length", length)
+					.put("chunkSize", BUFFER_SIZE)
+					.put("uploadDate", MongoDb.now())
+					.put("filename", upload.filename())
+					.put("contentType", upload.contentType());
+			if (md5 != null) {
+				file.put("md5", toHex(md5.digest()));
+			}
+			mongoDb.save(getBucket() + ".files", file, new Handler<Message<JsonObject>>() {
+				@Override
+				public void handle(Message<JsonObject> event) {
+					if ("ok".equals(event.body().getString("status"))) {
+						handler.handle(new JsonObject().put("status", "ok").put("_id", id).put("metadata", metadata));
+					} else {
+						deleteChunks();
+						handler.handle(event.body());
+					}
+				}
+			});
+		}
+
+		private void abort(JsonObject error) {
+			if (done) {
+				return;
+			}
+			done = true;
+			aborted = true;
+			current = Buffer.buffer();
+			if (!ended) {
+				upload.resume();
+			}
+			// chunks still being saved are deleted when the last save returns
+			if (n > 0 && pending == 0) {
+				deleteChunks();
+			}
+			handler.handle(error);
+		}
+
+		private void deleteChunks() {
+			mongoDb.delete(getBucket() + ".chunks", new JsonObject().put("files_id", id));
+		}
+
+	}
+
+	private static String toHex(byte[] bytes) {
+		final StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return sb.toString();
 	}
 
 	@Override
@@ -331,15 +497,128 @@ public class GridfsStorage implements Storage {
 
 	@Override
 	public void sendFile(String id, String downloadName, HttpServerRequest request, boolean inline, JsonObject metadata) {
-		gridfsSendChunkFile(id, downloadName, eb, gridfsAddress, request.response(), inline, metadata);
+		sendFile(id, downloadName, request, inline, metadata, null);
 	}
 
 	@Override
 	public void sendFile(String id, String downloadName, HttpServerRequest request, boolean inline, JsonObject metadata,
 			Handler<AsyncResult<Void>> resultHandler) {
+		if (ByteRanges.hasRange(request)) {
+			sendRanges(id, downloadName, request, inline, metadata, resultHandler);
+			return;
+		}
+		request.response().putHeader(ByteRanges.ACCEPT_RANGES, "bytes");
 		gridfsSendChunkFile(id, downloadName, eb, gridfsAddress, request.response(), inline, metadata, resultHandler);
 	}
 
+	/**
+	 * Reads the length and chunk size of the file, then fetches only the chunks covering the requested ranges.
+	 */
+	private void sendRanges(final String id, final String downloadName, final HttpServerRequest request,
+			final boolean inline, final JsonObject metadata, final Handler<AsyncResult<Void>> resultHandler) {
+		final HttpServerResponse response = request.response();
+		final Handler<AsyncResult<Void>> handler = (resultHandler != null) ? resultHandler :
+				new Handler<AsyncResult<Void>>() {
+					@Override
+					public void handle(AsyncResult<Void> ar) {
+						if (ar.failed()) {
+							log.error("Error sending ranges of file " + id, ar.cause());
+						}
+					}
+				};
+		mongoDb.findOne(getBucket() + ".files", new JsonObject().put("_id", id), new Handler<Message<JsonObject>>() {
+			@Override
+			public void handle(Message<JsonObject> event) {
+				final JsonObject file = event.body().getJsonObject("result");
+				if (!"ok".equals(event.body().getString("status")) || file == null ||
+						file.getLong("length") == null || file.getLong("chunkSize", 0L) <= 0) {
+					gridfsSendChunkFile(id, downloadName, eb, gridfsAddress, response, inline, metadata, resultHandler);
+					return;
+				}
+				final long size = file.getLong("length");
+				final long chunkSize = file.getLong("chunkSize");
+				if (!inline) {
+					String name = fr.wseduc.swift.utils.FileUtils.getNameWithExtension(downloadName, metadata);
+					response.putHeader("Content-Disposition", "attachment; filename=\"" + name + "\"");
+				} else {
+					ETag.addHeader(response, id);
+				}
+				final String contentType = (metadata != null) ? metadata.getString("content-type") : null;
+				if (contentType != null) {
+					response.putHeader("Content-Type", contentType);
+				}
+				final List<ByteRanges.Range> ranges = ByteRanges.parse(request, size, response.headers().get("ETag"));
+				if (ranges == null) {
+					response.putHeader(ByteRanges.ACCEPT_RANGES, "bytes");
+					gridfsSendChunkFile(id, downloadName, eb, gridfsAddress, response, inline, metadata, resultHandler);
+				} else if (ranges.isEmpty()) {
+					ByteRanges.notSatisfiable(response, size);
+					handler.handle(new DefaultAsyncResult<>((Void) null));
+				} else {
+					ByteRanges.send(response, ranges, size, contentType, new ChunkReader(id, chunkSize), handler);
+				}
+			}
+		});
+	}
+
+	@Override
+	public void readStreamFile(final String id, final Handler<BlockReadStream> handler) {
+		mongoDb.findOne(getBucket() + ".files", new JsonObject().put("_id", id), new Handler<Message<JsonObject>>() {
+			@Override
+			public void handle(Message<JsonObject> event) {
+				final JsonObject file = event.body().getJsonObject("result");
+				if (!"ok".equals(event.body().getString("status")) || file == null ||
+						file.getLong("length") == null || file.getLong("chunkSize", 0L) <= 0) {
+					handler.handle(null);
+					return;
+				}
+				final long chunkSize = file.getLong("chunkSize");
+				handler.handle(new BlockReadStream(file.getLong("length"), chunkSize, new ChunkReader(id, chunkSize), null));
+			}
+		});
+	}
+
+	/**
+	 * Reads blocks of a file from the chunks covering them, the last fetched chunk is kept for the next block.
+	 */
+	private class ChunkReader implements BlockReader {
+
+		private final String id;
+		private final long chunkSize;
+		private Chunk last;
+
+		private ChunkReader(String id, long chunkSize) {
+			this.id = id;
+			this.chunkSize = chunkSize;
+		}
+
+		@Override
+		public void read(final long position, final long maxLength, final Handler<AsyncResult<Buffer>> h) {
+			final int n = (int) (position / chunkSize);
+			if (last != null && last.n == n) {
+				h.handle(new DefaultAsyncResult<>(slice(last, position, maxLength)));
+				return;
+			}
+			getChunk(id, n, eb, gridfsAddress, new Handler<Chunk>() {
+				@Override
+				public void handle(Chunk chunk) {
+					if (chunk == null || chunk.data == null) {
+						h.handle(new DefaultAsyncResult<Buffer>(new StorageException("Missing chunk " + n)));
+						return;
+					}
+					last = chunk;
+					h.handle(new DefaultAsyncResult<>(slice(chunk, position, maxLength)));
+				}
+			});
+		}
+
+		private Buffer slice(Chunk chunk, long position, long maxLength) {
+			final int start = (int) (position - chunk.n * chunkSize);
+			final int end = (int) Math.min(chunk.data.length(), start + maxLength);
+			return (start < end) ? chunk.data.slice(start, end) : Buffer.buffer();
+		}
+	}
+
 	private static void gridfsReadChunkFile(final String id, final EventBus eb, final String gridfsAddress,
 			final WriteStream writeStream, final Handler<Chunk> handler) {
 		JsonObject find = new JsonObject();
@@ -22,6 +22,8 @@ package org.entcore.common.storage.impl;
 import fr.wseduc.swift.SwiftClient;
 import fr.wseduc.swift.storage.StorageObject;
 import fr.wseduc.webutils.DefaultAsyncResult;
+import org.entcore.common.storage.BlockReadStream;
+import org.entcore.common.storage.BlockReader;
 import org.entcore.common.storage.BucketStats;
 import org.entcore.common.storage.FileStats;
 import org.entcore.common.storage.Storage;
@@ -133,6 +135,25 @@ public class SwiftStorage implements Storage {
 		});
 	}
 
+	@Override
+	public void readStreamFile(String id, final Handler<BlockReadStream> handler) {
+		readFile(id, new Handler<Buffer>() {
+			@Override
+			public void handle(final Buffer buffer) {
+				if (buffer == null) {
+					handler.handle(null);
+					return;
+				}
+				handler.handle(new BlockReadStream(buffer.length(), BlockReadStream.DEFAULT_BLOCK_SIZE, new BlockReader() {
+					@Override
+					public void read(long position, long maxLength, Handler<AsyncResult<Buffer>> h) {
+						h.handle(new DefaultAsyncResult<>(buffer.slice((int) position, (int) (position + maxLength))));
+					}
+				}, null));
+			}
+		});
+	}
+
 	@Override
 	public void sendFile(String id, String downloadName, HttpServerRequest request, boolean inline, JsonObject metadata) {
 		swiftClient.downloadFile(id, request, inline, downloadName, metadata, id);
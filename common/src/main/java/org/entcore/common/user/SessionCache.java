@@ -0,0 +1,242 @@
+/* Copyright © "Open Digital Education", 2014
+ *
+ * This program is published by "Open Digital Education".
+ * You must indicate the name of the software and the company in any production /contribution
+ * using the software and indicate on the home page of the software industry in question,
+ * "powered by Open Digital Education" with a reference to the website: https://opendigitaleducation.com/.
+ *
+ * This program is free software, licensed under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * You can redistribute this application and/or modify it since you respect the terms of the GNU Affero General Public License.
+ * If you modify the source code and then use this modified source code in your creation, you must make available the source code of your modifications.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with the software.
+ * If not, please see : <http://www.gnu.org/licenses/>. Full compliance requires reading the terms of this license and following its directives.
+
+ *
+ */
+
+package org.entcore.common.user;
+
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.Message;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-bounded near-cache of decoded sessions, keyed by oneSessionId.
+ * Entries expire after a short ttl and are invalidated when the session manager
+ * publishes a change on {@link #INVALIDATE_ADDRESS}.
+ * Since cached finds do not reach the session manager, the ttl must stay well under
+ * the inactivity delay so activity is still refreshed.
+ * The cache keeps its own copy of the sessions and returns a copy on each hit, so callers may modify it.
+ */
+public class SessionCache {
+
+	public static final String INVALIDATE_ADDRESS = "wse.session.invalidate";
+	private static final Logger log = LoggerFactory.getLogger(SessionCache.class);
+	private static final int DEFAULT_MAX_SIZE = 2000;
+	private static final long DEFAULT_TTL = 5000L;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong invalidations = new AtomicLong();
+	private Map<String, CachedSession> sessions;
+	private long ttl;
+	private boolean enabled = false;
+
+	private static final class CachedSession {
+		private final JsonObject session;
+		private final Set<String> authorizedActions;
+		private final long expire;
+
+		private CachedSession(JsonObject session, long expire) {
+			this.session = session;
+			this.authorizedActions = authorizedActionsNames(session);
+			this.expire = expire;
+		}
+	}
+
+	/**
+	 * Copy of a cached session returned to a caller, with the authorized actions names of the cached session.
+	 */
+	private static final class SessionCopy extends JsonObject {
+		private final Set<String> authorizedActions;
+
+		private SessionCopy(CachedSession cs) {
+			super(cs.session.copy().getMap());
+			this.authorizedActions = cs.authorizedActions;
+		}
+	}
+
+	private SessionCache() {}
+
+	private static class SessionCacheHolder {
+		private static final SessionCache instance = new SessionCache();
+	}
+
+	public static SessionCache getInstance() {
+		return SessionCacheHolder.instance;
+	}
+
+	public void init(Vertx vertx, JsonObject config) {
+		if (enabled) {
+			return;
+		}
+		if (config == null) {
+			config = new JsonObject();
+		}
+		final int maxSize = config.getInteger("max-size", DEFAULT_MAX_SIZE);
+		this.ttl = config.getLong("ttl", DEFAULT_TTL);
+		if (!config.getBoolean("enabled", true) || maxSize <= 0 || ttl <= 0) {
+			log.info("Session near-cache disabled.");
+			return;
+		}
+		this.sessions = new LinkedHashMap<String, CachedSession>(maxSize, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedSession> eldest) {
+				if (size() > maxSize) {
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+		vertx.eventBus().consumer(INVALIDATE_ADDRESS, new Handler<Message<JsonObject>>() {
+			@Override
+			public void handle(Message<JsonObject> message) {
+				final String sessionId = message.body().getString("sessionId");
+				final String userId = message.body().getString("userId");
+				if (sessionId != null) {
+					invalidate(sessionId);
+				}
+				if (userId != null) {
+					invalidateUser(userId);
+				}
+			}
+		});
+		final long statsDelay = config.getLong("stats-delay", 0L);
+		if (statsDelay > 0) {
+			vertx.setPeriodic(statsDelay, new Handler<Long>() {
+				@Override
+				public void handle(Long timerId) {
+					log.info("Session near-cache stats : " + getStats().encode());
+				}
+			});
+		}
+		enabled = true;
+	}
+
+	public JsonObject get(String sessionId) {
+		if (!enabled || sessionId == null) {
+			return null;
+		}
+		final CachedSession cs;
+		synchronized (this) {
+			cs = sessions.get(sessionId);
+			if (cs != null && cs.expire < System.currentTimeMillis()) {
+				sessions.remove(sessionId);
+				evictions.incrementAndGet();
+				misses.incrementAndGet();
+				return null;
+			}
+		}
+		if (cs == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return new SessionCopy(cs);
+	}
+
+	public void put(String sessionId, JsonObject session) {
+		if (!enabled || sessionId == null || session == null) {
+			return;
+		}
+		final CachedSession cs = new CachedSession(session.copy(), System.currentTimeMillis() + ttl);
+		synchronized (this) {
+			sessions.put(sessionId, cs);
+		}
+	}
+
+	public void invalidate(String sessionId) {
+		if (!enabled) {
+			return;
+		}
+		synchronized (this) {
+			final CachedSession cs = sessions.remove(sessionId);
+			if (cs != null) {
+				invalidations.incrementAndGet();
+			}
+		}
+	}
+
+	public void invalidateUser(String userId) {
+		if (!enabled) {
+			return;
+		}
+		synchronized (this) {
+			final Iterator<CachedSession> it = sessions.values().iterator();
+			while (it.hasNext()) {
+				final CachedSession cs = it.next();
+				if (userId.equals(cs.session.getString("userId"))) {
+					it.remove();
+					invalidations.incrementAndGet();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Names of the authorized actions of a cached session, computed once when the session was cached.
+	 * Returns null if this session instance does not come from the cache.
+	 */
+	public Set<String> getAuthorizedActions(JsonObject session) {
+		return (session instanceof SessionCopy) ? ((SessionCopy) session).authorizedActions : null;
+	}
+
+	public static Set<String> authorizedActionsNames(JsonObject session) {
+		final Set<String> names = new HashSet<>();
+		final JsonArray actions = session.getJsonArray("authorizedActions");
+		if (actions != null) {
+			for (Object a : actions) {
+				if (a instanceof JsonObject && ((JsonObject) a).getString("name") != null) {
+					names.add(((JsonObject) a).getString("name"));
+				}
+			}
+		}
+		return Collections.unmodifiableSet(names);
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public JsonObject getStats() {
+		final int size;
+		synchronized (this) {
+			size = (sessions != null) ? sessions.size() : 0;
+		}
+		return new JsonObject()
+				.put("enabled", enabled)
+				.put("size", size)
+				.put("hits", hits.get())
+				.put("misses", misses.get())
+				.put("evictions", evictions.get())
+				.put("invalidations", invalidations.get());
+	}
+
+}
@@ -32,6 +32,8 @@ import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 
 import static fr.wseduc.webutils.Utils.getOrElse;
 import static fr.wseduc.webutils.Utils.handlerToAsyncHandler;
@@ -47,6 +49,7 @@ public class UserUtils {
 	private static final JsonObject QUERY_VISIBLE_MANUAL_GROUPS = new JsonObject()
 	.put("action", "visibleManualGroups");
 	private static final I18n i18n = I18n.getInstance();
+	private static final SessionCache sessionCache = SessionCache.getInstance();
 
 	private static void findUsers(final EventBus eb, HttpServerRequest request,
 								  final JsonObject query, final Handler<JsonArray> handler) {
@@ -325,6 +328,22 @@ public class UserUtils {
 		findUsers(eb, userId, QUERY_VISIBLE_PROFILS_GROUPS, handler);
 	}
 
+	/**
+	 * Returns the ids of the users and groups among targetIds which the user can communicate with,
+	 * without loading all the visible users and groups.
+	 */
+	public static void canCommunicate(final EventBus eb, String userId, Collection<String> targetIds,
+			final Handler<JsonArray> handler) {
+		if (targetIds == null || targetIds.isEmpty()) {
+			handler.handle(new fr.wseduc.webutils.collections.JsonArray());
+			return;
+		}
+		JsonObject m = new JsonObject()
+				.put("action", "canCommunicate")
+				.put("targetIds", new fr.wseduc.webutils.collections.JsonArray(new ArrayList<>(targetIds)));
+		findUsers(eb, userId, m, handler);
+	}
+
 	public static void findUsersInProfilsGroups(String groupId, final EventBus eb, String userId,
 			boolean itSelf, final Handler<JsonArray> handler) {
 		JsonObject m = new JsonObject()
@@ -373,6 +392,16 @@ public class UserUtils {
 				handler.handle(null);
 				return;
 			} else {
+				if (oneSessionId != null && !oneSessionId.trim().isEmpty()) {
+					final JsonObject cached = sessionCache.get(oneSessionId);
+					if (cached != null) {
+						if (request instanceof SecureHttpServerRequest) {
+							((SecureHttpServerRequest) request).setSession(cached);
+						}
+						handler.handle(cached);
+						return;
+					}
+				}
 				if (!paused) {
 					request.pause();
 				}
@@ -395,7 +424,7 @@ public class UserUtils {
 		findSession(eb, request, findSession, false, handler);
 	}
 
-	private static void findSession(EventBus eb, final HttpServerRequest request, JsonObject findSession, final boolean paused,
+	private static void findSession(EventBus eb, final HttpServerRequest request, final JsonObject findSession, final boolean paused,
 			final Handler<JsonObject> handler) {
 		eb.send(SESSION_ADDRESS, findSession, new Handler<AsyncResult<Message<JsonObject>>>() {
 
@@ -407,6 +436,9 @@ public class UserUtils {
 						request.resume();
 					}
 					if ("ok".equals(message.result().body().getString("status")) && session != null) {
+						if ("find".equals(findSession.getString("action"))) {
+							sessionCache.put(findSession.getString("sessionId"), session);
+						}
 						if (request instanceof SecureHttpServerRequest) {
 							((SecureHttpServerRequest) request).setSession(session);
 						}
@@ -430,6 +462,11 @@ public class UserUtils {
 	}
 
 	public static void getSession(EventBus eb, final String sessionId,  final Handler<JsonObject> handler) {
+		final JsonObject cached = sessionCache.get(sessionId);
+		if (cached != null) {
+			handler.handle(cached);
+			return;
+		}
 		JsonObject findSession = new JsonObject()
 				.put("action", "find")
 				.put("sessionId", sessionId);
@@ -0,0 +1,262 @@
+/* Copyright © "Open Digital Education", 2014
+ *
+ * This program is published by "Open Digital Education".
+ * You must indicate the name of the software and the company in any production /contribution
+ * using the software and indicate on the home page of the software industry in question,
+ * "powered by Open Digital Education" with a reference to the website: https://opendigitaleducation.com/.
+ *
+ * This program is free software, licensed under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * You can redistribute this application and/or modify it since you respect the terms of the GNU Affero General Public License.
+ * If you modify the source code and then use this modified source code in your creation, you must make available the source code of your modifications.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with the software.
+ * If not, please see : <http://www.gnu.org/licenses/>. Full compliance requires reading the terms of this license and following its directives.
+
+ *
+ */
+
+package org.entcore.common.utils;
+
+import fr.wseduc.webutils.DefaultAsyncResult;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.streams.ReadStream;
+import io.vertx.core.streams.WriteStream;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Writes a zip archive to a write stream while the entries are read, without temporary file.
+ * Entries are STORED (no compression) with a data descriptor after their content, since crc and size
+ * are only known once the entry has been written. As the size may exceed 4GB, each local header carries
+ * a ZIP64 extra field and the data descriptors use 8 bytes sizes. The central directory only uses ZIP64
+ * records when sizes, offsets or the entries count exceed the zip limits.
+ * The source is paused while the write queue of the destination is full.
+ */
+public class ZipStream {
+
+	private static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+	private static final int ZIP64_ENTRIES_LIMIT = 0xFFFF;
+	private static final int FLAGS = 0x0808; // data descriptor, utf-8 names
+	private static final int VERSION_ZIP64 = 45;
+
+	private final WriteStream<Buffer> out;
+	private final List<Entry> entries = new ArrayList<>();
+	private long offset = 0;
+	private boolean finished = false;
+
+	private static final class Entry {
+		private final byte[] name;
+		private final long offset;
+		private final int time;
+		private final int date;
+		private long crc;
+		private long size;
+
+		private Entry(byte[] name, long offset, int time, int date) {
+			this.name = name;
+			this.offset = offset;
+			this.time = time;
+			this.date = date;
+		}
+
+		private boolean zip64() {
+			return size >= ZIP64_LIMIT || offset >= ZIP64_LIMIT;
+		}
+	}
+
+	public ZipStream(WriteStream<Buffer> out) {
+		this.out = out;
+	}
+
+	/**
+	 * Writes the entry of a directory, a slash is appended to its name if missing.
+	 */
+	public void addDirectory(String name) {
+		if (finished) {
+			throw new IllegalStateException("Zip stream already finished.");
+		}
+		final Entry entry = writeHeader(name.endsWith("/") ? name : name + "/");
+		writeDescriptor(entry, 0, 0);
+	}
+
+	/**
+	 * Writes the entry with the content of the stream. The handler is called when the stream has been fully written.
+	 */
+	public void addEntry(String name, final ReadStream<Buffer> data, final Handler<AsyncResult<Void>> handler) {
+		if (finished) {
+			handler.handle(new DefaultAsyncResult<>(new IllegalStateException("Zip stream already finished.")));
+			return;
+		}
+		final Entry entry = writeHeader(name);
+		final CRC32 crc = new CRC32();
+		final long[] size = new long[1];
+		data.exceptionHandler(new Handler<Throwable>() {
+			@Override
+			public void handle(Throwable t) {
+				handler.handle(new DefaultAsyncResult<Void>(t));
+			}
+		});
+		data.endHandler(new Handler<Void>() {
+			@Override
+			public void handle(Void v) {
+				writeDescriptor(entry, crc.getValue(), size[0]);
+				handler.handle(new DefaultAsyncResult<>((Void) null));
+			}
+		});
+		data.handler(new Handler<Buffer>() {
+			@Override
+			public void handle(Buffer buffer) {
+				crc.update(buffer.getBytes());
+				size[0] += buffer.length();
+				write(buffer);
+				if (out.writeQueueFull()) {
+					data.pause();
+					out.drainHandler(new Handler<Void>() {
+						@Override
+						public void handle(Void v) {
+							out.drainHandler(null);
+							data.resume();
+						}
+					});
+				}
+			}
+		});
+	}
+
+	private Entry writeHeader(String name) {
+		final Calendar c = Calendar.getInstance();
+		final int time = (c.get(Calendar.HOUR_OF_DAY) << 11) | (c.get(Calendar.MINUTE) << 5) | (c.get(Calendar.SECOND) >> 1);
+		final int date = ((Math.max(c.get(Calendar.YEAR), 1980) - 1980) << 9) | ((c.get(Calendar.MONTH) + 1) << 5) |
+				c.get(Calendar.DAY_OF_MONTH);
+		final Entry entry = new Entry(name.getBytes(StandardCharsets.UTF_8), offset, time, date);
+		final Buffer header = Buffer.buffer(30 + entry.name.length + 20);
+		int32(header, 0x04034b50);
+		int16(header, VERSION_ZIP64);
+		int16(header, FLAGS);
+		int16(header, 0); // stored
+		int16(header, entry.time);
+		int16(header, entry.date);
+		int32(header, 0); // crc, in data descriptor
+		int32(header, ZIP64_LIMIT); // compressed size, in data descriptor
+		int32(header, ZIP64_LIMIT); // size, in data descriptor
+		int16(header, entry.name.length);
+		int16(header, 20);
+		header.appendBytes(entry.name);
+		int16(header, 0x0001); // zip64 extra, sizes in data descriptor
+		int16(header, 16);
+		int64(header, 0);
+		int64(header, 0);
+		write(header);
+		return entry;
+	}
+
+	private void writeDescriptor(Entry entry, long crc, long size) {
+		entry.crc = crc;
+		entry.size = size;
+		final Buffer descriptor = Buffer.buffer(24);
+		int32(descriptor, 0x08074b50);
+		int32(descriptor, entry.crc);
+		int64(descriptor, entry.size);
+		int64(descriptor, entry.size);
+		write(descriptor);
+		entries.add(entry);
+	}
+
+	/**
+	 * Writes the central directory. The destination stream is not ended.
+	 */
+	public void finish() {
+		if (finished) {
+			return;
+		}
+		finished = true;
+		final long cdOffset = offset;
+		for (Entry entry : entries) {
+			final boolean zip64 = entry.zip64();
+			final Buffer extra = Buffer.buffer();
+			if (zip64) {
+				int16(extra, 0x0001);
+				int16(extra, 24);
+				int64(extra, entry.size);
+				int64(extra, entry.size);
+				int64(extra, entry.offset);
+			}
+			final Buffer cd = Buffer.buffer(46 + entry.name.length + extra.length());
+			int32(cd, 0x02014b50);
+			int16(cd, VERSION_ZIP64);
+			int16(cd, VERSION_ZIP64);
+			int16(cd, FLAGS);
+			int16(cd, 0);
+			int16(cd, entry.time);
+			int16(cd, entry.date);
+			int32(cd, entry.crc);
+			int32(cd, zip64 ? ZIP64_LIMIT : entry.size);
+			int32(cd, zip64 ? ZIP64_LIMIT : entry.size);
+			int16(cd, entry.name.length);
+			int16(cd, extra.length());
+			int16(cd, 0); // comment
+			int16(cd, 0); // disk
+			int16(cd, 0); // internal attributes
+			int32(cd, 0); // external attributes
+			int32(cd, zip64 ? ZIP64_LIMIT : entry.offset);
+			cd.appendBytes(entry.name);
+			cd.appendBuffer(extra);
+			write(cd);
+		}
+		final long cdSize = offset - cdOffset;
+		final Buffer end = Buffer.buffer();
+		if (entries.size() >= ZIP64_ENTRIES_LIMIT || cdOffset >= ZIP64_LIMIT || cdSize >= ZIP64_LIMIT) {
+			final long zip64EndOffset = offset;
+			int32(end, 0x06064b50);
+			int64(end, 44);
+			int16(end, VERSION_ZIP64);
+			int16(end, VERSION_ZIP64);
+			int32(end, 0);
+			int32(end, 0);
+			int64(end, entries.size());
+			int64(end, entries.size());
+			int64(end, cdSize);
+			int64(end, cdOffset);
+			int32(end, 0x07064b50);
+			int32(end, 0);
+			int64(end, zip64EndOffset);
+			int32(end, 1);
+		}
+		int32(end, 0x06054b50);
+		int16(end, 0);
+		int16(end, 0);
+		int16(end, Math.min(entries.size(), ZIP64_ENTRIES_LIMIT));
+		int16(end, Math.min(entries.size(), ZIP64_ENTRIES_LIMIT));
+		int32(end, Math.min(cdSize, ZIP64_LIMIT));
+		int32(end, Math.min(cdOffset, ZIP64_LIMIT));
+		int16(end, 0);
+		write(end);
+	}
+
+	private void write(Buffer buffer) {
+		offset += buffer.length();
+		out.write(buffer);
+	}
+
+	private static void int16(Buffer b, int v) {
+		b.appendByte((byte) v).appendByte((byte) (v >>> 8));
+	}
+
+	private static void int32(Buffer b, long v) {
+		b.appendByte((byte) v).appendByte((byte) (v >>> 8)).appendByte((byte) (v >>> 16)).appendByte((byte) (v >>> 24));
+	}
+
+	private static void int64(Buffer b, long v) {
+		int32(b, v);
+		int32(b, v >>> 32);
+	}
+
+}
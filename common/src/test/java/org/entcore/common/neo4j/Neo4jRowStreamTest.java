@@ -0,0 +1,93 @@
+/* Copyright © "Open Digital Education", 2014
+ *
+ * This program is published by "Open Digital Education".
+ * You must indicate the name of the software and the company in any production /contribution
+ * using the software and indicate on the home page of the software industry in question,
+ * "powered by Open Digital Education" with a reference to the website: https://opendigitaleducation.com/.
+ *
+ * This program is free software, licensed under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * You can redistribute this application and/or modify it since you respect the terms of the GNU Affero General Public License.
+ * If you modify the source code and then use this modified source code in your creation, you must make available the source code of your modifications.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with the software.
+ * If not, please see : <http://www.gnu.org/licenses/>. Full compliance requires reading the terms of this license and following its directives.
+
+ *
+ */
+
+package org.entcore.common.neo4j;
+
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class Neo4jRowStreamTest {
+
+	private static final String RESPONSE =
+			"{\"results\":[{\"columns\":[\"u\",\"count\"],\"data\":[" +
+			"{\"row\":[{\"id\":\"1\",\"profile\":{\"name\":\"Teacher\",\"functions\":{\"code\":\"ADMIN\"}," +
+			"\"structures\":[{\"id\":\"s1\"},{\"id\":\"s2\"}]},\"login\":\"jdoe\",\"groups\":[[\"g1\"],\"g2\"]," +
+			"\"displayName\":\"John\"},2],\"meta\":[{\"id\":12,\"type\":\"node\",\"deleted\":false}]}," +
+			"{\"row\":[{\"id\":\"2\",\"profile\":null,\"login\":\"asmith\"},0]}" +
+			"]}],\"errors\":[]}";
+
+	@Test
+	public void nestedMapsKeepTheirFieldNames() {
+		final List<JsonObject> rows = parse(RESPONSE, RESPONSE.length());
+		assertEquals(2, rows.size());
+		final JsonObject u = rows.get(0).getJsonObject("u");
+		assertEquals("1", u.getString("id"));
+		assertEquals("jdoe", u.getString("login"));
+		assertEquals("John", u.getString("displayName"));
+		final JsonObject profile = u.getJsonObject("profile");
+		assertEquals("Teacher", profile.getString("name"));
+		assertEquals("ADMIN", profile.getJsonObject("functions").getString("code"));
+		final JsonArray structures = profile.getJsonArray("structures");
+		assertEquals(2, structures.size());
+		assertEquals("s2", structures.getJsonObject(1).getString("id"));
+		assertNull(profile.getValue("login"));
+		assertEquals("g1", u.getJsonArray("groups").getJsonArray(0).getString(0));
+		assertEquals("g2", u.getJsonArray("groups").getString(1));
+		assertEquals(2, rows.get(0).getInteger("count").intValue());
+		assertNull(rows.get(1).getJsonObject("u").getValue("profile"));
+		assertEquals("asmith", rows.get(1).getJsonObject("u").getString("login"));
+	}
+
+	@Test
+	public void rowsSplitAcrossChunks() {
+		final List<JsonObject> expected = parse(RESPONSE, RESPONSE.length());
+		for (int chunk = 1; chunk < 40; chunk += 7) {
+			assertEquals(expected, parse(RESPONSE, chunk));
+		}
+	}
+
+	private static List<JsonObject> parse(String response, int chunk) {
+		final List<JsonObject> rows = new ArrayList<>();
+		final Neo4jRowStream stream = new Neo4jRowStream();
+		stream.handler(new Handler<JsonObject>() {
+			@Override
+			public void handle(JsonObject row) {
+				rows.add(row);
+			}
+		});
+		final byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+		for (int i = 0; i < bytes.length; i += chunk) {
+			final byte[] part = new byte[Math.min(chunk, bytes.length - i)];
+			System.arraycopy(bytes, i, part, 0, part.length);
+			stream.feed(part);
+		}
+		stream.end();
+		return rows;
+	}
+
+}
@@ -39,20 +39,31 @@ import org.entcore.common.user.UserUtils;
 import org.entcore.common.validation.StringValidation;
 import org.entcore.communication.services.CommunicationService;
 import org.entcore.communication.services.impl.DefaultCommunicationService;
+import org.entcore.communication.services.impl.VisibilityIndex;
 import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
 import io.vertx.core.eventbus.Message;
 import io.vertx.core.http.HttpServerRequest;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
+import org.vertx.java.core.http.RouteMatcher;
 
 import java.util.List;
+import java.util.Map;
 
 import static fr.wseduc.webutils.Utils.isNotEmpty;
 import static org.entcore.common.http.response.DefaultResponseHandler.*;
 
 public class CommunicationController extends BaseController {
 
-	private final CommunicationService communicationService = new DefaultCommunicationService();
+	private CommunicationService communicationService;
+
+	@Override
+	public void init(Vertx vertx, JsonObject config, RouteMatcher rm,
+			Map<String, fr.wseduc.webutils.security.SecuredAction> securedActions) {
+		super.init(vertx, config, rm, securedActions);
+		communicationService = new DefaultCommunicationService(new VisibilityIndex(vertx, config));
+	}
 
 	@Get("/admin-console")
 	@SecuredAction(value = "", type = ActionType.RESOURCE)
@@ -311,6 +322,9 @@ public class CommunicationController extends BaseController {
 			case "usersCanSeeMe":
 				communicationService.usersCanSeeMe(userId, responseHandler);
 				break;
+			case "canCommunicate":
+				communicationService.canCommunicate(userId, message.body().getJsonArray("targetIds"), responseHandler);
+				break;
 			case "visibleProfilsGroups":
 				String pF = message.body().getString("preFilter");
 				String c = message.body().getString("customReturn");
@@ -431,6 +445,13 @@ public class CommunicationController extends BaseController {
 				communicationService.applyRules(
 						message.body().getString("groupId"), responseHandler);
 				break;
+			case "checkVisibilityIndex" :
+				communicationService.checkVisibilityIndex(message.body().getString("userId"),
+						message.body().getBoolean("mygroup", true), responseHandler);
+				break;
+			case "rebuildVisibilityIndex" :
+				communicationService.rebuildVisibilityIndex(message.body().getBoolean("all", false), responseHandler);
+				break;
 			default:
 				message.reply(new JsonObject().put("status", "error")
 						.put("message", "invalid.action"));
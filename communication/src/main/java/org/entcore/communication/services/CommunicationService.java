@@ -82,4 +82,17 @@ public interface CommunicationService {
 	void visibleManualGroups(String userId, String customReturn, JsonObject additionnalParams,
 			Handler<Either<String, JsonArray>> handler);
 
+	/**
+	 * Returns the ids of the targets (users or groups) the user can communicate with,
+	 * with the visibility rules of visibleUsers and visibleProfilsGroups.
+	 */
+	void canCommunicate(String userId, JsonArray targetIds, Handler<Either<String, JsonArray>> handler);
+
+	/**
+	 * Compares the visible ids of the user answered from the visibility index with the paths query.
+	 */
+	void checkVisibilityIndex(String userId, boolean myGroup, Handler<Either<String, JsonObject>> handler);
+
+	void rebuildVisibilityIndex(boolean all, Handler<Either<String, JsonObject>> handler);
+
 }
@@ -31,8 +31,10 @@ import io.vertx.core.json.JsonObject;
 import io.vertx.core.logging.Logger;
 import io.vertx.core.logging.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.TreeSet;
 
 import static org.entcore.common.neo4j.Neo4jResult.*;
 
@@ -40,6 +42,32 @@ public class DefaultCommunicationService implements CommunicationService {
 
 	private final Neo4j neo4j = Neo4j.getInstance();
 	private static final Logger log = LoggerFactory.getLogger(DefaultCommunicationService.class);
+	private final VisibilityIndex visibilityIndex;
+	private static final int CAN_COMMUNICATE_BATCH_SIZE = 200;
+	private static final String CAN_COMMUNICATE_QUERY =
+			"MATCH (n:User {id : {userId}}), (m:User) " +
+			"WHERE m.id IN {targetIds} AND m.id <> {userId} AND (NOT(HAS(m.blocked)) OR m.blocked = false) " +
+			"MATCH p=(n)-[:COMMUNIQUE*0..2]->ipg-[:COMMUNIQUE*0..1]->g<-[:DEPENDS*0..1]-(m) " +
+			"WHERE length(p) >= 2 AND (length(p) < 3 OR (ipg:Group AND (m:User OR g<-[:DEPENDS]-m) AND length(p) = 3)) " +
+			"RETURN DISTINCT m.id as id " +
+			"UNION " +
+			"MATCH (n:User {id : {userId}})-[:COMMUNIQUE_DIRECT]->(m:User) " +
+			"WHERE m.id IN {targetIds} AND m.id <> {userId} AND (NOT(HAS(m.blocked)) OR m.blocked = false) " +
+			"RETURN DISTINCT m.id as id " +
+			"UNION " +
+			"MATCH (n:User {id : {userId}}), (gp:Group) " +
+			"WHERE gp.id IN {targetIds} " +
+			"MATCH p=(n)-[:COMMUNIQUE*1..2]->l<-[:DEPENDS*0..1]-(gp) " +
+			"WHERE length(p) > 1 OR gp.users <> 'INCOMING' " +
+			"RETURN DISTINCT gp.id as id ";
+
+	public DefaultCommunicationService() {
+		this(null);
+	}
+
+	public DefaultCommunicationService(VisibilityIndex visibilityIndex) {
+		this.visibilityIndex = visibilityIndex;
+	}
 
 	@Override
 	public void addLink(String startGroupId, String endGroupId, Handler<Either<String, JsonObject>> handler) {
@@ -51,7 +79,10 @@ public class DefaultCommunicationService implements CommunicationService {
 		JsonObject params = new JsonObject()
 				.put("startGroupId", startGroupId)
 				.put("endGroupId", endGroupId);
-		neo4j.execute(query, params, validUniqueResultHandler(handler));
+		StatementsBuilder s = new StatementsBuilder()
+				.add(query, params)
+				.add(VisibilityIndex.markDirty("MATCH (g:Group {id : {startGroupId}}) ", false), params);
+		neo4j.executeTransaction(s.build(), null, true, validUniqueResultHandler(0, handler));
 	}
 
 	@Override
@@ -65,7 +96,10 @@ public class DefaultCommunicationService implements CommunicationService {
 		JsonObject params = new JsonObject()
 				.put("startGroupId", startGroupId)
 				.put("endGroupId", endGroupId);
-		neo4j.execute(query, params, validUniqueResultHandler(handler));
+		StatementsBuilder s = new StatementsBuilder()
+				.add(query, params)
+				.add(VisibilityIndex.markDirty("MATCH (g:Group {id : {startGroupId}}) ", false), params);
+		neo4j.executeTransaction(s.build(), null, true, validUniqueResultHandler(0, handler));
 	}
 
 	@Override
@@ -141,7 +175,26 @@ public class DefaultCommunicationService implements CommunicationService {
 				"OPTIONAL MATCH g-[:COMMUNIQUE]->(g1:Group) " +
 				"RETURN g as group, COLLECT(g1) as communiqueWith ";
 		JsonObject params = new JsonObject().put("groupId", groupId);
-		neo4j.execute(query, params, fullNodeMergeHandler("group", handler, "communiqueWith"));
+		neo4j.execute(query, params, fullNodeMergeHandler("group", new Handler<Either<String, JsonObject>>() {
+			@Override
+			public void handle(Either<String, JsonObject> event) {
+				if (event.isRight()) {
+					final JsonObject group = event.right().getValue();
+					removeVisibilityIndex(group);
+					for (Object o : group.getJsonArray("communiqueWith", new fr.wseduc.webutils.collections.JsonArray())) {
+						if (o instanceof JsonObject) {
+							removeVisibilityIndex((JsonObject) o);
+						}
+					}
+				}
+				handler.handle(event);
+			}
+		}, "communiqueWith"));
+	}
+
+	private static void removeVisibilityIndex(JsonObject group) {
+		group.remove("visibles");
+		group.remove("visiblesDirty");
 	}
 
 	@Override
@@ -373,6 +426,8 @@ public class DefaultCommunicationService implements CommunicationService {
 				"WHERE pg.id IN g.communiqueWith " +
 				"MERGE g-[:COMMUNIQUE]->pg ";
 		s.add(query, params);
+		s.add(VisibilityIndex.markDirty(
+				"MATCH (s:Structure)<-[:DEPENDS*1..2]-(g:ProfileGroup) WHERE s.id IN {structures} ", false), params);
 		String usersIncoming =
 				"MATCH (s:Structure)<-[:DEPENDS*1..2]-(g:Group)<-[:IN]-(u:User) " +
 				"WHERE s.id IN {structures} AND HAS(g.users) AND (g.users = 'INCOMING' OR g.users = 'BOTH') " +
@@ -424,6 +479,7 @@ public class DefaultCommunicationService implements CommunicationService {
 				"WHERE pg.id IN g.communiqueWith " +
 				"MERGE g-[:COMMUNIQUE]->pg ";
 		s.add(query, params);
+		s.add(VisibilityIndex.markDirty("MATCH (g:Group {id : {groupId}}) ", false), params);
 		String usersIncoming =
 				"MATCH (g:Group {id : {groupId}})<-[:IN]-(u:User) " +
 				"WHERE HAS(g.users) AND (g.users = 'INCOMING' OR g.users = 'BOTH') " +
@@ -459,8 +515,11 @@ public class DefaultCommunicationService implements CommunicationService {
 	@Override
 	public void removeRules(String structureId, Handler<Either<String, JsonObject>> handler) {
 		String query;
+		String markDirty;
 		JsonObject params =  new JsonObject();
 		if (structureId != null && !structureId.trim().isEmpty()) {
+			markDirty = VisibilityIndex.markDirty(
+					"MATCH (s:Structure)<-[:DEPENDS*1..2]-(g:ProfileGroup) WHERE s.id = {schoolId} ", true);
 			query = "MATCH (s:Structure)<-[:DEPENDS*1..2]-(g:ProfileGroup)-[r:COMMUNIQUE]-() " +
 					"WHERE s.id = {schoolId} " +
 					"OPTIONAl MATCH s<-[:BELONGS]-(c:Class)<-[:DEPENDS]-(pg:ProfileGroup)<-[:IN]" +
@@ -468,11 +527,13 @@ public class DefaultCommunicationService implements CommunicationService {
 					"DELETE r, r1";
 			params.put("schoolId", structureId);
 		} else {
+			markDirty = VisibilityIndex.markDirty("MATCH (g:Group) ", false);
 			query = "MATCH ()-[r:COMMUNIQUE]->() " +
 					"OPTIONAL MATCH ()-[r1:COMMUNIQUE_DIRECT]->() " +
 					"DELETE r, r1 ";
 		}
-		neo4j.execute(query, params, validEmptyHandler(handler));
+		StatementsBuilder s = new StatementsBuilder().add(markDirty, params).add(query, params);
+		neo4j.executeTransaction(s.build(), null, true, validEmptyHandler(handler));
 	}
 
 	@Override
@@ -483,11 +544,47 @@ public class DefaultCommunicationService implements CommunicationService {
 	}
 
 	@Override
-	public void visibleUsers(String userId, String structureId, JsonArray expectedTypes, boolean itSelf,
+	public void visibleUsers(final String userId, String structureId, JsonArray expectedTypes, boolean itSelf,
 			boolean myGroup, boolean profile, String preFilter, String customReturn, JsonObject additionnalParams, String userProfile,
 			final Handler<Either<String, JsonArray>> handler) {
+		final JsonObject params = new JsonObject();
+		final String q = visibleUsersQuery(false, structureId, expectedTypes, itSelf, myGroup, profile, preFilter,
+				customReturn, userProfile, params);
+		params.put("userId", userId);
+		if (additionnalParams != null) {
+			params.mergeIn(additionnalParams);
+		}
+		if (visibilityIndex == null || !visibilityIndex.isEnabled() ||
+				(structureId != null && !structureId.trim().isEmpty())) {
+			neo4j.execute(q, params, validResultHandler(handler));
+			return;
+		}
+		final String indexQuery = visibleUsersQuery(true, null, expectedTypes, itSelf, myGroup, profile, preFilter,
+				customReturn, userProfile, new JsonObject());
+		final JsonArray statements = new fr.wseduc.webutils.collections.JsonArray()
+				.add(VisibilityIndex.readyStatement(userId))
+				.add(new JsonObject().put("statement", indexQuery).put("parameters", params));
+		neo4j.executeTransaction(statements, null, true, true, new Handler<Message<JsonObject>>() {
+			@Override
+			public void handle(Message<JsonObject> message) {
+				final JsonArray results = message.body().getJsonArray("results");
+				if ("ok".equals(message.body().getString("status")) && results != null && results.size() == 2 &&
+						visibilityIndex.isReady(results.getJsonArray(0))) {
+					handler.handle(new Either.Right<String, JsonArray>(results.getJsonArray(1)));
+					return;
+				}
+				if (!"ok".equals(message.body().getString("status"))) {
+					log.warn("Error querying visibility index for user " + userId + " : " +
+							message.body().getString("message"));
+				}
+				neo4j.execute(q, params, validResultHandler(handler));
+			}
+		});
+	}
+
+	private String visibleUsersQuery(boolean indexed, String structureId, JsonArray expectedTypes, boolean itSelf,
+			boolean myGroup, boolean profile, String preFilter, String customReturn, String userProfile, JsonObject params) {
 		StringBuilder query = new StringBuilder();
-		JsonObject params = new JsonObject();
 		String condition = itSelf ? "" : "AND m.id <> {userId} ";
 		StringBuilder union = null;
 		String conditionUnion = itSelf ? "" : "AND m.id <> {userId} ";
@@ -495,11 +592,15 @@ public class DefaultCommunicationService implements CommunicationService {
 			query.append("MATCH (n:User)-[:COMMUNIQUE*1..3]->m-[:DEPENDS*1..2]->(s:Structure {id:{schoolId}})"); //TODO manage leaf
 			params.put("schoolId", structureId);
 		} else {
-			String l = (myGroup) ? " (length(p) >= 2 OR m.users <> 'INCOMING')" : " length(p) >= 2";
-			query.append(" MATCH p=(n:User)-[:COMMUNIQUE*0..2]->ipg" +
-					"-[:COMMUNIQUE*0..1]->g<-[:DEPENDS*0..1]-m ");
-			condition += "AND (("+ l +
-					" AND (length(p) < 3 OR (ipg:Group AND (m:User OR g<-[:DEPENDS]-m) AND length(p) = 3)))) ";
+			if (indexed) {
+				query.append(VisibilityIndex.visiblesMatch(myGroup));
+			} else {
+				String l = (myGroup) ? " (length(p) >= 2 OR m.users <> 'INCOMING')" : " length(p) >= 2";
+				query.append(" MATCH p=(n:User)-[:COMMUNIQUE*0..2]->ipg" +
+						"-[:COMMUNIQUE*0..1]->g<-[:DEPENDS*0..1]-m ");
+				condition += "AND (("+ l +
+						" AND (length(p) < 3 OR (ipg:Group AND (m:User OR g<-[:DEPENDS]-m) AND length(p) = 3)))) ";
+			}
 			if (userProfile == null || "Student".equals(userProfile) || "Relative".equals(userProfile)) {
 				union = new StringBuilder("MATCH p=(n:User)-[:COMMUNIQUE_DIRECT]->m " +
 						"WHERE n.id = {userId} AND (NOT(HAS(m.blocked)) OR m.blocked = false) ");
@@ -556,17 +657,73 @@ public class DefaultCommunicationService implements CommunicationService {
 								+ "ORDER BY name, username ");
 			}
 		}
-		params.put("userId", userId);
-		if (additionnalParams != null) {
-			params.mergeIn(additionnalParams);
-		}
-		String q;
 		if (union != null) {
-			q = query.append(" union ").append(union.toString()).toString();
+			return query.append(" union ").append(union.toString()).toString();
 		} else {
-			q = query.toString();
+			return query.toString();
+		}
+	}
+
+	@Override
+	public void checkVisibilityIndex(final String userId, boolean myGroup,
+			final Handler<Either<String, JsonObject>> handler) {
+		if (visibilityIndex == null || !visibilityIndex.isEnabled()) {
+			handler.handle(new Either.Left<String, JsonObject>("visibility.index.disabled"));
+			return;
+		}
+		final String customReturn = "RETURN DISTINCT visibles.id as id ";
+		final JsonObject params = new JsonObject().put("userId", userId);
+		final JsonArray statements = new fr.wseduc.webutils.collections.JsonArray()
+				.add(VisibilityIndex.readyStatement(userId))
+				.add(new JsonObject().put("statement", visibleUsersQuery(true, null, null, false, myGroup, false,
+						null, customReturn, null, new JsonObject())).put("parameters", params))
+				.add(new JsonObject().put("statement", visibleUsersQuery(false, null, null, false, myGroup, false,
+						null, customReturn, null, new JsonObject())).put("parameters", params));
+		neo4j.executeTransaction(statements, null, true, true, new Handler<Message<JsonObject>>() {
+			@Override
+			public void handle(Message<JsonObject> message) {
+				final JsonArray results = message.body().getJsonArray("results");
+				if (!"ok".equals(message.body().getString("status")) || results == null || results.size() != 3) {
+					handler.handle(new Either.Left<String, JsonObject>(message.body().getString("message")));
+					return;
+				}
+				final Set<String> indexed = ids(results.getJsonArray(1));
+				final Set<String> expected = ids(results.getJsonArray(2));
+				final Set<String> missing = new TreeSet<>(expected);
+				missing.removeAll(indexed);
+				final Set<String> unexpected = new TreeSet<>(indexed);
+				unexpected.removeAll(expected);
+				if (!missing.isEmpty() || !unexpected.isEmpty()) {
+					log.warn("Visibility index differs for user " + userId + " : " + missing.size() +
+							" missing, " + unexpected.size() + " unexpected.");
+				}
+				handler.handle(new Either.Right<String, JsonObject>(new JsonObject()
+						.put("userId", userId)
+						.put("ready", visibilityIndex.isReady(results.getJsonArray(0)))
+						.put("indexed", indexed.size())
+						.put("expected", expected.size())
+						.put("missing", new fr.wseduc.webutils.collections.JsonArray(new ArrayList<>(missing)))
+						.put("unexpected", new fr.wseduc.webutils.collections.JsonArray(new ArrayList<>(unexpected)))));
+			}
+		});
+	}
+
+	private static Set<String> ids(JsonArray rows) {
+		final Set<String> ids = new HashSet<>();
+		for (Object o : rows) {
+			if (!(o instanceof JsonObject)) continue;
+			ids.add(((JsonObject) o).getString("id"));
+		}
+		return ids;
+	}
+
+	@Override
+	public void rebuildVisibilityIndex(boolean all, Handler<Either<String, JsonObject>> handler) {
+		if (visibilityIndex == null) {
+			handler.handle(new Either.Left<String, JsonObject>("visibility.index.disabled"));
+			return;
 		}
-		neo4j.execute(q, params, validResultHandler(handler));
+		visibilityIndex.rebuild(all, handler);
 	}
 
 	@Override
@@ -605,6 +762,40 @@ public class DefaultCommunicationService implements CommunicationService {
 		neo4j.execute(query, params, validResultHandler(handler));
 	}
 
+	@Override
+	public void canCommunicate(String userId, JsonArray targetIds, final Handler<Either<String, JsonArray>> handler) {
+		if (targetIds == null || targetIds.size() == 0) {
+			handler.handle(new Either.Right<String, JsonArray>(new fr.wseduc.webutils.collections.JsonArray()));
+			return;
+		}
+		final StatementsBuilder statements = new StatementsBuilder();
+		for (int i = 0; i < targetIds.size(); i += CAN_COMMUNICATE_BATCH_SIZE) {
+			final JsonArray batch = new fr.wseduc.webutils.collections.JsonArray(
+					targetIds.getList().subList(i, Math.min(i + CAN_COMMUNICATE_BATCH_SIZE, targetIds.size())));
+			statements.add(CAN_COMMUNICATE_QUERY, new JsonObject().put("userId", userId).put("targetIds", batch));
+		}
+		neo4j.executeTransaction(statements.build(), null, true, true, new Handler<Message<JsonObject>>() {
+			@Override
+			public void handle(Message<JsonObject> message) {
+				final JsonArray results = message.body().getJsonArray("results");
+				if (!"ok".equals(message.body().getString("status")) || results == null) {
+					handler.handle(new Either.Left<String, JsonArray>(message.body().getString("message")));
+					return;
+				}
+				final Set<String> ids = new HashSet<>();
+				for (Object r : results) {
+					if (!(r instanceof JsonArray)) continue;
+					for (Object o : (JsonArray) r) {
+						if (!(o instanceof JsonObject)) continue;
+						ids.add(((JsonObject) o).getString("id"));
+					}
+				}
+				handler.handle(new Either.Right<String, JsonArray>(
+						new fr.wseduc.webutils.collections.JsonArray(new ArrayList<>(ids))));
+			}
+		});
+	}
+
 	@Override
 	public void visibleManualGroups(String userId, String customReturn, JsonObject additionnalParams,
 			Handler<Either<String, JsonArray>> handler) {
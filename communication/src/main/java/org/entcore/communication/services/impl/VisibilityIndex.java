@@ -0,0 +1,349 @@
+/* Copyright © "Open Digital Education", 2014
+ *
+ * This program is published by "Open Digital Education".
+ * You must indicate the name of the software and the company in any production /contribution
+ * using the software and indicate on the home page of the software industry in question,
+ * "powered by Open Digital Education" with a reference to the website: https://opendigitaleducation.com/.
+ *
+ * This program is free software, licensed under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * You can redistribute this application and/or modify it since you respect the terms of the GNU Affero General Public License.
+ * If you modify the source code and then use this modified source code in your creation, you must make available the source code of your modifications.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with the software.
+ * If not, please see : <http://www.gnu.org/licenses/>. Full compliance requires reading the terms of this license and following its directives.
+
+ *
+ */
+
+package org.entcore.communication.services.impl;
+
+import fr.wseduc.webutils.Either;
+import org.entcore.common.appregistry.AppRegistryEventsHandler;
+import org.entcore.common.appregistry.AppRegistryEventsService;
+import org.entcore.common.neo4j.Neo4j;
+import org.entcore.common.neo4j.Neo4jUtils;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.Message;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Visible groups of the groups a user communicates with, stored on each Group node as a sorted ids array.
+ * For a group x, visibles contains the groups x communicates with, the groups depending on x and the groups
+ * depending on a node x communicates with : the groups part of the visibleUsers paths starting with x.
+ * Users are not stored, they are read from the group-[:COMMUNIQUE]->user relationships when querying,
+ * so the index only depends on the group to group rules and the groups hierarchy.
+ * A group with a visiblesDirty timestamp is rebuilt in background and visibleUsers falls back on
+ * the paths query for the users communicating with it.
+ */
+public class VisibilityIndex implements AppRegistryEventsService, Handler<Long> {
+
+	private static final Logger log = LoggerFactory.getLogger(VisibilityIndex.class);
+	private static final String READY_QUERY =
+			"MATCH (n:User {id : {userId}}) " +
+			"OPTIONAL MATCH n-[:COMMUNIQUE]->(x) " +
+			"RETURN COUNT(x) as targets, SUM(CASE WHEN x:Group THEN 1 ELSE 0 END) as groups, " +
+			"SUM(CASE WHEN x:Group AND HAS(x.visibles) AND NOT(HAS(x.visiblesDirty)) THEN 1 ELSE 0 END) as ready ";
+	private static final String DIRTY_GROUPS_QUERY =
+			"MATCH (g:Group) " +
+			"WHERE HAS(g.id) AND (HAS(g.visiblesDirty) OR NOT(HAS(g.visibles))) " +
+			"RETURN g.id as id " +
+			"LIMIT {limit} ";
+	private static final String VISIBLES_QUERY =
+			"MATCH (x:Group) " +
+			"WHERE x.id IN {groupIds} " +
+			"OPTIONAL MATCH x-[:COMMUNIQUE]->(g:Group) " +
+			"WITH x, COLLECT(DISTINCT g.id) as communique " +
+			"OPTIONAL MATCH x-[:COMMUNIQUE*0..1]->()<-[:DEPENDS]-(d) " +
+			"WHERE d:Group OR d:User " +
+			"RETURN x.id as id, coalesce(x.visiblesDirty, 0) as dirty, communique, COLLECT(DISTINCT d.id) as depends ";
+	private static final String UPDATE_VISIBLES_QUERY =
+			"UNWIND {rows} as row " +
+			"MATCH (g:Group {id : row.id}) " +
+			"WHERE coalesce(g.visiblesDirty, 0) = row.dirty " +
+			"SET g.visibles = row.visibles " +
+			"REMOVE g.visiblesDirty " +
+			"RETURN COUNT(g) as updated ";
+	private static final String MARK_ALL_DIRTY_QUERY =
+			"MATCH (g:Group) " +
+			"WHERE HAS(g.visibles) AND NOT(HAS(g.visiblesDirty)) " +
+			"WITH g LIMIT {limit} " +
+			"SET g.visiblesDirty = timestamp() " +
+			"RETURN COUNT(g) as marked ";
+	private static final int SCAN_BATCHES = 50;
+
+	private final Neo4j neo4j = Neo4j.getInstance();
+	private final boolean enabled;
+	private final int batchSize;
+	private boolean rebuilding = false;
+
+	public VisibilityIndex(Vertx vertx, JsonObject config) {
+		this.enabled = config.getBoolean("visibility-index", false);
+		this.batchSize = config.getInteger("visibility-index-batch-size", 200);
+		// imports are published by the feeder node, the index must be marked whatever the node
+		new AppRegistryEventsHandler(vertx, this, true);
+		if (enabled) {
+			vertx.setPeriodic(config.getLong("visibility-index-rebuild-delay", 60000L), this);
+		}
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Marks the visibles of the groups bound to g by the match as dirty. With predecessors, the groups
+	 * communicating with them are also marked, for changes of the nodes depending on g.
+	 * Groups without index are ignored, so the statement is a no-op while the index has never been built.
+	 */
+	public static String markDirty(String match, boolean predecessors) {
+		return Neo4jUtils.markVisiblesDirty(match, predecessors);
+	}
+
+	/**
+	 * Start of the visibleUsers query answered from the index. It binds n and each distinct visible m,
+	 * the caller appends the WHERE clause with the usual visibleUsers filters.
+	 */
+	static String visiblesMatch(boolean myGroup) {
+		return "MATCH (n:User {id : {userId}})-[:COMMUNIQUE]->(x:Group) " +
+				"OPTIONAL MATCH x-[:COMMUNIQUE*0..1]->(y:Group)-[:COMMUNIQUE]->(u:User) " +
+				"WITH n, x, COLLECT(DISTINCT u.id) as usersIds " +
+				"UNWIND (x.visibles + usersIds" +
+				(myGroup ? " + CASE WHEN x.users <> 'INCOMING' THEN [x.id] ELSE [] END" : "") + ") as vId " +
+				"WITH DISTINCT n, vId " +
+				"OPTIONAL MATCH (mu:User {id : vId}) " +
+				"OPTIONAL MATCH (mg:Group {id : vId}) " +
+				"WITH n, coalesce(mu, mg) as m " +
+				"WHERE NOT(m IS NULL) " +
+				"WITH n, m ";
+	}
+
+	static JsonObject readyStatement(String userId) {
+		return new JsonObject().put("statement", READY_QUERY).put("parameters", new JsonObject().put("userId", userId));
+	}
+
+	/**
+	 * Checks the result of the ready statement : every node the user communicates with must be a group
+	 * with a clean index. Dirty groups trigger a rebuild.
+	 */
+	boolean isReady(JsonArray readyResult) {
+		if (readyResult == null || readyResult.size() == 0) {
+			return true;
+		}
+		final JsonObject r = readyResult.getJsonObject(0);
+		final int targets = r.getInteger("targets", 0);
+		final int groups = r.getInteger("groups", 0);
+		final int ready = r.getInteger("ready", 0);
+		if (ready < groups) {
+			handle(null);
+		}
+		return targets == groups && groups == ready;
+	}
+
+	@Override
+	public void handle(Long event) {
+		if (!enabled || rebuilding) {
+			return;
+		}
+		rebuild(new Handler<Either<String, JsonObject>>() {
+			@Override
+			public void handle(Either<String, JsonObject> res) {
+				if (res.isLeft()) {
+					log.error("Error rebuilding visibility index : " + res.left().getValue());
+				} else if (res.right().getValue().getInteger("updated", 0) > 0) {
+					log.info("Visibility index rebuilt : " + res.right().getValue().encode());
+				}
+			}
+		});
+	}
+
+	/**
+	 * Rebuilds the dirty groups. With all, every built group is marked as dirty first.
+	 */
+	public void rebuild(boolean all, final Handler<Either<String, JsonObject>> handler) {
+		if (!enabled) {
+			handler.handle(new Either.Left<String, JsonObject>("visibility.index.disabled"));
+			return;
+		}
+		if (all) {
+			markAllDirty(0, new Handler<Either<String, Integer>>() {
+				@Override
+				public void handle(Either<String, Integer> res) {
+					if (res.isLeft()) {
+						handler.handle(new Either.Left<String, JsonObject>(res.left().getValue()));
+					} else if (rebuilding) {
+						handler.handle(new Either.Right<String, JsonObject>(
+								new JsonObject().put("marked", res.right().getValue()).put("running", true)));
+					} else {
+						rebuild(handler);
+					}
+				}
+			});
+		} else if (rebuilding) {
+			handler.handle(new Either.Right<String, JsonObject>(new JsonObject().put("running", true)));
+		} else {
+			rebuild(handler);
+		}
+	}
+
+	private void rebuild(final Handler<Either<String, JsonObject>> handler) {
+		rebuilding = true;
+		scan(0, new Handler<Either<String, Integer>>() {
+			@Override
+			public void handle(Either<String, Integer> res) {
+				rebuilding = false;
+				if (res.isRight()) {
+					handler.handle(new Either.Right<String, JsonObject>(
+							new JsonObject().put("updated", res.right().getValue())));
+				} else {
+					handler.handle(new Either.Left<String, JsonObject>(res.left().getValue()));
+				}
+			}
+		});
+	}
+
+	private void scan(final int updated, final Handler<Either<String, Integer>> handler) {
+		final JsonObject params = new JsonObject().put("limit", batchSize * SCAN_BATCHES);
+		neo4j.execute(DIRTY_GROUPS_QUERY, params, new Handler<Message<JsonObject>>() {
+			@Override
+			public void handle(Message<JsonObject> message) {
+				final JsonArray result = message.body().getJsonArray("result");
+				if (!"ok".equals(message.body().getString("status")) || result == null) {
+					handler.handle(new Either.Left<String, Integer>(message.body().getString("message")));
+					return;
+				}
+				final List<String> ids = new ArrayList<>();
+				for (Object o : result) {
+					if (!(o instanceof JsonObject)) continue;
+					ids.add(((JsonObject) o).getString("id"));
+				}
+				if (ids.isEmpty()) {
+					handler.handle(new Either.Right<String, Integer>(updated));
+					return;
+				}
+				rebuildGroups(ids, 0, 0, new Handler<Either<String, Integer>>() {
+					@Override
+					public void handle(Either<String, Integer> res) {
+						if (res.isLeft()) {
+							handler.handle(res);
+						} else if (res.right().getValue() == 0) {
+							// groups marked again while rebuilding them, next run will retry
+							handler.handle(new Either.Right<String, Integer>(updated));
+						} else {
+							scan(updated + res.right().getValue(), handler);
+						}
+					}
+				});
+			}
+		});
+	}
+
+	private void rebuildGroups(final List<String> ids, final int index, final int updated,
+			final Handler<Either<String, Integer>> handler) {
+		if (index >= ids.size()) {
+			handler.handle(new Either.Right<String, Integer>(updated));
+			return;
+		}
+		final JsonArray groupIds = new fr.wseduc.webutils.collections.JsonArray(
+				ids.subList(index, Math.min(index + batchSize, ids.size())));
+		neo4j.execute(VISIBLES_QUERY, new JsonObject().put("groupIds", groupIds), new Handler<Message<JsonObject>>() {
+			@Override
+			public void handle(Message<JsonObject> message) {
+				final JsonArray result = message.body().getJsonArray("result");
+				if (!"ok".equals(message.body().getString("status")) || result == null) {
+					handler.handle(new Either.Left<String, Integer>(message.body().getString("message")));
+					return;
+				}
+				final JsonArray rows = new fr.wseduc.webutils.collections.JsonArray();
+				for (Object o : result) {
+					if (!(o instanceof JsonObject)) continue;
+					final JsonObject r = (JsonObject) o;
+					final Set<String> visibles = new TreeSet<>();
+					addIds(visibles, r.getJsonArray("communique"));
+					addIds(visibles, r.getJsonArray("depends"));
+					rows.add(new JsonObject()
+							.put("id", r.getString("id"))
+							.put("dirty", r.getLong("dirty"))
+							.put("visibles", new fr.wseduc.webutils.collections.JsonArray(new ArrayList<>(visibles))));
+				}
+				neo4j.execute(UPDATE_VISIBLES_QUERY, new JsonObject().put("rows", rows), new Handler<Message<JsonObject>>() {
+					@Override
+					public void handle(Message<JsonObject> m) {
+						final JsonArray r = m.body().getJsonArray("result");
+						if (!"ok".equals(m.body().getString("status")) || r == null) {
+							handler.handle(new Either.Left<String, Integer>(m.body().getString("message")));
+							return;
+						}
+						final int u = (r.size() > 0) ? r.getJsonObject(0).getInteger("updated", 0) : 0;
+						rebuildGroups(ids, index + batchSize, updated + u, handler);
+					}
+				});
+			}
+		});
+	}
+
+	private static void addIds(Set<String> ids, JsonArray values) {
+		if (values == null) return;
+		for (Object o : values) {
+			if (o instanceof String) {
+				ids.add((String) o);
+			}
+		}
+	}
+
+	private void markAllDirty(final int marked, final Handler<Either<String, Integer>> handler) {
+		final JsonObject params = new JsonObject().put("limit", batchSize * SCAN_BATCHES);
+		neo4j.execute(MARK_ALL_DIRTY_QUERY, params, new Handler<Message<JsonObject>>() {
+			@Override
+			public void handle(Message<JsonObject> message) {
+				final JsonArray result = message.body().getJsonArray("result");
+				if (!"ok".equals(message.body().getString("status")) || result == null) {
+					handler.handle(new Either.Left<String, Integer>(message.body().getString("message")));
+					return;
+				}
+				final int m = (result.size() > 0) ? result.getJsonObject(0).getInteger("marked", 0) : 0;
+				if (m > 0) {
+					markAllDirty(marked + m, handler);
+				} else {
+					handler.handle(new Either.Right<String, Integer>(marked));
+				}
+			}
+		});
+	}
+
+	@Override
+	public void authorizedActionsUpdated(JsonArray groups) {
+	}
+
+	@Override
+	public void userGroupUpdated(JsonArray users, Message<JsonObject> message) {
+		message.reply(new JsonObject().put("status", "ok"));
+	}
+
+	@Override
+	public void importSucceeded() {
+		// the import changes the groups hierarchy and the communication rules without marking the groups
+		markAllDirty(0, new Handler<Either<String, Integer>>() {
+			@Override
+			public void handle(Either<String, Integer> res) {
+				if (res.isLeft()) {
+					log.error("Error marking visibility index after import : " + res.left().getValue());
+					return;
+				}
+				log.info("Visibility index marked after import : " + res.right().getValue());
+				VisibilityIndex.this.handle(null);
+			}
+		});
+	}
+
+}
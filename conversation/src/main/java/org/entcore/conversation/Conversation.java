@@ -27,6 +27,7 @@ import org.entcore.conversation.controllers.ConversationController;
 import org.entcore.conversation.service.impl.ConversationRepositoryEvents;
 import org.entcore.conversation.service.impl.ConversationStorage;
 import org.entcore.conversation.service.impl.DeleteOrphan;
+import org.entcore.conversation.service.impl.ReconcileUnreadCounters;
 
 import java.text.ParseException;
 
@@ -57,6 +58,14 @@ public class Conversation extends BaseServer {
 				log.error("Invalid cron expression.", e);
 			}
 		}
+
+		final String unreadCountersCron = config.getString("unreadCountersReconciliationCron", "0 30 3 * * ?");
+		try {
+			new CronTrigger(vertx, unreadCountersCron).schedule(
+					new ReconcileUnreadCounters(config.getLong("unreadCountersMaxAgeHours", 24L)));
+		} catch (ParseException e) {
+			log.error("Invalid cron expression.", e);
+		}
 	}
 
 }
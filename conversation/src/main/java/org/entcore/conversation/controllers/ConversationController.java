@@ -396,6 +396,23 @@ public class ConversationController extends BaseController {
 			badRequest(request);
 			return;
 		}
+		// cursor : "date:id" of the last message of the previous list
+		final String cursor = request.params().get("cursor");
+		final long beforeDate;
+		final String beforeId;
+		if (cursor != null) {
+			final int sep = cursor.indexOf(':');
+			try {
+				beforeDate = Long.parseLong(cursor.substring(0, sep));
+			} catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+				badRequest(request, "invalid.cursor");
+				return;
+			}
+			beforeId = cursor.substring(sep + 1);
+		} else {
+			beforeDate = 0;
+			beforeId = null;
+		}
 		getUserInfos(eb, request, new Handler<UserInfos>() {
 			@Override
 			public void handle(final UserInfos user) {
@@ -408,7 +425,7 @@ public class ConversationController extends BaseController {
 					if (unread != null && !unread.isEmpty()) {
 						b = Boolean.valueOf(unread);
 					}
-					conversationService.list(folder, restrain, b, user, page, search, new Handler<Either<String, JsonArray>>() {
+					final Handler<Either<String, JsonArray>> handler = new Handler<Either<String, JsonArray>>() {
 						@Override
 						public void handle(Either<String, JsonArray> r) {
 							if (r.isRight()) {
@@ -425,7 +442,12 @@ public class ConversationController extends BaseController {
 								renderJson(request, error, 400);
 							}
 						}
-					});
+					};
+					if (cursor != null) {
+						conversationService.list(folder, restrain, b, user, beforeDate, beforeId, search, handler);
+					} else {
+						conversationService.list(folder, restrain, b, user, page, search, handler);
+					}
 				} else {
 					unauthorized(request);
 				}
@@ -60,6 +60,13 @@ public interface ConversationService {
 
 	void list(String folder, String restrain, Boolean unread, UserInfos user, int page, String searchWords, Handler<Either<String, JsonArray>> results);
 
+	/**
+	 * Lists the messages sent before the (beforeDate, beforeId) message, newest first.
+	 * Unlike the paged listing, rows carry no total count.
+	 */
+	void list(String folder, String restrain, Boolean unread, UserInfos user, long beforeDate, String beforeId,
+			String searchWords, Handler<Either<String, JsonArray>> results);
+
 	void listThreads(UserInfos user, int page, Handler<Either<String, JsonArray>> results);
 
 	void listThreadMessages(String threadId, int page, UserInfos user, Handler<Either<String, JsonArray>> results);
@@ -262,6 +262,11 @@ public class ConversationRepositoryEvents extends SqlRepositoryEvents {
 			"WHERE um.user_id IN " + Sql.listPrepared(userIds.getList());
 		builder.prepared(deleteUserMessages, userIds);
 
+		builder.prepared("DELETE FROM conversation.unreadcounters WHERE user_id IN " +
+				Sql.listPrepared(userIds.getList()), userIds);
+		builder.prepared("DELETE FROM conversation.unreadcountersstates WHERE user_id IN " +
+				Sql.listPrepared(userIds.getList()), userIds);
+
 		String setFrom =
 			"UPDATE conversation.messages " +
 			"SET " +
@@ -444,6 +444,12 @@ public class DefaultConversationService implements ConversationService {
 		neo.execute(query, params, validResultHandler(results));
 	}
 
+	@Override
+	public void list(String folder, String restrain, Boolean unread, UserInfos user, long beforeDate, String beforeId,
+			String searchWords, Handler<Either<String, JsonArray>> results) {
+		results.handle(new Either.Left<String, JsonArray>("conversation.invalid.parameter"));
+	}
+
 	@Override
 	public void listThreads(UserInfos user, int page, Handler<Either<String, JsonArray>> results) {
 
@@ -0,0 +1,64 @@
+/*
+ * Copyright © "Open Digital Education", 2017
+ *
+ * This program is published by "Open Digital Education".
+ * You must indicate the name of the software and the company in any production /contribution
+ * using the software and indicate on the home page of the software industry in question,
+ * "powered by Open Digital Education" with a reference to the website: https://opendigitaleducation.com/.
+ *
+ * This program is free software, licensed under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * You can redistribute this application and/or modify it since you respect the terms of the GNU Affero General Public License.
+ * If you modify the source code and then use this modified source code in your creation, you must make available the source code of your modifications.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with the software.
+ * If not, please see : <http://www.gnu.org/licenses/>. Full compliance requires reading the terms of this license and following its directives.
+
+ */
+
+package org.entcore.conversation.service.impl;
+
+import fr.wseduc.webutils.Either;
+import org.entcore.common.sql.Sql;
+import org.entcore.common.sql.SqlResult;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+/**
+ * Marks as dirty the unread counters which were not computed again for a while,
+ * so a drift of the incremental updates is corrected on the next count.
+ */
+public class ReconcileUnreadCounters implements Handler<Long> {
+
+	private static final Logger log = LoggerFactory.getLogger(ReconcileUnreadCounters.class);
+
+	private static final String MARK_DIRTY =
+			"UPDATE conversation.unreadcountersstates SET dirty = true " +
+			"WHERE dirty = false AND reconciled < NOW() - (? || ' hours')::interval";
+
+	private final long maxAgeHours;
+
+	public ReconcileUnreadCounters(long maxAgeHours) {
+		this.maxAgeHours = maxAgeHours;
+	}
+
+	@Override
+	public void handle(Long event) {
+		Sql.getInstance().prepared(MARK_DIRTY, new fr.wseduc.webutils.collections.JsonArray().add(String.valueOf(maxAgeHours)),
+				SqlResult.validRowsResultHandler(new Handler<Either<String, JsonObject>>() {
+			@Override
+			public void handle(Either<String, JsonObject> res) {
+				if (res.isRight()) {
+					log.info("Unread counters marked for reconciliation : " + res.right().getValue().encode());
+				} else {
+					log.error("Unread counters reconciliation error : " + res.left().getValue());
+				}
+			}
+		}));
+	}
+
+}
@@ -23,7 +23,12 @@ import static fr.wseduc.webutils.Utils.isNotEmpty;
 import static org.entcore.common.user.UserUtils.findVisibles;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 import org.entcore.common.sql.Sql;
@@ -58,6 +63,21 @@ public class SqlConversationService implements ConversationService{
 	private final String attachmentTable;
 	private final String userMessageTable;
 	private final String userMessageAttachmentTable;
+	private final String unreadCountersTable;
+	private final String unreadCountersStatesTable;
+	private final String unreadCountFunction;
+	private final long unreadCountCacheTtl;
+	private final Map<String, Map<String, CachedCount>> unreadCountCache;
+
+	private static final class CachedCount {
+		private final JsonObject count;
+		private final long expire;
+
+		private CachedCount(JsonObject count, long expire) {
+			this.count = count;
+			this.expire = expire;
+		}
+	}
 
 	public SqlConversationService(Vertx vertx, String schema) {
 		this.eb = Server.getEventBus(vertx);
@@ -68,6 +88,17 @@ public class SqlConversationService implements ConversationService{
 		attachmentTable = schema + ".attachments";
 		userMessageTable = schema + ".usermessages";
 		userMessageAttachmentTable = schema + ".usermessagesattachments";
+		unreadCountersTable = schema + ".unreadcounters";
+		unreadCountersStatesTable = schema + ".unreadcountersstates";
+		unreadCountFunction = schema + ".unreadCount";
+		unreadCountCacheTtl = Config.getConf().getLong("unread-count-cache-ttl", 0L);
+		final int unreadCountCacheSize = Config.getConf().getInteger("unread-count-cache-size", 10000);
+		unreadCountCache = new LinkedHashMap<String, Map<String, CachedCount>>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Map<String, CachedCount>> eldest) {
+				return size() > unreadCountCacheSize;
+			}
+		};
 	}
 
 	@Override
@@ -187,57 +218,87 @@ public class SqlConversationService implements ConversationService{
 				String updateUnread = "UPDATE " + userMessageTable + " " +
 						"SET unread = " + unread +
 						" WHERE user_id = ? AND message_id = ? ";
-				builder.prepared(updateMessage, new fr.wseduc.webutils.collections.JsonArray().add("SENT").add(draftId));
-				builder.prepared(updateUnread, new fr.wseduc.webutils.collections.JsonArray().add(user.getUserId()).add(draftId));
 
+				final Set<String> recipients = new LinkedHashSet<>();
 				for(Object toObj : ids){
-					if(toObj.equals(user.getUserId()))
-						continue;
-
-					builder.insert(userMessageTable, new JsonObject()
-						.put("user_id", toObj.toString())
-						.put("message_id", draftId)
-						.put("total_quota", totalQuota)
-					);
-					for(Object attachmentId : attachmentIds){
-						builder.insert(userMessageAttachmentTable, new JsonObject()
-							.put("user_id", toObj.toString())
-							.put("message_id", draftId)
-							.put("attachment_id", attachmentId.toString())
-						);
-					}
+					if(toObj != null && !toObj.equals(user.getUserId()))
+						recipients.add(toObj.toString());
 				}
+				final JsonArray recipientIds = new fr.wseduc.webutils.collections.JsonArray(new ArrayList<>(recipients));
+				final JsonArray scopeValues = new fr.wseduc.webutils.collections.JsonArray().add(draftId);
+				lockUnreadCounters(builder, recipientIds.copy().add(user.getUserId()));
+				applyUnreadCountersDelta(builder, user.getUserId(), "um.message_id = ?", scopeValues, -1);
+				builder.prepared(updateMessage, new fr.wseduc.webutils.collections.JsonArray().add("SENT").add(draftId));
+				builder.prepared(updateUnread, new fr.wseduc.webutils.collections.JsonArray().add(user.getUserId()).add(draftId));
+				applyUnreadCountersDelta(builder, user.getUserId(), "um.message_id = ?", scopeValues, 1);
+				builder.insertEach(userMessageTable, "user_id", recipientIds, new JsonObject()
+					.put("message_id", draftId)
+					.put("total_quota", totalQuota)
+				);
+				if(attachmentIds != null && attachmentIds.size() > 0 && recipientIds.size() > 0){
+					String insertAttachments =
+						"INSERT INTO " + userMessageAttachmentTable + " (user_id, message_id, attachment_id) " +
+						"SELECT r.id, ?, a.id FROM json_array_elements_text(?::json) AS r(id), " +
+						"json_array_elements_text(?::json) AS a(id)";
+					builder.prepared(insertAttachments, new fr.wseduc.webutils.collections.JsonArray()
+						.add(draftId).add(recipientIds.encode()).add(attachmentIds.encode()));
+				}
+				incrementInboxUnreadCounters(builder, recipientIds);
 
-				sql.transaction(builder.build(), SqlResult.validUniqueResultHandler(0, result));
+				sql.transaction(builder.build(), SqlResult.validUniqueResultHandler(2, result));
 			}
 		});
 	}
 
 	@Override
 	public void list(String folder, String restrain, Boolean unread, UserInfos user, int page,final String searchText, Handler<Either<String, JsonArray>> results) {
-		int skip = page * LIST_LIMIT;
+		list(folder, restrain, unread, user, page, null, searchText, results);
+	}
+
+	@Override
+	public void list(String folder, String restrain, Boolean unread, UserInfos user, long beforeDate, String beforeId,
+			final String searchText, Handler<Either<String, JsonArray>> results) {
+		if (beforeId == null || beforeId.trim().isEmpty()) {
+			results.handle(new Either.Left<String, JsonArray>("conversation.invalid.parameter"));
+			return;
+		}
+		list(folder, restrain, unread, user, -1, new fr.wseduc.webutils.collections.JsonArray()
+				.add(beforeDate).add(beforeDate).add(beforeId), searchText, results);
+	}
 
+	/**
+	 * Lists a page of messages by offset, or the messages following a (date, id) cursor when cursorValues is set.
+	 * The total count is only computed by offset, the cursor listing relies on the count endpoint.
+	 */
+	private void list(String folder, String restrain, Boolean unread, UserInfos user, int page, JsonArray cursorValues,
+			final String searchText, Handler<Either<String, JsonArray>> results) {
 		JsonArray values = new fr.wseduc.webutils.collections.JsonArray();
+		values.add("SENT");
 		String messageConditionUnread = addMessageConditionUnread(folder, values, unread, user);
 		String messagesFields = "m.id, m.subject, m.from, m.state, m.\"fromName\", m.to, m.\"toName\", m.cc, m.\"ccName\", m.cci, m.\"cciName\", m.\"displayNames\", m.date ";
 
-		values.add("SENT").add(user.getUserId());
+		values.add(user.getUserId());
 		String additionalWhere = addCompleteFolderCondition(values, restrain, unread, folder, user);
 
 		if(searchText != null){
 			additionalWhere += " AND m.text_searchable  @@ to_tsquery(m.language::regconfig, unaccent(?)) ";
 			values.add(StringUtils.join(checkAndComposeWordFromSearchText(searchText), " & "));
 		}
+		if (cursorValues != null) {
+			additionalWhere += " AND (m.date < ? OR (m.date = ? AND m.id < ?)) ";
+			values.addAll(cursorValues);
+		}
 		String query = "SELECT "+messagesFields+", um.unread as unread, " +
-				"CASE when COUNT(distinct r) = 0 THEN false ELSE true END AS response, COUNT(*) OVER() as count, " +
-				"CASE when COUNT(distinct uma) = 0 THEN false ELSE true END AS  \"hasAttachment\" " +
-				"FROM " + userMessageTable + " um LEFT JOIN " +
-				userMessageAttachmentTable + " uma ON um.user_id = uma.user_id AND um.message_id = uma.message_id JOIN " +
-				messageTable + " m ON (um.message_id = m.id" + messageConditionUnread + ") LEFT JOIN " +
-				messageTable + " r ON um.message_id = r.parent_id AND r.from = um.user_id AND r.state= ? " +
+				"EXISTS (SELECT 1 FROM " + messageTable + " r WHERE r.parent_id = um.message_id AND r.from = um.user_id AND r.state = ?) AS response, " +
+				"EXISTS (SELECT 1 FROM " + userMessageAttachmentTable + " uma WHERE uma.user_id = um.user_id AND uma.message_id = um.message_id) AS \"hasAttachment\" " +
+				(cursorValues == null ? ", COUNT(*) OVER() as count " : "") +
+				"FROM " + userMessageTable + " um JOIN " +
+				messageTable + " m ON (um.message_id = m.id" + messageConditionUnread + ") " +
 				"WHERE um.user_id = ? " + additionalWhere + " " +
-				"GROUP BY m.id, unread " +
-				"ORDER BY m.date DESC LIMIT " + LIST_LIMIT + " OFFSET " + skip;
+				"ORDER BY m.date DESC, m.id DESC LIMIT " + LIST_LIMIT;
+		if (cursorValues == null) {
+			query += " OFFSET " + (page * LIST_LIMIT);
+		}
 
 		sql.prepared(query, values, SqlResult.validResultHandler(results, "attachments", "to", "toName", "cc", "ccName", "cci", "cciName", "displayNames"));
 	}
@@ -357,7 +418,9 @@ public class SqlConversationService implements ConversationService{
 			query.deleteCharAt(query.length() - 1);
 		query.append(")");
 
-		sql.prepared(query.toString(), values, SqlResult.validUniqueResultHandler(result));
+		final JsonArray scopeValues = new fr.wseduc.webutils.collections.JsonArray();
+		final String scope = "um.message_id IN " + generateInVars(messagesId, scopeValues);
+		updateWithUnreadCounters(query.toString(), values, scope, scopeValues, user, result);
 	}
 
 	@Override
@@ -373,7 +436,9 @@ public class SqlConversationService implements ConversationService{
 		query.append(" AND um.user_id = ? AND um.trashed = false AND um.message_id = m.id ");
 		values.add(user.getUserId());
 
-		sql.prepared(query.toString(), values, SqlResult.validUniqueResultHandler(result));
+		final JsonArray scopeValues = new fr.wseduc.webutils.collections.JsonArray();
+		final String scope = "m.thread_id IN " + generateInVars(threadIds, scopeValues);
+		updateWithUnreadCounters(query.toString(), values, scope, scopeValues, user, result);
 
 	}
 
@@ -393,7 +458,9 @@ public class SqlConversationService implements ConversationService{
 
 		query.append(generateInVars(messagesId, values));
 
-		sql.prepared(query.toString(), values, SqlResult.validUniqueResultHandler(result));
+		final JsonArray scopeValues = new fr.wseduc.webutils.collections.JsonArray();
+		final String scope = "um.message_id IN " + generateInVars(messagesId, scopeValues);
+		updateWithUnreadCounters(query.toString(), values, scope, scopeValues, user, result);
 	}
 
 	@Override
@@ -454,10 +521,22 @@ public class SqlConversationService implements ConversationService{
 			.add(user.getUserId())
 			.add(messageId);
 
+		String decrementUnread =
+			"UPDATE " + unreadCountersTable + " c " +
+			"SET count = GREATEST(c.count - 1, 0) " +
+			"FROM " + userMessageTable + " um " +
+			"JOIN " + messageTable + " m ON um.message_id = m.id " +
+			"JOIN " + unreadCountersStatesTable + " s ON s.user_id = um.user_id AND s.dirty = false " +
+			"WHERE um.user_id = ? AND um.message_id = ? AND um.unread = true AND um.trashed = false AND m.state = 'SENT' " +
+			"AND (m.from <> um.user_id OR m.to @> to_jsonb(um.user_id) OR m.cc @> to_jsonb(um.user_id)) " +
+			"AND c.user_id = um.user_id AND c.folder_id = coalesce(um.folder_id, 'INBOX')";
+
+		lockUnreadCounters(builder, new fr.wseduc.webutils.collections.JsonArray().add(user.getUserId()));
+		builder.prepared(decrementUnread, values);
 		builder.prepared(updateQuery, values);
 		builder.prepared(selectQuery, values);
 
-		sql.transaction(builder.build(), SqlResult.validUniqueResultHandler(1, result, "attachments", "to", "toName", "cc", "ccName", "displayNames", "cci", "cciName"));
+		sql.transaction(builder.build(), SqlResult.validUniqueResultHandler(3, result, "attachments", "to", "toName", "cc", "ccName", "displayNames", "cci", "cciName"));
 	}
 
 	@Override
@@ -465,6 +544,11 @@ public class SqlConversationService implements ConversationService{
 		if (validationParamsError(user, result, folder))
 			return;
 
+		if (unread != null && unread && (restrain != null || "INBOX".equals(folder.toUpperCase()))) {
+			countUnread(restrain != null ? folder : "INBOX", user.getUserId(), result);
+			return;
+		}
+
 		JsonArray values = new fr.wseduc.webutils.collections.JsonArray();
 
 		String messageConditionUnread = addMessageConditionUnread(folder, values, unread, user);
@@ -580,7 +664,9 @@ public class SqlConversationService implements ConversationService{
 			values.add(id);
 		}
 
-		sql.prepared(query, values, SqlResult.validUniqueResultHandler(result));
+		final JsonArray scopeValues = new fr.wseduc.webutils.collections.JsonArray();
+		final String scope = "um.message_id IN " + generateInVars(messagesIds, scopeValues);
+		updateWithUnreadCounters(query, values, scope, scopeValues, user, result);
 	}
 
 	@Override
@@ -596,7 +682,9 @@ public class SqlConversationService implements ConversationService{
 		query.append(" AND um.user_id = ? AND um.message_id = m.id ");
 		values.add(user.getUserId());
 
-		sql.prepared(query.toString(), values, SqlResult.validUniqueResultHandler(result));
+		final JsonArray scopeValues = new fr.wseduc.webutils.collections.JsonArray();
+		final String scope = "m.thread_id IN " + generateInVars(threadIds, scopeValues);
+		updateWithUnreadCounters(query.toString(), values, scope, scopeValues, user, result);
 	}
 
 
@@ -716,7 +804,9 @@ public class SqlConversationService implements ConversationService{
 
 		query += generateInVars(messageIds, values);
 
-		sql.prepared(query, values, SqlResult.validUniqueResultHandler(result));
+		final JsonArray scopeValues = new fr.wseduc.webutils.collections.JsonArray();
+		final String scope = "um.message_id IN " + generateInVars(messageIds, scopeValues);
+		updateWithUnreadCounters(query, values, scope, scopeValues, user, result);
 	}
 
 	@Override
@@ -734,7 +824,10 @@ public class SqlConversationService implements ConversationService{
 		values.add(user.getUserId());
 
 		query += generateInVars(messageIds, values);
-		sql.prepared(query, values, SqlResult.validUniqueResultHandler(result));
+
+		final JsonArray scopeValues = new fr.wseduc.webutils.collections.JsonArray();
+		final String scope = "um.message_id IN " + generateInVars(messageIds, scopeValues);
+		updateWithUnreadCounters(query, values, scope, scopeValues, user, result);
 	}
 
 	@Override
@@ -824,6 +917,23 @@ public class SqlConversationService implements ConversationService{
 		values.add(user.getUserId());
 
 
+		/* The messages of the deleted folders are deleted with them, and so are their unread counters. */
+
+		String deleteCounters =
+			"DELETE FROM " + unreadCountersTable + " c " +
+			"WHERE c.user_id = ? AND c.folder_id IN (" +
+			"WITH RECURSIVE parents AS ( " +
+					nonRecursiveTerm +
+					"UNION " +
+					recursiveTerm +
+			") SELECT parents.id FROM parents)";
+		JsonArray countersValues = new fr.wseduc.webutils.collections.JsonArray().add(user.getUserId());
+		for (Object v : recursiveValues) {
+			countersValues.add(v);
+		}
+
+		lockUnreadCounters(builder, new fr.wseduc.webutils.collections.JsonArray().add(user.getUserId()));
+		builder.prepared(deleteCounters, countersValues);
 		builder.prepared(deleteFolder, values);
 
 		/* Perform the transaction */
@@ -1064,6 +1174,132 @@ public class SqlConversationService implements ConversationService{
 		return additionalWhere;
 	}
 
+	/**
+	 * Unread count of the inbox or of a user folder, read from the counters maintained by the mutations.
+	 * Counters are computed again from the messages when marked dirty.
+	 */
+	private void countUnread(final String folder, final String userId, final Handler<Either<String, JsonObject>> result) {
+		if (unreadCountCacheTtl > 0) {
+			final CachedCount cached;
+			synchronized (unreadCountCache) {
+				final Map<String, CachedCount> counts = unreadCountCache.get(userId);
+				cached = (counts != null) ? counts.get(folder) : null;
+			}
+			if (cached != null && cached.expire > System.currentTimeMillis()) {
+				result.handle(new Either.Right<String, JsonObject>(cached.count.copy()));
+				return;
+			}
+		}
+		final String query = "SELECT " + unreadCountFunction + "(?, ?) as count";
+		sql.prepared(query, new fr.wseduc.webutils.collections.JsonArray().add(userId).add(folder),
+				SqlResult.validUniqueResultHandler(new Handler<Either<String, JsonObject>>() {
+			@Override
+			public void handle(Either<String, JsonObject> event) {
+				if (event.isRight() && unreadCountCacheTtl > 0) {
+					synchronized (unreadCountCache) {
+						Map<String, CachedCount> counts = unreadCountCache.get(userId);
+						if (counts == null) {
+							counts = new HashMap<>();
+							unreadCountCache.put(userId, counts);
+						}
+						counts.put(folder, new CachedCount(event.right().getValue().copy(),
+								System.currentTimeMillis() + unreadCountCacheTtl));
+					}
+				}
+				result.handle(event);
+			}
+		}));
+	}
+
+	private void invalidateUnreadCount(String userId) {
+		if (unreadCountCacheTtl <= 0) {
+			return;
+		}
+		synchronized (unreadCountCache) {
+			unreadCountCache.remove(userId);
+		}
+	}
+
+	/**
+	 * Locks the counters of the users until the end of the transaction. Computing the counters again takes
+	 * the same lock, so an update of the counters is either seen by the computation or applied after it.
+	 */
+	private void lockUnreadCounters(SqlStatementsBuilder builder, JsonArray userIds) {
+		builder.prepared(
+				"SELECT s.user_id FROM " + unreadCountersStatesTable + " s " +
+				"WHERE s.user_id IN (SELECT json_array_elements_text(?::json)) ORDER BY s.user_id FOR UPDATE",
+				new fr.wseduc.webutils.collections.JsonArray().add(userIds.encode()));
+		for (Object id : userIds) {
+			invalidateUnreadCount(id.toString());
+		}
+	}
+
+	/**
+	 * Removes (sign -1) or adds (sign 1) the unread messages of the user selected by the scope from the counters
+	 * of their folders. A mutation of those messages is surrounded by the removal and the addition, in the same
+	 * transaction, so the counters follow any change of the unread, trashed or folder of the messages.
+	 * The scope is a condition on the user message (um) and the message (m).
+	 */
+	private void applyUnreadCountersDelta(SqlStatementsBuilder builder, String userId, String scope, JsonArray scopeValues,
+			int sign) {
+		final String delta =
+				"SELECT coalesce(um.folder_id, 'INBOX') AS folder_id, count(*) AS n " +
+				"FROM " + userMessageTable + " um JOIN " + messageTable + " m ON um.message_id = m.id " +
+				"WHERE um.user_id = ? AND " + scope + " " +
+				"AND um.unread = true AND um.trashed = false AND m.state = 'SENT' " +
+				"AND (m.from <> um.user_id OR m.to @> to_jsonb(um.user_id) OR m.cc @> to_jsonb(um.user_id)) " +
+				"GROUP BY coalesce(um.folder_id, 'INBOX')";
+		final JsonArray values = new fr.wseduc.webutils.collections.JsonArray().add(userId);
+		for (Object v : scopeValues) {
+			values.add(v);
+		}
+		values.add(userId);
+		builder.prepared(
+				"UPDATE " + unreadCountersTable + " c SET count = GREATEST(c.count " + (sign < 0 ? "-" : "+") + " d.n, 0) " +
+				"FROM (" + delta + ") d, " + unreadCountersStatesTable + " s " +
+				"WHERE s.user_id = ? AND s.dirty = false AND c.user_id = s.user_id AND c.folder_id = d.folder_id", values);
+		if (sign > 0) {
+			builder.prepared(
+					"INSERT INTO " + unreadCountersTable + " (user_id, folder_id, count) " +
+					"SELECT s.user_id, d.folder_id, d.n FROM (" + delta + ") d, " + unreadCountersStatesTable + " s " +
+					"WHERE s.user_id = ? AND s.dirty = false " +
+					"AND NOT EXISTS (SELECT 1 FROM " + unreadCountersTable + " c " +
+					"WHERE c.user_id = s.user_id AND c.folder_id = d.folder_id)", values);
+		}
+	}
+
+	private void updateWithUnreadCounters(String query, JsonArray values, String scope, JsonArray scopeValues,
+			UserInfos user, Handler<Either<String, JsonObject>> result) {
+		final SqlStatementsBuilder builder = new SqlStatementsBuilder();
+		lockUnreadCounters(builder, new fr.wseduc.webutils.collections.JsonArray().add(user.getUserId()));
+		applyUnreadCountersDelta(builder, user.getUserId(), scope, scopeValues, -1);
+		builder.prepared(query, values);
+		applyUnreadCountersDelta(builder, user.getUserId(), scope, scopeValues, 1);
+		sql.transaction(builder.build(), SqlResult.validUniqueResultHandler(2, result));
+	}
+
+	/**
+	 * A sent message is unread in the inbox of each recipient. Dirty counters are left to the next computation.
+	 * The counters of the recipients must be locked in the transaction.
+	 */
+	private void incrementInboxUnreadCounters(SqlStatementsBuilder builder, JsonArray recipientIds) {
+		if (recipientIds.size() == 0) {
+			return;
+		}
+		final JsonArray values = new fr.wseduc.webutils.collections.JsonArray().add(recipientIds.encode());
+		builder.prepared(
+				"UPDATE " + unreadCountersTable + " c SET count = c.count + 1 " +
+				"FROM " + unreadCountersStatesTable + " s " +
+				"WHERE s.user_id = c.user_id AND s.dirty = false AND c.folder_id = 'INBOX' " +
+				"AND c.user_id IN (SELECT json_array_elements_text(?::json))", values);
+		builder.prepared(
+				"INSERT INTO " + unreadCountersTable + " (user_id, folder_id, count) " +
+				"SELECT s.user_id, 'INBOX', 1 FROM " + unreadCountersStatesTable + " s " +
+				"WHERE s.dirty = false AND s.user_id IN (SELECT json_array_elements_text(?::json)) " +
+				"AND NOT EXISTS (SELECT 1 FROM " + unreadCountersTable + " c WHERE c.user_id = s.user_id AND c.folder_id = 'INBOX')",
+				values);
+	}
+
 	private String addCompleteFolderCondition(JsonArray values, String restrain, Boolean unread, String folder, UserInfos user) {
 		String additionalWhere = "";
 		if(unread != null && unread){
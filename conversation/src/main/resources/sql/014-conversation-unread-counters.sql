@@ -0,0 +1,49 @@
+CREATE TABLE conversation.unreadcounters (
+	"user_id" VARCHAR(36) NOT NULL,
+	"folder_id" VARCHAR(36) NOT NULL,
+	"count" INTEGER NOT NULL DEFAULT 0,
+	PRIMARY KEY (user_id, folder_id)
+);
+
+CREATE TABLE conversation.unreadcountersstates (
+	"user_id" VARCHAR(36) NOT NULL PRIMARY KEY,
+	"dirty" BOOLEAN NOT NULL DEFAULT TRUE,
+	"reconciled" TIMESTAMP NOT NULL DEFAULT NOW()
+);
+
+CREATE INDEX idx_unreadcountersstates_reconciled ON conversation.unreadcountersstates (reconciled) WHERE dirty = false;
+
+CREATE OR REPLACE FUNCTION conversation.refreshUnreadCounters(uid VARCHAR) RETURNS VOID AS $$
+    BEGIN
+        PERFORM 1 FROM conversation.unreadcountersstates WHERE user_id = uid FOR UPDATE;
+        IF NOT FOUND THEN
+            BEGIN
+                INSERT INTO conversation.unreadcountersstates (user_id, dirty, reconciled) VALUES (uid, true, NOW());
+            EXCEPTION WHEN unique_violation THEN
+                PERFORM 1 FROM conversation.unreadcountersstates WHERE user_id = uid FOR UPDATE;
+            END;
+        END IF;
+        DELETE FROM conversation.unreadcounters WHERE user_id = uid;
+        INSERT INTO conversation.unreadcounters (user_id, folder_id, count)
+        SELECT uid, coalesce(um.folder_id, 'INBOX'), count(*)
+        FROM conversation.usermessages um JOIN conversation.messages m ON um.message_id = m.id
+        WHERE um.user_id = uid AND um.unread = true AND um.trashed = false AND m.state = 'SENT'
+        AND (m."from" <> uid OR m."to" @> to_jsonb(uid) OR m.cc @> to_jsonb(uid))
+        GROUP BY coalesce(um.folder_id, 'INBOX');
+        UPDATE conversation.unreadcountersstates SET dirty = false, reconciled = NOW() WHERE user_id = uid;
+    END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION conversation.unreadCount(uid VARCHAR, folder VARCHAR) RETURNS INTEGER AS $$
+    DECLARE
+        isDirty BOOLEAN;
+        unreadCount INTEGER;
+    BEGIN
+        SELECT dirty INTO isDirty FROM conversation.unreadcountersstates WHERE user_id = uid;
+        IF NOT FOUND OR isDirty THEN
+            PERFORM conversation.refreshUnreadCounters(uid);
+        END IF;
+        SELECT count INTO unreadCount FROM conversation.unreadcounters WHERE user_id = uid AND folder_id = folder;
+        RETURN coalesce(unreadCount, 0);
+    END;
+$$ LANGUAGE plpgsql;
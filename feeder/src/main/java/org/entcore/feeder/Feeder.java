@@ -145,6 +145,7 @@ public class Feeder extends BusModBase implements Handler<Message<JsonObject>> {
 		manual = new ManualFeeder(neo4j);
 		duplicateUsers = new DuplicateUsers(config.getBoolean("timetable", true),
 				config.getBoolean("autoMergeOnlyInSameStructure", true), vertx.eventBus());
+		duplicateUsers.setParallelism(config.getInteger("duplicates-parallelism", 0));
 		postImport = new PostImport(vertx, duplicateUsers, config);
 		vertx.eventBus().localConsumer(
 				config.getString("address", FEEDER_ADDRESS), this);
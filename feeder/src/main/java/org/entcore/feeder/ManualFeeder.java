@@ -117,6 +117,10 @@ public class ManualFeeder extends BusModBase {
 					"MATCH s<-[:DEPENDS]-(g:ProfileGroup)-[:HAS_PROFILE]->(p:Profile) " +
 					"CREATE c<-[:DEPENDS]-(pg:Group:ProfileGroup {name : c.name+'-'+p.name, displayNameSearchField: {groupSearchField}})-[:DEPENDS]->g " +
 					"SET pg.id = id(pg)+'-'+timestamp() " +
+					"WITH DISTINCT c, g " +
+					"OPTIONAL MATCH g<-[:COMMUNIQUE]-(cg:Group) " +
+					"WITH c, COLLECT(DISTINCT g) + COLLECT(DISTINCT cg) as groups " +
+					"FOREACH (vg IN FILTER(vg IN groups WHERE HAS(vg.visibles)) | SET vg.visiblesDirty = timestamp()) " +
 					"RETURN DISTINCT c.id as id ";
 			JsonObject params = new JsonObject()
 					.put("structureId", structureId)
@@ -303,6 +307,7 @@ public class ManualFeeder extends BusModBase {
 							"SET u.structures = FILTER(sId IN u.structures WHERE sId <> s.externalId), " +
 							"u.classes = FILTER(cId IN u.classes WHERE NOT(cId =~ (s.externalId + '.*'))) " +
 							"DELETE r " +
+							"FOREACH (vg IN CASE WHEN HAS(cpg.visibles) THEN [cpg] ELSE [] END | SET vg.visiblesDirty = timestamp()) " +
 							"RETURN DISTINCT u.id as id";
 			final String removeFunctions =
 					"MATCH (u:User { id : {userId}})-[r:HAS_FUNCTION]->() " +
@@ -312,11 +317,11 @@ public class ManualFeeder extends BusModBase {
 							"WHERE LENGTH(r.scope) = 0 " +
 							"DELETE r";
 			final String removeFunctionGroups =
-					"MATCH (u:User { id : {userId}})-[r:IN|COMMUNIQUE]-(:Group)-[:DEPENDS]->(s:Structure { id : {structureId}})" +
-							"DELETE r";
+					"MATCH (u:User { id : {userId}})-[r:IN|COMMUNIQUE]-(g:Group)-[:DEPENDS]->(s:Structure { id : {structureId}}) " +
+							"DELETE r ";
 			tx.add(query, params);
 			tx.add(removeFunctions, params);
-			tx.add(removeFunctionGroups, params);
+			tx.add(Neo4jUtils.markVisiblesDirty(removeFunctionGroups, false), params);
 			tx.commit(new Handler<Message<JsonObject>>() {
 				@Override
 				public void handle(Message<JsonObject> event) {
@@ -409,6 +414,7 @@ public class ManualFeeder extends BusModBase {
 					"CREATE UNIQUE dpg<-[:IN]-u " +
 					"SET u.classes = FILTER(cId IN u.classes WHERE cId <> c.externalId) , u.headTeacherManual = FILTER(x IN u.headTeacherManual WHERE x <> c.externalId) " +
 					"DELETE r " +
+					"FOREACH (vg IN CASE WHEN HAS(cpg.visibles) THEN [cpg] ELSE [] END | SET vg.visiblesDirty = timestamp()) " +
 					"RETURN DISTINCT u.id as id";
 
 			tx.add(query, params);
@@ -417,12 +423,13 @@ public class ManualFeeder extends BusModBase {
 					"MATCH (u:User { id : {userId}})-[r:IN|COMMUNIQUE]->(g:Group:HTGroup)-[:DEPENDS]->(c:Class {id : {classId}}) " +
 					"DELETE r ";
 
-			tx.add(query2, params);
+			tx.add(Neo4jUtils.markVisiblesDirty(query2, false), params);
 
 			String query3 =
 					"MATCH (u:User { id : {userId}})-[r:IN|COMMUNIQUE]->(g:Group:HTGroup)-[:DEPENDS]->(s:Structure)<-[b:BELONGS]-(c:Class {id : {classId}}) " +
 					"WHERE length(u.headTeacherManual) = 0 AND (u.headTeacher IS NULL OR length(u.headTeacher) = 0) " +
 					"DELETE r " +
+					"FOREACH (vg IN CASE WHEN HAS(g.visibles) THEN [g] ELSE [] END | SET vg.visiblesDirty = timestamp()) " +
 					"RETURN DISTINCT u.id as id";
 
 			tx.add(query3, params);
@@ -24,8 +24,8 @@ import io.vertx.core.AsyncResult;
 
 import org.entcore.common.events.EventStore;
 import org.entcore.common.events.EventStoreFactory;
+import org.entcore.common.neo4j.Neo4jUtils;
 import org.entcore.common.user.UserInfos;
-import org.entcore.common.validation.StringValidation;
 import org.entcore.feeder.Feeder;
 import org.entcore.feeder.ManualFeeder;
 import org.entcore.feeder.exceptions.TransactionException;
@@ -33,9 +33,10 @@ import org.entcore.feeder.timetable.AbstractTimetableImporter;
 import org.entcore.feeder.utils.ResultMessage;
 import org.entcore.feeder.utils.TransactionHelper;
 import org.entcore.feeder.utils.TransactionManager;
-import org.entcore.feeder.utils.Validator;
 import org.joda.time.DateTime;
+import io.vertx.core.Context;
 import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
 import io.vertx.core.eventbus.EventBus;
 import io.vertx.core.eventbus.Message;
 import io.vertx.core.json.JsonArray;
@@ -43,10 +44,15 @@ import io.vertx.core.json.JsonObject;
 import io.vertx.core.logging.Logger;
 import io.vertx.core.logging.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class DuplicateUsers {
@@ -80,12 +86,20 @@ public class DuplicateUsers {
 			"WHERE NOT(HAS(u1.IDPN)) AND NOT(IDPN IS NULL) " +
 			"SET u1.IDPN = IDPN " +
 			"RETURN DISTINCT oldId, u1.id as id, HEAD(u1.profiles) as profile ";
+	private static final String STORE_DUPLICATES =
+			"UNWIND {duplicates} as d " +
+			"MATCH (u:User {id : d.sId}), (du:User {id : d.dId}) " +
+			"WHERE NOT(d.dId IN coalesce(u.ignoreDuplicates, [])) AND NOT(d.sId IN coalesce(du.ignoreDuplicates, [])) " +
+			"AND (has(u.activationCode) OR has(du.activationCode)) " +
+			"MERGE u-[:DUPLICATE {score: d.score}]-du ";
+	private static final int DUPLICATES_BATCH_SIZE = 1000;
 	private final List<String> notDeduplicateSource = Arrays.asList("AAF", "AAF1D");
 	private final Map<String, Integer> sourcePriority = new HashMap<>();
 	private final boolean updateCourses;
 	private final boolean autoMergeOnlyInSameStructure;
 	private final EventBus eb;
 	private EventStore eventStore = EventStoreFactory.getFactory().getEventStore(Feeder.class.getSimpleName());
+	private int parallelism = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
 
 	public DuplicateUsers(boolean updateCourses, boolean autoMergeOnlyInSameStructure, EventBus eb) {
 		this(null, updateCourses, autoMergeOnlyInSameStructure, eb);
@@ -105,6 +119,12 @@ public class DuplicateUsers {
 		this.autoMergeOnlyInSameStructure = autoMergeOnlyInSameStructure;
 	}
 
+	public void setParallelism(int parallelism) {
+		if (parallelism > 0) {
+			this.parallelism = parallelism;
+		}
+	}
+
 	public void markDuplicates(Handler<JsonObject> handler) {
 		markDuplicates(null, handler);
 	}
@@ -411,18 +431,20 @@ public class DuplicateUsers {
 												"AND NOT(HAS(u.mergedWith)) AND mu.mergeKey IN {mergeKeys} " +
 												"MERGE u-[:IN]->gin " +
 												"DELETE rin ", params);
-								tx.add(
+								tx.add(Neo4jUtils.markVisiblesDirty(
 										"MATCH (u:User {id: {userId}}), (mu:User)-[rcom:COMMUNIQUE]->(gcom:Group) " +
 												"WHERE HEAD(u.profiles) = 'Relative' AND HEAD(mu.profiles) = 'Relative' " +
 												"AND NOT(HAS(u.mergedWith)) AND mu.mergeKey IN {mergeKeys} " +
 												"MERGE  u-[:COMMUNIQUE]->gcom " +
-												"DELETE rcom ", params);
-								tx.add(
+												"DELETE rcom " +
+												"WITH gcom as g ", false), params);
+								tx.add(Neo4jUtils.markVisiblesDirty(
 										"MATCH (u:User {id: {userId}}), (mu:User)<-[rcomr:COMMUNIQUE]-(gcomr:Group) " +
 												"WHERE HEAD(u.profiles) = 'Relative' AND HEAD(mu.profiles) = 'Relative' " +
 												"AND NOT(HAS(u.mergedWith)) AND mu.mergeKey IN {mergeKeys} " +
 												"MERGE u<-[:COMMUNIQUE]-gcomr " +
-												"DELETE rcomr ", params);
+												"DELETE rcomr " +
+												"WITH gcomr as g ", false), params);
 								tx.add(
 										"MATCH (u:User {id: {userId}}), (mu:User)-[rr:RELATED]->(ur:User) " +
 												"WHERE HEAD(u.profiles) = 'Relative' AND HEAD(mu.profiles) = 'Relative' " +
@@ -469,15 +491,19 @@ public class DuplicateUsers {
 	private void searchDuplicatesByProfile(String last, final String profile, final Handler<Void> handler) {
 		String query =
 				"MATCH (u:User) WHERE u.modified > {lastSearchDuplicate} AND HEAD(u.profiles) = {profile} AND NOT(HAS(u.deleteDate)) " +
-				"RETURN u.id as id, u.firstName as firstName, u.lastName as lastName, " +
-						"u.birthDate as birthDate, u.email as email, u.source as source, u.disappearanceDate as disappearanceDate";
+				"RETURN u.id as id";
 		JsonObject params = new JsonObject().put("profile", profile).put("lastSearchDuplicate", last);
 		TransactionManager.getNeo4jHelper().execute(query, params, new Handler<Message<JsonObject>>() {
 			@Override
 			public void handle(Message<JsonObject> event) {
 				JsonArray result = event.body().getJsonArray("result");
 				if ("ok".equals(event.body().getString("status")) && result != null && result.size() > 0) {
-					scoreDuplicates(profile, result, handler);
+					final Set<String> modifiedIds = new HashSet<>();
+					for (Object o : result) {
+						if (!(o instanceof JsonObject)) continue;
+						modifiedIds.add(((JsonObject) o).getString("id"));
+					}
+					loadProfileUsers(profile, modifiedIds, handler);
 				} else {
 					if ("ok".equals(event.body().getString("status"))) {
 						log.info("No users findings for search duplicates");
@@ -490,145 +516,89 @@ public class DuplicateUsers {
 		});
 	}
 
-	private void scoreDuplicates(final String profile, final JsonArray search, final Handler<Void> handler) {
+	private void loadProfileUsers(final String profile, final Set<String> modifiedIds, final Handler<Void> handler) {
 		final String query =
-				"START u=node:node_auto_index({luceneQuery}) " +
-				"WHERE HEAD(u.profiles) = {profile} AND u.id <> {id} AND NOT(HAS(u.deleteDate)) " +
+				"MATCH (u:User) WHERE HEAD(u.profiles) = {profile} AND NOT(HAS(u.deleteDate)) " +
 				"RETURN u.id as id, u.firstName as firstName, u.lastName as lastName, " +
 				"u.birthDate as birthDate, u.email as email, u.source as source, u.disappearanceDate as disappearanceDate";
-		final JsonObject params = new JsonObject().put("profile", profile);
-		TransactionHelper tx;
-		try {
-			tx = TransactionManager.getTransaction(false);
-		} catch (TransactionException e) {
-			log.error("Error when find duplicate users.", e);
-			return;
-		}
-		final JsonArray result = new fr.wseduc.webutils.collections.JsonArray();
-		for (int i = 0; i < search.size(); i++) {
-			final JsonObject json = search.getJsonObject(i);
-			final String firstNameAttr = luceneAttribute("firstName", json.getString("firstName"), 0.6);
-			final String lastNameAttr = luceneAttribute("lastName", json.getString("lastName"), 0.6);
-			String luceneQuery;
-			if (firstNameAttr != null && lastNameAttr != null &&
-					!firstNameAttr.trim().isEmpty() && !lastNameAttr.trim().isEmpty()) {
-				luceneQuery = firstNameAttr + " AND " + lastNameAttr;
-				result.add(json);
-				tx.add(query, params.copy().put("luceneQuery", luceneQuery).put("id", json.getString("id")));
-			}
-		}
-		tx.commit(new Handler<Message<JsonObject>>() {
+		TransactionManager.getNeo4jHelper().execute(query, new JsonObject().put("profile", profile),
+				new Handler<Message<JsonObject>>() {
 			@Override
 			public void handle(Message<JsonObject> event) {
-				JsonArray results = event.body().getJsonArray("results");
-				if ("ok".equals(event.body().getString("status")) && results != null && results.size() > 0) {
-					TransactionHelper tx;
-					try {
-						tx = TransactionManager.getTransaction();
-						tx.setAutoSend(false);
-					} catch (TransactionException e) {
-						log.error("Error when score duplicate users.", e);
-						return;
-					}
-					for (int i = 0; i < results.size(); i++) {
-						JsonArray findUsers = results.getJsonArray(i);
-						if (findUsers == null || findUsers.size() == 0) continue;
-						JsonObject searchUser = result.getJsonObject(i);
-						calculateAndStoreScore(searchUser, findUsers, tx);
+				final JsonArray users = event.body().getJsonArray("result");
+				if (!"ok".equals(event.body().getString("status")) || users == null) {
+					log.error("Error loading users for search duplicates : " + event.body().getString("message"));
+					handler.handle(null);
+					return;
+				}
+				for (Object o : users) {
+					if (!(o instanceof JsonObject)) continue;
+					final JsonObject u = (JsonObject) o;
+					if (modifiedIds.contains(u.getString("id"))) {
+						u.put("modified", true);
 					}
-					if (!tx.isEmpty()) {
-						tx.commit(new Handler<Message<JsonObject>>() {
-							@Override
-							public void handle(Message<JsonObject> event) {
-								if ("ok".equals(event.body().getString("status"))) {
-									log.info("Mark duplicates " + profile + " finished.");
-								} else {
-									log.error("Error marking duplicates : " + event.body().getString("message"));
-								}
-								handler.handle(null);
-							}
-						});
-					} else {
-						log.info("No duplicate user with score > 3 found in profile " + profile);
+				}
+				scoreDuplicates(profile, users, handler);
+			}
+		});
+	}
+
+	private void scoreDuplicates(final String profile, final JsonArray users, final Handler<Void> handler) {
+		final Context context = Vertx.currentContext();
+		final ForkJoinPool pool = new ForkJoinPool(parallelism);
+		final long start = System.currentTimeMillis();
+		CompletableFuture.supplyAsync(() -> {
+			final DuplicateUsersIndex index = new DuplicateUsersIndex(users, notDeduplicateSource);
+			log.info("Search duplicates of " + index.modifiedUsers() + " " + profile + " among " + users.size() + " users.");
+			return index.score();
+		}, pool).whenComplete((duplicates, err) -> {
+			pool.shutdown();
+			context.runOnContext(new Handler<Void>() {
+				@Override
+				public void handle(Void v) {
+					if (err != null) {
+						log.error("Error when score duplicate users.", err);
 						handler.handle(null);
+						return;
 					}
-				} else {
-					if ("ok".equals(event.body().getString("status"))) {
-						log.info("No duplicate user found in profile " + profile);
-					} else {
-						log.error("Error finding users for search duplicates : " + event.body().getString("message"));
-					}
-					handler.handle(null);
+					log.info("Scored " + profile + " duplicates in " + (System.currentTimeMillis() - start) + " ms.");
+					storeDuplicates(profile, duplicates, handler);
 				}
-			}
+			});
 		});
 	}
 
-	private String luceneAttribute(String attributeName, String value, double distance) {
-		if (value == null || value.trim().isEmpty() || attributeName == null || attributeName.trim().isEmpty()) {
-			return "";
+	private void storeDuplicates(final String profile, final List<JsonObject> duplicates, final Handler<Void> handler) {
+		if (duplicates.isEmpty()) {
+			log.info("No duplicate user with score > 3 found in profile " + profile);
+			handler.handle(null);
+			return;
 		}
-		String d = (distance > 0.9 || distance < 0.1) ? "" : ("~" + distance);
-		StringBuilder sb = new StringBuilder().append("(");
-		String[] values = StringValidation.removeAccents(value).split("\\s+");
-		for (String v : values) {
-			if (v.startsWith("-")) {
-				v = v.replaceFirst("-+", "");
-			}
-			v = v.replaceAll("\\W+", "");
-			if (v.isEmpty() || (v.length() < 4 && values.length > 1)) continue;
-			if ("OR".equalsIgnoreCase(v) || "AND".equalsIgnoreCase(v) || "NOT".equalsIgnoreCase(v)) {
-				v = "\"" + v + "\"";
-			}
-			sb.append(attributeName).append(":").append(v).append(d).append(" OR ");
+		TransactionHelper tx;
+		try {
+			tx = TransactionManager.getTransaction();
+			tx.setAutoSend(false);
+		} catch (TransactionException e) {
+			log.error("Error when store duplicate users.", e);
+			handler.handle(null);
+			return;
 		}
-		int len = sb.length();
-		if (len == 1) {
-			return "";
+		for (int i = 0; i < duplicates.size(); i += DUPLICATES_BATCH_SIZE) {
+			final List<JsonObject> batch = duplicates.subList(i, Math.min(i + DUPLICATES_BATCH_SIZE, duplicates.size()));
+			tx.add(STORE_DUPLICATES, new JsonObject().put("duplicates", new fr.wseduc.webutils.collections.JsonArray(
+					new ArrayList<Object>(batch))));
 		}
-		sb.delete(len - 4, len);
-		return sb.append(")").toString();
-	}
-
-	private void calculateAndStoreScore(JsonObject searchUser, JsonArray findUsers, TransactionHelper tx) {
-		String query =
-				"MATCH (u:User {id : {sId}}), (d:User {id : {dId}}) " +
-				"WHERE NOT({dId} IN coalesce(u.ignoreDuplicates, [])) AND NOT({sId} IN coalesce(d.ignoreDuplicates, [])) " +
-				"AND (has(u.activationCode) OR has(d.activationCode)) " +
-				"MERGE u-[:DUPLICATE {score:{score}}]-d ";
-		JsonObject params = new JsonObject().put("sId", searchUser.getString("id"));
-
-		final String lastName = cleanAttribute(searchUser.getString("lastName"));
-		final String firstName = cleanAttribute(searchUser.getString("firstName"));
-		final String birthDate = cleanAttribute(searchUser.getString("birthDate"));
-		final String email = cleanAttribute(searchUser.getString("email"));
-		final String source = searchUser.getString("source");
-		final Long disappearanceDate = searchUser.getLong("disappearanceDate");
-
-		for (int i = 0; i < findUsers.size(); i++) {
-			int score = 2;
-			JsonObject fu = findUsers.getJsonObject(i);
-			score += exactMatch(lastName, cleanAttribute(fu.getString("lastName")));
-			score += exactMatch(firstName, cleanAttribute(fu.getString("firstName")));
-			score += exactMatch(birthDate, cleanAttribute(fu.getString("birthDate")));
-			score += exactMatch(email, cleanAttribute(fu.getString("email")));
-			if (score > 3 && ((!source.equals(fu.getString("source")) &&
-					(notDeduplicateSource.contains(source) ^ notDeduplicateSource.contains(fu.getString("source")))) ||
-					disappearanceDate != null || fu.getLong("disappearanceDate") != null)) {
-				tx.add(query, params.copy().put("dId", fu.getString("id")).put("score", score));
+		tx.commit(new Handler<Message<JsonObject>>() {
+			@Override
+			public void handle(Message<JsonObject> event) {
+				if ("ok".equals(event.body().getString("status"))) {
+					log.info("Mark duplicates " + profile + " finished.");
+				} else {
+					log.error("Error marking duplicates : " + event.body().getString("message"));
+				}
+				handler.handle(null);
 			}
-		}
-	}
-
-	private int exactMatch(String attribute0, String attribute1) {
-		return (attribute0 == null || attribute1 == null || !attribute0.equals(attribute1)) ? 0 : 1;
-	}
-
-	private String cleanAttribute(String attribute) {
-		if (attribute == null || attribute.trim().isEmpty()) {
-			return null;
-		}
-		return Validator.removeAccents(attribute).replaceAll("\\s+", "").toLowerCase();
+		});
 	}
 
 	public void autoMergeDuplicatesInStructure(final Handler<AsyncResult<JsonArray>> handler) {
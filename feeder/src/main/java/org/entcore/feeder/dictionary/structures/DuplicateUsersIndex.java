@@ -0,0 +1,233 @@
+/*
+ * Copyright © "Open Digital Education", 2015
+ *
+ * This program is published by "Open Digital Education".
+ * You must indicate the name of the software and the company in any production /contribution
+ * using the software and indicate on the home page of the software industry in question,
+ * "powered by Open Digital Education" with a reference to the website: https://opendigitaleducation.com/.
+ *
+ * This program is free software, licensed under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * You can redistribute this application and/or modify it since you respect the terms of the GNU Affero General Public License.
+ * If you modify the source code and then use this modified source code in your creation, you must make available the source code of your modifications.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with the software.
+ * If not, please see : <http://www.gnu.org/licenses/>. Full compliance requires reading the terms of this license and following its directives.
+
+ */
+
+package org.entcore.feeder.dictionary.structures;
+
+import org.entcore.common.validation.StringValidation;
+import org.entcore.feeder.utils.Validator;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * In-memory duplicate users detection of one profile.
+ * Users are grouped in blocks by the beginning of their names and by birth date, and a modified user is only
+ * compared to the users of its blocks. A candidate must match the first and last names with the fuzzy
+ * similarity of the former lucene query, then it is scored with the same rules.
+ */
+public class DuplicateUsersIndex {
+
+	// lucene fuzzy similarity is 1 - distance / min(length), a match requires a similarity above 0.6
+	private static final int MAX_DISTANCE_TENTHS = 4;
+
+	private final Map<String, List<IndexedUser>> blocks = new HashMap<>();
+	private final List<IndexedUser> modified = new ArrayList<>();
+	private final List<String> notDeduplicateSource;
+
+	static final class IndexedUser {
+		private final String id;
+		private final String lastName;
+		private final String firstName;
+		private final String birthDate;
+		private final String email;
+		private final String source;
+		private final boolean disappeared;
+		private final String[] lastNameTokens;
+		private final String[] firstNameTokens;
+
+		private IndexedUser(JsonObject u) {
+			this.id = u.getString("id");
+			this.lastName = cleanAttribute(u.getString("lastName"));
+			this.firstName = cleanAttribute(u.getString("firstName"));
+			this.birthDate = cleanAttribute(u.getString("birthDate"));
+			this.email = cleanAttribute(u.getString("email"));
+			this.source = u.getString("source");
+			this.disappeared = u.getLong("disappearanceDate") != null;
+			this.lastNameTokens = tokens(u.getString("lastName"));
+			this.firstNameTokens = tokens(u.getString("firstName"));
+		}
+
+		private Set<String> blockingKeys() {
+			final Set<String> keys = new HashSet<>();
+			for (String l : lastNameTokens) {
+				for (String f : firstNameTokens) {
+					keys.add("n:" + prefix(l, 2) + "|" + prefix(f, 1));
+				}
+			}
+			if (birthDate != null) {
+				keys.add("b:" + birthDate);
+			}
+			return keys;
+		}
+	}
+
+	/**
+	 * @param users users of the profile, with a "modified" flag set on the users to search duplicates for.
+	 */
+	public DuplicateUsersIndex(JsonArray users, List<String> notDeduplicateSource) {
+		this.notDeduplicateSource = notDeduplicateSource;
+		for (Object o : users) {
+			if (!(o instanceof JsonObject)) continue;
+			final JsonObject j = (JsonObject) o;
+			final IndexedUser u = new IndexedUser(j);
+			if (u.id == null) continue;
+			for (String key : u.blockingKeys()) {
+				blocks.computeIfAbsent(key, k -> new ArrayList<>()).add(u);
+			}
+			if (j.getBoolean("modified", false) && u.lastNameTokens.length > 0 && u.firstNameTokens.length > 0) {
+				modified.add(u);
+			}
+		}
+	}
+
+	public int modifiedUsers() {
+		return modified.size();
+	}
+
+	/**
+	 * Scores the modified users against their candidates. Each pair is returned once, as {sId, dId, score}.
+	 * Must be called from a fork-join pool thread to run in parallel on that pool.
+	 */
+	public List<JsonObject> score() {
+		final Set<String> pairs = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		return modified.parallelStream()
+				.flatMap(u -> score(u, pairs).stream())
+				.collect(Collectors.toList());
+	}
+
+	private List<JsonObject> score(IndexedUser searchUser, Set<String> pairs) {
+		final List<JsonObject> duplicates = new ArrayList<>();
+		final Set<String> compared = new HashSet<>();
+		for (String key : searchUser.blockingKeys()) {
+			final List<IndexedUser> block = blocks.get(key);
+			if (block == null) continue;
+			for (IndexedUser fu : block) {
+				if (searchUser.id.equals(fu.id) || !compared.add(fu.id)) continue;
+				if (!fuzzyMatch(searchUser.firstNameTokens, fu.firstNameTokens) ||
+						!fuzzyMatch(searchUser.lastNameTokens, fu.lastNameTokens)) {
+					continue;
+				}
+				int score = 2;
+				score += exactMatch(searchUser.lastName, fu.lastName);
+				score += exactMatch(searchUser.firstName, fu.firstName);
+				score += exactMatch(searchUser.birthDate, fu.birthDate);
+				score += exactMatch(searchUser.email, fu.email);
+				if (score > 3 && ((searchUser.source != null && !searchUser.source.equals(fu.source) &&
+						(notDeduplicateSource.contains(searchUser.source) ^ notDeduplicateSource.contains(fu.source))) ||
+						searchUser.disappeared || fu.disappeared)) {
+					final String pair = (searchUser.id.compareTo(fu.id) < 0) ?
+							searchUser.id + "|" + fu.id : fu.id + "|" + searchUser.id;
+					if (pairs.add(pair)) {
+						duplicates.add(new JsonObject().put("sId", searchUser.id).put("dId", fu.id).put("score", score));
+					}
+				}
+			}
+		}
+		return duplicates;
+	}
+
+	private static boolean fuzzyMatch(String[] searchTokens, String[] tokens) {
+		for (String s : searchTokens) {
+			for (String t : tokens) {
+				if (similar(s, t)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private static boolean similar(String s, String t) {
+		if (s.equals(t)) {
+			return true;
+		}
+		final int min = Math.min(s.length(), t.length());
+		final int maxDistance = (MAX_DISTANCE_TENTHS * min - 1) / 10;
+		if (Math.abs(s.length() - t.length()) > maxDistance) {
+			return false;
+		}
+		return levenshtein(s, t, maxDistance) <= maxDistance;
+	}
+
+	private static int levenshtein(String s, String t, int max) {
+		int[] previous = new int[t.length() + 1];
+		int[] current = new int[t.length() + 1];
+		for (int j = 0; j <= t.length(); j++) {
+			previous[j] = j;
+		}
+		for (int i = 1; i <= s.length(); i++) {
+			current[0] = i;
+			int rowMin = current[0];
+			for (int j = 1; j <= t.length(); j++) {
+				final int cost = (s.charAt(i - 1) == t.charAt(j - 1)) ? 0 : 1;
+				current[j] = Math.min(Math.min(current[j - 1] + 1, previous[j] + 1), previous[j - 1] + cost);
+				rowMin = Math.min(rowMin, current[j]);
+			}
+			if (rowMin > max) {
+				return max + 1;
+			}
+			final int[] tmp = previous;
+			previous = current;
+			current = tmp;
+		}
+		return previous[t.length()];
+	}
+
+	private static String[] tokens(String value) {
+		if (value == null || value.trim().isEmpty()) {
+			return new String[0];
+		}
+		final String[] values = StringValidation.removeAccents(value).split("\\s+");
+		final List<String> tokens = new ArrayList<>();
+		for (String v : values) {
+			if (v.startsWith("-")) {
+				v = v.replaceFirst("-+", "");
+			}
+			v = v.replaceAll("\\W+", "").toLowerCase();
+			if (v.isEmpty() || (v.length() < 4 && values.length > 1)) continue;
+			tokens.add(v);
+		}
+		return tokens.toArray(new String[tokens.size()]);
+	}
+
+	private static String prefix(String value, int length) {
+		return (value.length() > length) ? value.substring(0, length) : value;
+	}
+
+	private static int exactMatch(String attribute0, String attribute1) {
+		return (attribute0 == null || attribute1 == null || !attribute0.equals(attribute1)) ? 0 : 1;
+	}
+
+	static String cleanAttribute(String attribute) {
+		if (attribute == null || attribute.trim().isEmpty()) {
+			return null;
+		}
+		return Validator.removeAccents(attribute).replaceAll("\\s+", "").toLowerCase();
+	}
+
+}
@@ -54,26 +54,30 @@ public class Group {
 				if (structureId != null && !structureId.trim().isEmpty()) {
 					String qs =
 							"MATCH (s:Structure {id : {structureId}}), (g:Group {id : {groupId}}) " +
-							"CREATE UNIQUE s<-[:DEPENDS]-g";
+							"CREATE UNIQUE s<-[:DEPENDS]-g " +
+							"WITH s as g ";
 					JsonObject ps = new JsonObject()
 							.put("groupId", id)
 							.put("structureId", structureId);
-					transactionHelper.add(qs, ps);
+					transactionHelper.add(Neo4jUtils.markVisiblesDirty(qs, true), ps);
 				}
 				if (classId != null && !classId.trim().isEmpty()) {
 					String qs =
 							"MATCH (s:Class {id : {classId}}), (g:Group {id : {groupId}}) " +
-							"CREATE UNIQUE s<-[:DEPENDS]-g";
+							"CREATE UNIQUE s<-[:DEPENDS]-g " +
+							"WITH s as g ";
 					JsonObject ps = new JsonObject()
 							.put("groupId", id)
 							.put("classId", classId);
-					transactionHelper.add(qs, ps);
+					transactionHelper.add(Neo4jUtils.markVisiblesDirty(qs, true), ps);
 				}
 			}
 		}
 	}
 
 	public static void manualDelete(String id, TransactionHelper transactionHelper) {
+		transactionHelper.add(Neo4jUtils.markVisiblesDirty("MATCH (g:ManualGroup {id : {id}}) ", true),
+				new JsonObject().put("id", id));
 		String query =
 				"MATCH (g:ManualGroup {id : {id}}) " +
 				"OPTIONAL MATCH g-[r]-() " +
@@ -110,6 +114,6 @@ public class Group {
 				.put("groupId", groupId)
 				.put("userIds", userIds);
 		
-		transactionHelper.add(query, params);
+		transactionHelper.add(Neo4jUtils.markVisiblesDirty(query, false), params);
 	}
 }
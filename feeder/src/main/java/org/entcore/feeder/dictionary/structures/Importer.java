@@ -269,10 +269,10 @@ public class Importer {
 						"SET " + Neo4jUtils.nodeSetPropertiesFromJson("fos", object, "id", "externalId");
 				params = object;
 			} else {
-				query = "CREATE (fos:FieldOfStudy {props}) ";
+				query = "CREATE (fos:FieldOfStudy) SET fos = {props} ";
 				params = new JsonObject().put("props", object);
 			}
-			transactionHelper.add(query, params);
+			transactionHelper.addBatch(query, params);
 		}
 	}
 
@@ -293,10 +293,10 @@ public class Importer {
 						"SET " + Neo4jUtils.nodeSetPropertiesFromJson("m", object, "id", "externalId");
 				params = object;
 			} else {
-				query = "CREATE (m:Module {props}) ";
+				query = "CREATE (m:Module) SET m = {props} ";
 				params = new JsonObject().put("props", object);
 			}
-			transactionHelper.add(query, params);
+			transactionHelper.addBatch(query, params);
 		}
 	}
 
@@ -324,7 +324,7 @@ public class Importer {
 					"WHERE u.checksum IS NULL OR u.checksum <> {checksum} " +
 					"SET " + Neo4jUtils.nodeSetPropertiesFromJson("u", object,
 							"id", "externalId", "login", "activationCode", "displayName", "email", "created");
-			transactionHelper.add(query, object);
+			transactionHelper.addBatch(query, object);
 			checkUpdateEmail(object);
 			if (linkStudent != null && linkStudent.size() > 0) {
 				String query2 =
@@ -472,7 +472,7 @@ public class Importer {
 					"WHERE u.checksum IS NULL OR u.checksum <> {checksum} " +
 					"SET " + Neo4jUtils.nodeSetPropertiesFromJson("u", object,
 							"id", "externalId", "login", "activationCode", "displayName", "email", "created");
-				transactionHelper.add(query, object);
+				transactionHelper.addBatch(query, object);
 				checkUpdateEmail(object);
 			}
 			if (relationshipQueries) {
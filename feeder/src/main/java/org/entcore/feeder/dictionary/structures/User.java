@@ -40,6 +40,7 @@ import java.util.HashSet;
 import java.util.List;
 
 import static fr.wseduc.webutils.Utils.isNotEmpty;
+import static org.entcore.common.neo4j.Neo4jUtils.markVisiblesDirty;
 
 public class User {
 
@@ -357,6 +358,7 @@ public class User {
 				"WHERE p.name = head(um.profiles) " +
 				"CREATE UNIQUE um-[:IN]->rcg ";
 		transaction.add(mQuery, params);
+		transaction.add(markVisiblesDirty("MATCH (u:User { id : {userId}})-[:COMMUNIQUE]-(g:Group) ", false), params);
 		String query =
 				"MATCH (u:User { id : {userId}}), (dg:DeleteGroup) " +
 				"OPTIONAL MATCH u-[r:IN|COMMUNIQUE|COMMUNIQUE_DIRECT|RELATED|DUPLICATE|TEACHES_FOS|TEACHES]-() " +
@@ -376,13 +378,13 @@ public class User {
 
 		query =
 			"MATCH (u:User {id: {userId}})-[:HAS_RELATIONSHIPS]->(b:Backup) " +
-			"MATCH (g:Group) WHERE g.id IN b.COMMUNIQUE_OUTGOING CREATE UNIQUE u-[:COMMUNIQUE]->g";
-		transaction.add(query, params);
+			"MATCH (g:Group) WHERE g.id IN b.COMMUNIQUE_OUTGOING CREATE UNIQUE u-[:COMMUNIQUE]->g ";
+		transaction.add(markVisiblesDirty(query, false), params);
 
 		query =
 			"MATCH (u:User {id: {userId}})-[:HAS_RELATIONSHIPS]->(b:Backup) " +
-			"MATCH (g:Group) WHERE g.id IN b.COMMUNIQUE_INCOMING CREATE UNIQUE u<-[:COMMUNIQUE]-g";
-		transaction.add(query, params);
+			"MATCH (g:Group) WHERE g.id IN b.COMMUNIQUE_INCOMING CREATE UNIQUE u<-[:COMMUNIQUE]-g ";
+		transaction.add(markVisiblesDirty(query, false), params);
 
 		query =
 			"MATCH (u:User {id: {userId}})-[r:IN]->(:DeleteGroup), u-[r2:HAS_RELATIONSHIPS]->(b:Backup) " +
@@ -470,9 +472,8 @@ public class User {
 		String query3 =
 				"MATCH (u:User { id : {userId}}), (s:Structure {externalId : {structureExternalId}})<-[:DEPENDS]-(g:Group:HTGroup) " +
 				"MERGE u-[:IN]->g " +
-				"MERGE g-[:COMMUNIQUE]->u";
-		;
-		transactionHelper.add(query3, params);
+				"MERGE g-[:COMMUNIQUE]->u ";
+		transactionHelper.add(markVisiblesDirty(query3, false), params);
 	}
 
 
@@ -500,9 +501,9 @@ public class User {
 		String query3 =
 				"MATCH (u:User { id : {userId}})-[r:IN |COMMUNIQUE]->(g:Group:HTGroup)-[:DEPENDS]->(s:Structure {externalId : {structureExternalId}}) " +
 				"WHERE length(u.headTeacherManual) = 0 AND (u.headTeacher IS NULL OR length(u.headTeacher) = 0) " +
-				"DELETE r ";;
+				"DELETE r ";
 
-		transactionHelper.add(query3, params);
+		transactionHelper.add(markVisiblesDirty(query3, false), params);
 	}
 
 	public static void addFunction(String userId, String functionCode, JsonArray s,
@@ -544,6 +545,8 @@ public class User {
 				.put("functionCode", functionCode)
 				.put("userId", userId);
 			transactionHelper.add(query2, p2);
+			// function groups created under the scope nodes
+			transactionHelper.add(markVisiblesDirty("MATCH (g) WHERE (g:Structure OR g:Class) AND g.id IN {scope} ", true), p2);
 			countUsersInGroups(null, "FunctionGroup", transactionHelper);
 		}
 	}
@@ -556,12 +559,12 @@ public class User {
 				"DELETE r " +
 				"WITH coalesce(scope, []) as ids, u, f " +
 				"UNWIND ids as s " +
-				"MATCH (fg:FunctionGroup {externalId : s + '-' + f.externalId})<-[r:IN|COMMUNIQUE]-u " +
-				"DELETE r";
+				"MATCH (g:FunctionGroup {externalId : s + '-' + f.externalId})<-[r:IN|COMMUNIQUE]-u " +
+				"DELETE r ";
 		JsonObject params = new JsonObject()
 				.put("userId", userId)
 				.put("functionCode", functionCode);
-		transactionHelper.add(query, params);
+		transactionHelper.add(markVisiblesDirty(query, false), params);
 		countUsersInGroups(null, "FunctionGroup", transactionHelper);
 	}
 
@@ -585,11 +588,12 @@ public class User {
 				"MATCH (u:User { id : {userId}})-[r:IN|COMMUNIQUE]->(f:Group {id : {groupId}}) " +
 				"WHERE 'ManualGroup' IN labels(f) OR 'FunctionalGroup' IN labels(f) " +
 				"SET u.groups = FILTER(gId IN coalesce(u.groups, []) WHERE gId <> f.externalId) " +
-				"DELETE r ";
+				"DELETE r " +
+				"WITH f as g ";
 		JsonObject params = new JsonObject()
 				.put("userId", userId)
 				.put("groupId", groupId);
-		transactionHelper.add(query, params);
+		transactionHelper.add(markVisiblesDirty(query, false), params);
 		countUsersInGroups(groupId, null, transactionHelper);
 	}
 
@@ -65,7 +65,9 @@ public abstract class AbstractUser {
 					"MATCH (u:User {externalId: {externalId}}) " +
 					"WHERE NOT(HAS(u.email)) OR (HAS(u.activationCode) AND u.email <> {email}) " +
 					"SET u.email = {email}";
-			transactionHelper.add(queryUpdateEmail, object);
+			transactionHelper.addBatch(queryUpdateEmail, new JsonObject()
+					.put("externalId", object.getString("externalId"))
+					.put("email", object.getString("email")));
 		}
 	}
 
@@ -77,7 +77,11 @@ public class PersEducNat extends AbstractUser {
 					sb.append("RETURN u.id as id, u.IDPN as IDPN, head(u.profiles) as profile");
 				}
 				params = object;
-				transactionHelper.add(sb.toString(), params);
+				if (EDTImporter.EDT.equals(currentSource)) {
+					transactionHelper.add(sb.toString(), params);
+				} else {
+					transactionHelper.addBatch(sb.toString(), params);
+				}
 				checkUpdateEmail(object);
 			}
 			if (relationshipQueries) {
@@ -120,14 +124,14 @@ public class PersEducNat extends AbstractUser {
 					}
 					transactionHelper.add(query, p);
 					String qs =
-							"MATCH (:User {externalId : {userExternalId}})-[r:IN|COMMUNIQUE]-(:Group)-[:DEPENDS]->(s:Structure) " +
+							"MATCH (:User {externalId : {userExternalId}})-[r:IN|COMMUNIQUE]-(g:Group)-[:DEPENDS]->(s:Structure) " +
 									"WHERE NOT(s.externalId IN {structures}) AND (NOT(HAS(r.source)) OR r.source = {source}) " +
-									"DELETE r";
+									"DELETE r ";
 					JsonObject ps = new JsonObject()
 							.put("userExternalId", externalId)
 							.put("source", currentSource)
 							.put("structures", structuresByFunctions);
-					transactionHelper.add(qs, ps);
+					transactionHelper.add(Neo4jUtils.markVisiblesDirty(qs, false), ps);
 					final String daa =
 							"MATCH (u:User {externalId : {userExternalId}})-[r:ADMINISTRATIVE_ATTACHMENT]->(s:Structure) " +
 							"WHERE NOT(s.externalId IN {structures}) AND (NOT(HAS(r.source)) OR r.source = {source}) " +
@@ -177,14 +181,14 @@ public class PersEducNat extends AbstractUser {
 				}
 				if (externalId != null) {
 					String q =
-							"MATCH (:User {externalId : {userExternalId}})-[r:IN|COMMUNIQUE]-(:Group)-[:DEPENDS]->(c:Class) " +
+							"MATCH (:User {externalId : {userExternalId}})-[r:IN|COMMUNIQUE]-(g:Group)-[:DEPENDS]->(c:Class) " +
 							"WHERE NOT(c.externalId IN {classes}) AND (NOT(HAS(r.source)) OR r.source = {source}) " +
-							"DELETE r";
+							"DELETE r ";
 					JsonObject p = new JsonObject()
 							.put("userExternalId", externalId)
 							.put("source", currentSource)
 							.put("classes", classes);
-					transactionHelper.add(q, p);
+					transactionHelper.add(Neo4jUtils.markVisiblesDirty(q, false), p);
 				}
 				final JsonArray groups = new fr.wseduc.webutils.collections.JsonArray();
 				final JsonObject fgm = new JsonObject();
@@ -216,12 +220,12 @@ public class PersEducNat extends AbstractUser {
 							"MATCH (:User {externalId : {userExternalId}})-[r:IN|COMMUNIQUE]-(g:Group) " +
 							"WHERE (g:FunctionalGroup OR g:FunctionGroup OR g:HTGroup) AND " +
 							"NOT(g.externalId IN {groups}) AND (NOT(HAS(r.source)) OR r.source = {source}) " +
-							"DELETE r";
+							"DELETE r ";
 					final JsonObject pdfg = new JsonObject()
 							.put("userExternalId", externalId)
 							.put("source", currentSource)
 							.put("groups", groups);
-					transactionHelper.add(qdfg, pdfg);
+					transactionHelper.add(Neo4jUtils.markVisiblesDirty(qdfg, false), pdfg);
 					fosm.mergeIn(fgm);
 					final String deleteOldFoslg =
 							"MATCH (u:User {externalId : {userExternalId}})-[r:TEACHES_FOS]->(f:FieldOfStudy) " +
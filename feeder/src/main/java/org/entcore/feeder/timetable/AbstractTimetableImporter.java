@@ -102,6 +102,12 @@ public abstract class AbstractTimetableImporter implements TimetableImporter {
 			"WHERE r.source = {source} AND (r.outDate < {now} OR r.lastUpdated < {now}) " +
 			"OPTIONAL MATCH fg-[rc:COMMUNIQUE]-u " +
 			"DELETE r, rc";
+	// functional groups linked, unlinked or deleted by the import
+	private static final String MARK_GROUPS_VISIBLES = Neo4jUtils.markVisiblesDirty(
+			"MATCH (:Structure {externalId : {structureExternalId}})<-[:DEPENDS]-(g:FunctionalGroup {source:{source}}) ", false);
+	// functional groups created or deleted under the structure
+	private static final String MARK_STRUCTURE_VISIBLES = Neo4jUtils.markVisiblesDirty(
+			"MATCH (g:Structure {externalId : {structureExternalId}}) ", true);
 	private static final String DELETE_GROUPS =
 			"MATCH (:Structure {externalId : {structureExternalId}})<-[:DEPENDS]-(g:FunctionalGroup {source:{source}})<-[:IN]-(:User) " +
 			"WITH COLLECT(distinct g.id) as usedFunctionalGroup " +
@@ -490,8 +496,10 @@ public abstract class AbstractTimetableImporter implements TimetableImporter {
 		persistBulKCourses();
 		txXDT.add(DELETE_SUBJECT, params.copy().put("subjects", new fr.wseduc.webutils.collections.JsonArray(new ArrayList<>(subjects.values()))));
 		txXDT.add(UNLINK_SUBJECT, params);
+		txXDT.add(MARK_GROUPS_VISIBLES, params);
 		txXDT.add(UNLINK_GROUP, params);
 		txXDT.add(DELETE_GROUPS, params);
+		txXDT.add(MARK_STRUCTURE_VISIBLES, params);
 		txXDT.add(UNSET_OLD_GROUPS, params);
 		txXDT.add(SET_GROUPS, params);
 		Importer.markMissingUsers(structureExternalId, getSource(), userImportedExternalId, txXDT, new Handler<Void>() {
@@ -30,10 +30,13 @@ import io.vertx.core.logging.LoggerFactory;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
 
 public class TransactionHelper {
 
 	private static final Logger log = LoggerFactory.getLogger(TransactionHelper.class);
+	private static final Pattern PARAMETER = Pattern.compile("\\{(\\w+)\\}");
+	private static final Pattern WITH = Pattern.compile("(?i)(?<!STARTS\\s|ENDS\\s)\\bWITH(\\s+DISTINCT)?\\s+(?!\\*)");
 	private final Neo4j neo4j;
 	private volatile JsonArray statements;
 	private AtomicInteger remainingStatementNumber;
@@ -47,6 +50,8 @@ public class TransactionHelper {
 	private boolean flush = false;
 	private Handler<Message<JsonObject>> flushHandler;
 	private boolean autoSend = true;
+	private String batchQuery;
+	private JsonArray batchRows;
 
 	class ResetTransactionTimer extends TimerTask {
 
@@ -75,13 +80,8 @@ public class TransactionHelper {
 	}
 
 	public void add(String query, JsonObject params) {
-		if (autoSend && !waitingQuery && transactionId != null &&
-				remainingStatementNumber.getAndDecrement() == 0) {
-			final JsonArray s = statements;
-			statements = new fr.wseduc.webutils.collections.JsonArray();
-			send(s);
-			remainingStatementNumber = new AtomicInteger(statementNumber);
-		}
+		closeBatches();
+		autoSend();
 		if (query != null && !query.trim().isEmpty()) {
 			if (log.isDebugEnabled()) {
 				log.debug("query : " + query + " - params : " + (params != null ? params.encode() : "{}"));
@@ -94,6 +94,72 @@ public class TransactionHelper {
 		}
 	}
 
+	/**
+	 * Adds a statement which is grouped with the consecutive batched statements of the same query text,
+	 * in one "UNWIND {rows} AS row" statement where the parameters are read from row.
+	 * Statements keep their order : a plain statement or a batched statement of another query text closes
+	 * the group. Only use it for statements whose results are not read.
+	 * The query must use parameters as values, not as index queries or property maps.
+	 */
+	public void addBatch(String query, JsonObject params) {
+		if (query == null || query.trim().isEmpty()) {
+			autoSend();
+			return;
+		}
+		if (batchQuery != null && !batchQuery.equals(query)) {
+			closeBatches();
+		}
+		autoSend();
+		if (batchQuery == null) {
+			batchQuery = query;
+			batchRows = new fr.wseduc.webutils.collections.JsonArray();
+		}
+		batchRows.add(params != null ? params : new JsonObject());
+		if (batchRows.size() >= statementNumber) {
+			closeBatches();
+		}
+	}
+
+	private void closeBatches() {
+		if (batchQuery == null) {
+			return;
+		}
+		final JsonObject statement;
+		if (batchRows.size() == 1) {
+			statement = new JsonObject().put("statement", batchQuery).put("parameters", batchRows.getJsonObject(0));
+		} else {
+			statement = new JsonObject()
+					.put("statement", unwind(batchQuery))
+					.put("parameters", new JsonObject().put("rows", batchRows));
+		}
+		if (log.isDebugEnabled()) {
+			log.debug("batch : " + batchQuery + " - rows : " + batchRows.size());
+		}
+		statements.add(statement);
+		batchQuery = null;
+		batchRows = null;
+	}
+
+	/**
+	 * Rewrites the query to run once per row of the "rows" parameter. Parameters are read from row,
+	 * and row is carried through the WITH clauses.
+	 */
+	static String unwind(String query) {
+		final String q = WITH.matcher(query).replaceAll("WITH$1 row, ");
+		return "UNWIND {rows} AS row " + PARAMETER.matcher(q).replaceAll("row.$1");
+	}
+
+	private void autoSend() {
+		if (autoSend && !waitingQuery && transactionId != null &&
+				remainingStatementNumber.getAndDecrement() == 0) {
+			closeBatches();
+			final JsonArray s = statements;
+			statements = new fr.wseduc.webutils.collections.JsonArray();
+			send(s);
+			remainingStatementNumber = new AtomicInteger(statementNumber);
+		}
+	}
+
 	private void send(JsonArray s) {
 		send(s, null);
 	}
@@ -135,6 +201,7 @@ public class TransactionHelper {
 	}
 
 	public void commit(Handler<Message<JsonObject>> handler, boolean th) {
+		closeBatches();
 		if (error != null) {
 			if (!th && handler != null) {
 				handler.handle(error);
@@ -160,6 +227,8 @@ public class TransactionHelper {
 	}
 
 	public void rollback() {
+		batchQuery = null;
+		batchRows = null;
 		if (transactionId != null) {
 			neo4j.rollbackTransaction(transactionId, null);
 			resetTimeOutTimer.cancel();
@@ -173,6 +242,7 @@ public class TransactionHelper {
 	}
 
 	public void flush(Handler<Message<JsonObject>> handler, boolean th) {
+		closeBatches();
 		if (error != null) {
 			if (!th && handler != null) {
 				handler.handle(error);
@@ -200,7 +270,7 @@ public class TransactionHelper {
 	}
 
 	public boolean isEmpty() {
-		return statements == null || statements.size() == 0;
+		return (statements == null || statements.size() == 0) && batchQuery == null;
 	}
 
 
@@ -0,0 +1,115 @@
+/* Copyright © "Open Digital Education", 2014
+ *
+ * This program is published by "Open Digital Education".
+ * You must indicate the name of the software and the company in any production /contribution
+ * using the software and indicate on the home page of the software industry in question,
+ * "powered by Open Digital Education" with a reference to the website: https://opendigitaleducation.com/.
+ *
+ * This program is free software, licensed under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * You can redistribute this application and/or modify it since you respect the terms of the GNU Affero General Public License.
+ * If you modify the source code and then use this modified source code in your creation, you must make available the source code of your modifications.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with the software.
+ * If not, please see : <http://www.gnu.org/licenses/>. Full compliance requires reading the terms of this license and following its directives.
+
+ *
+ */
+
+package org.entcore.feeder.dictionary.structures;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class DuplicateUsersIndexTest {
+
+	private static final List<String> NOT_DEDUPLICATE_SOURCE = Collections.singletonList("AAF");
+
+	@Test
+	public void nameBlocksUseLastNamePrefix() {
+		// same first name and email, similar last names with different prefixes and no birth date
+		final JsonArray users = new fr.wseduc.webutils.collections.JsonArray()
+				.add(user("1", "Martin", "Jean", null, "jean.martin@ent.fr", "AAF").put("modified", true))
+				.add(user("2", "Nartin", "Jean", null, "jean.martin@ent.fr", "MANUAL"));
+		assertEquals(0, score(users).size());
+	}
+
+	@Test
+	public void birthDateBlockFindsOtherNameBlocks() {
+		final JsonArray users = new fr.wseduc.webutils.collections.JsonArray()
+				.add(user("1", "Martin", "Jean", "2008-04-12", "jean.martin@ent.fr", "AAF").put("modified", true))
+				.add(user("2", "Nartin", "Jean", "2008-04-12", "jean.martin@ent.fr", "MANUAL"));
+		final List<JsonObject> duplicates = score(users);
+		assertEquals(1, duplicates.size());
+		assertEquals("1", duplicates.get(0).getString("sId"));
+		assertEquals("2", duplicates.get(0).getString("dId"));
+		assertEquals(5, duplicates.get(0).getInteger("score").intValue());
+	}
+
+	@Test
+	public void similarityAboveThresholdMatches() {
+		// distance 2 on 6 characters : similarity 0.67
+		final JsonArray users = new fr.wseduc.webutils.collections.JsonArray()
+				.add(user("1", "Dupont", "Jean", "2008-04-12", null, "AAF").put("modified", true))
+				.add(user("2", "Dupoxx", "Jean", "2008-04-12", null, "MANUAL"));
+		final List<JsonObject> duplicates = score(users);
+		assertEquals(1, duplicates.size());
+		assertEquals(4, duplicates.get(0).getInteger("score").intValue());
+	}
+
+	@Test
+	public void similarityAtThresholdDoesNotMatch() {
+		// distance 2 on 5 characters : similarity 0.6, lucene requires more
+		final JsonArray users = new fr.wseduc.webutils.collections.JsonArray()
+				.add(user("1", "Dumas", "Jean", "2008-04-12", null, "AAF").put("modified", true))
+				.add(user("2", "Duxys", "Jean", "2008-04-12", null, "MANUAL"));
+		assertEquals(0, score(users).size());
+		final JsonArray close = new fr.wseduc.webutils.collections.JsonArray()
+				.add(user("1", "Dumas", "Jean", "2008-04-12", null, "AAF").put("modified", true))
+				.add(user("2", "Duxas", "Jean", "2008-04-12", null, "MANUAL"));
+		assertEquals(1, score(close).size());
+	}
+
+	@Test
+	public void pairIsReturnedOnce() {
+		final JsonArray users = new fr.wseduc.webutils.collections.JsonArray()
+				.add(user("1", "Dupont", "Jean", "2008-04-12", null, "AAF").put("modified", true))
+				.add(user("2", "Dupont", "Jean", "2008-04-12", null, "MANUAL").put("modified", true));
+		final DuplicateUsersIndex index = new DuplicateUsersIndex(users, NOT_DEDUPLICATE_SOURCE);
+		assertEquals(2, index.modifiedUsers());
+		final List<JsonObject> duplicates = index.score();
+		assertEquals(1, duplicates.size());
+		assertEquals(5, duplicates.get(0).getInteger("score").intValue());
+	}
+
+	@Test
+	public void sameDeduplicatedSourceIsIgnored() {
+		final JsonArray users = new fr.wseduc.webutils.collections.JsonArray()
+				.add(user("1", "Dupont", "Jean", "2008-04-12", null, "AAF").put("modified", true))
+				.add(user("2", "Dupont", "Jean", "2008-04-12", null, "AAF"));
+		assertEquals(0, score(users).size());
+	}
+
+	private static List<JsonObject> score(JsonArray users) {
+		return new DuplicateUsersIndex(users, NOT_DEDUPLICATE_SOURCE).score();
+	}
+
+	private static JsonObject user(String id, String lastName, String firstName, String birthDate, String email,
+			String source) {
+		return new JsonObject()
+				.put("id", id)
+				.put("lastName", lastName)
+				.put("firstName", firstName)
+				.put("birthDate", birthDate)
+				.put("email", email)
+				.put("source", source);
+	}
+
+}
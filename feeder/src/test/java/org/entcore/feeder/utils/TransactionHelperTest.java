@@ -0,0 +1,58 @@
+/* Copyright © "Open Digital Education", 2014
+ *
+ * This program is published by "Open Digital Education".
+ * You must indicate the name of the software and the company in any production /contribution
+ * using the software and indicate on the home page of the software industry in question,
+ * "powered by Open Digital Education" with a reference to the website: https://opendigitaleducation.com/.
+ *
+ * This program is free software, licensed under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * You can redistribute this application and/or modify it since you respect the terms of the GNU Affero General Public License.
+ * If you modify the source code and then use this modified source code in your creation, you must make available the source code of your modifications.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with the software.
+ * If not, please see : <http://www.gnu.org/licenses/>. Full compliance requires reading the terms of this license and following its directives.
+
+ *
+ */
+
+package org.entcore.feeder.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TransactionHelperTest {
+
+	@Test
+	public void unwindKeepsRowThroughWith() {
+		final String query =
+				"MERGE (u:User { externalId : {externalId}}) " +
+				"ON CREATE SET u.id = {id} " +
+				"WITH u " +
+				"WHERE u.checksum IS NULL OR u.checksum <> {checksum} " +
+				"SET u.lastName = {lastName}";
+		assertEquals("UNWIND {rows} AS row " +
+				"MERGE (u:User { externalId : row.externalId}) " +
+				"ON CREATE SET u.id = row.id " +
+				"WITH row, u " +
+				"WHERE u.checksum IS NULL OR u.checksum <> row.checksum " +
+				"SET u.lastName = row.lastName", TransactionHelper.unwind(query));
+	}
+
+	@Test
+	public void unwindKeepsStringOperatorsAndWildcard() {
+		final String query =
+				"MATCH (u:User) WHERE u.login STARTS WITH {login} " +
+				"WITH DISTINCT u " +
+				"WITH * " +
+				"SET u.source = {source}";
+		assertEquals("UNWIND {rows} AS row " +
+				"MATCH (u:User) WHERE u.login STARTS WITH row.login " +
+				"WITH DISTINCT row, u " +
+				"WITH * " +
+				"SET u.source = row.source", TransactionHelper.unwind(query));
+	}
+
+}
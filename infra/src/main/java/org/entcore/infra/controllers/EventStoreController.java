@@ -28,8 +28,10 @@ import fr.wseduc.webutils.http.Renders;
 import fr.wseduc.webutils.request.RequestUtils;
 import org.entcore.infra.services.EventStoreService;
 import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
 import io.vertx.core.eventbus.Message;
 import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.json.DecodeException;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 
@@ -63,7 +65,36 @@ public class EventStoreController extends BaseController {
 	public void storeLocalhost(final HttpServerRequest request) {
 		if (("localhost:"+ config.getInteger("port", 8001))
 				.equalsIgnoreCase(request.headers().get("Host"))) {
-			store(request);
+			request.bodyHandler(new Handler<Buffer>() {
+				@Override
+				public void handle(Buffer body) {
+					final String b = body.toString().trim();
+					try {
+						if (b.startsWith("[")) {
+							final JsonArray events = new fr.wseduc.webutils.collections.JsonArray();
+							for (Object o : new JsonArray(b)) {
+								if (o instanceof JsonObject && authorizedUser((JsonObject) o)) {
+									events.add(o);
+								}
+							}
+							if (events.size() > 0) {
+								eventStoreService.storeAll(events, voidResponseHandler(request));
+							} else {
+								Renders.ok(request);
+							}
+						} else {
+							final JsonObject event = new JsonObject(b);
+							if (!authorizedUser(event)) {
+								Renders.ok(request);
+							} else {
+								eventStoreService.store(event, voidResponseHandler(request));
+							}
+						}
+					} catch (DecodeException e) {
+						badRequest(request, e.getMessage());
+					}
+				}
+			});
 		} else {
 			forbidden(request, "invalid.host");
 		}
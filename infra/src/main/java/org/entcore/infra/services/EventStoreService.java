@@ -21,6 +21,7 @@ package org.entcore.infra.services;
 
 import fr.wseduc.webutils.Either;
 import io.vertx.core.Handler;
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 
 
@@ -28,4 +29,6 @@ public interface EventStoreService {
 
 	void store(JsonObject event, Handler<Either<String, Void>> handler);
 
+	void storeAll(JsonArray events, Handler<Either<String, Void>> handler);
+
 }
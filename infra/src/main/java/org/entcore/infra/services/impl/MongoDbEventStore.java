@@ -24,6 +24,7 @@ import fr.wseduc.webutils.Either;
 import org.entcore.infra.services.EventStoreService;
 import io.vertx.core.Handler;
 import io.vertx.core.eventbus.Message;
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 
 public class MongoDbEventStore implements EventStoreService {
@@ -46,4 +47,19 @@ public class MongoDbEventStore implements EventStoreService {
 		});
 	}
 
+	@Override
+	public void storeAll(JsonArray events, final Handler<Either<String, Void>> handler) {
+		mongoDb.insert(COLLECTION, events, new Handler<Message<JsonObject>>() {
+			@Override
+			public void handle(Message<JsonObject> event) {
+				if ("ok".equals(event.body().getString("status"))) {
+					handler.handle(new Either.Right<String, Void>(null));
+				} else {
+					handler.handle(new Either.Left<String, Void>(
+							"Error : " + event.body().getString("message")));
+				}
+			}
+		});
+	}
+
 }
@@ -0,0 +1,112 @@
+#!/usr/bin/env python
+# -*- coding: utf-8 -*-
+
+# Deduplicates a FileStorage tree : each file is replaced by a hard link to the blob of its content
+# (BASE_PATH/.blobs/ab/cd/<sha256>). With --gc, blobs no longer referenced by any file are removed.
+# Usage : deduplicateFileStorage.py BASE_PATH [--gc] [--min-age SECONDS] [--dry-run]
+
+import sys
+import os
+import time
+import errno
+import hashlib
+
+BLOBS_DIRECTORY = '.blobs'
+BLOCK_SIZE = 1024 * 1024
+logError = open('deduplicate-file-storage.error.txt', 'w')
+
+def sha256(path):
+	h = hashlib.sha256()
+	with open(path, 'rb') as f:
+		while True:
+			block = f.read(BLOCK_SIZE)
+			if not block:
+				break
+			h.update(block)
+	return h.hexdigest()
+
+def mkdir_p(path):
+	try:
+		os.makedirs(path)
+	except OSError as exc:
+		if exc.errno == errno.EEXIST and os.path.isdir(path):
+			pass
+		else:
+			raise
+
+def blob_path(basePath, sha):
+	return os.path.join(basePath, BLOBS_DIRECTORY, sha[0:2], sha[2:4], sha)
+
+def deduplicate(basePath, minAge, dryRun):
+	report = {'files': 0, 'linked': 0, 'blobs': 0, 'ignored': 0, 'errors': 0, 'saved': 0}
+	now = time.time()
+	for root, dirs, files in os.walk(basePath):
+		if root == basePath and BLOBS_DIRECTORY in dirs:
+			dirs.remove(BLOBS_DIRECTORY)
+		for name in files:
+			path = os.path.join(root, name)
+			if name.endswith('.dedup') or name.endswith('.tmp'):
+				continue
+			report['files'] += 1
+			try:
+				st = os.lstat(path)
+				# recent files may still be post-processed in place (image compression)
+				if not os.path.isfile(path) or os.path.islink(path) or now - st.st_mtime < minAge:
+					report['ignored'] += 1
+					continue
+				blob = blob_path(basePath, sha256(path))
+				if os.path.exists(blob):
+					if os.stat(blob).st_ino == st.st_ino:
+						report['ignored'] += 1
+						continue
+					if not dryRun:
+						tmp = path + '.dedup'
+						os.link(blob, tmp)
+						os.rename(tmp, path)
+					report['linked'] += 1
+					if st.st_nlink == 1:
+						report['saved'] += st.st_size
+				else:
+					if not dryRun:
+						mkdir_p(os.path.dirname(blob))
+						os.link(path, blob)
+					report['blobs'] += 1
+			except (IOError, OSError) as e:
+				report['errors'] += 1
+				logError.write("err_deduplicate;%s;%s;%s\n" % (e.errno, e.strerror, path))
+	return report
+
+def collect(basePath, dryRun):
+	report = {'blobs': 0, 'removed': 0, 'freed': 0, 'errors': 0}
+	for root, dirs, files in os.walk(os.path.join(basePath, BLOBS_DIRECTORY)):
+		for name in files:
+			path = os.path.join(root, name)
+			report['blobs'] += 1
+			try:
+				st = os.stat(path)
+				if st.st_nlink == 1:
+					if not dryRun:
+						os.remove(path)
+					report['removed'] += 1
+					report['freed'] += st.st_size
+			except (IOError, OSError) as e:
+				report['errors'] += 1
+				logError.write("err_collect;%s;%s;%s\n" % (e.errno, e.strerror, path))
+	return report
+
+def print_report(name, report):
+	print("%s;%s" % (name, ";".join("%s=%s" % (k, report[k]) for k in sorted(report))))
+
+if __name__ == '__main__':
+	if len(sys.argv) < 2:
+		print("Usage : %s BASE_PATH [--gc] [--min-age SECONDS] [--dry-run]" % sys.argv[0])
+		sys.exit(1)
+	basePath = sys.argv[1]
+	minAge = 3600
+	if '--min-age' in sys.argv:
+		minAge = int(sys.argv[sys.argv.index('--min-age') + 1])
+	dryRun = '--dry-run' in sys.argv
+	print_report('deduplicate', deduplicate(basePath, minAge, dryRun))
+	if '--gc' in sys.argv:
+		print_report('gc', collect(basePath, dryRun))
+	logError.close()
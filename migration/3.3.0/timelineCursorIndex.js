@@ -0,0 +1,2 @@
+db.timeline.createIndex({ "recipients.userId": 1, created: -1, _id: -1 }, { background: true, name: "idx_recipients_created_id" });
+db.timeline.createIndex({ sender: 1, created: -1, _id: -1 }, { background: true, name: "idx_sender_created_id" });
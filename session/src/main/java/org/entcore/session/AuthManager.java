@@ -23,6 +23,7 @@ import fr.wseduc.mongodb.MongoDb;
 import fr.wseduc.webutils.eventbus.ResultMessage;
 import io.vertx.core.shareddata.LocalMap;
 import org.entcore.common.neo4j.Neo4j;
+import org.entcore.common.user.SessionCache;
 import io.vertx.core.Handler;
 import io.vertx.core.eventbus.Message;
 import io.vertx.core.impl.VertxInternal;
@@ -40,7 +41,7 @@ import static fr.wseduc.webutils.Utils.getOrElse;
 public class AuthManager extends BusModBase implements Handler<Message<JsonObject>> {
 
 	private static final long LAST_ACTIVITY_DELAY = 30000l;
-	protected Map<String, String> sessions;
+	protected Map<String, Object> sessions;
 	protected Map<String, List<LoginInfo>> logins;
 	protected Map<String, Long> inactivity;
 
@@ -51,6 +52,8 @@ public class AuthManager extends BusModBase implements Handler<Message<JsonObjec
 	private long prolongedSessionTimeout;
 	private MongoDb mongo;
 	private Neo4j neo4j;
+	private boolean binarySessions;
+	private SessionInfosCache sessionInfosCache;
 
 	private static final class LoginInfo implements Serializable {
 		final long timerId;
@@ -89,6 +92,9 @@ public class AuthManager extends BusModBase implements Handler<Message<JsonObjec
 			}
 			logger.info("Initialize session hash maps.");
 		}
+		binarySessions = getOrElse(config.getBoolean("binary-sessions"), true);
+		sessionInfosCache = new SessionInfosCache(vertx, neo4j,
+				getOrElse(config.getJsonObject("session-infos-cache"), new JsonObject()));
 		final String address = getOptionalStringConfig("address", "wse.session");
 		Object timeout = config.getValue("session_timeout");
 		if (timeout != null) {
@@ -225,7 +231,7 @@ public class AuthManager extends BusModBase implements Handler<Message<JsonObjec
 		}
 		JsonObject session = null;
 		try {
-			session = unmarshal(sessions.get(info.sessionId));
+			session = readSession(info.sessionId);
 		} catch (Exception e) {
 			logger.error("Error in deserializing hazelcast session " + info.sessionId, e);
 		}
@@ -244,13 +250,26 @@ public class AuthManager extends BusModBase implements Handler<Message<JsonObjec
 		return null;
 	}
 
-	private JsonObject unmarshal(String s) {
+	private JsonObject unmarshal(Object s) {
 		if (s != null) {
-			return new JsonObject(s);
+			return SessionCodec.decode(s);
 		}
 		return null;
 	}
 
+	private Object marshal(JsonObject session) {
+		return binarySessions ? SessionCodec.encode(session) : session.encode();
+	}
+
+	private JsonObject readSession(String sessionId) {
+		final Object s = sessions.get(sessionId);
+		final JsonObject session = unmarshal(s);
+		if (binarySessions && s instanceof String && session != null) {
+			sessions.replace(sessionId, s, SessionCodec.encode(session));
+		}
+		return session;
+	}
+
 	private void doFind(final Message<JsonObject> message) {
 		final String sessionId = message.body().getString("sessionId");
 		if (sessionId == null || sessionId.trim().isEmpty()) {
@@ -260,7 +279,7 @@ public class AuthManager extends BusModBase implements Handler<Message<JsonObjec
 
 		JsonObject session = null;
 		try {
-			session = unmarshal(sessions.get(sessionId));
+			session = readSession(sessionId);
 		} catch (Exception e) {
 			logger.warn("Error in deserializing hazelcast session " + sessionId);
 			try {
@@ -287,7 +306,7 @@ public class AuthManager extends BusModBase implements Handler<Message<JsonObjec
 							sId -> {
 								if (sId != null) {
 									try {
-										JsonObject s = unmarshal(sessions.get(sId));
+										JsonObject s = readSession(sId);
 										if (s != null) {
 											JsonObject sessionResponse = new JsonObject().put("status", "ok")
 													.put("session", s);
@@ -319,8 +338,7 @@ public class AuthManager extends BusModBase implements Handler<Message<JsonObjec
 			sendOK(message, new JsonObject().put("status", "ok").put("session", session));
 			if (inactivity != null) {
 				Long lastActivity = inactivity.get(sessionId);
-				String userId = sessions.get(sessionId);
-				if (userId != null && (lastActivity == null || (lastActivity + LAST_ACTIVITY_DELAY) < System.currentTimeMillis())) {
+				if (sessions.containsKey(sessionId) && (lastActivity == null || (lastActivity + LAST_ACTIVITY_DELAY) < System.currentTimeMillis())) {
 					inactivity.put(sessionId, System.currentTimeMillis());
 				}
 			}
@@ -359,7 +377,7 @@ public class AuthManager extends BusModBase implements Handler<Message<JsonObjec
 					long timerId = setTimer(userId, sessionId, secureLocation);
 
 					try {
-						sessions.put(sessionId, infos.encode());
+						sessions.put(sessionId, marshal(infos));
 						addLoginInfo(userId, timerId, sessionId);
 					} catch (Exception e) {
 						logger.error("Error putting session in hazelcast map");
@@ -422,6 +440,7 @@ public class AuthManager extends BusModBase implements Handler<Message<JsonObjec
 			} else {
 				logins.remove(userId);
 				sessions.remove(sessionId);
+				invalidateCachedSession(sessionId);
 			}
 		});
 	}
@@ -467,7 +486,7 @@ public class AuthManager extends BusModBase implements Handler<Message<JsonObjec
 		}
 		JsonObject session =  null;
 		try {
-			session = unmarshal(sessions.get(sessionId));
+			session = readSession(sessionId);
 		} catch (Exception e) {
 			try {
 //				if (sessions instanceof BaseMap) {
@@ -495,6 +514,7 @@ public class AuthManager extends BusModBase implements Handler<Message<JsonObjec
 		if (inactivity != null) {
 			inactivity.remove(sessionId);
 		}
+		invalidateCachedSession(sessionId);
 		JsonObject res = new JsonObject().put("status", "ok");
 		if (meta != null) {
 			res.put("sessionMetadata", meta);
@@ -568,7 +588,7 @@ public class AuthManager extends BusModBase implements Handler<Message<JsonObjec
 		}
 		JsonObject session =  null;
 		try {
-			session = unmarshal(sessions.get(info.sessionId));
+			session = readSession(info.sessionId);
 		} catch (Exception e) {
 			logger.error("Error in deserializing hazelcast session " + info.sessionId, e);
 		}
@@ -593,13 +613,18 @@ public class AuthManager extends BusModBase implements Handler<Message<JsonObjec
 		}
 		for (LoginInfo info : infos) {
 			try {
-				sessions.put(info.sessionId, session.encode());
+				sessions.put(info.sessionId, marshal(session));
 			} catch (Exception e) {
 				logger.error("Error putting session in hazelcast map : " + info.sessionId, e);
 			}
+			invalidateCachedSession(info.sessionId);
 		}
 	}
 
+	private void invalidateCachedSession(String sessionId) {
+		eb.publish(SessionCache.INVALIDATE_ADDRESS, new JsonObject().put("sessionId", sessionId));
+	}
+
 	private void doRemoveAttribute(Message<JsonObject> message) {
 		JsonObject session = getSessionByUserId(message);
 		if (session == null) {
@@ -634,179 +659,43 @@ public class AuthManager extends BusModBase implements Handler<Message<JsonObjec
 				"COLLECT(distinct [s.id, s.name, s.hasApp]) as structures, COLLECT(distinct [f.externalId, rf.scope]) as functions, " +
 				"COLLECT(distinct s.UAI) as uai, " +
 				"COLLECT(distinct gp.id) as groupsIds, n.federatedIDP as federatedIDP, n.functions as aafFunctions";
-		final String query2 =
-				"MATCH (n:User {id : {id}})-[:IN]->()-[:AUTHORIZED]->(:Role)-[:AUTHORIZE]->(a:Action)" +
-				"<-[:PROVIDE]-(app:Application) " +
-				"WHERE HAS(n.login) " +
-				"RETURN DISTINCT COLLECT(distinct [a.name,a.displayName,a.type]) as authorizedActions, " +
-				"COLLECT(distinct [app.name,app.address,app.icon,app.target,app.displayName,app.display,app.prefix]) as apps";
-		final String query3 =
-				"MATCH (u:User {id: {id}})-[:IN]->(g:Group)-[auth:AUTHORIZED]->(w:Widget) " +
-				"WHERE HAS(u.login) " +
-				"AND ( NOT(w<-[:HAS_WIDGET]-(:Application)-[:PROVIDE]->(:WorkflowAction)) " +
-				"XOR w<-[:HAS_WIDGET]-(:Application)-[:PROVIDE]->(:WorkflowAction)<-[:AUTHORIZE]-(:Role)<-[:AUTHORIZED]-g )  " +
-				"OPTIONAL MATCH (w)<-[:HAS_WIDGET]-(app:Application) " +
-				"WITH w, app, collect(auth) as authorizations " +
-				"RETURN DISTINCT COLLECT({" +
-					"id: w.id, name: w.name, " +
-					"path: coalesce(app.address, '') + w.path, " +
-					"js: coalesce(app.address, '') + w.js, "+
-					"i18n: coalesce(app.address, '') + w.i18n, "+
-					"application: app.name, " +
-					"mandatory: ANY(a IN authorizations WHERE HAS(a.mandatory) AND a.mandatory = true)"+
-				"}) as widgets";
-		final String query4 = "MATCH (s:Structure) return s.id as id, s.externalId as externalId";
 		final String query5 = "MATCH (u:User {id: {id}})-[:PREFERS]->(uac:UserAppConf) RETURN uac AS preferences";
 		JsonObject params = new JsonObject();
 		params.put("id", userId);
 		JsonArray statements = new fr.wseduc.webutils.collections.JsonArray()
 				.add(new JsonObject().put("statement", query).put("parameters", params))
-				.add(new JsonObject().put("statement", query2).put("parameters", params))
-				.add(new JsonObject().put("statement", query3).put("parameters", params))
-				.add(new JsonObject().put("statement", query4))
 				.add(new JsonObject().put("statement", query5).put("parameters", params));
-		neo4j.executeTransaction(statements, null, true, new Handler<Message<JsonObject>>() {
+		neo4j.executeTransaction(statements, null, true, true, new Handler<Message<JsonObject>>() {
 
 			@Override
 			public void handle(Message<JsonObject> message) {
-				JsonArray results = message.body().getJsonArray("results");
-				if ("ok".equals(message.body().getString("status")) && results != null && results.size() == 5 &&
-						results.getJsonArray(0).size() > 0 && results.getJsonArray(1).size() > 0) {
-					JsonObject j = results.getJsonArray(0).getJsonObject(0);
-					JsonObject j2 = results.getJsonArray(1).getJsonObject(0);
-					JsonObject j3 = results.getJsonArray(2).getJsonObject(0);
-					JsonObject structureMapping = new JsonObject();
-					for (Object o : results.getJsonArray(3)) {
-						if (!(o instanceof JsonObject)) continue;
-						JsonObject jsonObject = (JsonObject) o;
-						structureMapping.put(jsonObject.getString("externalId"), jsonObject.getString("id"));
-					}
-					j.put("userId", userId);
-					JsonObject functions = new JsonObject();
-					JsonArray actions = new fr.wseduc.webutils.collections.JsonArray();
-					JsonArray apps = new fr.wseduc.webutils.collections.JsonArray();
-					for (Object o : getOrElse(j2.getJsonArray("authorizedActions"), new fr.wseduc.webutils.collections.JsonArray())) {
-						if (!(o instanceof JsonArray)) continue;
-						JsonArray a = (JsonArray) o;
-						actions.add(new JsonObject()
-								.put("name", a.getString(0))
-								.put("displayName", a.getString(1))
-								.put("type", a.getString(2)));
-					}
-					for (Object o : getOrElse(j2.getJsonArray("apps"), new fr.wseduc.webutils.collections.JsonArray())) {
-						if (!(o instanceof JsonArray)) continue;
-						JsonArray a = (JsonArray) o;
-						apps.add(new JsonObject()
-										.put("name", (String) a.getString(0))
-										.put("address", (String) a.getString(1))
-										.put("icon", (String) a.getString(2))
-										.put("target", (String) a.getString(3))
-										.put("displayName", (String) a.getString(4))
-										.put("display", ((a.getValue(5) == null) || a.getBoolean(5)))
-										.put("prefix", (String) a.getString(6))
-						);
-					}
-					for (Object o : getOrElse(j.getJsonArray("aafFunctions"), new fr.wseduc.webutils.collections.JsonArray())) {
-						if (o == null) continue;
-						String [] sf = o.toString().split("\\$");
-						if (sf.length == 5) {
-							JsonObject jo = functions.getJsonObject(sf[1]);
-							if (jo == null) {
-								jo = new JsonObject().put("code", sf[1])
-										.put("functionName", sf[2])
-										.put("scope", new fr.wseduc.webutils.collections.JsonArray())
-										.put("structureExternalIds", new fr.wseduc.webutils.collections.JsonArray())
-										.put("subjects", new JsonObject());
-								functions.put(sf[1], jo);
-							}
-							JsonObject subject = jo.getJsonObject("subjects").getJsonObject(sf[3]);
-							if (subject == null) {
-								subject = new JsonObject()
-										.put("subjectCode", sf[3])
-										.put("subjectName", sf[4])
-										.put("scope", new fr.wseduc.webutils.collections.JsonArray())
-										.put("structureExternalIds", new fr.wseduc.webutils.collections.JsonArray());
-								jo.getJsonObject("subjects").put(sf[3], subject);
-							}
-							jo.getJsonArray("structureExternalIds").add(sf[0]);
-							subject.getJsonArray("structureExternalIds").add(sf[0]);
-							String sid = structureMapping.getString(sf[0]);
-							if (sid != null) {
-								jo.getJsonArray("scope").add(sid);
-								subject.getJsonArray("scope").add(sid);
+				final JsonArray results = message.body().getJsonArray("results");
+				if ("ok".equals(message.body().getString("status")) && results != null && results.size() == 2 &&
+						results.getJsonArray(0).size() > 0) {
+					final JsonObject j = results.getJsonArray(0).getJsonObject(0);
+					final JsonObject cache = (results.getJsonArray(1) != null && results.getJsonArray(1).size() > 0 &&
+							results.getJsonArray(1).getJsonObject(0) != null) ? results.getJsonArray(1).getJsonObject(0) : new JsonObject();
+					sessionInfosCache.getRights(getOrElse(j.getJsonArray("groupsIds"), new fr.wseduc.webutils.collections.JsonArray()),
+							new Handler<JsonObject>() {
+						@Override
+						public void handle(final JsonObject rights) {
+							if (rights == null) {
+								handler.handle(null);
+								return;
 							}
-						}
-					}
-					j.remove("aafFunctions");
-					for (Object o : getOrElse(j.getJsonArray("functions"), new fr.wseduc.webutils.collections.JsonArray())) {
-						if (!(o instanceof JsonArray)) continue;
-						JsonArray a = (JsonArray) o;
-						String code = a.getString(0);
-						if (code != null) {
-							functions.put(code, new JsonObject()
-									.put("code", code)
-									.put("scope", a.getJsonArray(1))
-							);
-						}
-					}
-					final JsonObject children = new JsonObject();
-					final List<String> childrenIds = new ArrayList<String>();
-					for (Object o : getOrElse(j.getJsonArray("childrenInfo"), new fr.wseduc.webutils.collections.JsonArray())) {
-						if (!(o instanceof JsonArray)) continue;
-						final JsonArray a = (JsonArray) o;
-						final String childId = a.getString(0);
-						if (childId != null) {
-							childrenIds.add(childId);
-							JsonObject jo = children.getJsonObject(childId);
-							if (jo == null) {
-								jo = new JsonObject()
-										.put("lastName", a.getString(1))
-										.put("firstName", a.getString(2));
-								children.put(childId, jo);
+							final JsonArray aafFunctions = j.getJsonArray("aafFunctions");
+							if (aafFunctions == null || aafFunctions.isEmpty()) {
+								handler.handle(buildSessionInfos(userId, j, rights, cache, new JsonObject()));
+								return;
 							}
+							sessionInfosCache.getStructureMapping(new Handler<JsonObject>() {
+								@Override
+								public void handle(JsonObject structureMapping) {
+									handler.handle(buildSessionInfos(userId, j, rights, cache, structureMapping));
+								}
+							});
 						}
-					}
-					j.remove("childrenInfo");
-					final List<String> classesIds = new ArrayList<String>();
-					final List<String> classesNames = new ArrayList<String>() ;
-					for (Object o : getOrElse(j.getJsonArray("classes"), new fr.wseduc.webutils.collections.JsonArray())) {
-						if (!(o instanceof JsonArray)) continue;
-						final JsonArray c = (JsonArray) o;
-						if (c.getString(0) != null) {
-							classesIds.add(c.getString(0));
-							classesNames.add(c.getString(1));
-						}
-					}
-					j.remove("classes");
-					final List<String> structureIds = new ArrayList<String>();
-					final List<String> structureNames = new ArrayList<String>() ;
-					boolean hasApp = false;
-					for (Object o : getOrElse(j.getJsonArray("structures"), new fr.wseduc.webutils.collections.JsonArray())) {
-						if (!(o instanceof JsonArray)) continue;
-						final JsonArray s = (JsonArray) o;
-						if (s.getString(0) != null) {
-							structureIds.add(s.getString(0));
-							structureNames.add(StringUtils.trimToBlank(s.getString(1)));
-							if(getOrElse(s.getBoolean(2), false) && !hasApp)
-								hasApp = true;
-						}
-					}
-					j.remove("structures");
-					j.put("structures", new fr.wseduc.webutils.collections.JsonArray(structureIds));
-					j.put("structureNames", new fr.wseduc.webutils.collections.JsonArray(structureNames));
-					j.put("hasApp", hasApp);
-					j.put("classes", new fr.wseduc.webutils.collections.JsonArray(classesIds));
-					j.put("realClassesNames", new fr.wseduc.webutils.collections.JsonArray(classesNames));
-					j.put("functions", functions);
-					j.put("authorizedActions", actions);
-					j.put("apps", apps);
-					j.put("childrenIds", new fr.wseduc.webutils.collections.JsonArray(childrenIds));
-					j.put("children", children);
-					final JsonObject cache = (results.getJsonArray(4) != null && results.getJsonArray(4).size() > 0 &&
-							results.getJsonArray(4).getJsonObject(0) != null) ? results.getJsonArray(4).getJsonObject(0) : new JsonObject();
-					j.put("cache", cache);
-					j.put("widgets", getOrElse(j3.getJsonArray("widgets"), new fr.wseduc.webutils.collections.JsonArray()));
-					handler.handle(j);
+					});
 				} else {
 					handler.handle(null);
 				}
@@ -814,4 +703,109 @@ public class AuthManager extends BusModBase implements Handler<Message<JsonObjec
 		});
 	}
 
+	private JsonObject buildSessionInfos(String userId, JsonObject j, JsonObject rights, JsonObject cache,
+			JsonObject structureMapping) {
+		j.put("userId", userId);
+		JsonObject functions = new JsonObject();
+		for (Object o : getOrElse(j.getJsonArray("aafFunctions"), new fr.wseduc.webutils.collections.JsonArray())) {
+			if (o == null) continue;
+			String [] sf = o.toString().split("\\$");
+			if (sf.length == 5) {
+				JsonObject jo = functions.getJsonObject(sf[1]);
+				if (jo == null) {
+					jo = new JsonObject().put("code", sf[1])
+							.put("functionName", sf[2])
+							.put("scope", new fr.wseduc.webutils.collections.JsonArray())
+							.put("structureExternalIds", new fr.wseduc.webutils.collections.JsonArray())
+							.put("subjects", new JsonObject());
+					functions.put(sf[1], jo);
+				}
+				JsonObject subject = jo.getJsonObject("subjects").getJsonObject(sf[3]);
+				if (subject == null) {
+					subject = new JsonObject()
+							.put("subjectCode", sf[3])
+							.put("subjectName", sf[4])
+							.put("scope", new fr.wseduc.webutils.collections.JsonArray())
+							.put("structureExternalIds", new fr.wseduc.webutils.collections.JsonArray());
+					jo.getJsonObject("subjects").put(sf[3], subject);
+				}
+				jo.getJsonArray("structureExternalIds").add(sf[0]);
+				subject.getJsonArray("structureExternalIds").add(sf[0]);
+				String sid = structureMapping.getString(sf[0]);
+				if (sid != null) {
+					jo.getJsonArray("scope").add(sid);
+					subject.getJsonArray("scope").add(sid);
+				}
+			}
+		}
+		j.remove("aafFunctions");
+		for (Object o : getOrElse(j.getJsonArray("functions"), new fr.wseduc.webutils.collections.JsonArray())) {
+			if (!(o instanceof JsonArray)) continue;
+			JsonArray a = (JsonArray) o;
+			String code = a.getString(0);
+			if (code != null) {
+				functions.put(code, new JsonObject()
+						.put("code", code)
+						.put("scope", a.getJsonArray(1))
+				);
+			}
+		}
+		final JsonObject children = new JsonObject();
+		final List<String> childrenIds = new ArrayList<String>();
+		for (Object o : getOrElse(j.getJsonArray("childrenInfo"), new fr.wseduc.webutils.collections.JsonArray())) {
+			if (!(o instanceof JsonArray)) continue;
+			final JsonArray a = (JsonArray) o;
+			final String childId = a.getString(0);
+			if (childId != null) {
+				childrenIds.add(childId);
+				JsonObject jo = children.getJsonObject(childId);
+				if (jo == null) {
+					jo = new JsonObject()
+							.put("lastName", a.getString(1))
+							.put("firstName", a.getString(2));
+					children.put(childId, jo);
+				}
+			}
+		}
+		j.remove("childrenInfo");
+		final List<String> classesIds = new ArrayList<String>();
+		final List<String> classesNames = new ArrayList<String>() ;
+		for (Object o : getOrElse(j.getJsonArray("classes"), new fr.wseduc.webutils.collections.JsonArray())) {
+			if (!(o instanceof JsonArray)) continue;
+			final JsonArray c = (JsonArray) o;
+			if (c.getString(0) != null) {
+				classesIds.add(c.getString(0));
+				classesNames.add(c.getString(1));
+			}
+		}
+		j.remove("classes");
+		final List<String> structureIds = new ArrayList<String>();
+		final List<String> structureNames = new ArrayList<String>() ;
+		boolean hasApp = false;
+		for (Object o : getOrElse(j.getJsonArray("structures"), new fr.wseduc.webutils.collections.JsonArray())) {
+			if (!(o instanceof JsonArray)) continue;
+			final JsonArray s = (JsonArray) o;
+			if (s.getString(0) != null) {
+				structureIds.add(s.getString(0));
+				structureNames.add(StringUtils.trimToBlank(s.getString(1)));
+				if(getOrElse(s.getBoolean(2), false) && !hasApp)
+					hasApp = true;
+			}
+		}
+		j.remove("structures");
+		j.put("structures", new fr.wseduc.webutils.collections.JsonArray(structureIds));
+		j.put("structureNames", new fr.wseduc.webutils.collections.JsonArray(structureNames));
+		j.put("hasApp", hasApp);
+		j.put("classes", new fr.wseduc.webutils.collections.JsonArray(classesIds));
+		j.put("realClassesNames", new fr.wseduc.webutils.collections.JsonArray(classesNames));
+		j.put("functions", functions);
+		j.put("authorizedActions", rights.getJsonArray("authorizedActions").copy());
+		j.put("apps", rights.getJsonArray("apps").copy());
+		j.put("childrenIds", new fr.wseduc.webutils.collections.JsonArray(childrenIds));
+		j.put("children", children);
+		j.put("cache", cache);
+		j.put("widgets", rights.getJsonArray("widgets").copy());
+		return j;
+	}
+
 }
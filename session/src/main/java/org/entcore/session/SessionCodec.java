@@ -0,0 +1,302 @@
+/* Copyright © "Open Digital Education", 2014
+ *
+ * This program is published by "Open Digital Education".
+ * You must indicate the name of the software and the company in any production /contribution
+ * using the software and indicate on the home page of the software industry in question,
+ * "powered by Open Digital Education" with a reference to the website: https://opendigitaleducation.com/.
+ *
+ * This program is free software, licensed under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * You can redistribute this application and/or modify it since you respect the terms of the GNU Affero General Public License.
+ * If you modify the source code and then use this modified source code in your creation, you must make available the source code of your modifications.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with the software.
+ * If not, please see : <http://www.gnu.org/licenses/>. Full compliance requires reading the terms of this license and following its directives.
+
+ *
+ */
+
+package org.entcore.session;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Compact binary format of the sessions stored in the cluster map.
+ * Layout (version 1) : magic byte, version byte, string table, value tree.
+ * Every string (keys and values) is written once in the table and referenced by index
+ * in the tree. The table is seeded with the field names produced by
+ * AuthManager.generateSessionInfos, which are therefore never written.
+ */
+public final class SessionCodec {
+
+	private static final byte MAGIC = (byte) 0xE5;
+	private static final byte VERSION = 1;
+
+	private static final byte NULL = 0;
+	private static final byte TRUE = 1;
+	private static final byte FALSE = 2;
+	private static final byte INT = 3;
+	private static final byte LONG = 4;
+	private static final byte DOUBLE = 5;
+	private static final byte STRING = 6;
+	private static final byte OBJECT = 7;
+	private static final byte ARRAY = 8;
+
+	private static final String[] DICTIONARY = {
+			"userId", "login", "username", "type", "level", "lastName", "firstName", "externalId", "federated",
+			"birthDate", "forceChangePassword", "classNames", "structures", "structureNames", "hasApp", "classes",
+			"realClassesNames", "functions", "authorizedActions", "apps", "childrenIds", "children", "cache",
+			"widgets", "groupsIds", "uai", "federatedIDP", "name", "displayName", "address", "icon", "target",
+			"display", "prefix", "id", "path", "js", "i18n", "application", "mandatory", "code", "scope",
+			"functionName", "structureExternalIds", "subjects", "subjectCode", "subjectName", "preferences",
+			"SECURED_ACTION_WORKFLOW", "SECURED_ACTION_RESOURCE", "SECURED_ACTION_AUTHENTICATED",
+			"Student", "Teacher", "Relative", "Personnel", "Guest", "_self", "_blank", ""
+	};
+	private static final Map<String, Integer> DICTIONARY_INDEX = new HashMap<>();
+
+	static {
+		for (int i = 0; i < DICTIONARY.length; i++) {
+			DICTIONARY_INDEX.put(DICTIONARY[i], i);
+		}
+	}
+
+	private SessionCodec() {}
+
+	public static boolean isEncoded(Object o) {
+		return o instanceof byte[] && ((byte[]) o).length > 1 && ((byte[]) o)[0] == MAGIC;
+	}
+
+	public static byte[] encode(JsonObject session) {
+		final Map<String, Integer> strings = new LinkedHashMap<>();
+		collectStrings(session, strings);
+		final Output out = new Output();
+		out.write(MAGIC);
+		out.write(VERSION);
+		out.writeVarInt(strings.size());
+		for (String s : strings.keySet()) {
+			final byte[] b = s.getBytes(StandardCharsets.UTF_8);
+			out.writeVarInt(b.length);
+			out.write(b, 0, b.length);
+		}
+		writeValue(session, strings, out);
+		return out.toByteArray();
+	}
+
+	public static JsonObject decode(Object o) {
+		if (o == null) {
+			return null;
+		}
+		if (o instanceof String) {
+			return new JsonObject((String) o);
+		}
+		if (!isEncoded(o)) {
+			throw new IllegalArgumentException("Invalid session format.");
+		}
+		final Input in = new Input((byte[]) o);
+		in.pos = 1;
+		final byte version = in.read();
+		if (version != VERSION) {
+			throw new IllegalArgumentException("Unsupported session format version : " + version);
+		}
+		final int size = in.readVarInt();
+		final String[] table = new String[DICTIONARY.length + size];
+		System.arraycopy(DICTIONARY, 0, table, 0, DICTIONARY.length);
+		for (int i = DICTIONARY.length; i < table.length; i++) {
+			final int length = in.readVarInt();
+			table[i] = new String(in.buf, in.pos, length, StandardCharsets.UTF_8);
+			in.pos += length;
+		}
+		final Object session = readValue(in, table);
+		if (!(session instanceof JsonObject)) {
+			throw new IllegalArgumentException("Invalid session format.");
+		}
+		return (JsonObject) session;
+	}
+
+	private static void collectString(String s, Map<String, Integer> strings) {
+		if (!DICTIONARY_INDEX.containsKey(s) && !strings.containsKey(s)) {
+			strings.put(s, DICTIONARY.length + strings.size());
+		}
+	}
+
+	private static void collectStrings(Object value, Map<String, Integer> strings) {
+		if (value instanceof JsonObject) {
+			for (Map.Entry<String, Object> e : ((JsonObject) value)) {
+				collectString(e.getKey(), strings);
+				collectStrings(e.getValue(), strings);
+			}
+		} else if (value instanceof JsonArray) {
+			for (Object o : (JsonArray) value) {
+				collectStrings(o, strings);
+			}
+		} else if (value instanceof Map) {
+			collectStrings(new JsonObject((Map) value), strings);
+		} else if (value instanceof List) {
+			collectStrings(new JsonArray((List) value), strings);
+		} else if (value instanceof CharSequence) {
+			collectString(value.toString(), strings);
+		}
+	}
+
+	private static int stringIndex(String s, Map<String, Integer> strings) {
+		final Integer idx = DICTIONARY_INDEX.get(s);
+		return (idx != null) ? idx : strings.get(s);
+	}
+
+	private static void writeValue(Object value, Map<String, Integer> strings, Output out) {
+		if (value == null) {
+			out.write(NULL);
+		} else if (value instanceof Boolean) {
+			out.write(((Boolean) value) ? TRUE : FALSE);
+		} else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+			out.write(INT);
+			out.writeVarLong(zigZag(((Number) value).intValue()));
+		} else if (value instanceof Long) {
+			out.write(LONG);
+			out.writeVarLong(zigZag((Long) value));
+		} else if (value instanceof Number) {
+			out.write(DOUBLE);
+			out.writeLong(Double.doubleToLongBits(((Number) value).doubleValue()));
+		} else if (value instanceof CharSequence) {
+			out.write(STRING);
+			out.writeVarInt(stringIndex(value.toString(), strings));
+		} else if (value instanceof JsonObject) {
+			final JsonObject o = (JsonObject) value;
+			out.write(OBJECT);
+			out.writeVarInt(o.size());
+			for (Map.Entry<String, Object> e : o) {
+				out.writeVarInt(stringIndex(e.getKey(), strings));
+				writeValue(e.getValue(), strings, out);
+			}
+		} else if (value instanceof JsonArray) {
+			final JsonArray a = (JsonArray) value;
+			out.write(ARRAY);
+			out.writeVarInt(a.size());
+			for (Object o : a) {
+				writeValue(o, strings, out);
+			}
+		} else if (value instanceof Map) {
+			writeValue(new JsonObject((Map) value), strings, out);
+		} else if (value instanceof List) {
+			writeValue(new JsonArray((List) value), strings, out);
+		} else {
+			throw new IllegalArgumentException("Unsupported session value type : " + value.getClass().getName());
+		}
+	}
+
+	private static Object readValue(Input in, String[] table) {
+		final byte type = in.read();
+		switch (type) {
+			case NULL:
+				return null;
+			case TRUE:
+				return Boolean.TRUE;
+			case FALSE:
+				return Boolean.FALSE;
+			case INT:
+				return (int) unZigZag(in.readVarLong());
+			case LONG:
+				return unZigZag(in.readVarLong());
+			case DOUBLE:
+				return Double.longBitsToDouble(in.readLong());
+			case STRING:
+				return table[in.readVarInt()];
+			case OBJECT:
+				final int fields = in.readVarInt();
+				final JsonObject o = new JsonObject(new LinkedHashMap<>(Math.max(16, fields * 2)));
+				for (int i = 0; i < fields; i++) {
+					final String key = table[in.readVarInt()];
+					o.put(key, readValue(in, table));
+				}
+				return o;
+			case ARRAY:
+				final int size = in.readVarInt();
+				final JsonArray a = new fr.wseduc.webutils.collections.JsonArray();
+				for (int i = 0; i < size; i++) {
+					a.add(readValue(in, table));
+				}
+				return a;
+			default:
+				throw new IllegalArgumentException("Invalid session value type : " + type);
+		}
+	}
+
+	private static long zigZag(long n) {
+		return (n << 1) ^ (n >> 63);
+	}
+
+	private static long unZigZag(long n) {
+		return (n >>> 1) ^ -(n & 1);
+	}
+
+	private static final class Output extends ByteArrayOutputStream {
+
+		private Output() {
+			super(1024);
+		}
+
+		private void writeVarInt(int v) {
+			writeVarLong(v & 0xFFFFFFFFL);
+		}
+
+		private void writeVarLong(long v) {
+			while ((v & ~0x7FL) != 0) {
+				write((int) ((v & 0x7F) | 0x80));
+				v >>>= 7;
+			}
+			write((int) v);
+		}
+
+		private void writeLong(long v) {
+			for (int i = 56; i >= 0; i -= 8) {
+				write((int) (v >>> i) & 0xFF);
+			}
+		}
+
+	}
+
+	private static final class Input {
+		private final byte[] buf;
+		private int pos;
+
+		private Input(byte[] buf) {
+			this.buf = buf;
+		}
+
+		private byte read() {
+			return buf[pos++];
+		}
+
+		private int readVarInt() {
+			return (int) readVarLong();
+		}
+
+		private long readVarLong() {
+			long result = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = buf[pos++];
+				result |= (long) (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			return result;
+		}
+
+		private long readLong() {
+			long v = 0;
+			for (int i = 0; i < 8; i++) {
+				v = (v << 8) | (buf[pos++] & 0xFF);
+			}
+			return v;
+		}
+
+	}
+
+}
@@ -0,0 +1,234 @@
+/* Copyright © "Open Digital Education", 2014
+ *
+ * This program is published by "Open Digital Education".
+ * You must indicate the name of the software and the company in any production /contribution
+ * using the software and indicate on the home page of the software industry in question,
+ * "powered by Open Digital Education" with a reference to the website: https://opendigitaleducation.com/.
+ *
+ * This program is free software, licensed under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * You can redistribute this application and/or modify it since you respect the terms of the GNU Affero General Public License.
+ * If you modify the source code and then use this modified source code in your creation, you must make available the source code of your modifications.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with the software.
+ * If not, please see : <http://www.gnu.org/licenses/>. Full compliance requires reading the terms of this license and following its directives.
+
+ *
+ */
+
+package org.entcore.session;
+
+import fr.wseduc.webutils.security.Sha256;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.Message;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import org.entcore.common.appregistry.AppRegistryEventsHandler;
+import org.entcore.common.appregistry.AppRegistryEventsService;
+import org.entcore.common.neo4j.Neo4j;
+
+import java.util.*;
+
+import static fr.wseduc.webutils.Utils.getOrElse;
+
+/**
+ * Caches the parts of the session infos which only depend on the platform or on the user's groups :
+ * the structures externalId to id mapping, and the authorized actions, apps and widgets keyed by
+ * a hash of the sorted groupsIds.
+ * Both are dropped on app-registry events (rights updated, import succeeded) and expire after a ttl.
+ */
+public class SessionInfosCache implements AppRegistryEventsService {
+
+	private static final Logger log = LoggerFactory.getLogger(SessionInfosCache.class);
+	private static final String RIGHTS_QUERY =
+			"MATCH (g:Group)-[:AUTHORIZED]->(:Role)-[:AUTHORIZE]->(a:Action)<-[:PROVIDE]-(app:Application) " +
+			"WHERE g.id IN {groupsIds} " +
+			"RETURN DISTINCT COLLECT(distinct [a.name,a.displayName,a.type]) as authorizedActions, " +
+			"COLLECT(distinct [app.name,app.address,app.icon,app.target,app.displayName,app.display,app.prefix]) as apps";
+	private static final String WIDGETS_QUERY =
+			"MATCH (g:Group)-[auth:AUTHORIZED]->(w:Widget) " +
+			"WHERE g.id IN {groupsIds} " +
+			"AND ( NOT(w<-[:HAS_WIDGET]-(:Application)-[:PROVIDE]->(:WorkflowAction)) " +
+			"XOR w<-[:HAS_WIDGET]-(:Application)-[:PROVIDE]->(:WorkflowAction)<-[:AUTHORIZE]-(:Role)<-[:AUTHORIZED]-g )  " +
+			"OPTIONAL MATCH (w)<-[:HAS_WIDGET]-(app:Application) " +
+			"WITH w, app, collect(auth) as authorizations " +
+			"RETURN DISTINCT COLLECT({" +
+				"id: w.id, name: w.name, " +
+				"path: coalesce(app.address, '') + w.path, " +
+				"js: coalesce(app.address, '') + w.js, "+
+				"i18n: coalesce(app.address, '') + w.i18n, "+
+				"application: app.name, " +
+				"mandatory: ANY(a IN authorizations WHERE HAS(a.mandatory) AND a.mandatory = true)"+
+			"}) as widgets";
+	private static final String STRUCTURES_QUERY = "MATCH (s:Structure) return s.id as id, s.externalId as externalId";
+
+	private final Neo4j neo4j;
+	private final Map<String, CachedRights> rights;
+	private final long rightsTtl;
+	private final long structureMappingTtl;
+	private JsonObject structureMapping;
+	private long structureMappingExpire;
+	private long rightsGeneration = 0;
+
+	private static final class CachedRights {
+		private final JsonObject rights;
+		private final long expire;
+
+		private CachedRights(JsonObject rights, long expire) {
+			this.rights = rights;
+			this.expire = expire;
+		}
+	}
+
+	public SessionInfosCache(Vertx vertx, Neo4j neo4j, JsonObject config) {
+		this.neo4j = neo4j;
+		final int maxSize = config.getInteger("max-size", 5000);
+		this.rightsTtl = config.getLong("rights-ttl", 10 * 60 * 1000L);
+		this.structureMappingTtl = config.getLong("structure-mapping-ttl", 60 * 60 * 1000L);
+		this.rights = new LinkedHashMap<String, CachedRights>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedRights> eldest) {
+				return size() > maxSize;
+			}
+		};
+		new AppRegistryEventsHandler(vertx, this, true);
+	}
+
+	public void getStructureMapping(final Handler<JsonObject> handler) {
+		if (structureMapping != null && structureMappingExpire > System.currentTimeMillis()) {
+			handler.handle(structureMapping);
+			return;
+		}
+		neo4j.execute(STRUCTURES_QUERY, new JsonObject(), new Handler<Message<JsonObject>>() {
+			@Override
+			public void handle(Message<JsonObject> message) {
+				final JsonArray result = message.body().getJsonArray("result");
+				if (!"ok".equals(message.body().getString("status")) || result == null) {
+					log.error("Error loading structures mapping : " + message.body().getString("message"));
+					handler.handle(structureMapping != null ? structureMapping : new JsonObject());
+					return;
+				}
+				final JsonObject mapping = new JsonObject();
+				for (Object o : result) {
+					if (!(o instanceof JsonObject)) continue;
+					final JsonObject s = (JsonObject) o;
+					mapping.put(s.getString("externalId"), s.getString("id"));
+				}
+				structureMapping = mapping;
+				structureMappingExpire = System.currentTimeMillis() + structureMappingTtl;
+				handler.handle(mapping);
+			}
+		});
+	}
+
+	/**
+	 * Returns authorizedActions, apps and widgets of a groups set.
+	 * The returned object is shared and must not be modified.
+	 */
+	public void getRights(JsonArray groupsIds, final Handler<JsonObject> handler) {
+		final List<String> groups = new ArrayList<>();
+		for (Object o : groupsIds) {
+			if (o instanceof String) {
+				groups.add((String) o);
+			}
+		}
+		Collections.sort(groups);
+		final String key;
+		try {
+			key = Sha256.hash(String.join(",", groups));
+		} catch (Exception e) {
+			log.error("Error hashing groups ids.", e);
+			loadRights(groups, handler);
+			return;
+		}
+		final CachedRights cached = rights.get(key);
+		if (cached != null && cached.expire > System.currentTimeMillis()) {
+			handler.handle(cached.rights);
+			return;
+		}
+		final long generation = rightsGeneration;
+		loadRights(groups, new Handler<JsonObject>() {
+			@Override
+			public void handle(JsonObject r) {
+				if (r != null && generation == rightsGeneration) {
+					rights.put(key, new CachedRights(r, System.currentTimeMillis() + rightsTtl));
+				}
+				handler.handle(r);
+			}
+		});
+	}
+
+	private void loadRights(List<String> groups, final Handler<JsonObject> handler) {
+		final JsonObject params = new JsonObject().put("groupsIds", new fr.wseduc.webutils.collections.JsonArray(groups));
+		final JsonArray statements = new fr.wseduc.webutils.collections.JsonArray()
+				.add(new JsonObject().put("statement", RIGHTS_QUERY).put("parameters", params))
+				.add(new JsonObject().put("statement", WIDGETS_QUERY).put("parameters", params));
+		neo4j.executeTransaction(statements, null, true, true, new Handler<Message<JsonObject>>() {
+			@Override
+			public void handle(Message<JsonObject> message) {
+				final JsonArray results = message.body().getJsonArray("results");
+				if (!"ok".equals(message.body().getString("status")) || results == null || results.size() != 2 ||
+						results.getJsonArray(0).size() == 0) {
+					handler.handle(null);
+					return;
+				}
+				final JsonObject j2 = results.getJsonArray(0).getJsonObject(0);
+				final JsonObject j3 = results.getJsonArray(1).size() > 0 ?
+						results.getJsonArray(1).getJsonObject(0) : new JsonObject();
+				final JsonArray actions = new fr.wseduc.webutils.collections.JsonArray();
+				final JsonArray apps = new fr.wseduc.webutils.collections.JsonArray();
+				for (Object o : getOrElse(j2.getJsonArray("authorizedActions"), new fr.wseduc.webutils.collections.JsonArray())) {
+					if (!(o instanceof JsonArray)) continue;
+					JsonArray a = (JsonArray) o;
+					actions.add(new JsonObject()
+							.put("name", a.getString(0))
+							.put("displayName", a.getString(1))
+							.put("type", a.getString(2)));
+				}
+				for (Object o : getOrElse(j2.getJsonArray("apps"), new fr.wseduc.webutils.collections.JsonArray())) {
+					if (!(o instanceof JsonArray)) continue;
+					JsonArray a = (JsonArray) o;
+					apps.add(new JsonObject()
+									.put("name", (String) a.getString(0))
+									.put("address", (String) a.getString(1))
+									.put("icon", (String) a.getString(2))
+									.put("target", (String) a.getString(3))
+									.put("displayName", (String) a.getString(4))
+									.put("display", ((a.getValue(5) == null) || a.getBoolean(5)))
+									.put("prefix", (String) a.getString(6))
+					);
+				}
+				handler.handle(new JsonObject()
+						.put("authorizedActions", actions)
+						.put("apps", apps)
+						.put("widgets", getOrElse(j3.getJsonArray("widgets"), new fr.wseduc.webutils.collections.JsonArray())));
+			}
+		});
+	}
+
+	public void clearRights() {
+		rightsGeneration++;
+		rights.clear();
+	}
+
+	@Override
+	public void authorizedActionsUpdated(JsonArray groups) {
+		clearRights();
+	}
+
+	@Override
+	public void userGroupUpdated(JsonArray users, Message<JsonObject> message) {
+		message.reply(new JsonObject().put("status", "ok"));
+	}
+
+	@Override
+	public void importSucceeded() {
+		clearRights();
+		structureMapping = null;
+	}
+
+}
@@ -0,0 +1,108 @@
+/* Copyright © "Open Digital Education", 2014
+ *
+ * This program is published by "Open Digital Education".
+ * You must indicate the name of the software and the company in any production /contribution
+ * using the software and indicate on the home page of the software industry in question,
+ * "powered by Open Digital Education" with a reference to the website: https://opendigitaleducation.com/.
+ *
+ * This program is free software, licensed under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * You can redistribute this application and/or modify it since you respect the terms of the GNU Affero General Public License.
+ * If you modify the source code and then use this modified source code in your creation, you must make available the source code of your modifications.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with the software.
+ * If not, please see : <http://www.gnu.org/licenses/>. Full compliance requires reading the terms of this license and following its directives.
+
+ *
+ */
+
+package org.entcore.session;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SessionCodecTest {
+
+	@Test
+	public void roundTripNestedObjectsAndArrays() {
+		final JsonObject session = new JsonObject()
+				.put("userId", "7b0c8a3e-1f2d-4c5e-9a6b-0d1e2f3a4b5c")
+				.put("login", "jean.dupont")
+				.put("username", "Jean DUPONT")
+				.put("type", "Teacher")
+				.put("level", "")
+				.put("birthDate", (String) null)
+				.put("forceChangePassword", false)
+				.put("federated", true)
+				.put("classNames", new fr.wseduc.webutils.collections.JsonArray().add("6\u00e8me A").add("6\u00e8me B"))
+				.put("functions", new JsonObject().put("ADMIN_LOCAL", new JsonObject()
+						.put("code", "ADMIN_LOCAL")
+						.put("scope", new fr.wseduc.webutils.collections.JsonArray().add("s1").add("s2"))))
+				.put("authorizedActions", new fr.wseduc.webutils.collections.JsonArray()
+						.add(new JsonObject().put("name", "org.entcore.workspace.controllers.WorkspaceController|view")
+								.put("displayName", "workspace.view").put("type", "SECURED_ACTION_WORKFLOW"))
+						.add(new JsonObject().put("name", "org.entcore.timeline.controllers.TimelineController|view")
+								.put("displayName", "timeline.view").put("type", "SECURED_ACTION_WORKFLOW")))
+				.put("cache", new JsonObject()
+						.put("matrix", new fr.wseduc.webutils.collections.JsonArray()
+								.add(new fr.wseduc.webutils.collections.JsonArray().add(1).add(-2))
+								.add(new fr.wseduc.webutils.collections.JsonArray()))
+						.put("empty", new JsonObject())
+						.put("quota", 104857600L)
+						.put("negative", -5000000000L)
+						.put("ratio", 0.75)
+						.put("nothing", (Object) null));
+		final Object encoded = SessionCodec.encode(session);
+		assertTrue(SessionCodec.isEncoded(encoded));
+		final JsonObject decoded = SessionCodec.decode(encoded);
+		assertEquals(session.encode(), decoded.encode());
+		assertEquals(Arrays.asList(session.fieldNames().toArray()), Arrays.asList(decoded.fieldNames().toArray()));
+		assertTrue(decoded.getValue("cache") instanceof JsonObject);
+		assertTrue(decoded.getJsonObject("cache").getValue("matrix") instanceof JsonArray);
+		assertEquals(Integer.valueOf(-2), decoded.getJsonObject("cache").getJsonArray("matrix").getJsonArray(0).getValue(1));
+		assertEquals(Long.valueOf(-5000000000L), decoded.getJsonObject("cache").getValue("negative"));
+		assertEquals(Long.valueOf(104857600L), decoded.getJsonObject("cache").getValue("quota"));
+		assertTrue(decoded.getJsonObject("cache").containsKey("nothing"));
+		assertNull(decoded.getJsonObject("cache").getValue("nothing"));
+		assertEquals("ADMIN_LOCAL", decoded.getJsonObject("functions").getJsonObject("ADMIN_LOCAL").getString("code"));
+		assertEquals("s2", decoded.getJsonObject("functions").getJsonObject("ADMIN_LOCAL").getJsonArray("scope").getString(1));
+	}
+
+	@Test
+	public void repeatedStringsAreWrittenOnce() {
+		final String value = "a value repeated in every entry of the array";
+		final JsonArray values = new fr.wseduc.webutils.collections.JsonArray();
+		for (int i = 0; i < 100; i++) {
+			values.add(new JsonObject().put("repeatedKey", value));
+		}
+		final byte[] encoded = SessionCodec.encode(new JsonObject().put("values", values));
+		assertTrue(encoded.length < values.size() * value.length() / 4);
+		assertEquals(value, SessionCodec.decode(encoded).getJsonArray("values").getJsonObject(99).getString("repeatedKey"));
+	}
+
+	@Test
+	public void decodesJsonSessions() {
+		final JsonObject session = new JsonObject().put("userId", "u1")
+				.put("groupsIds", new fr.wseduc.webutils.collections.JsonArray().add("g1"));
+		assertFalse(SessionCodec.isEncoded(session.encode()));
+		assertEquals(session.encode(), SessionCodec.decode(session.encode()).encode());
+		assertNull(SessionCodec.decode(null));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsUnknownVersion() {
+		final byte[] encoded = SessionCodec.encode(new JsonObject().put("userId", "u1"));
+		encoded[1] = 2;
+		SessionCodec.decode(encoded);
+	}
+
+}
@@ -34,6 +34,7 @@ import org.entcore.timeline.controllers.helper.NotificationHelper;
 import org.entcore.timeline.services.impl.DefaultPushNotifService;
 import org.entcore.timeline.services.impl.DefaultTimelineConfigService;
 import org.entcore.timeline.services.impl.DefaultTimelineMailerService;
+import org.entcore.timeline.services.impl.NotificationsRegistry;
 import org.entcore.timeline.controllers.FlashMsgController;
 import org.entcore.timeline.controllers.TimelineController;
 import org.entcore.timeline.cron.DailyMailingCronTask;
@@ -52,8 +53,10 @@ public class Timeline extends BaseServer {
 		final LocalMap<String,String> eventsI18n = vertx.sharedData().getLocalMap("timelineEventsI18n");
 		final HashMap<String, JsonObject> lazyEventsI18n = new HashMap<>();
 
+		final NotificationsRegistry notificationsRegistry = new NotificationsRegistry(vertx, registeredNotifications);
 		final DefaultTimelineConfigService configService = new DefaultTimelineConfigService("timeline.config");
-		configService.setRegisteredNotifications(registeredNotifications);
+		configService.setNotificationsRegistry(notificationsRegistry);
+		configService.setEventBus(vertx.eventBus());
 		final DefaultTimelineMailerService mailerService = new DefaultTimelineMailerService(vertx, config);
 		mailerService.setConfigService(configService);
 		mailerService.setRegisteredNotifications(registeredNotifications);
@@ -68,7 +71,7 @@ public class Timeline extends BaseServer {
 		final TimelineController timelineController = new TimelineController();
 		timelineController.setConfigService(configService);
 		timelineController.setMailerService(mailerService);
-		timelineController.setRegisteredNotifications(registeredNotifications);
+		timelineController.setNotificationsRegistry(notificationsRegistry);
 		timelineController.setEventsI18n(eventsI18n);
 		timelineController.setLazyEventsI18n(lazyEventsI18n);
 
@@ -78,8 +81,9 @@ public class Timeline extends BaseServer {
 					null, null, null,
 					pushNotif.getString("tokenUrn"), null, vertx,
 					pushNotif.getInteger("poolSize", 16), true);
-			OssFcm oss = new OssFcm(googleOAuth2SSO, pushNotif.getString("client_mail") , pushNotif.getString("scope"),
-					pushNotif.getString("aud"), pushNotif.getString("url"), pushNotif.getString("key"));
+			OssFcm oss = new OssFcm(vertx, googleOAuth2SSO, pushNotif.getString("client_mail") , pushNotif.getString("scope"),
+					pushNotif.getString("aud"), pushNotif.getString("url"), pushNotif.getString("key"),
+					pushNotif.getInteger("maxConcurrentSends", 16));
 
 			final DefaultPushNotifService pushNotifService = new DefaultPushNotifService(vertx, config, oss);
 			pushNotifService.setEventsI18n(eventsI18n);
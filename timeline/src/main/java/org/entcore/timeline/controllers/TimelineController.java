@@ -19,6 +19,7 @@
 
 package org.entcore.timeline.controllers;
 
+import com.samskivert.mustache.MustacheException;
 import fr.wseduc.bus.BusAddress;
 import fr.wseduc.rs.Delete;
 import fr.wseduc.rs.Get;
@@ -56,10 +57,10 @@ import io.vertx.core.http.HttpServerRequest;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import org.entcore.timeline.services.TimelinePushNotifService;
+import org.entcore.timeline.services.impl.NotificationsRegistry;
 import org.vertx.java.core.http.RouteMatcher;
 
-import java.io.StringReader;
-import java.io.Writer;
+import java.io.StringWriter;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -72,7 +73,7 @@ public class TimelineController extends BaseController {
 	private TimelineConfigService configService;
 	private TimelineMailerService mailerService;
 	private TimelinePushNotifService pushNotifService;
-	private Map<String, String> registeredNotifications;
+	private NotificationsRegistry notificationsRegistry;
 	private LocalMap<String, String> eventsI18n;
 	private HashMap<String, JsonObject> lazyEventsI18n;
 	private Set<String> antiFlood;
@@ -135,11 +136,8 @@ public class TimelineController extends BaseController {
 	@SecuredAction(value = "", type = ActionType.AUTHENTICATED)
 	public void registeredNotifications(HttpServerRequest request) {
 		JsonArray reply = new fr.wseduc.webutils.collections.JsonArray();
-		for (String key : registeredNotifications.keySet()) {
-			JsonObject notif = new JsonObject(registeredNotifications.get(key))
-					.put("key", key);
-			notif.remove("template");
-			reply.add(notif);
+		for (NotificationsRegistry.RegisteredNotification notif : notificationsRegistry.all()) {
+			reply.add(notif.toJson());
 		}
 		renderJson(request, reply);
 	}
@@ -168,69 +166,34 @@ public class TimelineController extends BaseController {
 								return;
 							}
 
-							String page = request.params().get("page");
+							final String cursor = request.params().get("cursor");
 							List<String> types = request.params().getAll("type");
-							int offset = 0;
-							try {
-								offset = 25 * Integer.parseInt(page);
-							} catch (NumberFormatException e) {}
-
-							store.get(user, types, offset, 25, notifs.right().getValue(), mine, version, new Handler<JsonObject>() {
+							final Handler<JsonObject> handler = new Handler<JsonObject>() {
 								public void handle(final JsonObject res) {
 									if (res != null && "ok".equals(res.getString("status"))) {
 										if ("2.0".equals(version)) {
 											renderJson(request, res);
 											return;
 										}
-										JsonArray results = res.getJsonArray("results", new fr.wseduc.webutils.collections.JsonArray());
-										final JsonArray compiledResults = new fr.wseduc.webutils.collections.JsonArray();
-
-										final AtomicInteger countdown = new AtomicInteger(results.size());
-										final Handler<Void> endHandler = new Handler<Void>() {
-											public void handle(Void v) {
-												if (countdown.decrementAndGet() <= 0) {
-													res.put("results", compiledResults);
-													renderJson(request, res);
-												}
-											}
-										};
-										if (results.size() == 0)
-											endHandler.handle(null);
-
-										for (Object notifObj : results) {
-											final JsonObject notif = (JsonObject) notifObj;
-											if (!notif.getString("message", "").isEmpty()) {
-												compiledResults.add(notif);
-												endHandler.handle(null);
-												continue;
-											}
-
-											String key = notif.getString("type", "").toLowerCase()
-												+ "."
-												+ notif.getString("event-type", "").toLowerCase();
-
-											String stringifiedRegisteredNotif = registeredNotifications.get(key);
-											if (stringifiedRegisteredNotif == null) {
-												log.error("Failed to retrieve registered from the shared map notification with key : " + key);
-												endHandler.handle(null);
-												continue;
-											}
-											JsonObject registeredNotif = new JsonObject(stringifiedRegisteredNotif);
-
-											StringReader reader = new StringReader(registeredNotif.getString("template", ""));
-											processTemplate(request,notif.getJsonObject("params",new JsonObject()),key, reader, new Handler<Writer>() {
-												public void handle(Writer writer) {
-													notif.put("message", writer.toString());
-													compiledResults.add(notif);
-													endHandler.handle(null);
-												}
-											});
-										}
+										res.put("results", compileNotifications(request,
+												res.getJsonArray("results", new fr.wseduc.webutils.collections.JsonArray())));
+										renderJson(request, res);
+									} else if (res != null && "invalid.cursor".equals(res.getString("message"))) {
+										badRequest(request, "invalid.cursor");
 									} else {
 										renderError(request, res);
 									}
 								}
-							});
+							};
+							if (cursor != null && !cursor.isEmpty()) {
+								store.get(user, types, cursor, 25, notifs.right().getValue(), mine, version, handler);
+							} else {
+								int offset = 0;
+								try {
+									offset = 25 * Integer.parseInt(request.params().get("page"));
+								} catch (NumberFormatException e) {}
+								store.get(user, types, offset, 25, notifs.right().getValue(), mine, version, handler);
+							}
 						}
 					});
 
@@ -323,9 +286,9 @@ public class TimelineController extends BaseController {
 				JsonArray admcDefaults = event.right().getValue();
 				JsonArray reply = new fr.wseduc.webutils.collections.JsonArray();
 
-				for (String key : registeredNotifications.keySet()) {
-					JsonObject notif = new JsonObject(registeredNotifications.get(key)).put("key", key);
-					notif.remove("template");
+				for (NotificationsRegistry.RegisteredNotification registered : notificationsRegistry.all()) {
+					final String key = registered.getKey();
+					JsonObject notif = registered.toJson();
 					for(Object admcDefaultObj : admcDefaults){
 						JsonObject admcDefault = (JsonObject) admcDefaultObj;
 						if(admcDefault.getString("key", "").equals(key)){
@@ -346,6 +309,10 @@ public class TimelineController extends BaseController {
 	@SecuredAction(type = ActionType.RESOURCE, value = "")
 	@ResourceFilter(SuperAdminFilter.class)
 	public void performDailyMailing(final HttpServerRequest request) {
+		if (request.params().contains("progress")) {
+			renderJson(request, mailerService.getMailingProgress(TimelineNotificationsLoader.Frequencies.DAILY.name()));
+			return;
+		}
 		mailerService.sendDailyMails(0, defaultResponseHandler(request));
 	}
 
@@ -353,6 +320,10 @@ public class TimelineController extends BaseController {
 	@SecuredAction(type = ActionType.RESOURCE, value = "")
 	@ResourceFilter(SuperAdminFilter.class)
 	public void performWeeklyMailing(final HttpServerRequest request) {
+		if (request.params().contains("progress")) {
+			renderJson(request, mailerService.getMailingProgress(TimelineNotificationsLoader.Frequencies.WEEKLY.name()));
+			return;
+		}
 		mailerService.sendWeeklyMails(0, defaultResponseHandler(request));
 	}
 
@@ -481,51 +452,44 @@ public class TimelineController extends BaseController {
 					return;
 				}
 
-				final JsonArray results = event.right().getValue();
-				final JsonArray compiledResults = new fr.wseduc.webutils.collections.JsonArray();
+				renderJson(request, compileNotifications(request, event.right().getValue()));
+			}
+		});
+	}
 
-				final AtomicInteger countdown = new AtomicInteger(results.size());
-				final Handler<Void> endHandler = new Handler<Void>() {
-					public void handle(Void v) {
-						if (countdown.decrementAndGet() <= 0) {
-							renderJson(request, compiledResults);
-						}
-					}
-				};
-				if (results.size() == 0)
-					endHandler.handle(null);
-
-				for (Object notifObj : results) {
-					final JsonObject notif = (JsonObject) notifObj;
-					if (!notif.getString("message", "").isEmpty()) {
-						compiledResults.add(notif);
-						endHandler.handle(null);
-						continue;
-					}
+	/**
+	 * Renders the messages of the notifications with the compiled templates of the registry, in a single pass.
+	 */
+	private JsonArray compileNotifications(HttpServerRequest request, JsonArray results) {
+		final JsonArray compiledResults = new fr.wseduc.webutils.collections.JsonArray();
+		for (Object notifObj : results) {
+			final JsonObject notif = (JsonObject) notifObj;
+			if (!notif.getString("message", "").isEmpty()) {
+				compiledResults.add(notif);
+				continue;
+			}
 
-					String key = notif.getString("type", "").toLowerCase()
-							+ "."
-							+ notif.getString("event-type", "").toLowerCase();
+			String key = notif.getString("type", "").toLowerCase()
+					+ "."
+					+ notif.getString("event-type", "").toLowerCase();
 
-					String stringifiedRegisteredNotif = registeredNotifications.get(key);
-					if (stringifiedRegisteredNotif == null) {
-						log.error("Failed to retrieve registered from the shared map notification with key : " + key);
-						endHandler.handle(null);
-						continue;
-					}
-					JsonObject registeredNotif = new JsonObject(stringifiedRegisteredNotif);
-
-					StringReader reader = new StringReader(registeredNotif.getString("template", ""));
-					processTemplate(request,notif.getJsonObject("params",new JsonObject()),key, reader, new Handler<Writer>() {
-						public void handle(Writer writer) {
-							notif.put("message", writer.toString());
-							compiledResults.add(notif);
-							endHandler.handle(null);
-						}
-					});
-				}
+			final NotificationsRegistry.RegisteredNotification registeredNotif = notificationsRegistry.get(key);
+			if (registeredNotif == null) {
+				log.error("Failed to retrieve registered from the shared map notification with key : " + key);
+				continue;
 			}
-		});
+			try {
+				final Map<String, Object> ctx = notif.getJsonObject("params", new JsonObject()).copy().getMap();
+				setLambdaTemplateRequest(request, ctx);
+				final StringWriter writer = new StringWriter();
+				registeredNotif.getTemplate().execute(ctx, writer);
+				notif.put("message", writer.toString());
+				compiledResults.add(notif);
+			} catch (MustacheException e) {
+				log.error("Failed to render notification with key : " + key, e);
+			}
+		}
+		return compiledResults;
 	}
 
 	@Put("/:id/action/keep")
@@ -749,35 +713,7 @@ public class TimelineController extends BaseController {
 	}
 
 	private void getExternalNotifications(final Handler<Either<String, JsonObject>> handler) {
-		configService.list(new Handler<Either<String, JsonArray>>() {
-			public void handle(Either<String, JsonArray> event) {
-				if (event.isLeft()) {
-					handler.handle(new Either.Left<String, JsonObject>(event.left().getValue()));
-					return;
-				}
-				final JsonObject restricted = new JsonObject();
-				for (String key : registeredNotifications.keySet()) {
-					JsonObject notif = new JsonObject(registeredNotifications.get(key));
-					String restriction = notif.getString("restriction",TimelineNotificationsLoader.Restrictions.NONE.name());
-					for (Object notifConfigObj : event.right().getValue()) {
-						JsonObject notifConfig = (JsonObject) notifConfigObj;
-						if (notifConfig.getString("key", "").equals(key)) {
-							restriction = notifConfig.getString("restriction", restriction);
-							break;
-						}
-					}
-					if (restriction.equals(TimelineNotificationsLoader.Restrictions.EXTERNAL.name()) ||
-							restriction.equals(TimelineNotificationsLoader.Restrictions.HIDDEN.name())) {
-						String notifType = notif.getString("type");
-						if (!restricted.containsKey(notifType)) {
-							restricted.put(notifType, new fr.wseduc.webutils.collections.JsonArray());
-						}
-						restricted.getJsonArray(notifType).add(notif.getString("event-type"));
-					}
-				}
-				handler.handle(new Either.Right<String, JsonObject>(restricted));
-			}
-		});
+		configService.getRestrictionFilter(handler);
 	}
 
 	public void setConfigService(TimelineConfigService configService) {
@@ -788,8 +724,8 @@ public class TimelineController extends BaseController {
 		this.mailerService = mailerService;
 	}
 
-	public void setRegisteredNotifications(Map<String, String> registeredNotifications) {
-		this.registeredNotifications = registeredNotifications;
+	public void setNotificationsRegistry(NotificationsRegistry notificationsRegistry) {
+		this.notificationsRegistry = notificationsRegistry;
 	}
 
 	public void setPushNotifService(TimelinePushNotifService pushNotifService) {
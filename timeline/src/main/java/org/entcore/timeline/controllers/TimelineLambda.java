@@ -37,14 +37,40 @@ import java.io.Writer;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
 public final class TimelineLambda {
 
 	private static final Logger log = LoggerFactory.getLogger(TimelineLambda.class);
+	private static final int MAX_CACHED_I18N = 20000;
+	private static final int MAX_CACHED_NESTED = 2000;
+	private static final ConcurrentMap<String, Template> i18nTemplates = new ConcurrentHashMap<>();
+	private static final ConcurrentMap<String, Template> nestedTemplates = new ConcurrentHashMap<>();
+	private static final ConcurrentMap<String, String> cachedEventsI18n = new ConcurrentHashMap<>();
 
 	private TimelineLambda() {}
 
+	/**
+	 * Drops the compiled translations when the timeline i18n of the language has been reloaded
+	 * (an application appends its i18n when it is deployed again). The shared map returns the same
+	 * string until it is replaced, so the comparison is an identity check in the common case.
+	 */
+	private static void checkEventsI18n(String language, LocalMap<String, String> eventsI18n,
+			HashMap<String, JsonObject> lazyEventsI18n) {
+		final String lang = language.split(",")[0].split("-")[0];
+		final String i18n = Utils.getOrElse(eventsI18n.get(lang), "");
+		final String cached = cachedEventsI18n.get(lang);
+		if (i18n.equals(cached)) {
+			return;
+		}
+		cachedEventsI18n.put(lang, i18n);
+		if (cached != null) {
+			i18nTemplates.clear();
+			lazyEventsI18n.clear();
+		}
+	}
+
 	public static void setLambdaTemplateRequest(final HttpServerRequest request, final Map<String, Object> ctx,
 			final LocalMap<String, String> eventsI18n, final HashMap<String, JsonObject> lazyEventsI18n) {
 
@@ -53,6 +79,13 @@ public final class TimelineLambda {
 			public void execute(Template.Fragment frag, Writer out) throws IOException {
 				String key = frag.execute();
 				String language = Utils.getOrElse(I18n.acceptLanguage(request), "fr", false);
+				checkEventsI18n(language, eventsI18n, lazyEventsI18n);
+				final String cacheKey = language + "|" + Renders.getHost(request) + "|" + key;
+				final Template cached = i18nTemplates.get(cacheKey);
+				if (cached != null) {
+					cached.execute(ctx, out);
+					return;
+				}
 
 				JsonObject timelineI18n;
 				if (!lazyEventsI18n.containsKey(language)) {
@@ -73,7 +106,12 @@ public final class TimelineLambda {
 				if (translatedContents.equals(key)) {
 					translatedContents = timelineI18n.getString(key, key);
 				}
-				Mustache.compiler().compile(translatedContents).execute(ctx, out);
+				final Template template = Mustache.compiler().compile(translatedContents);
+				// keys without translation yet are not cached, timeline i18n is loaded when applications start
+				if (!translatedContents.equals(key) && i18nTemplates.size() < MAX_CACHED_I18N) {
+					i18nTemplates.put(cacheKey, template);
+				}
+				template.execute(ctx, out);
 			}
 		});
 
@@ -95,7 +133,7 @@ public final class TimelineLambda {
 				String nestedTemplateName = frag.execute();
 				String nestedTemplate = (String) ctx.get(nestedTemplateName);
 				if(nestedTemplate != null)
-					Mustache.compiler().compile(nestedTemplate).execute(ctx, out);
+					compileNested(nestedTemplate).execute(ctx, out);
 			}
 		});
 
@@ -106,9 +144,7 @@ public final class TimelineLambda {
 				try {
 					JsonObject nestedTemplate = nestedArray.getJsonObject(Integer.parseInt(nestedTemplatePos) - 1);
 					ctx.putAll(nestedTemplate.getJsonObject("params", new JsonObject()).getMap());
-					Mustache.compiler()
-							.compile(nestedTemplate.getString("template", ""))
-							.execute(ctx, out);
+					compileNested(nestedTemplate.getString("template", "")).execute(ctx, out);
 				} catch(NumberFormatException e) {
 					log.error("Mustache compiler error while parsing a nested template array lambda.");
 				}
@@ -116,4 +152,18 @@ public final class TimelineLambda {
 		});
 	}
 
+	/**
+	 * Notifications templates are compiled once, they are shared by all the mails and pages rendering them.
+	 */
+	private static Template compileNested(String template) {
+		Template compiled = nestedTemplates.get(template);
+		if (compiled == null) {
+			compiled = Mustache.compiler().compile(template);
+			if (nestedTemplates.size() < MAX_CACHED_NESTED) {
+				nestedTemplates.put(template, compiled);
+			}
+		}
+		return compiled;
+	}
+
 }
@@ -29,8 +29,12 @@ import io.vertx.core.eventbus.Message;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 
+import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
 import java.util.Calendar;
 import java.util.List;
 import java.util.Locale;
@@ -72,6 +76,17 @@ public class DefaultTimelineEventStore implements TimelineEventStore {
 	@Override
 	public void get(final UserInfos user, List<String> types, int offset, int limit, JsonObject restrictionFilter,
 			boolean mine, String version, final Handler<JsonObject> result) {
+		get(user, types, offset, null, limit, restrictionFilter, mine, version, result);
+	}
+
+	@Override
+	public void get(final UserInfos user, List<String> types, String cursor, int limit, JsonObject restrictionFilter,
+			boolean mine, String version, final Handler<JsonObject> result) {
+		get(user, types, 0, cursor, limit, restrictionFilter, mine, version, result);
+	}
+
+	private void get(final UserInfos user, List<String> types, int offset, String cursor, final int limit,
+			JsonObject restrictionFilter, boolean mine, String version, final Handler<JsonObject> result) {
 		final String recipient = user.getUserId();
 		final String externalId = user.getExternalId();
 		if (recipient != null && !recipient.trim().isEmpty()) {
@@ -108,7 +123,19 @@ public class DefaultTimelineEventStore implements TimelineEventStore {
 					query.put("$nor", nor);
 				}
 			}
-			JsonObject sort = new JsonObject().put("created", -1);
+			if (cursor != null) {
+				final JsonObject after = decodeCursor(cursor);
+				if (after == null) {
+					result.handle(new JsonObject().put("status", "error").put("message", "invalid.cursor"));
+					return;
+				}
+				query.put("$and", new fr.wseduc.webutils.collections.JsonArray().add(new JsonObject()
+						.put("$or", new fr.wseduc.webutils.collections.JsonArray()
+							.add(new JsonObject().put("created", new JsonObject().put("$lt", after.getJsonObject("created"))))
+							.add(new JsonObject().put("created", after.getJsonObject("created"))
+								.put("_id", new JsonObject().put("$lt", after.getString("_id")))))));
+			}
+			JsonObject sort = new JsonObject().put("created", -1).put("_id", -1);
 			JsonObject keys = new JsonObject()
 				.put("message", 1)
 				.put("params", 1)
@@ -119,7 +146,8 @@ public class DefaultTimelineEventStore implements TimelineEventStore {
 				.put("event-type", 1)
 				.put("resource", 1)
 				.put("sub-resource", 1)
-				.put("add-comment", 1);
+				.put("add-comment", 1)
+				.put("created", 1);
 			if(!mine){
 				keys.put("recipients", new JsonObject()
 						.put("$elemMatch", new JsonObject()
@@ -137,7 +165,16 @@ public class DefaultTimelineEventStore implements TimelineEventStore {
 					offset, limit, 100, new Handler<Message<JsonObject>>() {
 				@Override
 				public void handle(Message<JsonObject> message) {
-					result.handle(message.body());
+					final JsonObject res = message.body();
+					final JsonArray results = res.getJsonArray("results");
+					if ("ok".equals(res.getString("status")) && results != null && results.size() > 0 &&
+							results.size() >= limit) {
+						final String next = encodeCursor(results.getJsonObject(results.size() - 1));
+						if (next != null) {
+							res.put("cursor", next);
+						}
+					}
+					result.handle(res);
 				}
 			});
 		} else {
@@ -185,6 +222,47 @@ public class DefaultTimelineEventStore implements TimelineEventStore {
 		return null;
 	}
 
+	/**
+	 * Opaque continuation token of a notification : its creation date and id, base64url encoded.
+	 */
+	private static String encodeCursor(JsonObject notification) {
+		final String id = notification.getString("_id");
+		final JsonObject created = notification.getJsonObject("created");
+		if (id == null || created == null) {
+			return null;
+		}
+		final Object date = created.getValue("$date");
+		final long time;
+		if (date instanceof Number) {
+			time = ((Number) date).longValue();
+		} else if (date instanceof String) {
+			try {
+				time = Instant.parse((String) date).toEpochMilli();
+			} catch (DateTimeParseException e) {
+				return null;
+			}
+		} else {
+			return null;
+		}
+		return Base64.getUrlEncoder().withoutPadding()
+				.encodeToString((time + ":" + id).getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static JsonObject decodeCursor(String cursor) {
+		try {
+			final String c = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+			final int idx = c.indexOf(':');
+			if (idx <= 0 || idx == c.length() - 1) {
+				return null;
+			}
+			return new JsonObject()
+					.put("created", new JsonObject().put("$date", Long.parseLong(c.substring(0, idx))))
+					.put("_id", c.substring(idx + 1));
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
 	private JsonObject invalidArguments() {
 		return new JsonObject().put("status", "error")
 				.put("message", "Invalid arguments.");
@@ -48,6 +48,13 @@ public interface TimelineEventStore {
 	void get(UserInfos recipient, List<String> types, int offset, int limit,
 			JsonObject restrictionFilter, boolean mine, String version, Handler<JsonObject> result);
 
+	/**
+	 * Returns the notifications older than the cursor of the previous page.
+	 * Each page returns the cursor of its last notification when more may follow.
+	 */
+	void get(UserInfos recipient, List<String> types, String cursor, int limit,
+			JsonObject restrictionFilter, boolean mine, String version, Handler<JsonObject> result);
+
 	void deleteSubResource(String resource, Handler<JsonObject> result);
 
 	void listTypes(Handler<JsonArray> result);
@@ -39,4 +39,11 @@ public interface TimelineConfigService{
 	 */
 	public void getNotificationProperties(final String notificationKey, final Handler<Either<String, JsonObject>> handler);
 
+	/**
+	 * Retrieves the event types of notifications restricted to external use or hidden, by notification type.
+	 *
+	 * @param handler : Handles the restricted event types
+	 */
+	public void getRestrictionFilter(final Handler<Either<String, JsonObject>> handler);
+
 }
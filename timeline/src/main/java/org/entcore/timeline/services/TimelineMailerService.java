@@ -90,6 +90,14 @@ public interface TimelineMailerService {
 	 */
 	void sendWeeklyMails(int dayDelta, final Handler<Either<String, JsonObject>> handler);
 
+	/**
+	 * Returns the progress and throughput of the running daily or weekly mailing.
+	 *
+	 * @param frequency : DAILY or WEEKLY
+	 * @return The progress, running false when no mailing is in progress
+	 */
+	JsonObject getMailingProgress(String frequency);
+
 	/**
 	 * Retrieves default properties for all notifications.
 	 * @param handler : Handles the properties
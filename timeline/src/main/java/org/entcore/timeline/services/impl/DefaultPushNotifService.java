@@ -37,6 +37,8 @@ import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.core.logging.Logger;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 
 public class DefaultPushNotifService extends Renders implements TimelinePushNotifService {
 
@@ -128,6 +130,7 @@ public class DefaultPushNotifService extends Renders implements TimelinePushNoti
 
     private void sendUsers(final String notificationName,final JsonObject notification, final JsonArray userList, final JsonObject notificationProperties, boolean typeNotification, boolean typeData){
 
+        final JsonArray userTokens = new fr.wseduc.webutils.collections.JsonArray();
         for(Object userObj : userList){
             final JsonObject userPref = ((JsonObject) userObj);
 
@@ -143,21 +146,55 @@ public class DefaultPushNotifService extends Renders implements TimelinePushNoti
                             notificationPreference.getString("restriction", notificationProperties.getString("restriction"))) &&
                     userPref.getJsonArray("tokens") != null && userPref.getJsonArray("tokens").size() > 0){
                 for(Object token : userPref.getJsonArray("tokens")){
-                    processMessage(notification, "fr", typeNotification, typeData, new Handler<JsonObject>() {
-                        @Override
-                        public void handle(final JsonObject message) {
-                            try {
-                                ossFcm.sendNotifications(new JsonObject().put("message", message.put("token", (String) token)));
-                            } catch (Exception e) {
-                                log.error("[sendNotificationToUsers] Issue while sending notification (" + notificationName + ").", e);
+                    if (token instanceof String) {
+                        userTokens.add(new JsonObject()
+                                .put("userId", userPref.getString("userId", ""))
+                                .put("token", token));
+                    }
+                }
+            }
+        }
+        if (userTokens.size() == 0) {
+            return;
+        }
 
+        // the message is the same for every token, only the token changes
+        processMessage(notification, "fr", typeNotification, typeData, new Handler<JsonObject>() {
+            @Override
+            public void handle(final JsonObject message) {
+                final JsonArray invalidTokens = new fr.wseduc.webutils.collections.JsonArray();
+                final AtomicInteger countdown = new AtomicInteger(userTokens.size());
+                for (Object o : userTokens) {
+                    final JsonObject userToken = (JsonObject) o;
+                    ossFcm.sendNotifications(new JsonObject().put("message", message.copy().put("token", userToken.getString("token"))),
+                            new Handler<Either<String, JsonObject>>() {
+                        @Override
+                        public void handle(Either<String, JsonObject> event) {
+                            if (event.isLeft() && OssFcm.INVALID_TOKEN.equals(event.left().getValue())) {
+                                invalidTokens.add(userToken);
+                            }
+                            if (countdown.decrementAndGet() == 0 && invalidTokens.size() > 0) {
+                                pruneTokens(notificationName, invalidTokens);
                             }
                         }
                     });
                 }
+            }
+        });
+    }
 
+    private void pruneTokens(final String notificationName, final JsonArray invalidTokens) {
+        NotificationUtils.deleteFcmTokens(invalidTokens, new Handler<Either<String, JsonObject>>() {
+            @Override
+            public void handle(Either<String, JsonObject> event) {
+                if (event.isLeft()) {
+                    log.error("[sendNotificationToUsers] Issue while removing invalid tokens (" + notificationName + ") : " +
+                            event.left().getValue());
+                } else {
+                    log.info("[sendNotificationToUsers] " + invalidTokens.size() + " invalid tokens removed (" + notificationName + ").");
+                }
             }
-        }
+        });
     }
 
     private void sendTopic(final String notificationName,final JsonObject notification,final String topic, boolean typeNotification, boolean typeData){
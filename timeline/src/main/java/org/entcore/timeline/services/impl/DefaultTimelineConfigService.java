@@ -20,19 +20,28 @@
 package org.entcore.timeline.services.impl;
 
 import static org.entcore.common.mongodb.MongoDbResult.*;
+import org.entcore.common.notification.TimelineNotificationsLoader;
 import org.entcore.common.service.impl.MongoDbCrudService;
 import org.entcore.timeline.services.TimelineConfigService;
 import io.vertx.core.Handler;
+import io.vertx.core.eventbus.EventBus;
+import io.vertx.core.eventbus.Message;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 
 import fr.wseduc.webutils.Either;
 
+import java.util.HashMap;
 import java.util.Map;
 
 public class DefaultTimelineConfigService extends MongoDbCrudService implements TimelineConfigService {
 
-	private Map<String, String> registeredNotifications;
+	public static final String CONFIG_UPDATED_ADDRESS = "timeline.config.updated";
+	private NotificationsRegistry notificationsRegistry;
+	private EventBus eb;
+	private volatile JsonArray configs;
+	private volatile JsonObject restrictionFilter;
+	private volatile long generation = 0;
 
 	public DefaultTimelineConfigService(String collection) {
 		super(collection);
@@ -45,7 +54,17 @@ public class DefaultTimelineConfigService extends MongoDbCrudService implements
 			handler.handle(new Either.Left<String, JsonObject>("invalid.key"));
 			return;
 		}
-		mongo.update(collection, new JsonObject().put("key", key), data, true, false, validActionResultHandler(handler));
+		mongo.update(collection, new JsonObject().put("key", key), data, true, false, validActionResultHandler(
+				new Handler<Either<String, JsonObject>>() {
+					@Override
+					public void handle(Either<String, JsonObject> event) {
+						invalidate();
+						if (eb != null) {
+							eb.publish(CONFIG_UPDATED_ADDRESS, key);
+						}
+						handler.handle(event);
+					}
+				}));
 	}
 
 	@Override
@@ -54,6 +73,84 @@ public class DefaultTimelineConfigService extends MongoDbCrudService implements
 		mongo.find(collection, new JsonObject("{}"), sort, defaultListProjection, validResultsHandler(handler));
 	}
 
+	/**
+	 * Configurations list, read once then kept until a configuration is updated on any node.
+	 * The returned array is shared and must not be modified.
+	 */
+	private void cachedList(final Handler<Either<String, JsonArray>> handler) {
+		final JsonArray c = configs;
+		if (c != null) {
+			handler.handle(new Either.Right<String, JsonArray>(c));
+			return;
+		}
+		final long g = generation;
+		list(new Handler<Either<String, JsonArray>>() {
+			@Override
+			public void handle(Either<String, JsonArray> event) {
+				if (event.isRight() && g == generation) {
+					configs = event.right().getValue();
+				}
+				handler.handle(event);
+			}
+		});
+	}
+
+	/**
+	 * Event types of the notifications restricted to external use or hidden, indexed by notification type.
+	 * It is computed once from the registered notifications and the configurations, then kept until a
+	 * configuration is updated or a notification is registered. Each caller gets its own copy.
+	 */
+	@Override
+	public void getRestrictionFilter(final Handler<Either<String, JsonObject>> handler) {
+		final JsonObject f = restrictionFilter;
+		if (f != null) {
+			handler.handle(new Either.Right<String, JsonObject>(f.copy()));
+			return;
+		}
+		final long g = generation;
+		cachedList(new Handler<Either<String, JsonArray>>() {
+			@Override
+			public void handle(Either<String, JsonArray> event) {
+				if (event.isLeft()) {
+					handler.handle(new Either.Left<String, JsonObject>(event.left().getValue()));
+					return;
+				}
+				final Map<String, JsonObject> notifConfigs = new HashMap<>();
+				for (Object notifConfigObj : event.right().getValue()) {
+					final JsonObject notifConfig = (JsonObject) notifConfigObj;
+					final String key = notifConfig.getString("key", "");
+					if (!notifConfigs.containsKey(key)) {
+						notifConfigs.put(key, notifConfig);
+					}
+				}
+				final JsonObject restricted = new JsonObject();
+				for (NotificationsRegistry.RegisteredNotification notif : notificationsRegistry.all()) {
+					final JsonObject notifConfig = notifConfigs.get(notif.getKey());
+					final String restriction = (notifConfig != null) ?
+							notifConfig.getString("restriction", notif.getRestriction()) : notif.getRestriction();
+					if (restriction.equals(TimelineNotificationsLoader.Restrictions.EXTERNAL.name()) ||
+							restriction.equals(TimelineNotificationsLoader.Restrictions.HIDDEN.name())) {
+						String notifType = notif.getType();
+						if (!restricted.containsKey(notifType)) {
+							restricted.put(notifType, new fr.wseduc.webutils.collections.JsonArray());
+						}
+						restricted.getJsonArray(notifType).add(notif.getEventType());
+					}
+				}
+				if (g == generation) {
+					restrictionFilter = restricted.copy();
+				}
+				handler.handle(new Either.Right<String, JsonObject>(restricted));
+			}
+		});
+	}
+
+	private void invalidate() {
+		generation++;
+		configs = null;
+		restrictionFilter = null;
+	}
+
 	/**
 	 * Retrieves stored properties for a single notification.
 	 *
@@ -62,21 +159,21 @@ public class DefaultTimelineConfigService extends MongoDbCrudService implements
 	 */
 	@Override
 	public void getNotificationProperties(final String notificationKey, final Handler<Either<String, JsonObject>> handler) {
-		this.list(new Handler<Either<String, JsonArray>>() {
+		this.cachedList(new Handler<Either<String, JsonArray>>() {
 			public void handle(Either<String, JsonArray> event) {
 				if (event.isLeft()) {
 					handler.handle(new Either.Left<String, JsonObject>(
 							event.left().getValue()));
 					return;
 				}
-				final String notificationStr = registeredNotifications
+				final NotificationsRegistry.RegisteredNotification registered = notificationsRegistry
 						.get(notificationKey.toLowerCase());
-				if (notificationStr == null) {
+				if (registered == null) {
 					handler.handle(new Either.Left<String, JsonObject>(
 							"invalid.notification.key"));
 					return;
 				}
-				final JsonObject notification = new JsonObject(notificationStr);
+				final JsonObject notification = registered.toJsonWithTemplate();
 				for (Object notifConfigObj : event.right().getValue()) {
 					JsonObject notifConfig = (JsonObject) notifConfigObj;
 					if (notifConfig.getString("key", "")
@@ -96,8 +193,24 @@ public class DefaultTimelineConfigService extends MongoDbCrudService implements
 		});
 	}
 
-	public void setRegisteredNotifications(Map<String, String> registeredNotifications) {
-		this.registeredNotifications = registeredNotifications;
+	public void setNotificationsRegistry(NotificationsRegistry notificationsRegistry) {
+		this.notificationsRegistry = notificationsRegistry;
+	}
+
+	/**
+	 * Listens to configurations updates on the other nodes and to notifications registrations,
+	 * which invalidate the cached configurations and restriction filter.
+	 */
+	public void setEventBus(EventBus eb) {
+		this.eb = eb;
+		final Handler<Message<String>> invalidateHandler = new Handler<Message<String>>() {
+			@Override
+			public void handle(Message<String> message) {
+				invalidate();
+			}
+		};
+		eb.consumer(CONFIG_UPDATED_ADDRESS, invalidateHandler);
+		eb.consumer(TimelineNotificationsLoader.REGISTERED_ADDRESS, invalidateHandler);
 	}
 
 }
@@ -52,6 +52,8 @@ import java.io.StringReader;
 import java.io.Writer;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static fr.wseduc.webutils.Utils.getOrElse;
@@ -67,6 +69,10 @@ public class DefaultTimelineMailerService extends Renders implements TimelineMai
 	private HashMap<String, JsonObject> lazyEventsI18n;
 	private final EmailSender emailSender;
 	private final int USERS_LIMIT;
+	private final int MAILING_PARALLELISM;
+	private final long MAILING_STALL_TIMEOUT;
+	private final HttpServerRequest digestRequest = new JsonHttpServerRequest(new JsonObject());
+	private final Map<String, DigestProgress> digestsInProgress = new ConcurrentHashMap<>();
 	private final MongoDb mongo = MongoDb.getInstance();
 	private final Neo4j neo4j = Neo4j.getInstance();
 
@@ -75,7 +81,9 @@ public class DefaultTimelineMailerService extends Renders implements TimelineMai
 		eb = Server.getEventBus(vertx);
 		EmailFactory emailFactory = new EmailFactory(this.vertx, config);
 		emailSender = emailFactory.getSender();
-		USERS_LIMIT = config.getInteger("users-loop-limit", 25);
+		USERS_LIMIT = config.getInteger("users-loop-limit", 100);
+		MAILING_PARALLELISM = Math.max(1, config.getInteger("mailing-parallelism", 8));
+		MAILING_STALL_TIMEOUT = config.getLong("mailing-stall-timeout", 30 * 60 * 1000L);
 	}
 
 	/* Override i18n to use additional timeline translations and nested templates */
@@ -251,394 +259,417 @@ public class DefaultTimelineMailerService extends Renders implements TimelineMai
 
 	@Override
 	public void sendDailyMails(int dayDelta, final Handler<Either<String, JsonObject>> handler){
-
-		final HttpServerRequest request = new JsonHttpServerRequest(new JsonObject());
-		final AtomicInteger userPagination = new AtomicInteger(0);
-		final AtomicInteger endPage = new AtomicInteger(0);
 		final Calendar dayDate = Calendar.getInstance();
 		dayDate.add(Calendar.DAY_OF_MONTH, dayDelta);
 		dayDate.set(Calendar.HOUR_OF_DAY, 0);
 		dayDate.set(Calendar.MINUTE, 0);
 		dayDate.set(Calendar.SECOND, 0);
 		dayDate.set(Calendar.MILLISECOND, 0);
+		sendDigestMails(TimelineNotificationsLoader.Frequencies.DAILY, dayDate.getTime(), handler);
+	}
 
-		final JsonObject results = new JsonObject()
-				.put("mails.sent", 0)
-				.put("users.ko", 0);
-		final JsonObject notificationsDefaults = new JsonObject();
-		final List<String> notifiedUsers = new ArrayList<>();
-
-		final Handler<Boolean> userContinuationHandler = new Handler<Boolean>() {
-
-			private final Handler<Boolean> continuation = this;
-			private final Handler<JsonArray> usersHandler = new Handler<JsonArray>() {
-				public void handle(final JsonArray users) {
-					final int nbUsers = users.size();
-					if(nbUsers == 0){
-						log.info("[DailyMails] Page0 : " + userPagination.get() + "/" + endPage.get());
-						continuation.handle(userPagination.get() != endPage.get());
-						return;
-					}
-					final AtomicInteger usersCountdown = new AtomicInteger(nbUsers);
-
-					final Handler<Void> usersEndHandler = new Handler<Void>() {
-						public void handle(Void v) {
-							if(usersCountdown.decrementAndGet() <= 0){
-								log.info("[DailyMails] Page : " + userPagination.get() + "/" + endPage.get());
-								continuation.handle(userPagination.get() != endPage.get());
-							}
-						}
-					};
-
-					final JsonArray userIds = new fr.wseduc.webutils.collections.JsonArray();
-					for(Object userObj : users)
-						userIds.add(((JsonObject) userObj).getString("id", ""));
-					NotificationUtils.getUsersPreferences(eb, userIds, "language: uac.language", new Handler<JsonArray>(){
-						public void handle(JsonArray preferences) {
-							for(Object userObj : preferences){
-								final JsonObject userPrefs = (JsonObject) userObj;
-								final String userDomain = userPrefs.getString("lastDomain", I18n.DEFAULT_DOMAIN);
-								final String userScheme = userPrefs.getString("lastScheme", "http");
-								String mutableUserLanguage = "fr";
-								try {
-									mutableUserLanguage = getOrElse(new JsonObject(getOrElse(userPrefs.getString("language"), "{}", false)).getString("default-domain"), "fr", false);
-								} catch(Exception e) {
-									log.error("UserId [" + userPrefs.getString("userId", "") + "] - Bad language preferences format");
-								}
-								final String userLanguage = mutableUserLanguage;
+	public void sendWeeklyMails(int dayDelta, final Handler<Either<String, JsonObject>> handler) {
+		final Calendar weekDate = Calendar.getInstance();
+		weekDate.add(Calendar.DAY_OF_MONTH, dayDelta - 6);
+		weekDate.set(Calendar.HOUR_OF_DAY, 0);
+		weekDate.set(Calendar.MINUTE, 0);
+		weekDate.set(Calendar.SECOND, 0);
+		weekDate.set(Calendar.MILLISECOND, 0);
+		sendDigestMails(TimelineNotificationsLoader.Frequencies.WEEKLY, weekDate.getTime(), handler);
+	}
 
-								getUserNotifications(userPrefs.getString("userId", ""), dayDate.getTime(), new Handler<JsonArray>(){
-									public void handle(JsonArray notifications) {
-										if(notifications.size() == 0){
-											usersEndHandler.handle(null);
-											return;
-										}
+	/**
+	 * Progress of a daily or weekly mailing run.
+	 */
+	private static final class DigestProgress {
+		private final long start = System.currentTimeMillis();
+		private volatile long lastActivity = start;
+		private final Map<String, String> subjects = new HashMap<>();
+		private int usersTotal;
+		private int pagesTotal;
+		private int page;
+		private int usersProcessed;
+		private int mailsSent;
+		private int usersKo;
+
+		private JsonObject toJson(boolean running) {
+			final long duration = System.currentTimeMillis() - start;
+			final double seconds = Math.max(duration, 1L) / 1000d;
+			return new JsonObject()
+					.put("running", running)
+					.put("mails.sent", mailsSent)
+					.put("users.ko", usersKo)
+					.put("users.total", usersTotal)
+					.put("users.processed", usersProcessed)
+					.put("page", page)
+					.put("pages.total", pagesTotal)
+					.put("duration", duration)
+					.put("users.per.second", usersProcessed / seconds)
+					.put("mails.per.second", mailsSent / seconds);
+		}
+	}
 
-										SimpleDateFormat formatter = new SimpleDateFormat("EEE, d MMM yyyy HH:mm:ss", Locale.forLanguageTag(userLanguage));
-										final JsonArray dates = new fr.wseduc.webutils.collections.JsonArray();
-										final JsonArray templates = new fr.wseduc.webutils.collections.JsonArray();
-
-										for(Object notificationObj : notifications){
-											JsonObject notification = (JsonObject) notificationObj;
-											final String notificationName =
-													notification.getString("type","").toLowerCase() + "." +
-															notification.getString("event-type", "").toLowerCase();
-											if(notificationsDefaults.getJsonObject(notificationName) == null)
-												continue;
-
-											JsonObject notificationPreference = userPrefs
-													.getJsonObject("preferences", new JsonObject())
-													.getJsonObject("config", new JsonObject())
-													.getJsonObject(notificationName, new JsonObject());
-											if(TimelineNotificationsLoader.Frequencies.DAILY.name().equals(
-													notificationPrefsMixin("defaultFrequency", notificationPreference, notificationsDefaults.getJsonObject(notificationName))) &&
-													!TimelineNotificationsLoader.Restrictions.INTERNAL.name().equals(
-															notificationPrefsMixin("restriction", notificationPreference, notificationsDefaults.getJsonObject(notificationName))) &&
-													!TimelineNotificationsLoader.Restrictions.HIDDEN.name().equals(
-															notificationPrefsMixin("restriction", notificationPreference, notificationsDefaults.getJsonObject(notificationName)))){
-												templates.add(new JsonObject()
-														.put("template", notificationsDefaults.getJsonObject(notificationName, new JsonObject()).getString("template", ""))
-														.put("params", notification.getJsonObject("params", new JsonObject())));
-												dates.add(formatter.format(MongoDb.parseIsoDate(notification.getJsonObject("date"))));
-											}
-										}
-										if(templates.size() > 0){
-											JsonObject templateParams = new JsonObject()
-													.put("nestedTemplatesArray", templates)
-													.put("notificationDates", dates);
-											processTimelineTemplate(templateParams, "", "notifications/daily-mail.html",
-													userDomain, userScheme, userLanguage, false, new Handler<String>() {
-														public void handle(final String processedTemplate) {
-															//On completion : log
-															final Handler<AsyncResult<Message<JsonObject>>> completionHandler = event -> {
-																if(event.failed() || "error".equals(event.result().body().getString("status", "error"))){
-																	log.error("[Timeline daily emails] Error while sending mail : ", event.cause());
-																	results.put("users.ko", results.getInteger("users.ko") + 1);
-																} else {
-																	results.put("mails.sent", results.getInteger("mails.sent") + 1);
-																}
-																usersEndHandler.handle(null);
-															};
-
-															//Translate mail title
-															JsonArray keys = new fr.wseduc.webutils.collections.JsonArray()
-																	.add("timeline.daily.mail.subject.header");
-															translateTimeline(keys, userDomain, userLanguage, new Handler<JsonArray>() {
-																public void handle(JsonArray translations) {
-																	//Send mail containing the "daily" notifications
-																	emailSender.sendEmail(request,
-																			userPrefs.getString("userMail", ""),
-																			null,
-																			null,
-																			translations.getString(0),
-																			processedTemplate,
-																			null,
-																			false,
-																			completionHandler);
-																}
-															});
-														}
-													});
-										} else {
-											usersEndHandler.handle(null);
-										}
+	@Override
+	public JsonObject getMailingProgress(String frequency) {
+		final DigestProgress progress = digestsInProgress.get(frequency);
+		return (progress != null) ? progress.toJson(true) : new JsonObject().put("running", false);
+	}
 
-									}
-								});
-							}
-						}
-					});
+	/**
+	 * Sends the daily or weekly digests of the users notified since a date.
+	 * Users are processed by pages : the notifications of a page are read with a single aggregation and grouped
+	 * by user, then the digests of the page are rendered and sent with a bounded parallelism.
+	 * While a run is in progress, a new call for the same frequency only returns its progress. A run without
+	 * activity for mailing-stall-timeout is considered lost (a bus call never answered) : it is replaced by
+	 * the new call and stops at its next page.
+	 */
+	private void sendDigestMails(final TimelineNotificationsLoader.Frequencies frequency, final Date from,
+			final Handler<Either<String, JsonObject>> handler) {
+		final String logPrefix = "[" + frequency.name() + " mails] ";
+		final DigestProgress progress = new DigestProgress();
+		final DigestProgress running = digestsInProgress.putIfAbsent(frequency.name(), progress);
+		if (running != null) {
+			if (System.currentTimeMillis() - running.lastActivity < MAILING_STALL_TIMEOUT ||
+					!digestsInProgress.replace(frequency.name(), running, progress)) {
+				handler.handle(new Either.Right<String, JsonObject>(running.toJson(true)));
+				return;
+			}
+			log.warn(logPrefix + "Replacing stalled run : " + running.toJson(true).encode());
+		}
+		final AtomicBoolean ended = new AtomicBoolean(false);
+		final Handler<Either<String, JsonObject>> endHandler = new Handler<Either<String, JsonObject>>() {
+			@Override
+			public void handle(Either<String, JsonObject> event) {
+				if (!ended.compareAndSet(false, true)) {
+					return;
 				}
-			};
-
-			public void handle(Boolean continuation) {
-				if(continuation){
-					getImpactedUsers(notifiedUsers, userPagination.getAndIncrement(), new Handler<Either<String,JsonArray>>() {
-						public void handle(Either<String, JsonArray> event) {
-							if(event.isLeft()){
-								log.error("[sendDailyMails] Error while retrieving impacted users : " + event.left().getValue());
-								handler.handle(new Either.Left<String, JsonObject>(event.left().getValue()));
-							} else {
-								JsonArray users = event.right().getValue();
-								usersHandler.handle(users);
-							}
-						}
-					});
-				} else {
-					handler.handle(new Either.Right<String, JsonObject>(results));
+				digestsInProgress.remove(frequency.name(), progress);
+				if (event.isLeft()) {
+					handler.handle(event);
+					return;
 				}
+				final JsonObject results = progress.toJson(false);
+				log.info(logPrefix + "End : " + results.encode());
+				handler.handle(new Either.Right<String, JsonObject>(results));
 			}
 		};
 
-		getRecipientsUsers(dayDate.getTime(), new Handler<JsonArray>() {
+		getRecipientsUsers(from, new Handler<JsonArray>() {
 			@Override
 			public void handle(JsonArray event) {
-				if (event != null && event.size() > 0) {
-					notifiedUsers.addAll(event.getList());
-					endPage.set((event.size() / USERS_LIMIT) + (event.size() % USERS_LIMIT != 0 ? 1 : 0));
-				} else {
-					handler.handle(new Either.Right<String, JsonObject>(results));
+				if (event == null || event.size() == 0) {
+					endHandler.handle(new Either.Right<String, JsonObject>(null));
 					return;
 				}
+				final List<String> notifiedUsers = new ArrayList<>();
+				for (Object o : event) {
+					if (o instanceof String) {
+						notifiedUsers.add((String) o);
+					}
+				}
+				progress.usersTotal = notifiedUsers.size();
+				progress.pagesTotal = (notifiedUsers.size() / USERS_LIMIT) + (notifiedUsers.size() % USERS_LIMIT != 0 ? 1 : 0);
 				getNotificationsDefaults(new Handler<JsonArray>() {
-					public void handle ( final JsonArray notifications){
+					public void handle(final JsonArray notifications) {
 						if (notifications == null) {
-							log.error("[sendDailyMails] Error while retrieving notifications defaults.");
-						} else {
-							for (Object notifObj : notifications) {
-								final JsonObject notif = (JsonObject) notifObj;
-								notificationsDefaults.put(notif.getString("key", ""), notif);
-							}
-							userContinuationHandler.handle(true);
+							log.error(logPrefix + "Error while retrieving notifications defaults.");
+							endHandler.handle(new Either.Left<String, JsonObject>("notifications.defaults.error"));
+							return;
 						}
+						final JsonObject notificationsDefaults = new JsonObject();
+						for (Object notifObj : notifications) {
+							final JsonObject notif = (JsonObject) notifObj;
+							notificationsDefaults.put(notif.getString("key", ""), notif);
+						}
+						sendDigestPage(frequency, from, notifiedUsers, 0, notificationsDefaults, progress, endHandler);
 					}
 				});
 			}
 		});
 	}
 
-	public void sendWeeklyMails(int dayDelta, final Handler<Either<String, JsonObject>> handler) {
-
-		final HttpServerRequest request = new JsonHttpServerRequest(new JsonObject());
-		final AtomicInteger userPagination = new AtomicInteger(0);
-		final AtomicInteger endPage = new AtomicInteger(0);
-		final Calendar weekDate = Calendar.getInstance();
-		weekDate.add(Calendar.DAY_OF_MONTH, dayDelta - 6);
-		weekDate.set(Calendar.HOUR_OF_DAY, 0);
-		weekDate.set(Calendar.MINUTE, 0);
-		weekDate.set(Calendar.SECOND, 0);
-		weekDate.set(Calendar.MILLISECOND, 0);
+	private void sendDigestPage(final TimelineNotificationsLoader.Frequencies frequency, final Date from,
+			final List<String> notifiedUsers, final int page, final JsonObject notificationsDefaults,
+			final DigestProgress progress, final Handler<Either<String, JsonObject>> endHandler) {
+		if (digestsInProgress.get(frequency.name()) != progress) {
+			log.warn("[" + frequency.name() + " mails] Stalled run stopped at page " + (page + 1));
+			endHandler.handle(new Either.Left<String, JsonObject>("mailing.stalled"));
+			return;
+		}
+		if (page >= progress.pagesTotal) {
+			endHandler.handle(new Either.Right<String, JsonObject>(null));
+			return;
+		}
+		progress.page = page + 1;
+		progress.lastActivity = System.currentTimeMillis();
+		final Handler<Throwable> pageError = new Handler<Throwable>() {
+			@Override
+			public void handle(Throwable t) {
+				log.error("[" + frequency.name() + " mails] Error on page " + progress.page, t);
+				endHandler.handle(new Either.Left<String, JsonObject>(String.valueOf(t.getMessage())));
+			}
+		};
+		final Handler<Void> nextPage = new Handler<Void>() {
+			@Override
+			public void handle(Void v) {
+				log.info("[" + frequency.name() + " mails] Page : " + progress.page + "/" + progress.pagesTotal);
+				sendDigestPage(frequency, from, notifiedUsers, page + 1, notificationsDefaults, progress, endHandler);
+			}
+		};
+		getImpactedUsers(notifiedUsers, page, new Handler<Either<String, JsonArray>>() {
+			public void handle(Either<String, JsonArray> event) {
+				try {
+					impactedUsers(event);
+				} catch (RuntimeException e) {
+					pageError.handle(e);
+				}
+			}
 
-		final JsonObject results = new JsonObject()
-				.put("mails.sent", 0)
-				.put("users.ko", 0);
-		final JsonObject notificationsDefaults = new JsonObject();
-		final List<String> notifiedUsers = new ArrayList<>();
-
-		final Handler<Boolean> userContinuationHandler = new Handler<Boolean>() {
-
-			private final Handler<Boolean> continuation = this;
-			private final Handler<JsonArray> usersHandler = new Handler<JsonArray>() {
-				public void handle(final JsonArray users) {
-					final int nbUsers = users.size();
-					if (nbUsers == 0) {
-						log.info("[WeeklyMails] Page0 : " + userPagination.get() + "/" + endPage.get());
-						continuation.handle(userPagination.get() != endPage.get());
-						return;
+			private void impactedUsers(Either<String, JsonArray> event) {
+				if (event.isLeft()) {
+					log.error("[" + frequency.name() + " mails] Error while retrieving impacted users : " + event.left().getValue());
+					endHandler.handle(new Either.Left<String, JsonObject>(event.left().getValue()));
+					return;
+				}
+				final JsonArray users = event.right().getValue();
+				if (users.size() == 0) {
+					nextPage.handle(null);
+					return;
+				}
+				final JsonArray userIds = new fr.wseduc.webutils.collections.JsonArray();
+				for (Object userObj : users) {
+					userIds.add(((JsonObject) userObj).getString("id", ""));
+				}
+				NotificationUtils.getUsersPreferences(eb, userIds, "language: uac.language", new Handler<JsonArray>() {
+					public void handle(final JsonArray preferences) {
+						try {
+							usersPreferences(preferences);
+						} catch (RuntimeException e) {
+							pageError.handle(e);
+						}
 					}
-					final AtomicInteger usersCountdown = new AtomicInteger(nbUsers);
 
-					final Handler<Void> usersEndHandler = new Handler<Void>() {
-						public void handle(Void v) {
-							if (usersCountdown.decrementAndGet() <= 0) {
-								log.info("[WeeklyMails] Page : " + userPagination.get() + "/" + endPage.get());
-								continuation.handle(userPagination.get() != endPage.get());
-							}
+					private void usersPreferences(final JsonArray preferences) {
+						if (preferences == null || preferences.size() == 0) {
+							nextPage.handle(null);
+							return;
 						}
-					};
-
-					final JsonArray userIds = new fr.wseduc.webutils.collections.JsonArray();
-					for (Object userObj : users)
-						userIds.add(((JsonObject) userObj).getString("id", ""));
-					NotificationUtils.getUsersPreferences(eb, userIds, "language: uac.language", new Handler<JsonArray>() {
-						public void handle(JsonArray preferences) {
-							for (Object userObj : preferences) {
-								final JsonObject userPrefs = (JsonObject) userObj;
-								final String userDomain = userPrefs.getString("lastDomain", I18n.DEFAULT_DOMAIN);
-								final String userScheme = userPrefs.getString("lastScheme", "http");
-								String mutableUserLanguage = "fr";
+						progress.lastActivity = System.currentTimeMillis();
+						getUsersNotifications(frequency, userIds, from, new Handler<Map<String, List<JsonObject>>>() {
+							@Override
+							public void handle(final Map<String, List<JsonObject>> notificationsByUser) {
 								try {
-									mutableUserLanguage = getOrElse(new JsonObject(getOrElse(userPrefs.getString("language"), "{}", false)).getString("default-domain"), "fr", false);
-								} catch (Exception e) {
-									log.error("UserId [" + userPrefs.getString("userId", "") + "] - Bad language preferences format");
+									sendDigests(preferences, notificationsByUser);
+								} catch (RuntimeException e) {
+									pageError.handle(e);
 								}
-								final String userLanguage = mutableUserLanguage;
+							}
 
-								getAggregatedUserNotifications(userPrefs.getString("userId", ""), weekDate.getTime(), new Handler<JsonArray>() {
-									public void handle(JsonArray notifications) {
-										if (notifications.size() == 0) {
-											usersEndHandler.handle(null);
+							private void sendDigests(final JsonArray preferences,
+									final Map<String, List<JsonObject>> notificationsByUser) {
+								final Iterator<Object> it = preferences.iterator();
+								final AtomicInteger remaining = new AtomicInteger(preferences.size());
+								final Handler<Void> worker = new Handler<Void>() {
+									@Override
+									public void handle(Void v) {
+										if (!it.hasNext()) {
 											return;
 										}
-
-										final JsonArray weeklyNotifications = new fr.wseduc.webutils.collections.JsonArray();
-
-										for (Object notificationObj : notifications) {
-											JsonObject notification = (JsonObject) notificationObj;
-											final String notificationName =
-													notification.getString("type", "").toLowerCase() + "." +
-															notification.getString("event-type", "").toLowerCase();
-											if (notificationsDefaults.getJsonObject(notificationName) == null)
-												continue;
-
-											JsonObject notificationPreference = userPrefs
-													.getJsonObject("preferences", new JsonObject())
-													.getJsonObject("config", new JsonObject())
-													.getJsonObject(notificationName, new JsonObject());
-											if (TimelineNotificationsLoader.Frequencies.WEEKLY.name().equals(
-													notificationPrefsMixin("defaultFrequency", notificationPreference, notificationsDefaults.getJsonObject(notificationName))) &&
-													!TimelineNotificationsLoader.Restrictions.INTERNAL.name().equals(
-															notificationPrefsMixin("restriction", notificationPreference, notificationsDefaults.getJsonObject(notificationName))) &&
-													!TimelineNotificationsLoader.Restrictions.HIDDEN.name().equals(
-															notificationPrefsMixin("restriction", notificationPreference, notificationsDefaults.getJsonObject(notificationName)))) {
-												notification.put("notificationName", notificationName);
-												weeklyNotifications.add(notification);
+										final JsonObject userPrefs = (JsonObject) it.next();
+										final Handler<Void> self = this;
+										final AtomicBoolean done = new AtomicBoolean(false);
+										final Handler<Void> next = new Handler<Void>() {
+											@Override
+											public void handle(Void v) {
+												if (!done.compareAndSet(false, true)) {
+													return;
+												}
+												progress.usersProcessed++;
+												progress.lastActivity = System.currentTimeMillis();
+												if (remaining.decrementAndGet() == 0) {
+													nextPage.handle(null);
+												} else {
+													self.handle(null);
+												}
 											}
+										};
+										try {
+											sendDigest(frequency, userPrefs, notificationsByUser.get(userPrefs.getString("userId", "")),
+													notificationsDefaults, progress, next);
+										} catch (RuntimeException e) {
+											if (done.get()) {
+												throw e;
+											}
+											log.error("[" + frequency.name() + " mails] Error while sending the digest of user " +
+													userPrefs.getString("userId", ""), e);
+											progress.usersKo++;
+											next.handle(null);
 										}
-
-										final JsonObject weeklyNotificationsObj = new JsonObject();
-										final JsonArray weeklyNotificationsGroupedArray = new fr.wseduc.webutils.collections.JsonArray();
-										for (Object notif : weeklyNotifications) {
-											JsonObject notification = (JsonObject) notif;
-											if (!weeklyNotificationsObj.containsKey(notification.getString("type").toLowerCase()))
-												weeklyNotificationsObj.put(notification.getString("type").toLowerCase(), new JsonObject()
-														.put("link", notificationsDefaults
-																.getJsonObject(notification.getString("notificationName")).getString("app-address", ""))
-														.put("event-types", new fr.wseduc.webutils.collections.JsonArray()));
-											weeklyNotificationsObj
-													.getJsonObject(notification.getString("type").toLowerCase())
-													.getJsonArray(("event-types"), new fr.wseduc.webutils.collections.JsonArray())
-													.add(notification);
-										}
-
-										for (String key : weeklyNotificationsObj.getMap().keySet()) {
-											weeklyNotificationsGroupedArray.add(new JsonObject()
-													.put("type", key)
-													.put("link", weeklyNotificationsObj.getJsonObject(key).getString("link", ""))
-													.put("event-types", weeklyNotificationsObj.getJsonObject(key).getJsonArray("event-types")));
-										}
-
-										if (weeklyNotifications.size() > 0) {
-											JsonObject templateParams = new JsonObject().put("notifications", weeklyNotificationsGroupedArray);
-											processTimelineTemplate(templateParams, "", "notifications/weekly-mail.html",
-													userDomain, userScheme, userLanguage, false, new Handler<String>() {
-														public void handle(final String processedTemplate) {
-															//On completion : log
-															final Handler<AsyncResult<Message<JsonObject>>> completionHandler = event -> {
-																if (event.failed() || "error".equals(event.result().body().getString("status", "error"))) {
-																	log.error("[Timeline weekly emails] Error while sending mail : ", event.cause());
-																	results.put("users.ko", results.getInteger("users.ko") + 1);
-																} else {
-																	results.put("mails.sent", results.getInteger("mails.sent") + 1);
-																}
-																usersEndHandler.handle(null);
-															};
-
-															//Translate mail title
-															JsonArray keys = new fr.wseduc.webutils.collections.JsonArray()
-																	.add("timeline.weekly.mail.subject.header");
-															translateTimeline(keys, userDomain, userLanguage, new Handler<JsonArray>() {
-																public void handle(JsonArray translations) {
-																	//Send mail containing the "weekly" notifications
-																	emailSender.sendEmail(request,
-																			userPrefs.getString("userMail", ""),
-																			null,
-																			null,
-																			translations.getString(0),
-																			processedTemplate,
-																			null,
-																			false,
-																			completionHandler);
-																}
-															});
-														}
-													});
-										} else {
-											usersEndHandler.handle(null);
-										}
-
 									}
-								});
-							}
-						}
-					});
-				}
-			};
-
-			public void handle(Boolean continuation) {
-				if (continuation) {
-					getImpactedUsers(notifiedUsers, userPagination.getAndIncrement(), new Handler<Either<String, JsonArray>>() {
-						public void handle(Either<String, JsonArray> event) {
-							if (event.isLeft()) {
-								log.error("[sendWeeklyMails] Error while retrieving impacted users : " + event.left().getValue());
-								handler.handle(new Either.Left<String, JsonObject>(event.left().getValue()));
-							} else {
-								JsonArray users = event.right().getValue();
-								usersHandler.handle(users);
-							}
-						}
-					});
-				} else {
-					handler.handle(new Either.Right<String, JsonObject>(results));
-				}
-			}
-		};
-		getRecipientsUsers(weekDate.getTime(), new Handler<JsonArray>() {
-			@Override
-			public void handle(JsonArray event) {
-				if (event != null && event.size() > 0) {
-					notifiedUsers.addAll(event.getList());
-					endPage.set((event.size() / USERS_LIMIT) + (event.size() % USERS_LIMIT != 0 ? 1 : 0));
-				} else {
-					handler.handle(new Either.Right<String, JsonObject>(results));
-					return;
-				}
-				getNotificationsDefaults(new Handler<JsonArray>() {
-					public void handle(final JsonArray notifications) {
-						if (notifications == null) {
-							log.error("[sendWeeklyMails] Error while retrieving notifications defaults.");
-						} else {
-							for (Object notifObj : notifications) {
-								final JsonObject notif = (JsonObject) notifObj;
-								notificationsDefaults.put(notif.getString("key", ""), notif);
+								};
+								for (int i = 0; i < MAILING_PARALLELISM; i++) {
+									worker.handle(null);
+								}
 							}
-							userContinuationHandler.handle(true);
-						}
+						});
 					}
 				});
+			}
+		});
+	}
 
+	private void sendDigest(final TimelineNotificationsLoader.Frequencies frequency, final JsonObject userPrefs,
+			final List<JsonObject> notifications, final JsonObject notificationsDefaults,
+			final DigestProgress progress, final Handler<Void> handler) {
+		if (notifications == null || notifications.isEmpty()) {
+			handler.handle(null);
+			return;
+		}
+		final String userDomain = userPrefs.getString("lastDomain", I18n.DEFAULT_DOMAIN);
+		final String userScheme = userPrefs.getString("lastScheme", "http");
+		String mutableUserLanguage = "fr";
+		try {
+			mutableUserLanguage = getOrElse(new JsonObject(getOrElse(userPrefs.getString("language"), "{}", false)).getString("default-domain"), "fr", false);
+		} catch(Exception e) {
+			log.error("UserId [" + userPrefs.getString("userId", "") + "] - Bad language preferences format");
+		}
+		final String userLanguage = mutableUserLanguage;
+		final JsonObject userConfig = userPrefs
+				.getJsonObject("preferences", new JsonObject())
+				.getJsonObject("config", new JsonObject());
+
+		final JsonObject templateParams;
+		final String template;
+		final String subjectKey;
+		if (TimelineNotificationsLoader.Frequencies.WEEKLY.equals(frequency)) {
+			templateParams = weeklyDigestParams(notifications, userConfig, notificationsDefaults);
+			template = "notifications/weekly-mail.html";
+			subjectKey = "timeline.weekly.mail.subject.header";
+		} else {
+			templateParams = dailyDigestParams(notifications, userConfig, notificationsDefaults, userLanguage);
+			template = "notifications/daily-mail.html";
+			subjectKey = "timeline.daily.mail.subject.header";
+		}
+		if (templateParams == null) {
+			handler.handle(null);
+			return;
+		}
+		processTimelineTemplate(templateParams, "", template, userDomain, userScheme, userLanguage, false, new Handler<String>() {
+			public void handle(final String processedTemplate) {
+				//On completion : log
+				final Handler<AsyncResult<Message<JsonObject>>> completionHandler = event -> {
+					if(event.failed() || "error".equals(event.result().body().getString("status", "error"))){
+						log.error("[Timeline " + frequency.name().toLowerCase() + " emails] Error while sending mail : ", event.cause());
+						progress.usersKo++;
+					} else {
+						progress.mailsSent++;
+					}
+					handler.handle(null);
+				};
+				emailSender.sendEmail(digestRequest,
+						userPrefs.getString("userMail", ""),
+						null,
+						null,
+						translateSubject(subjectKey, userDomain, userLanguage, progress.subjects),
+						processedTemplate,
+						null,
+						false,
+						completionHandler);
+			}
+		});
+	}
+
+	/**
+	 * Mail subjects are translated once per domain and language for the whole run.
+	 */
+	private String translateSubject(final String key, String domain, String language, final Map<String, String> subjects) {
+		final String cacheKey = key + "|" + domain + "|" + language;
+		final String subject = subjects.get(cacheKey);
+		if (subject != null) {
+			return subject;
+		}
+		final String[] translation = new String[] { key };
+		translateTimeline(new fr.wseduc.webutils.collections.JsonArray().add(key), domain, language, new Handler<JsonArray>() {
+			public void handle(JsonArray translations) {
+				translation[0] = translations.getString(0);
 			}
 		});
+		subjects.put(cacheKey, translation[0]);
+		return translation[0];
+	}
+
+	private boolean isDigestNotification(TimelineNotificationsLoader.Frequencies frequency, JsonObject notificationPreference,
+			JsonObject notificationDefaults) {
+		final String restriction = notificationPrefsMixin("restriction", notificationPreference, notificationDefaults);
+		return frequency.name().equals(notificationPrefsMixin("defaultFrequency", notificationPreference, notificationDefaults)) &&
+				!TimelineNotificationsLoader.Restrictions.INTERNAL.name().equals(restriction) &&
+				!TimelineNotificationsLoader.Restrictions.HIDDEN.name().equals(restriction);
+	}
+
+	private JsonObject dailyDigestParams(List<JsonObject> notifications, JsonObject userConfig,
+			JsonObject notificationsDefaults, String userLanguage) {
+		SimpleDateFormat formatter = new SimpleDateFormat("EEE, d MMM yyyy HH:mm:ss", Locale.forLanguageTag(userLanguage));
+		final JsonArray dates = new fr.wseduc.webutils.collections.JsonArray();
+		final JsonArray templates = new fr.wseduc.webutils.collections.JsonArray();
+
+		for(JsonObject notification : notifications){
+			final String notificationName =
+					notification.getString("type","").toLowerCase() + "." +
+							notification.getString("event-type", "").toLowerCase();
+			final JsonObject notificationDefaults = notificationsDefaults.getJsonObject(notificationName);
+			if(notificationDefaults == null)
+				continue;
+
+			if(isDigestNotification(TimelineNotificationsLoader.Frequencies.DAILY,
+					userConfig.getJsonObject(notificationName, new JsonObject()), notificationDefaults)){
+				templates.add(new JsonObject()
+						.put("template", notificationDefaults.getString("template", ""))
+						.put("params", notification.getJsonObject("params", new JsonObject())));
+				dates.add(formatter.format(MongoDb.parseIsoDate(notification.getJsonObject("date"))));
+			}
+		}
+		if(templates.size() == 0){
+			return null;
+		}
+		return new JsonObject()
+				.put("nestedTemplatesArray", templates)
+				.put("notificationDates", dates);
+	}
+
+	private JsonObject weeklyDigestParams(List<JsonObject> notifications, JsonObject userConfig,
+			JsonObject notificationsDefaults) {
+		final JsonObject weeklyNotificationsObj = new JsonObject();
+		for (JsonObject notification : notifications) {
+			final String notificationName =
+					notification.getString("type", "").toLowerCase() + "." +
+							notification.getString("event-type", "").toLowerCase();
+			final JsonObject notificationDefaults = notificationsDefaults.getJsonObject(notificationName);
+			if (notificationDefaults == null)
+				continue;
+
+			if (isDigestNotification(TimelineNotificationsLoader.Frequencies.WEEKLY,
+					userConfig.getJsonObject(notificationName, new JsonObject()), notificationDefaults)) {
+				final String type = notification.getString("type").toLowerCase();
+				if (!weeklyNotificationsObj.containsKey(type))
+					weeklyNotificationsObj.put(type, new JsonObject()
+							.put("link", notificationDefaults.getString("app-address", ""))
+							.put("event-types", new fr.wseduc.webutils.collections.JsonArray()));
+				weeklyNotificationsObj.getJsonObject(type).getJsonArray("event-types")
+						.add(notification.copy().put("notificationName", notificationName));
+			}
+		}
+		if (weeklyNotificationsObj.size() == 0) {
+			return null;
+		}
+
+		final JsonArray weeklyNotificationsGroupedArray = new fr.wseduc.webutils.collections.JsonArray();
+		for (String key : weeklyNotificationsObj.getMap().keySet()) {
+			weeklyNotificationsGroupedArray.add(new JsonObject()
+					.put("type", key)
+					.put("link", weeklyNotificationsObj.getJsonObject(key).getString("link", ""))
+					.put("event-types", weeklyNotificationsObj.getJsonObject(key).getJsonArray("event-types")));
+		}
+		return new JsonObject().put("notifications", weeklyNotificationsGroupedArray);
 	}
 
 		@Override
@@ -672,36 +703,6 @@ public class DefaultTimelineMailerService extends Renders implements TimelineMai
 		});
 	}
 
-	/**
-	 * Retrieves all timeline notifications from mongodb for a single user, from a specific date in the past.
-	 *
-	 * @param userId : Userid
-	 * @param from : The starting date
-	 * @param handler : Handles the notifications
-	 */
-	private void getUserNotifications(String userId, Date from, final Handler<JsonArray> handler){
-		JsonObject matcher = MongoQueryBuilder.build(
-				QueryBuilder
-						.start("recipients").elemMatch(QueryBuilder.start("userId").is(userId).get())
-						.and("date").greaterThanEquals(from));
-
-		JsonObject keys = new JsonObject()
-				.put("_id", 0)
-				.put("type", 1)
-				.put("event-type", 1)
-				.put("params", 1)
-				.put("date", 1);
-		mongo.find("timeline", matcher, null, keys, new Handler<Message<JsonObject>>() {
-			public void handle(Message<JsonObject> event) {
-				if("error".equals(event.body().getString("status", "error"))){
-					handler.handle(new fr.wseduc.webutils.collections.JsonArray());
-				} else {
-					handler.handle(event.body().getJsonArray("results"));
-				}
-			}
-		});
-	}
-
 	/**
 	 * Returns either user preferences or defaults when the user has not chosen specific values.
 	 *
@@ -730,15 +731,14 @@ public class DefaultTimelineMailerService extends Renders implements TimelineMai
 		pipeline.add(new JsonObject().put("$unwind", "$recipients"));
 		pipeline.add(new JsonObject().put("$group", grouper));
 
-		mongo.command(aggregation.toString(), new Handler<Message<JsonObject>>() {
+		aggregate(aggregation, new fr.wseduc.webutils.collections.JsonArray(), new Handler<Either<String, JsonArray>>() {
 			@Override
-			public void handle(Message<JsonObject> event) {
-				if ("error".equals(event.body().getString("status", "error"))) {
+			public void handle(Either<String, JsonArray> event) {
+				if (event.isLeft()) {
 					handler.handle(new fr.wseduc.webutils.collections.JsonArray());
 				} else {
-					JsonArray r = event.body().getJsonObject("result", new JsonObject())
-							.getJsonObject("cursor", new JsonObject()).getJsonArray("firstBatch");
-					if (r != null && r.size() > 0) {
+					JsonArray r = event.right().getValue();
+					if (r.size() > 0) {
 						handler.handle(r.getJsonObject(0).getJsonArray("recipients", new fr.wseduc.webutils.collections.JsonArray()));
 					} else {
 						handler.handle(new fr.wseduc.webutils.collections.JsonArray());
@@ -776,14 +776,16 @@ public class DefaultTimelineMailerService extends Renders implements TimelineMai
 	}
 
 	/**
-	 * Retrieves an aggregated list of notifications from mongodb for a single user.
+	 * Retrieves the notifications of a page of users from mongodb, with a single aggregation, grouped by user.
 	 *
-	 *  Notifications are grouped by type & event-type.
-	 * @param userId : Userid
+	 *  Weekly notifications are counted by type & event-type.
+	 * @param frequency : Daily or weekly
+	 * @param userIds : Users of the page
 	 * @param from : Starting date in the past
-	 * @param handler: Handles the notifications
+	 * @param handler: Handles the notifications by user id
 	 */
-	private void getAggregatedUserNotifications(String userId, Date from, final Handler<JsonArray> handler){
+	private void getUsersNotifications(TimelineNotificationsLoader.Frequencies frequency, JsonArray userIds, Date from,
+			final Handler<Map<String, List<JsonObject>>> handler){
 		final JsonObject aggregation = new JsonObject();
 		JsonArray pipeline = new fr.wseduc.webutils.collections.JsonArray();
 		aggregation
@@ -794,31 +796,83 @@ public class DefaultTimelineMailerService extends Renders implements TimelineMai
 
 		JsonObject matcher = MongoQueryBuilder.build(
 				QueryBuilder
-						.start("recipients").elemMatch(QueryBuilder.start("userId").is(userId).get())
+						.start("recipients.userId").in(userIds.getList())
 						.and("date").greaterThanEquals(from));
-		JsonObject grouper = new JsonObject("{ \"_id\" : { \"type\": \"$type\", \"event-type\": \"$event-type\"}, \"count\": { \"$sum\": 1 } }");
-		JsonObject transformer = new JsonObject("{ \"type\": \"$_id.type\", \"event-type\": \"$_id.event-type\", \"count\": 1, \"_id\": 0 }");
-
 		pipeline.add(new JsonObject().put("$match", matcher));
-		pipeline.add(new JsonObject().put("$group", grouper));
-		pipeline.add(new JsonObject().put("$project", transformer));
+		pipeline.add(new JsonObject().put("$unwind", "$recipients"));
+		pipeline.add(new JsonObject().put("$match", new JsonObject()
+				.put("recipients.userId", new JsonObject().put("$in", userIds))));
+		if (TimelineNotificationsLoader.Frequencies.WEEKLY.equals(frequency)) {
+			JsonObject grouper = new JsonObject("{ \"_id\" : { \"userId\": \"$recipients.userId\", \"type\": \"$type\", \"event-type\": \"$event-type\"}, \"count\": { \"$sum\": 1 } }");
+			JsonObject transformer = new JsonObject("{ \"userId\": \"$_id.userId\", \"type\": \"$_id.type\", \"event-type\": \"$_id.event-type\", \"count\": 1, \"_id\": 0 }");
+			pipeline.add(new JsonObject().put("$group", grouper));
+			pipeline.add(new JsonObject().put("$project", transformer));
+		} else {
+			JsonObject transformer = new JsonObject("{ \"userId\": \"$recipients.userId\", \"type\": 1, \"event-type\": 1, \"params\": 1, \"date\": 1, \"_id\": 0 }");
+			pipeline.add(new JsonObject().put("$project", transformer));
+		}
 
-		mongo.command(aggregation.toString(), new Handler<Message<JsonObject>>() {
+		aggregate(aggregation, new fr.wseduc.webutils.collections.JsonArray(), new Handler<Either<String, JsonArray>>() {
 			@Override
-			public void handle(Message<JsonObject> event) {
-				if("error".equals(event.body().getString("status", "error"))){
-					handler.handle(new fr.wseduc.webutils.collections.JsonArray());
-				} else {
-					handler.handle(
-							event.body().getJsonObject("result", new JsonObject())
-									.getJsonObject("cursor", new JsonObject())
-									.getJsonArray("firstBatch", new fr.wseduc.webutils.collections.JsonArray()));
+			public void handle(Either<String, JsonArray> event) {
+				final Map<String, List<JsonObject>> notificationsByUser = new HashMap<>();
+				if (event.isLeft()) {
+					log.error("Error while aggregating users notifications : " + event.left().getValue());
+					handler.handle(notificationsByUser);
+					return;
+				}
+				final JsonArray notifications = event.right().getValue();
+				for (Object o : notifications) {
+					if (!(o instanceof JsonObject)) continue;
+					final JsonObject notification = (JsonObject) o;
+					final String userId = (String) notification.remove("userId");
+					List<JsonObject> userNotifications = notificationsByUser.get(userId);
+					if (userNotifications == null) {
+						userNotifications = new ArrayList<>();
+						notificationsByUser.put(userId, userNotifications);
+					}
+					userNotifications.add(notification);
 				}
+				handler.handle(notificationsByUser);
 			}
 
 		});
 	}
 
+	/**
+	 * Runs an aggregation command on the timeline collection and follows its cursor with getMore,
+	 * the first batch of a cursor is capped at 16MB whatever the requested batch size.
+	 *
+	 * @param command : Aggregate command, then getMore commands
+	 * @param results : Documents of the previous batches
+	 * @param handler : Handles all the documents of the cursor
+	 */
+	private void aggregate(final JsonObject command, final JsonArray results, final Handler<Either<String, JsonArray>> handler) {
+		mongo.command(command.toString(), new Handler<Message<JsonObject>>() {
+			@Override
+			public void handle(Message<JsonObject> event) {
+				if ("error".equals(event.body().getString("status", "error"))) {
+					handler.handle(new Either.Left<String, JsonArray>(event.body().getString("message", "")));
+					return;
+				}
+				final JsonObject cursor = event.body().getJsonObject("result", new JsonObject())
+						.getJsonObject("cursor", new JsonObject());
+				final JsonArray batch = cursor.containsKey("nextBatch") ?
+						cursor.getJsonArray("nextBatch") : cursor.getJsonArray("firstBatch");
+				if (batch != null) {
+					results.addAll(batch);
+				}
+				final Object cursorId = cursor.getValue("id");
+				if (batch == null || batch.size() == 0 || cursorId == null ||
+						(cursorId instanceof Number && ((Number) cursorId).longValue() == 0L)) {
+					handler.handle(new Either.Right<String, JsonArray>(results));
+					return;
+				}
+				aggregate(new JsonObject().put("getMore", cursorId).put("collection", "timeline"), results, handler);
+			}
+		});
+	}
+
 	public void setConfigService(TimelineConfigService configService) {
 		this.configService = configService;
 	}
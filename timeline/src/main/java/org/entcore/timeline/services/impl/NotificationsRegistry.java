@@ -0,0 +1,194 @@
+/*
+ * Copyright © "Open Digital Education", 2016
+ *
+ * This program is published by "Open Digital Education".
+ * You must indicate the name of the software and the company in any production /contribution
+ * using the software and indicate on the home page of the software industry in question,
+ * "powered by Open Digital Education" with a reference to the website: https://opendigitaleducation.com/.
+ *
+ * This program is free software, licensed under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * You can redistribute this application and/or modify it since you respect the terms of the GNU Affero General Public License.
+ * If you modify the source code and then use this modified source code in your creation, you must make available the source code of your modifications.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with the software.
+ * If not, please see : <http://www.gnu.org/licenses/>. Full compliance requires reading the terms of this license and following its directives.
+
+ */
+
+package org.entcore.timeline.services.impl;
+
+import com.samskivert.mustache.Mustache;
+import com.samskivert.mustache.Template;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.Message;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import org.entcore.common.notification.TimelineNotificationsLoader;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Parsed view of the notifications registered by the applications in the shared notifications map.
+ * The registry is loaded on first use, then refreshed key by key when an application
+ * (re)registers a notification. Templates are compiled once per notification.
+ */
+public class NotificationsRegistry {
+
+	private static final Logger log = LoggerFactory.getLogger(NotificationsRegistry.class);
+	private final Map<String, String> sharedMap;
+	private volatile Map<String, RegisteredNotification> notifications;
+
+	public static final class RegisteredNotification {
+		private final String key;
+		private final JsonObject json;
+		private final String type;
+		private final String eventType;
+		private final String restriction;
+		private final String defaultFrequency;
+		private final boolean pushNotif;
+		private volatile Template template;
+
+		private RegisteredNotification(String key, JsonObject json) {
+			this.key = key;
+			this.json = json;
+			this.type = json.getString("type");
+			this.eventType = json.getString("event-type");
+			this.restriction = json.getString("restriction", TimelineNotificationsLoader.Restrictions.defaultRestriction());
+			this.defaultFrequency = json.getString("defaultFrequency", TimelineNotificationsLoader.Frequencies.defaultFrequency());
+			this.pushNotif = json.getBoolean("push-notif", false);
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public String getType() {
+			return type;
+		}
+
+		public String getEventType() {
+			return eventType;
+		}
+
+		public String getRestriction() {
+			return restriction;
+		}
+
+		public String getDefaultFrequency() {
+			return defaultFrequency;
+		}
+
+		public boolean isPushNotif() {
+			return pushNotif;
+		}
+
+		public String getTemplateString() {
+			return json.getString("template", "");
+		}
+
+		public Template getTemplate() {
+			Template t = template;
+			if (t == null) {
+				t = Mustache.compiler().defaultValue("").compile(getTemplateString());
+				template = t;
+			}
+			return t;
+		}
+
+		/**
+		 * Copy of the registered notification.
+		 */
+		public JsonObject toJsonWithTemplate() {
+			return json.copy();
+		}
+
+		/**
+		 * Copy of the registered notification, without template.
+		 */
+		public JsonObject toJson() {
+			final JsonObject j = json.copy().put("key", key);
+			j.remove("template");
+			return j;
+		}
+	}
+
+	public NotificationsRegistry(Vertx vertx, Map<String, String> sharedMap) {
+		this.sharedMap = sharedMap;
+		vertx.eventBus().consumer(TimelineNotificationsLoader.REGISTERED_ADDRESS, new Handler<Message<String>>() {
+			@Override
+			public void handle(Message<String> message) {
+				if (message.body() != null) {
+					refresh(message.body());
+				}
+			}
+		});
+	}
+
+	public RegisteredNotification get(String key) {
+		RegisteredNotification n = load().get(key);
+		if (n == null) {
+			n = refresh(key);
+		}
+		return n;
+	}
+
+	public Collection<RegisteredNotification> all() {
+		return load().values();
+	}
+
+	private Map<String, RegisteredNotification> load() {
+		Map<String, RegisteredNotification> n = notifications;
+		if (n == null) {
+			synchronized (this) {
+				n = notifications;
+				if (n == null) {
+					final Map<String, RegisteredNotification> m = new HashMap<>();
+					for (Map.Entry<String, String> e : sharedMap.entrySet()) {
+						final RegisteredNotification r = parse(e.getKey(), e.getValue());
+						if (r != null) {
+							m.put(e.getKey(), r);
+						}
+					}
+					n = Collections.unmodifiableMap(m);
+					notifications = n;
+				}
+			}
+		}
+		return n;
+	}
+
+	private synchronized RegisteredNotification refresh(String key) {
+		final RegisteredNotification r = parse(key, sharedMap.get(key));
+		if (notifications != null) {
+			final Map<String, RegisteredNotification> m = new HashMap<>(notifications);
+			if (r != null) {
+				m.put(key, r);
+			} else {
+				m.remove(key);
+			}
+			notifications = Collections.unmodifiableMap(m);
+		}
+		return r;
+	}
+
+	private static RegisteredNotification parse(String key, String value) {
+		if (value == null) {
+			return null;
+		}
+		try {
+			return new RegisteredNotification(key, new JsonObject(value));
+		} catch (DecodeException e) {
+			log.error("Invalid registered notification : " + key, e);
+			return null;
+		}
+	}
+
+}
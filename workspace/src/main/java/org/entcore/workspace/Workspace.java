@@ -38,6 +38,8 @@ import org.entcore.workspace.security.WorkspaceResourcesProvider;
 import org.entcore.workspace.service.WorkspaceService;
 import org.entcore.workspace.service.impl.AudioRecorderWorker;
 import org.entcore.workspace.service.impl.DefaultQuotaService;
+import org.entcore.workspace.service.impl.QuotaLedger;
+import org.entcore.workspace.service.impl.ThumbnailCache;
 import org.entcore.workspace.service.impl.DefaultWorkspaceService;
 import org.entcore.workspace.service.impl.WorkspaceRepositoryEvents;
 import org.entcore.workspace.service.impl.WorkspaceSearchingEvents;
@@ -60,8 +62,10 @@ public class Workspace extends BaseServer {
 				new MongoDBApplicationStorage(DocumentDao.DOCUMENTS_COLLECTION, Workspace.class.getSimpleName())).getStorage();
 
 		final boolean neo4jPlugin = config.getBoolean("neo4jPlugin", false);
+		final QuotaLedger quotaLedger = config.getBoolean("quota-ledger", false) ?
+				new QuotaLedger(vertx, config) : null;
 		final QuotaService quotaService = new DefaultQuotaService(neo4jPlugin,
-				new TimelineHelper(vertx, vertx.eventBus(), config));
+				new TimelineHelper(vertx, vertx.eventBus(), config), quotaLedger);
 
 		/**
 		 * SHare Service
@@ -99,10 +103,13 @@ public class Workspace extends BaseServer {
 		}
 		FolderManager folderManager = FolderManager.mongoManager(DocumentDao.DOCUMENTS_COLLECTION, storage, vertx, shareService);
 		String imageResizerAddress = node + config.getString("image-resizer-address", "wse.image.resizer");
+		final ThumbnailCache thumbnailCache = config.getBoolean("lazy-thumbnails", false) ?
+				new ThumbnailCache(vertx, config, storage, imageResizerAddress) : null;
 		WorkspaceService workspaceService = new DefaultWorkspaceService(storage, MongoDb.getInstance(), threshold,
-				imageResizerAddress, quotaService, folderManager, vertx.eventBus(), shareService);
+				imageResizerAddress, quotaService, folderManager, vertx.eventBus(), shareService, thumbnailCache);
 
-		WorkspaceController workspaceController = new WorkspaceController(storage, workspaceService, shareService);
+		WorkspaceController workspaceController = new WorkspaceController(storage, workspaceService, shareService,
+				thumbnailCache);
 		addController(workspaceController);
 		//
 
@@ -34,6 +34,7 @@ import org.entcore.common.user.UserUtils;
 import org.entcore.common.utils.StringUtils;
 import org.entcore.workspace.Workspace;
 import org.entcore.workspace.service.WorkspaceService;
+import org.entcore.workspace.service.impl.ThumbnailCache;
 import org.vertx.java.core.http.RouteMatcher;
 
 import fr.wseduc.bus.BusAddress;
@@ -71,11 +72,18 @@ public class WorkspaceController extends BaseController {
 	private GenericShareService shareService;
 
 	private Storage storage;
+	private ThumbnailCache thumbnailCache;
 
 	public WorkspaceController(Storage storage, WorkspaceService workspaceService, GenericShareService shareService) {
+		this(storage, workspaceService, shareService, null);
+	}
+
+	public WorkspaceController(Storage storage, WorkspaceService workspaceService, GenericShareService shareService,
+			ThumbnailCache thumbnailCache) {
 		this.storage = storage;
 		this.workspaceService = workspaceService;
 		this.shareService = shareService;
+		this.thumbnailCache = thumbnailCache;
 	}
 
 	@Post("/document")
@@ -651,33 +659,32 @@ public class WorkspaceController extends BaseController {
 		});
 	}
 
-	private void getFile(final HttpServerRequest request, String owner, boolean publicOnly) {
+	private void getFile(final HttpServerRequest request, String owner, final boolean publicOnly) {
 		workspaceService.findById(request.params().get("id"), owner, publicOnly, new Handler<JsonObject>() {
 			@Override
 			public void handle(JsonObject res) {
 				String status = res.getString("status");
-				JsonObject result = res.getJsonObject("result");
+				final JsonObject result = res.getJsonObject("result");
 				String thumbSize = request.params().get("thumbnail");
 				if ("ok".equals(status) && result != null) {
-					String file;
-					if (thumbSize != null && !thumbSize.trim().isEmpty()) {
-						file = result.getJsonObject("thumbnails", new JsonObject()).getString(thumbSize,
-								result.getString("file"));
-					} else {
-						file = result.getString("file");
-					}
-					if (file != null && !file.trim().isEmpty()) {
-						boolean inline = inlineDocumentResponse(result, request.params().get("application"));
-						if (inline && ETag.check(request, file)) {
-							notModified(request, file);
-						} else {
-							storage.sendFile(file, result.getString("name"), request, inline,
-									result.getJsonObject("metadata"));
-						}
-						eventStore.createAndStoreEvent(WokspaceEvent.GET_RESOURCE.name(), request,
-								new JsonObject().put("resource", request.params().get("id")));
+					if (thumbSize != null && !thumbSize.trim().isEmpty() && thumbnailCache != null) {
+						thumbnailCache.getThumbnail(result, thumbSize, new Handler<Either<String, String>>() {
+							@Override
+							public void handle(Either<String, String> thumbnail) {
+								if (thumbnail.isRight()) {
+									request.response().putHeader("Cache-Control", (publicOnly ? "public" : "private") +
+											", max-age=" + thumbnailCache.getMaxAge());
+									sendFile(request, result, thumbnail.right().getValue());
+								} else {
+									sendFile(request, result, result.getString("file"));
+								}
+							}
+						});
+					} else if (thumbSize != null && !thumbSize.trim().isEmpty()) {
+						sendFile(request, result, result.getJsonObject("thumbnails", new JsonObject())
+								.getString(thumbSize, result.getString("file")));
 					} else {
-						request.response().setStatusCode(404).end();
+						sendFile(request, result, result.getString("file"));
 					}
 				} else {
 					request.response().setStatusCode(404).end();
@@ -686,6 +693,22 @@ public class WorkspaceController extends BaseController {
 		});
 	}
 
+	private void sendFile(HttpServerRequest request, JsonObject result, String file) {
+		if (file != null && !file.trim().isEmpty()) {
+			boolean inline = inlineDocumentResponse(result, request.params().get("application"));
+			if (inline && ETag.check(request, file)) {
+				notModified(request, file);
+			} else {
+				storage.sendFile(file, result.getString("name"), request, inline,
+						result.getJsonObject("metadata"));
+			}
+			eventStore.createAndStoreEvent(WokspaceEvent.GET_RESOURCE.name(), request,
+					new JsonObject().put("resource", request.params().get("id")));
+		} else {
+			request.response().setStatusCode(404).end();
+		}
+	}
+
 	@Get("/pub/document/:id")
 	public void getPublicDocument(HttpServerRequest request) {
 		getFile(request, null, true);
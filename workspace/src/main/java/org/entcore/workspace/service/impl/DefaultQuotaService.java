@@ -45,10 +45,20 @@ public class DefaultQuotaService implements org.entcore.common.folders.QuotaServ
 	private static final Logger log = LoggerFactory.getLogger(DefaultQuotaService.class);
 	private final TimelineHelper notification;
 	private final boolean neo4jPlugin;
+	private final QuotaLedger quotaLedger;
 
 	public DefaultQuotaService(boolean neo4jPlugin, TimelineHelper timelineHelper) {
+		this(neo4jPlugin, timelineHelper, null);
+	}
+
+	/**
+	 * @param quotaLedger when set, storage updates and usage reads go through the ledger,
+	 *                    the UserBooks are updated by its periodic flush.
+	 */
+	public DefaultQuotaService(boolean neo4jPlugin, TimelineHelper timelineHelper, QuotaLedger quotaLedger) {
 		this.neo4jPlugin = neo4jPlugin;
 		this.notification = timelineHelper;
+		this.quotaLedger = quotaLedger;
 	}
 
 	@Override
@@ -62,6 +72,10 @@ public class DefaultQuotaService implements org.entcore.common.folders.QuotaServ
 	@Override
 	public void incrementStorage(String userId, Long size, int threshold,
 			final Handler<Either<String, JsonObject>> handler) {
+		if (quotaLedger != null) {
+			quotaLedger.incrementStorage(userId, size, threshold, handler);
+			return;
+		}
 		JsonObject params = new JsonObject().put("size", size).put("threshold", threshold);
 		if (!neo4jPlugin) {
 			String query = "MATCH (u:UserBook { userid : {userId}}) " + "SET u.storage = u.storage + {size} "
@@ -92,7 +106,24 @@ public class DefaultQuotaService implements org.entcore.common.folders.QuotaServ
 	}
 
 	@Override
-	public void quotaAndUsage(String userId, Handler<Either<String, JsonObject>> handler) {
+	public void quotaAndUsage(final String userId, final Handler<Either<String, JsonObject>> handler) {
+		if (quotaLedger != null) {
+			quotaLedger.quotaAndUsage(userId, new Handler<Either<String, JsonObject>>() {
+				@Override
+				public void handle(Either<String, JsonObject> r) {
+					if (r.isRight() && r.right().getValue() == null) {
+						quotaAndUsageUserBook(userId, handler);
+					} else {
+						handler.handle(r);
+					}
+				}
+			});
+		} else {
+			quotaAndUsageUserBook(userId, handler);
+		}
+	}
+
+	private void quotaAndUsageUserBook(String userId, Handler<Either<String, JsonObject>> handler) {
 		String query = "MATCH (u:UserBook { userid : {userId}}) " + "RETURN u.quota as quota, u.storage as storage ";
 		JsonObject params = new JsonObject().put("userId", userId);
 		neo4j.execute(query, params, validUniqueResultHandler(handler));
@@ -121,7 +152,45 @@ public class DefaultQuotaService implements org.entcore.common.folders.QuotaServ
 				+ "WHERE u.userid IN {users} AND u.storage < {quota} AND {quota} < coalesce(p.maxQuota, 1073741824) "
 				+ "SET u.quota = {quota}, u.alertSize = false " + "RETURN u.userid as id ";
 		JsonObject params = new JsonObject().put("users", users).put("quota", quota);
-		neo4j.execute(query, params, validResultHandler(handler));
+		if (quotaLedger == null) {
+			neo4j.execute(query, params, validResultHandler(handler));
+			return;
+		}
+		// the storage of the UserBook lags behind the ledger, the new quota is checked against the ledger
+		quotaLedger.storages(users, new Handler<Either<String, JsonObject>>() {
+			@Override
+			public void handle(Either<String, JsonObject> s) {
+				if (s.isLeft()) {
+					handler.handle(new Either.Left<String, JsonArray>(s.left().getValue()));
+					return;
+				}
+				final JsonArray rows = new fr.wseduc.webutils.collections.JsonArray();
+				for (Object u : users) {
+					rows.add(new JsonObject().put("userId", u).put("storage", s.right().getValue().getLong((String) u)));
+				}
+				final String ledgerQuery =
+						"UNWIND {rows} as row " +
+						"MATCH (u:UserBook { userid : row.userId})<-[:USERBOOK]-(:User)-[:IN]->(:ProfileGroup)" +
+						"-[:HAS_PROFILE]->(p:Profile) " +
+						"WHERE coalesce(row.storage, u.storage) < {quota} AND {quota} < coalesce(p.maxQuota, 1073741824) " +
+						"SET u.quota = {quota}, u.alertSize = false " + "RETURN u.userid as id ";
+				neo4j.execute(ledgerQuery, new JsonObject().put("rows", rows).put("quota", quota),
+						validResultHandler(new Handler<Either<String, JsonArray>>() {
+					@Override
+					public void handle(Either<String, JsonArray> r) {
+						if (r.isRight() && r.right().getValue().size() > 0) {
+							final JsonArray ids = new fr.wseduc.webutils.collections.JsonArray();
+							for (Object o : r.right().getValue()) {
+								if (!(o instanceof JsonObject)) continue;
+								ids.add(((JsonObject) o).getString("id"));
+							}
+							quotaLedger.updateQuota(ids, quota);
+						}
+						handler.handle(r);
+					}
+				}));
+			}
+		});
 	}
 
 	@Override
@@ -160,6 +229,9 @@ public class DefaultQuotaService implements org.entcore.common.folders.QuotaServ
 				+ "SET m.quota = quota, m.storage = 0, m.alertSize = false " + "WITH m, n "
 				+ "CREATE UNIQUE n-[:USERBOOK]->m";
 		JsonObject params = new JsonObject().put("userId", userId);
+		if (quotaLedger != null) {
+			quotaLedger.remove(userId);
+		}
 		neo4j.execute(query, params, new Handler<Message<JsonObject>>() {
 			@Override
 			public void handle(Message<JsonObject> message) {
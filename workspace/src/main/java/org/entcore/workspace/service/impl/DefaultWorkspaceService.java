@@ -25,6 +25,7 @@ import org.entcore.common.mongodb.MongoDbResult;
 import org.entcore.common.notification.TimelineHelper;
 import org.entcore.common.share.ShareService;
 import org.entcore.common.storage.Storage;
+import org.entcore.common.storage.impl.FileStorage;
 import org.entcore.common.user.UserInfos;
 import org.entcore.common.user.UserUtils;
 import org.entcore.common.utils.StringUtils;
@@ -55,9 +56,16 @@ public class DefaultWorkspaceService extends FolderManagerWithQuota implements W
 	private MongoDb mongo;
 	private final RevisionDao revisionDao;
 	private final DocumentDao documentDao;
+	private final ThumbnailCache thumbnailCache;
 
 	public DefaultWorkspaceService(Storage storage, MongoDb mongo, int threshold, String imageResizerAddress,
 			QuotaService quotaService, FolderManager folderManager, EventBus eb, ShareService share) {
+		this(storage, mongo, threshold, imageResizerAddress, quotaService, folderManager, eb, share, null);
+	}
+
+	public DefaultWorkspaceService(Storage storage, MongoDb mongo, int threshold, String imageResizerAddress,
+			QuotaService quotaService, FolderManager folderManager, EventBus eb, ShareService share,
+			ThumbnailCache thumbnailCache) {
 		super(DocumentDao.DOCUMENTS_COLLECTION, threshold, quotaService, folderManager, eb);
 		this.dao = new DocumentDao(mongo);
 		this.storage = storage;
@@ -68,6 +76,7 @@ public class DefaultWorkspaceService extends FolderManagerWithQuota implements W
 		this.eb = eb;
 		this.revisionDao = new RevisionDao(mongo);
 		this.documentDao = new DocumentDao(mongo);
+		this.thumbnailCache = thumbnailCache;
 	}
 
 	@Override
@@ -154,18 +163,44 @@ public class DefaultWorkspaceService extends FolderManagerWithQuota implements W
 		dao.update(id, query, handler);
 	}
 
-	private void compressImage(JsonObject srcFile, float quality, final Handler<Integer> handler) {
+	/**
+	 * Compresses the image in place, or in a new file which replaces the uploaded one in srcFile when the
+	 * files of the bucket are deduplicated : they may be shared by copies and are never rewritten in place.
+	 */
+	private void compressImage(final JsonObject srcFile, float quality, final Handler<Integer> handler) {
 		if (!isImage(srcFile)) {
 			handler.handle(null);
 			return;
 		}
+		final String original = srcFile.getString("_id");
+		final boolean inPlace = !(storage instanceof FileStorage && ((FileStorage) storage).isDeduplicated());
+		final String compressed = inPlace ? original : UUID.randomUUID().toString();
 		JsonObject json = new JsonObject().put("action", "compress").put("quality", quality)
-				.put("src", storage.getProtocol() + "://" + storage.getBucket() + ":" + srcFile.getString("_id"))
-				.put("dest", storage.getProtocol() + "://" + storage.getBucket() + ":" + srcFile.getString("_id"));
+				.put("src", storage.getProtocol() + "://" + storage.getBucket() + ":" + original)
+				.put("dest", storage.getProtocol() + "://" + storage.getBucket() + ":" + compressed);
 		eb.send(imageResizerAddress, json, handlerToAsyncHandler(new Handler<Message<JsonObject>>() {
 			@Override
 			public void handle(Message<JsonObject> event) {
 				Integer size = event.body().getInteger("size");
+				if (inPlace) {
+					handler.handle(size);
+					return;
+				}
+				final String removed;
+				if (size != null) {
+					srcFile.put("_id", compressed);
+					removed = original;
+				} else {
+					removed = compressed;
+				}
+				storage.removeFile(removed, new Handler<JsonObject>() {
+					@Override
+					public void handle(JsonObject res) {
+						if (size != null && !"ok".equals(res.getString("status"))) {
+							log.error("Error removing uncompressed image " + original + " : " + res.getString("message"));
+						}
+					}
+				});
 				handler.handle(size);
 			}
 		}));
@@ -256,6 +291,9 @@ public class DefaultWorkspaceService extends FolderManagerWithQuota implements W
 												: result.getString("ownerName");
 										doc.put("owner", result.getString("owner"));
 										incrementStorage(doc);
+										if (thumbnailCache != null && result.getString("file") != null) {
+											thumbnailCache.removeThumbnails(id, result.getString("file"));
+										}
 										createThumbnailIfNeeded(DocumentDao.DOCUMENTS_COLLECTION, uploaded, id, thumbs,
 												t).map(resThumb -> {
 													JsonObject thumbs = resThumb != null ? resThumb : new JsonObject();
@@ -318,6 +356,9 @@ public class DefaultWorkspaceService extends FolderManagerWithQuota implements W
 					if (DocumentHelper.isFile(item) && !StringUtils.isEmpty(DocumentHelper.getFileId(item))) {
 						deleteAllRevisions(DocumentHelper.getId(item),
 								new fr.wseduc.webutils.collections.JsonArray().add(DocumentHelper.getFileId(item)));
+						if (thumbnailCache != null) {
+							thumbnailCache.removeThumbnails(DocumentHelper.getId(item), null);
+						}
 					}
 				}
 			}
@@ -372,6 +413,9 @@ public class DefaultWorkspaceService extends FolderManagerWithQuota implements W
 			return revisionDao.deleteByDocAndId(documentId, revisionId).map(revision);
 		}).compose(revision -> {
 			decrementStorage(revision);
+			if (thumbnailCache != null && revision.getString("file") != null) {
+				thumbnailCache.removeThumbnails(documentId, revision.getString("file"));
+			}
 			// restore document it was last
 			if (isLastFuture.result()) {
 				JsonObject previous = lastTwoFuture.result().getJsonObject(1);
@@ -398,8 +442,12 @@ public class DefaultWorkspaceService extends FolderManagerWithQuota implements W
 	}
 
 	private Future<JsonObject> createThumbnailIfNeeded(final String collection, final JsonObject srcFile,
-			final String documentId, final JsonObject oldThumbnail, final List<String> thumbs) {
+			final String documentId, final JsonObject oldThumbnail, List<String> thumbs) {
 		Future<JsonObject> future = null;
+		if (thumbnailCache != null && thumbs != null) {
+			// sizes created on first access are not created at upload
+			thumbs = thumbs.stream().filter(t -> !thumbnailCache.isLazy(t)).collect(Collectors.toList());
+		}
 		if (documentId != null && thumbs != null && !documentId.trim().isEmpty() && !thumbs.isEmpty() && srcFile != null
 				&& isImage(srcFile) && srcFile.getString("_id") != null) {
 			future = createThumbnails(thumbs, srcFile, collection, documentId);
@@ -0,0 +1,482 @@
+/*
+ * Copyright © "Open Digital Education", 2014
+ *
+ * This program is published by "Open Digital Education".
+ * You must indicate the name of the software and the company in any production /contribution
+ * using the software and indicate on the home page of the software industry in question,
+ * "powered by Open Digital Education" with a reference to the website: https://opendigitaleducation.com/.
+ *
+ * This program is free software, licensed under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * You can redistribute this application and/or modify it since you respect the terms of the GNU Affero General Public License.
+ * If you modify the source code and then use this modified source code in your creation, you must make available the source code of your modifications.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with the software.
+ * If not, please see : <http://www.gnu.org/licenses/>. Full compliance requires reading the terms of this license and following its directives.
+
+ */
+
+package org.entcore.workspace.service.impl;
+
+import static org.entcore.common.neo4j.Neo4jResult.validUniqueResultHandler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.entcore.common.neo4j.Neo4j;
+
+import fr.wseduc.mongodb.MongoDb;
+import fr.wseduc.webutils.Either;
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.Message;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+/**
+ * Storage usage of the users, updated with atomic increments in mongo instead of a Neo4j write per file.
+ * A ledger document holds the current storage and quota of a user, and the pending delta not yet written
+ * in the UserBook. Pending deltas are periodically claimed with a flush id and added to the UserBooks in
+ * batched UNWIND statements. The flush id stored on the UserBook makes the write idempotent, so a claim
+ * left by a failed flush is applied again later without being counted twice.
+ * When a ledger is flushed without new increments, its storage and quota are reloaded from the UserBook,
+ * which takes the writes made outside of the ledger into account. Idle ledgers are removed.
+ */
+public class QuotaLedger implements Handler<Long> {
+
+	private static final Logger log = LoggerFactory.getLogger(QuotaLedger.class);
+	public static final String QUOTA_LEDGER_COLLECTION = "quotaLedger";
+	private static final String LOAD_QUERY =
+			"MATCH (u:UserBook { userid : {userId}}) " +
+			"RETURN u.quota as quota, u.storage as storage, coalesce(u.alertSize, false) as alertSize ";
+	private static final String FLUSH_QUERY =
+			"UNWIND {rows} as row " +
+			"MATCH (u:UserBook { userid : row.userId}) " +
+			"WHERE coalesce(u.quotaFlushId, '') <> row.flushId " +
+			"SET u.storage = u.storage + row.flushing, u.alertSize = row.alertSize, u.quotaFlushId = row.flushId ";
+	private static final String FLUSHED_QUERY =
+			"UNWIND {rows} as row " +
+			"MATCH (u:UserBook { userid : row.userId}) " +
+			"RETURN u.userid as userId, u.quota as quota, u.storage as storage ";
+
+	private final Neo4j neo4j = Neo4j.getInstance();
+	private final MongoDb mongo = MongoDb.getInstance();
+	private final int batchSize;
+	private final long staleFlushDelay;
+	private final long idleDelay;
+	private boolean flushing = false;
+
+	public QuotaLedger(Vertx vertx, JsonObject config) {
+		final long flushDelay = config.getLong("quota-ledger-flush-delay", 10000L);
+		this.batchSize = config.getInteger("quota-ledger-batch-size", 1000);
+		this.staleFlushDelay = config.getLong("quota-ledger-stale-flush-delay", 5 * 60 * 1000L);
+		this.idleDelay = config.getLong("quota-ledger-idle-delay", 10 * 60 * 1000L);
+		vertx.setPeriodic(flushDelay, this);
+	}
+
+	/**
+	 * Adds size to the storage of the user and returns the new storage and whether the user must be notified
+	 * of a small amount of free space, as the UserBook update did.
+	 */
+	public void incrementStorage(final String userId, final long size, final int threshold,
+			final Handler<Either<String, JsonObject>> handler) {
+		incrementStorage(userId, size, threshold, true, handler);
+	}
+
+	private void incrementStorage(final String userId, final long size, final int threshold, final boolean load,
+			final Handler<Either<String, JsonObject>> handler) {
+		final JsonObject query = new JsonObject().put("_id", userId);
+		final JsonObject update = new JsonObject()
+				.put("$inc", new JsonObject().put("storage", size).put("pending", size))
+				.put("$set", new JsonObject().put("modified", MongoDb.now()));
+		mongo.findAndModify(QUOTA_LEDGER_COLLECTION, query, update, null, null, new Handler<Message<JsonObject>>() {
+			@Override
+			public void handle(Message<JsonObject> res) {
+				if (!"ok".equals(res.body().getString("status"))) {
+					handler.handle(new Either.Left<String, JsonObject>(res.body().getString("message")));
+					return;
+				}
+				final JsonObject old = res.body().getJsonObject("result");
+				if (old == null && load) {
+					load(userId, new Handler<Either<String, Boolean>>() {
+						@Override
+						public void handle(Either<String, Boolean> loaded) {
+							if (loaded.isLeft()) {
+								handler.handle(new Either.Left<String, JsonObject>(loaded.left().getValue()));
+							} else if (!loaded.right().getValue()) {
+								handler.handle(new Either.Right<String, JsonObject>(new JsonObject()));
+							} else {
+								incrementStorage(userId, size, threshold, false, handler);
+							}
+						}
+					});
+				} else if (old == null) {
+					handler.handle(new Either.Left<String, JsonObject>("quota.ledger.not.found"));
+				} else {
+					checkAlert(userId, old, old.getLong("storage", 0L) + size, threshold, handler);
+				}
+			}
+		});
+	}
+
+	private void checkAlert(String userId, JsonObject old, final long storage, int threshold,
+			final Handler<Either<String, JsonObject>> handler) {
+		final long quota = old.getLong("quota", 0L);
+		final boolean oldAlert = old.getBoolean("alertSize", false);
+		final boolean alert = quota > 0 && (100.0 * storage / quota) > threshold;
+		if (alert == oldAlert) {
+			handler.handle(new Either.Right<String, JsonObject>(
+					new JsonObject().put("storage", storage).put("notify", false)));
+			return;
+		}
+		// only the node switching the flag notifies
+		final JsonObject query = new JsonObject().put("_id", userId).put("alertSize", oldAlert);
+		final JsonObject update = new JsonObject().put("$set", new JsonObject().put("alertSize", alert));
+		mongo.update(QUOTA_LEDGER_COLLECTION, query, update, new Handler<Message<JsonObject>>() {
+			@Override
+			public void handle(Message<JsonObject> res) {
+				final boolean switched = "ok".equals(res.body().getString("status")) &&
+						res.body().getInteger("number", 0) > 0;
+				handler.handle(new Either.Right<String, JsonObject>(
+						new JsonObject().put("storage", storage).put("notify", alert && switched)));
+			}
+		});
+	}
+
+	/**
+	 * Creates the ledger of the user from its UserBook if it doesn't exist. Returns false without UserBook.
+	 */
+	private void load(final String userId, final Handler<Either<String, Boolean>> handler) {
+		neo4j.execute(LOAD_QUERY, new JsonObject().put("userId", userId), validUniqueResultHandler(
+				new Handler<Either<String, JsonObject>>() {
+			@Override
+			public void handle(Either<String, JsonObject> r) {
+				if (r.isLeft()) {
+					handler.handle(new Either.Left<String, Boolean>(r.left().getValue()));
+					return;
+				}
+				final JsonObject userBook = r.right().getValue();
+				if (userBook.getLong("storage") == null) {
+					handler.handle(new Either.Right<String, Boolean>(false));
+					return;
+				}
+				final JsonObject update = new JsonObject().put("$setOnInsert", new JsonObject()
+						.put("storage", userBook.getLong("storage"))
+						.put("quota", userBook.getLong("quota", 0L))
+						.put("alertSize", userBook.getBoolean("alertSize", false))
+						.put("pending", 0L)
+						.put("modified", MongoDb.now()));
+				mongo.update(QUOTA_LEDGER_COLLECTION, new JsonObject().put("_id", userId), update, true, false,
+						new Handler<Message<JsonObject>>() {
+					@Override
+					public void handle(Message<JsonObject> res) {
+						if ("ok".equals(res.body().getString("status"))) {
+							handler.handle(new Either.Right<String, Boolean>(true));
+						} else {
+							handler.handle(new Either.Left<String, Boolean>(res.body().getString("message")));
+						}
+					}
+				});
+			}
+		}));
+	}
+
+	/**
+	 * Returns quota and storage from the ledger, or null when the user has no ledger :
+	 * the UserBook is then up to date.
+	 */
+	public void quotaAndUsage(String userId, final Handler<Either<String, JsonObject>> handler) {
+		final JsonObject keys = new JsonObject().put("quota", 1).put("storage", 1);
+		mongo.findOne(QUOTA_LEDGER_COLLECTION, new JsonObject().put("_id", userId), keys,
+				new Handler<Message<JsonObject>>() {
+			@Override
+			public void handle(Message<JsonObject> res) {
+				if (!"ok".equals(res.body().getString("status"))) {
+					handler.handle(new Either.Left<String, JsonObject>(res.body().getString("message")));
+					return;
+				}
+				final JsonObject ledger = res.body().getJsonObject("result");
+				handler.handle(new Either.Right<String, JsonObject>((ledger == null) ? null : new JsonObject()
+						.put("quota", ledger.getLong("quota", 0L))
+						.put("storage", ledger.getLong("storage", 0L))));
+			}
+		});
+	}
+
+	/**
+	 * Returns the storage of the users having a ledger, by user id : the UserBook storage of these users
+	 * lags behind by up to the flush delay.
+	 */
+	public void storages(JsonArray users, final Handler<Either<String, JsonObject>> handler) {
+		final JsonObject query = new JsonObject().put("_id", new JsonObject().put("$in", users));
+		mongo.find(QUOTA_LEDGER_COLLECTION, query, null, new JsonObject().put("storage", 1),
+				new Handler<Message<JsonObject>>() {
+			@Override
+			public void handle(Message<JsonObject> res) {
+				final JsonArray ledgers = res.body().getJsonArray("results");
+				if (!"ok".equals(res.body().getString("status")) || ledgers == null) {
+					handler.handle(new Either.Left<String, JsonObject>(res.body().getString("message")));
+					return;
+				}
+				final JsonObject storages = new JsonObject();
+				for (Object o : ledgers) {
+					if (!(o instanceof JsonObject)) continue;
+					storages.put(((JsonObject) o).getString("_id"), ((JsonObject) o).getLong("storage", 0L));
+				}
+				handler.handle(new Either.Right<String, JsonObject>(storages));
+			}
+		});
+	}
+
+	public void updateQuota(JsonArray users, long quota) {
+		final JsonObject query = new JsonObject().put("_id", new JsonObject().put("$in", users));
+		final JsonObject update = new JsonObject().put("$set",
+				new JsonObject().put("quota", quota).put("alertSize", false));
+		mongo.update(QUOTA_LEDGER_COLLECTION, query, update, false, true, new Handler<Message<JsonObject>>() {
+			@Override
+			public void handle(Message<JsonObject> res) {
+				if (!"ok".equals(res.body().getString("status"))) {
+					log.error("Error updating quota ledgers : " + res.body().getString("message"));
+				}
+			}
+		});
+	}
+
+	/**
+	 * Drops the ledger of a user whose UserBook has been reinitialized.
+	 */
+	public void remove(String userId) {
+		mongo.delete(QUOTA_LEDGER_COLLECTION, new JsonObject().put("_id", userId));
+	}
+
+	@Override
+	public void handle(Long event) {
+		if (flushing) {
+			return;
+		}
+		flushing = true;
+		flush(new Handler<Either<String, Integer>>() {
+			@Override
+			public void handle(Either<String, Integer> res) {
+				flushing = false;
+				if (res.isLeft()) {
+					log.error("Error flushing quota ledgers : " + res.left().getValue());
+				} else if (res.right().getValue() > 0) {
+					log.debug("Quota ledgers flushed : " + res.right().getValue());
+				}
+			}
+		});
+		removeIdle();
+	}
+
+	private void flush(final Handler<Either<String, Integer>> handler) {
+		final long now = System.currentTimeMillis();
+		final JsonObject pending = new JsonObject()
+				.put("pending", new JsonObject().put("$ne", 0))
+				.put("flushId", new JsonObject().put("$exists", false));
+		final JsonObject stale = new JsonObject()
+				.put("flushId", new JsonObject().put("$exists", true))
+				.put("flushDate", new JsonObject().put("$lt", new JsonObject().put("$date", now - staleFlushDelay)));
+		final JsonObject query = new JsonObject().put("$or", new fr.wseduc.webutils.collections.JsonArray()
+				.add(pending).add(stale));
+		final JsonObject keys = new JsonObject().put("pending", 1).put("flushId", 1).put("flushing", 1)
+				.put("alertSize", 1).put("quota", 1);
+		mongo.find(QUOTA_LEDGER_COLLECTION, query, null, keys, 0, batchSize, batchSize,
+				new Handler<Message<JsonObject>>() {
+			@Override
+			public void handle(Message<JsonObject> res) {
+				final JsonArray ledgers = res.body().getJsonArray("results");
+				if (!"ok".equals(res.body().getString("status")) || ledgers == null) {
+					handler.handle(new Either.Left<String, Integer>(res.body().getString("message")));
+					return;
+				}
+				if (ledgers.size() == 0) {
+					handler.handle(new Either.Right<String, Integer>(0));
+					return;
+				}
+				final String flushId = UUID.randomUUID().toString();
+				@SuppressWarnings("rawtypes")
+				final List<Future> claims = new ArrayList<>();
+				for (Object o : ledgers) {
+					if (!(o instanceof JsonObject)) continue;
+					claims.add(claim((JsonObject) o, flushId, now));
+				}
+				CompositeFuture.join(claims).setHandler(ar -> {
+					final JsonArray rows = new fr.wseduc.webutils.collections.JsonArray();
+					for (Future<?> claim : claims) {
+						if (claim.succeeded() && claim.result() != null) {
+							rows.add(claim.result());
+						}
+					}
+					if (rows.size() == 0) {
+						handler.handle(new Either.Right<String, Integer>(0));
+						return;
+					}
+					writeUserBooks(rows, handler);
+				});
+			}
+		});
+	}
+
+	/**
+	 * Moves the pending delta of the ledger to a flush claim, or takes over a stale claim of another flush.
+	 * Completes with null when the ledger changed since it was read, it will be claimed by the next flush.
+	 */
+	private Future<JsonObject> claim(final JsonObject ledger, String flushId, long now) {
+		final Future<JsonObject> future = Future.future();
+		final JsonObject row = claimRow(ledger, flushId);
+		mongo.update(QUOTA_LEDGER_COLLECTION, claimQuery(ledger, now - staleFlushDelay), claimUpdate(ledger, flushId, now),
+				new Handler<Message<JsonObject>>() {
+			@Override
+			public void handle(Message<JsonObject> res) {
+				if ("ok".equals(res.body().getString("status")) && res.body().getInteger("number", 0) > 0) {
+					future.complete(row);
+				} else {
+					future.complete(null);
+				}
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * A stale claim only matches while it is still stale : when several nodes read it, the first one
+	 * takes it over by refreshing its date and the others apply nothing.
+	 */
+	static JsonObject claimQuery(JsonObject ledger, long staleBefore) {
+		final JsonObject query = new JsonObject().put("_id", ledger.getString("_id"));
+		if (ledger.getString("flushId") != null) {
+			return query
+					.put("flushId", ledger.getString("flushId"))
+					.put("flushDate", new JsonObject().put("$lt", new JsonObject().put("$date", staleBefore)));
+		}
+		return query
+				.put("pending", ledger.getLong("pending", 0L))
+				.put("flushId", new JsonObject().put("$exists", false));
+	}
+
+	static JsonObject claimUpdate(JsonObject ledger, String flushId, long now) {
+		final JsonObject flushDate = new JsonObject().put("$date", now);
+		if (ledger.getString("flushId") != null) {
+			return new JsonObject().put("$set", new JsonObject().put("flushDate", flushDate));
+		}
+		final long pending = ledger.getLong("pending", 0L);
+		return new JsonObject()
+				.put("$set", new JsonObject().put("flushId", flushId).put("flushing", pending).put("flushDate", flushDate))
+				.put("$inc", new JsonObject().put("pending", -pending));
+	}
+
+	/**
+	 * Row of the UserBook update. A stale claim keeps its flush id, the UserBook skips it if it was already applied.
+	 * The quota of the ledger at the claim is kept to detect a quota update during the flush.
+	 */
+	static JsonObject claimRow(JsonObject ledger, String flushId) {
+		final boolean stale = ledger.getString("flushId") != null;
+		return new JsonObject()
+				.put("userId", ledger.getString("_id"))
+				.put("flushId", stale ? ledger.getString("flushId") : flushId)
+				.put("flushing", stale ? ledger.getLong("flushing", 0L) : ledger.getLong("pending", 0L))
+				.put("alertSize", ledger.getBoolean("alertSize", false))
+				.put("quota", ledger.getValue("quota"));
+	}
+
+	private void writeUserBooks(final JsonArray rows, final Handler<Either<String, Integer>> handler) {
+		final JsonObject params = new JsonObject().put("rows", rows);
+		final JsonArray statements = new fr.wseduc.webutils.collections.JsonArray()
+				.add(new JsonObject().put("statement", FLUSH_QUERY).put("parameters", params))
+				.add(new JsonObject().put("statement", FLUSHED_QUERY).put("parameters", params));
+		neo4j.executeTransaction(statements, null, true, new Handler<Message<JsonObject>>() {
+			@Override
+			public void handle(Message<JsonObject> res) {
+				final JsonArray results = res.body().getJsonArray("results");
+				if (!"ok".equals(res.body().getString("status")) || results == null || results.size() != 2) {
+					// claims are kept and applied again when stale
+					handler.handle(new Either.Left<String, Integer>(res.body().getString("message")));
+					return;
+				}
+				final JsonObject userBooks = new JsonObject();
+				for (Object o : results.getJsonArray(1)) {
+					if (!(o instanceof JsonObject)) continue;
+					userBooks.put(((JsonObject) o).getString("userId"), o);
+				}
+				for (Object o : rows) {
+					final JsonObject row = (JsonObject) o;
+					release(row, userBooks.getJsonObject(row.getString("userId")));
+				}
+				handler.handle(new Either.Right<String, Integer>(rows.size()));
+			}
+		});
+	}
+
+	/**
+	 * Removes the flush claim. Without new increments nor quota update since the claim, the ledger is
+	 * synchronized with the UserBook.
+	 */
+	private void release(final JsonObject row, final JsonObject userBook) {
+		final String userId = row.getString("userId");
+		final String flushId = row.getString("flushId");
+		if (userBook == null) {
+			mongo.delete(QUOTA_LEDGER_COLLECTION, releaseQuery(userId, flushId));
+			return;
+		}
+		mongo.update(QUOTA_LEDGER_COLLECTION, releaseSyncQuery(row), releaseUpdate(userBook),
+				new Handler<Message<JsonObject>>() {
+			@Override
+			public void handle(Message<JsonObject> res) {
+				if ("ok".equals(res.body().getString("status")) && res.body().getInteger("number", 0) > 0) {
+					return;
+				}
+				mongo.update(QUOTA_LEDGER_COLLECTION, releaseQuery(userId, flushId), releaseUpdate(null),
+						new Handler<Message<JsonObject>>() {
+					@Override
+					public void handle(Message<JsonObject> event) {
+						if (!"ok".equals(event.body().getString("status"))) {
+							log.error("Error releasing quota ledger " + userId + " : " +
+									event.body().getString("message"));
+						}
+					}
+				});
+			}
+		});
+	}
+
+	static JsonObject releaseQuery(String userId, String flushId) {
+		return new JsonObject().put("_id", userId).put("flushId", flushId);
+	}
+
+	/**
+	 * The UserBook read after the flush may hold an older quota than an update made meanwhile.
+	 */
+	static JsonObject releaseSyncQuery(JsonObject row) {
+		return releaseQuery(row.getString("userId"), row.getString("flushId"))
+				.put("pending", 0)
+				.put("quota", row.getValue("quota"));
+	}
+
+	static JsonObject releaseUpdate(JsonObject userBook) {
+		final JsonObject update = new JsonObject().put("$unset",
+				new JsonObject().put("flushId", "").put("flushing", "").put("flushDate", ""));
+		if (userBook != null) {
+			update.put("$set", new JsonObject()
+					.put("storage", userBook.getLong("storage", 0L))
+					.put("quota", userBook.getLong("quota", 0L)));
+		}
+		return update;
+	}
+
+	private void removeIdle() {
+		final JsonObject query = new JsonObject()
+				.put("pending", 0)
+				.put("flushId", new JsonObject().put("$exists", false))
+				.put("modified", new JsonObject().put("$lt",
+						new JsonObject().put("$date", System.currentTimeMillis() - idleDelay)));
+		mongo.delete(QUOTA_LEDGER_COLLECTION, query);
+	}
+
+}
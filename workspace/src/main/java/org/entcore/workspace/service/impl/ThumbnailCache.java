@@ -0,0 +1,405 @@
+/*
+ * Copyright © "Open Digital Education", 2014
+ *
+ * This program is published by "Open Digital Education".
+ * You must indicate the name of the software and the company in any production /contribution
+ * using the software and indicate on the home page of the software industry in question,
+ * "powered by Open Digital Education" with a reference to the website: https://opendigitaleducation.com/.
+ *
+ * This program is free software, licensed under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * You can redistribute this application and/or modify it since you respect the terms of the GNU Affero General Public License.
+ * If you modify the source code and then use this modified source code in your creation, you must make available the source code of your modifications.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with the software.
+ * If not, please see : <http://www.gnu.org/licenses/>. Full compliance requires reading the terms of this license and following its directives.
+
+ */
+
+package org.entcore.workspace.service.impl;
+
+import static fr.wseduc.webutils.Utils.handlerToAsyncHandler;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.entcore.common.storage.Storage;
+import org.entcore.workspace.dao.DocumentDao;
+
+import fr.wseduc.mongodb.MongoDb;
+import fr.wseduc.webutils.Either;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.Message;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import io.vertx.core.shareddata.Lock;
+
+/**
+ * Thumbnails of the workspace images created on first access instead of at upload.
+ * Concurrent requests of a thumbnail on a node wait for the same resize, and the thumbnail is only set on
+ * the document if none was set by another node meanwhile. Created thumbnails are recorded with their size
+ * and last access, and the least recently used ones are removed when the storage budget is exceeded.
+ * They are also removed with the file they were created from, on a new revision or on delete.
+ */
+public class ThumbnailCache implements Handler<Long> {
+
+	private static final Logger log = LoggerFactory.getLogger(ThumbnailCache.class);
+	public static final String THUMBNAILS_COLLECTION = "documentsThumbnails";
+	private static final Pattern SIZE_PATTERN = Pattern.compile("([0-9]+)x([0-9]+)");
+	private static final String EVICTION_LOCK = "workspace.thumbnails.eviction";
+	private static final int EVICTION_BATCH = 500;
+
+	private final MongoDb mongo = MongoDb.getInstance();
+	private final Vertx vertx;
+	private final Storage storage;
+	private final String imageResizerAddress;
+	private final Set<String> sizes = new HashSet<>();
+	private final long storageBudget;
+	private final long maxAge;
+	private final Map<String, List<Handler<Either<String, String>>>> pending = new HashMap<>();
+	private Set<String> accessed = new HashSet<>();
+
+	public ThumbnailCache(Vertx vertx, JsonObject config, Storage storage, String imageResizerAddress) {
+		this.vertx = vertx;
+		this.storage = storage;
+		this.imageResizerAddress = imageResizerAddress;
+		final JsonArray s = config.getJsonArray("thumbnail-sizes", new fr.wseduc.webutils.collections.JsonArray());
+		for (Object o : s) {
+			if (o instanceof String && SIZE_PATTERN.matcher((String) o).matches()) {
+				sizes.add((String) o);
+			}
+		}
+		this.storageBudget = config.getLong("thumbnail-storage-budget", 0L);
+		this.maxAge = config.getLong("thumbnail-max-age", 7 * 24 * 3600L);
+		vertx.setPeriodic(config.getLong("thumbnail-eviction-delay", 5 * 60 * 1000L), this);
+	}
+
+	/**
+	 * @return true if the size is created on demand. Those sizes are not created at upload.
+	 */
+	public boolean isLazy(String size) {
+		return size != null && sizes.contains(size);
+	}
+
+	public long getMaxAge() {
+		return maxAge;
+	}
+
+	/**
+	 * Returns the file id of the thumbnail of the document, creating it if needed.
+	 */
+	public void getThumbnail(final JsonObject document, final String size, final Handler<Either<String, String>> handler) {
+		final String thumbnail = document.getJsonObject("thumbnails", new JsonObject()).getString(size);
+		if (thumbnail != null) {
+			accessed.add(thumbnail);
+			handler.handle(new Either.Right<String, String>(thumbnail));
+			return;
+		}
+		final String documentId = document.getString("_id");
+		final String file = document.getString("file");
+		if (!isLazy(size) || documentId == null || file == null || !isImage(document)) {
+			handler.handle(new Either.Left<String, String>("workspace.thumbnail.not.allowed"));
+			return;
+		}
+		final String key = file + "|" + size;
+		List<Handler<Either<String, String>>> waiting = pending.get(key);
+		if (waiting != null) {
+			waiting.add(handler);
+			return;
+		}
+		waiting = new ArrayList<>();
+		waiting.add(handler);
+		pending.put(key, waiting);
+		create(documentId, file, size, new Handler<Either<String, String>>() {
+			@Override
+			public void handle(Either<String, String> res) {
+				for (Handler<Either<String, String>> h : pending.remove(key)) {
+					h.handle(res);
+				}
+			}
+		});
+	}
+
+	private void create(final String documentId, final String file, final String size,
+			final Handler<Either<String, String>> handler) {
+		final Matcher m = SIZE_PATTERN.matcher(size);
+		if (!m.matches()) {
+			handler.handle(new Either.Left<String, String>("workspace.thumbnail.invalid.size"));
+			return;
+		}
+		final int width = Integer.parseInt(m.group(1));
+		final int height = Integer.parseInt(m.group(2));
+		final JsonObject destination = new JsonObject().put("dest", storage.getProtocol() + "://" + storage.getBucket());
+		if (width != 0) {
+			destination.put("width", width);
+		}
+		if (height != 0) {
+			destination.put("height", height);
+		}
+		final JsonObject json = new JsonObject().put("action", "resizeMultiple")
+				.put("src", storage.getProtocol() + "://" + storage.getBucket() + ":" + file)
+				.put("destinations", new fr.wseduc.webutils.collections.JsonArray().add(destination));
+		vertx.eventBus().send(imageResizerAddress, json, handlerToAsyncHandler(new Handler<Message<JsonObject>>() {
+			@Override
+			public void handle(Message<JsonObject> event) {
+				final JsonObject outputs = event.body().getJsonObject("outputs");
+				if (!"ok".equals(event.body().getString("status")) || outputs == null || outputs.size() == 0) {
+					handler.handle(new Either.Left<String, String>("workspace.thumb.create.fail"));
+					return;
+				}
+				final Object thumbnail = outputs.getValue(outputs.fieldNames().iterator().next());
+				if (!(thumbnail instanceof String)) {
+					handler.handle(new Either.Left<String, String>("workspace.thumb.create.fail"));
+					return;
+				}
+				setThumbnail(documentId, file, size, (String) thumbnail, handler);
+			}
+		}));
+	}
+
+	private void setThumbnail(final String documentId, final String file, final String size, final String thumbnail,
+			final Handler<Either<String, String>> handler) {
+		final JsonObject query = new JsonObject()
+				.put("_id", documentId)
+				.put("file", file)
+				.put("thumbnails." + size, new JsonObject().put("$exists", false));
+		final JsonObject update = new JsonObject().put("$set", new JsonObject().put("thumbnails." + size, thumbnail));
+		mongo.update(DocumentDao.DOCUMENTS_COLLECTION, query, update, new Handler<Message<JsonObject>>() {
+			@Override
+			public void handle(Message<JsonObject> res) {
+				if ("ok".equals(res.body().getString("status")) && res.body().getInteger("number", 0) > 0) {
+					record(documentId, file, size, thumbnail);
+					handler.handle(new Either.Right<String, String>(thumbnail));
+					return;
+				}
+				// another node set the thumbnail or the document has a new revision
+				storage.removeFile(thumbnail, new Handler<JsonObject>() {
+					@Override
+					public void handle(JsonObject event) {
+						if (!"ok".equals(event.getString("status"))) {
+							log.error("Error removing thumbnail " + thumbnail + " : " + event.getString("message"));
+						}
+					}
+				});
+				final JsonObject keys = new JsonObject().put("file", 1).put("thumbnails", 1);
+				mongo.findOne(DocumentDao.DOCUMENTS_COLLECTION, new JsonObject().put("_id", documentId), keys,
+						new Handler<Message<JsonObject>>() {
+					@Override
+					public void handle(Message<JsonObject> event) {
+						final JsonObject document = event.body().getJsonObject("result");
+						final String t = (document != null && file.equals(document.getString("file"))) ?
+								document.getJsonObject("thumbnails", new JsonObject()).getString(size) : null;
+						if (t != null) {
+							handler.handle(new Either.Right<String, String>(t));
+						} else {
+							handler.handle(new Either.Left<String, String>("workspace.thumb.create.fail"));
+						}
+					}
+				});
+			}
+		});
+	}
+
+	private void record(final String documentId, final String file, final String size, final String thumbnail) {
+		storage.fileStats(thumbnail, ar -> {
+			final JsonObject entry = new JsonObject()
+					.put("_id", thumbnail)
+					.put("document", documentId)
+					.put("file", file)
+					.put("size", size)
+					.put("bytes", ar.succeeded() ? ar.result().getSizeInBytes() : 0L)
+					.put("lastAccess", MongoDb.now());
+			mongo.save(THUMBNAILS_COLLECTION, entry, new Handler<Message<JsonObject>>() {
+				@Override
+				public void handle(Message<JsonObject> res) {
+					if (!"ok".equals(res.body().getString("status"))) {
+						log.error("Error recording thumbnail " + thumbnail + " : " + res.body().getString("message"));
+					}
+				}
+			});
+		});
+	}
+
+	/**
+	 * Removes the thumbnails created on demand for the document, only those of the file if file is not null.
+	 * Called when the document gets a new revision, is restored to a previous one, or is deleted.
+	 */
+	public void removeThumbnails(final String documentId, final String file) {
+		final JsonObject query = new JsonObject().put("document", documentId);
+		if (file != null) {
+			query.put("file", file);
+		}
+		mongo.find(THUMBNAILS_COLLECTION, query, null, new JsonObject().put("_id", 1), new Handler<Message<JsonObject>>() {
+			@Override
+			public void handle(Message<JsonObject> res) {
+				final JsonArray entries = res.body().getJsonArray("results");
+				if (!"ok".equals(res.body().getString("status")) || entries == null) {
+					log.error("Error listing thumbnails of document " + documentId + " : " + res.body().getString("message"));
+					return;
+				}
+				final JsonArray ids = new fr.wseduc.webutils.collections.JsonArray();
+				for (Object o : entries) {
+					if (o instanceof JsonObject) {
+						ids.add(((JsonObject) o).getString("_id"));
+					}
+				}
+				remove(ids);
+			}
+		});
+	}
+
+	private void remove(final JsonArray ids) {
+		if (ids.size() == 0) {
+			return;
+		}
+		storage.removeFiles(ids, new Handler<JsonObject>() {
+			@Override
+			public void handle(JsonObject event) {
+				if (!"ok".equals(event.getString("status"))) {
+					log.error("Error removing thumbnails " + ids.encode() + " : " + event.getString("message"));
+				}
+				mongo.delete(THUMBNAILS_COLLECTION, new JsonObject().put("_id", new JsonObject().put("$in", ids)));
+			}
+		});
+	}
+
+	@Override
+	public void handle(Long event) {
+		if (!accessed.isEmpty()) {
+			final JsonArray ids = new fr.wseduc.webutils.collections.JsonArray(new ArrayList<>(accessed));
+			accessed = new HashSet<>();
+			mongo.update(THUMBNAILS_COLLECTION, new JsonObject().put("_id", new JsonObject().put("$in", ids)),
+					new JsonObject().put("$set", new JsonObject().put("lastAccess", MongoDb.now())), false, true,
+					new Handler<Message<JsonObject>>() {
+				@Override
+				public void handle(Message<JsonObject> res) {
+					evict();
+				}
+			});
+		} else {
+			evict();
+		}
+	}
+
+	/**
+	 * Removes the least recently used thumbnails beyond the storage budget.
+	 * Only one node evicts at a time : the others skip their turn while the lock is held.
+	 */
+	private void evict() {
+		if (storageBudget <= 0) {
+			return;
+		}
+		vertx.sharedData().getLockWithTimeout(EVICTION_LOCK, 1000L, ar -> {
+			if (ar.failed()) {
+				return;
+			}
+			final Lock lock = ar.result();
+			final JsonObject command = new JsonObject()
+					.put("aggregate", THUMBNAILS_COLLECTION)
+					.put("pipeline", new fr.wseduc.webutils.collections.JsonArray().add(new JsonObject().put("$group",
+							new JsonObject().put("_id", (String) null).put("bytes", new JsonObject().put("$sum", "$bytes")))))
+					.put("cursor", new JsonObject().put("batchSize", 1));
+			mongo.command(command.encode(), new Handler<Message<JsonObject>>() {
+				@Override
+				public void handle(Message<JsonObject> res) {
+					final JsonObject result = res.body().getJsonObject("result", new JsonObject());
+					if (!"ok".equals(res.body().getString("status")) || result.getInteger("ok", 0) != 1) {
+						log.error("Error computing thumbnails size : " + res.body().getString("message"));
+						lock.release();
+						return;
+					}
+					final JsonArray batch = result.getJsonObject("cursor", new JsonObject())
+							.getJsonArray("firstBatch", new fr.wseduc.webutils.collections.JsonArray());
+					final long total = batch.size() > 0 ? batch.getJsonObject(0).getLong("bytes", 0L) : 0L;
+					evictOldest(total - storageBudget, lock);
+				}
+			});
+		});
+	}
+
+	private void evictOldest(final long excess, final Lock lock) {
+		if (excess <= 0) {
+			lock.release();
+			return;
+		}
+		final JsonObject sort = new JsonObject().put("lastAccess", 1);
+		final JsonObject keys = new JsonObject().put("document", 1).put("size", 1).put("bytes", 1);
+		mongo.find(THUMBNAILS_COLLECTION, new JsonObject(), sort, keys, 0, EVICTION_BATCH, EVICTION_BATCH,
+				new Handler<Message<JsonObject>>() {
+			@Override
+			public void handle(Message<JsonObject> res) {
+				final JsonArray entries = res.body().getJsonArray("results");
+				if (!"ok".equals(res.body().getString("status")) || entries == null || entries.size() == 0) {
+					if (!"ok".equals(res.body().getString("status"))) {
+						log.error("Error listing thumbnails : " + res.body().getString("message"));
+					}
+					lock.release();
+					return;
+				}
+				long freed = 0L;
+				final JsonArray evicted = new fr.wseduc.webutils.collections.JsonArray();
+				for (Object o : entries) {
+					if (freed >= excess) break;
+					if (!(o instanceof JsonObject)) continue;
+					final JsonObject entry = (JsonObject) o;
+					freed += entry.getLong("bytes", 0L);
+					evicted.add(entry.getString("_id"));
+					unsetThumbnail(entry);
+				}
+				final long remaining = excess - freed;
+				final boolean more = entries.size() == EVICTION_BATCH;
+				storage.removeFiles(evicted, new Handler<JsonObject>() {
+					@Override
+					public void handle(JsonObject event) {
+						mongo.delete(THUMBNAILS_COLLECTION, new JsonObject().put("_id", new JsonObject().put("$in", evicted)),
+								new Handler<Message<JsonObject>>() {
+							@Override
+							public void handle(Message<JsonObject> deleted) {
+								if (more && "ok".equals(deleted.body().getString("status"))) {
+									evictOldest(remaining, lock);
+								} else {
+									lock.release();
+								}
+							}
+						});
+					}
+				});
+			}
+		});
+	}
+
+	private void unsetThumbnail(final JsonObject entry) {
+		mongo.update(DocumentDao.DOCUMENTS_COLLECTION, new JsonObject()
+				.put("_id", entry.getString("document"))
+				.put("thumbnails." + entry.getString("size"), entry.getString("_id")),
+				new JsonObject().put("$unset", new JsonObject().put("thumbnails." + entry.getString("size"), "")),
+				new Handler<Message<JsonObject>>() {
+			@Override
+			public void handle(Message<JsonObject> event) {
+				if (!"ok".equals(event.body().getString("status"))) {
+					log.error("Error unsetting thumbnail " + entry.getString("_id") + " : " +
+							event.body().getString("message"));
+				}
+			}
+		});
+	}
+
+	private static boolean isImage(JsonObject document) {
+		final JsonObject metadata = document.getJsonObject("metadata");
+		return metadata != null && ("image/jpeg".equals(metadata.getString("content-type"))
+				|| "image/gif".equals(metadata.getString("content-type"))
+				|| "image/png".equals(metadata.getString("content-type"))
+				|| "image/tiff".equals(metadata.getString("content-type")));
+	}
+
+}
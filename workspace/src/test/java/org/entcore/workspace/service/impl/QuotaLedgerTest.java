@@ -0,0 +1,200 @@
+/* Copyright © "Open Digital Education", 2014
+ *
+ * This program is published by "Open Digital Education".
+ * You must indicate the name of the software and the company in any production /contribution
+ * using the software and indicate on the home page of the software industry in question,
+ * "powered by Open Digital Education" with a reference to the website: https://opendigitaleducation.com/.
+ *
+ * This program is free software, licensed under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * You can redistribute this application and/or modify it since you respect the terms of the GNU Affero General Public License.
+ * If you modify the source code and then use this modified source code in your creation, you must make available the source code of your modifications.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with the software.
+ * If not, please see : <http://www.gnu.org/licenses/>. Full compliance requires reading the terms of this license and following its directives.
+
+ *
+ */
+
+package org.entcore.workspace.service.impl;
+
+import io.vertx.core.json.JsonObject;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class QuotaLedgerTest {
+
+	private static final long STALE_DELAY = 300000L;
+
+	@Test
+	public void claimMovesPendingToFlushing() {
+		final JsonObject ledger = ledger(150L);
+		final JsonObject read = ledger.copy();
+		assertTrue(update(ledger, QuotaLedger.claimQuery(read, 1000L - STALE_DELAY),
+				QuotaLedger.claimUpdate(read, "f1", 1000L)));
+		assertEquals(0L, ledger.getLong("pending").longValue());
+		assertEquals(150L, ledger.getLong("flushing").longValue());
+		assertEquals("f1", ledger.getString("flushId"));
+		final JsonObject row = QuotaLedger.claimRow(read, "f1");
+		assertEquals("u1", row.getString("userId"));
+		assertEquals("f1", row.getString("flushId"));
+		assertEquals(150L, row.getLong("flushing").longValue());
+		assertEquals(5000L, row.getLong("quota").longValue());
+	}
+
+	@Test
+	public void claimIsRefusedWhenLedgerChanged() {
+		final JsonObject ledger = ledger(150L);
+		final JsonObject read = ledger.copy();
+		ledger.put("pending", 170L);
+		assertFalse(update(ledger, QuotaLedger.claimQuery(read, 1000L - STALE_DELAY),
+				QuotaLedger.claimUpdate(read, "f1", 1000L)));
+		assertEquals(170L, ledger.getLong("pending").longValue());
+		assertNull(ledger.getValue("flushId"));
+	}
+
+	@Test
+	public void releaseSynchronizesLedgerWithoutNewIncrements() {
+		final JsonObject ledger = claimed(150L, "f1", 1000L);
+		final JsonObject userBook = new JsonObject().put("storage", 2150L).put("quota", 5000L);
+		assertTrue(update(ledger, QuotaLedger.releaseSyncQuery(row("f1", 5000L)),
+				QuotaLedger.releaseUpdate(userBook)));
+		assertNull(ledger.getValue("flushId"));
+		assertNull(ledger.getValue("flushing"));
+		assertNull(ledger.getValue("flushDate"));
+		assertEquals(2150L, ledger.getLong("storage").longValue());
+		assertEquals(5000L, ledger.getLong("quota").longValue());
+	}
+
+	@Test
+	public void releaseKeepsQuotaUpdatedDuringFlush() {
+		final JsonObject ledger = claimed(150L, "f1", 1000L);
+		ledger.put("quota", 8000L);
+		final JsonObject userBook = new JsonObject().put("storage", 2150L).put("quota", 5000L);
+		assertFalse(update(ledger, QuotaLedger.releaseSyncQuery(row("f1", 5000L)),
+				QuotaLedger.releaseUpdate(userBook)));
+		assertTrue(update(ledger, QuotaLedger.releaseQuery("u1", "f1"), QuotaLedger.releaseUpdate(null)));
+		assertNull(ledger.getValue("flushId"));
+		assertEquals(8000L, ledger.getLong("quota").longValue());
+	}
+
+	@Test
+	public void releaseKeepsNewIncrements() {
+		final JsonObject ledger = claimed(150L, "f1", 1000L);
+		ledger.put("pending", 20L).put("storage", 2170L);
+		final JsonObject userBook = new JsonObject().put("storage", 2150L).put("quota", 5000L);
+		assertFalse(update(ledger, QuotaLedger.releaseSyncQuery(row("f1", 5000L)),
+				QuotaLedger.releaseUpdate(userBook)));
+		assertTrue(update(ledger, QuotaLedger.releaseQuery("u1", "f1"), QuotaLedger.releaseUpdate(null)));
+		assertNull(ledger.getValue("flushId"));
+		assertEquals(20L, ledger.getLong("pending").longValue());
+		assertEquals(2170L, ledger.getLong("storage").longValue());
+		// a release of an other flush doesn't match
+		assertFalse(update(ledger, QuotaLedger.releaseQuery("u1", "f1"), QuotaLedger.releaseUpdate(null)));
+	}
+
+	@Test
+	public void staleClaimKeepsItsFlushId() {
+		final JsonObject ledger = claimed(150L, "f1", 1000L);
+		final long now = 1000L + STALE_DELAY + 1;
+		final JsonObject read = ledger.copy();
+		assertTrue(update(ledger, QuotaLedger.claimQuery(read, now - STALE_DELAY),
+				QuotaLedger.claimUpdate(read, "f2", now)));
+		assertEquals("f1", ledger.getString("flushId"));
+		assertEquals(150L, ledger.getLong("flushing").longValue());
+		final JsonObject row = QuotaLedger.claimRow(read, "f2");
+		assertEquals("f1", row.getString("flushId"));
+		assertEquals(150L, row.getLong("flushing").longValue());
+	}
+
+	@Test
+	public void staleClaimIsTakenOverOnce() {
+		final JsonObject ledger = claimed(150L, "f1", 1000L);
+		final long now = 1000L + STALE_DELAY + 1;
+		final JsonObject readByNode1 = ledger.copy();
+		final JsonObject readByNode2 = ledger.copy();
+		assertTrue(update(ledger, QuotaLedger.claimQuery(readByNode1, now - STALE_DELAY),
+				QuotaLedger.claimUpdate(readByNode1, "f2", now)));
+		assertFalse(update(ledger, QuotaLedger.claimQuery(readByNode2, now + 10 - STALE_DELAY),
+				QuotaLedger.claimUpdate(readByNode2, "f3", now + 10)));
+	}
+
+	@Test
+	public void releasedClaimIsNotTakenOver() {
+		final JsonObject ledger = claimed(150L, "f1", 1000L);
+		final long now = 1000L + STALE_DELAY + 1;
+		final JsonObject read = ledger.copy();
+		assertTrue(update(ledger, QuotaLedger.releaseQuery("u1", "f1"), QuotaLedger.releaseUpdate(null)));
+		assertFalse(update(ledger, QuotaLedger.claimQuery(read, now - STALE_DELAY),
+				QuotaLedger.claimUpdate(read, "f2", now)));
+	}
+
+	@Test
+	public void recentClaimIsNotTakenOver() {
+		final JsonObject ledger = claimed(150L, "f1", 1000L);
+		final JsonObject read = ledger.copy();
+		assertFalse(update(ledger, QuotaLedger.claimQuery(read, 2000L - STALE_DELAY),
+				QuotaLedger.claimUpdate(read, "f2", 2000L)));
+	}
+
+	private static JsonObject ledger(long pending) {
+		return new JsonObject().put("_id", "u1").put("storage", 2000L + pending).put("quota", 5000L)
+				.put("pending", pending).put("alertSize", false);
+	}
+
+	private static JsonObject row(String flushId, long quota) {
+		return new JsonObject().put("userId", "u1").put("flushId", flushId).put("quota", quota);
+	}
+
+	private static JsonObject claimed(long pending, String flushId, long date) {
+		final JsonObject ledger = ledger(pending);
+		final JsonObject read = ledger.copy();
+		assertTrue(update(ledger, QuotaLedger.claimQuery(read, date - STALE_DELAY),
+				QuotaLedger.claimUpdate(read, flushId, date)));
+		return ledger;
+	}
+
+	/**
+	 * Applies the update to the document if it matches the query, with the operators used by the ledger.
+	 */
+	private static boolean update(JsonObject doc, JsonObject query, JsonObject update) {
+		for (String field : query.fieldNames()) {
+			final Object expected = query.getValue(field);
+			final Object value = doc.getValue(field);
+			if (expected instanceof JsonObject && ((JsonObject) expected).containsKey("$exists")) {
+				if (((JsonObject) expected).getBoolean("$exists") != (value != null)) {
+					return false;
+				}
+			} else if (expected instanceof JsonObject && ((JsonObject) expected).containsKey("$lt")) {
+				if (!(value instanceof JsonObject) || ((JsonObject) value).getLong("$date") >=
+						((JsonObject) expected).getJsonObject("$lt").getLong("$date")) {
+					return false;
+				}
+			} else if (expected instanceof Number) {
+				if (!(value instanceof Number) || ((Number) value).longValue() != ((Number) expected).longValue()) {
+					return false;
+				}
+			} else if (expected == null || !expected.equals(value)) {
+				return false;
+			}
+		}
+		final JsonObject set = update.getJsonObject("$set", new JsonObject());
+		for (String field : set.fieldNames()) {
+			doc.put(field, set.getValue(field));
+		}
+		final JsonObject inc = update.getJsonObject("$inc", new JsonObject());
+		for (String field : inc.fieldNames()) {
+			doc.put(field, doc.getLong(field, 0L) + inc.getLong(field));
+		}
+		for (String field : update.getJsonObject("$unset", new JsonObject()).fieldNames()) {
+			doc.remove(field);
+		}
+		return true;
+	}
+
+}